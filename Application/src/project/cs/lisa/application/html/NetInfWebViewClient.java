@@ -33,11 +33,11 @@ import java.net.URL;
 import java.util.HashSet;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.io.FileUtils;
 import org.json.simple.JSONObject;
 
 import project.cs.lisa.application.MainApplicationActivity;
 import project.cs.lisa.application.html.transfer.DownloadWebObject;
+import project.cs.lisa.application.html.transfer.SharedFolder;
 import project.cs.lisa.application.html.transfer.WebObject;
 import project.cs.lisa.application.http.Locator;
 import project.cs.lisa.application.http.NetInfPublish;
@@ -171,7 +171,7 @@ public class NetInfWebViewClient extends WebViewClient {
             WebResourceResponse response = null;
             try {
                 response = new WebResourceResponse(
-                        contentType, "base64", FileUtils.openInputStream(file));
+                        contentType, "base64", SharedFolder.openInputStream(file));
             } catch (IOException e) {
                 Log.e("TAG", "Could not open file");
             }
@@ -28,26 +28,19 @@
 package project.cs.lisa.application.html.transfer;
 
 import java.io.ByteArrayOutputStream;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
-import org.apache.commons.io.FileUtils;
-
 import project.cs.lisa.application.MainApplicationActivity;
 import project.cs.lisa.application.hash.Hash;
-
-import project.cs.netinfutilities.UProperties;
-
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.AsyncTask;
-import android.os.Environment;
 import android.util.Log;
 
 /**
@@ -62,24 +55,12 @@ public class DownloadWebObject extends AsyncTask<URL, Void, WebObject> {
     /** Debugging tag. */
     private static final String TAG = "DownloadWebObject";
 
-    /** The directory containing the published files. */
-    private String mSharedFolder;
-
     /** Uplink transmission used to transfer a resource. */
     public static final String UPLINK_TRANSMISSION = "project.cs.lisa.UPLINK_TRANSMISSION";
 
     /** Buffer size for reading the input stream. */
     public static final int BUFFER_SIZE = 1024;
 
-    /**
-     * Default constructor.
-     * Gets the shared folder to save files to.
-     */
-    public DownloadWebObject() {
-        String relativeFolderPath = UProperties.INSTANCE.getPropertyWithName("sharing.folder");
-        mSharedFolder = Environment.getExternalStorageDirectory() + relativeFolderPath;
-    }
-
     @Override
     protected WebObject doInBackground(URL... urls) {
         URL url = urls[0];
@@ -148,8 +129,7 @@ public class DownloadWebObject extends AsyncTask<URL, Void, WebObject> {
         }
 
         String hash = hashContent(bytes);
-        File file = new File(mSharedFolder + hash);
-        FileUtils.writeByteArrayToFile(file, bytes);
+        File file = SharedFolder.store(hash, bytes, contentType);
 
         WebObject webObject = new WebObject(contentType, file, hash);
         return webObject;
@@ -32,7 +32,6 @@ import java.net.URL;
 import java.util.HashSet;
 import java.util.Locale;
 
-import org.apache.commons.io.FileUtils;
 import org.json.simple.JSONObject;
 
 import project.cs.lisa.application.MainApplicationActivity;
@@ -249,14 +248,14 @@ public class FetchWebPageTask extends AsyncTask<URL, Void, Void> {
      * @return
      *      The created task
      * @throws IOException
-     *      In case Bluetooth was not available
+     *      In case Bluetooth was not available or the file could not be read
      */
     private NetInfPublish publish(File file, URL url, String hash, String contentType)
             throws IOException {
 
-        // Create metadata
+        // Create metadata, the size is that of the content even if the file is compressed
         Metadata metadata = new Metadata();
-        metadata.insert("filesize", String.valueOf(file.length()));
+        metadata.insert("filesize", String.valueOf(SharedFolder.getContentLength(file)));
         metadata.insert("filepath", file.getAbsolutePath());
         metadata.insert("time", Long.toString(System.currentTimeMillis()));
         metadata.insert("url", url.toString());
@@ -334,19 +333,19 @@ public class FetchWebPageTask extends AsyncTask<URL, Void, Void> {
                 int startIndex = contentType.indexOf(encodingStartIndicator, encodingIndicatorIndex)
                         + encodingIndicator.length();
                 encoding = contentType.substring(startIndex);        		
-                html = FileUtils.readFileToString(webPage, encoding);
+                html = SharedFolder.readFileToString(webPage, encoding);
 
             } else {
                 /*
                  *  Read in webpage. First assume iso-8859-1 encoding 
                  *  and then detect encoding from String
                  */
-                html = FileUtils.readFileToString(webPage, ISO_ENCODING);
+                html = SharedFolder.readFileToString(webPage, ISO_ENCODING);
 
                 encoding = getEncoding(html);
                 if (!encoding.isEmpty() 
                         && !encoding.toLowerCase(Locale.ENGLISH).equals(ISO_ENCODING)) {
-                    html = FileUtils.readFileToString(webPage, encoding);
+                    html = SharedFolder.readFileToString(webPage, encoding);
                 }
 
             }
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.lisa.application.html.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import project.cs.netinfutilities.UProperties;
+import project.cs.netinfutilities.store.CompressionPolicy;
+import project.cs.netinfutilities.store.StoreLayout;
+import android.os.Environment;
+
+/**
+ * The shared folder the NetInf service stores the objects in. Files are written through a
+ * temporary file in the {@link StoreLayout} of the service, text gzip compressed by the
+ * same {@link CompressionPolicy}. Files handed out by the service may be compressed as
+ * well, so they are read through {@link #openInputStream(File)}.
+ */
+public final class SharedFolder {
+
+    /** Prefix of the temporary files, the NetInf service cleans up leftovers. */
+    private static final String TEMPORARY_PREFIX = ".object";
+
+    /** Suffix of the temporary files. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** Decides which objects are stored compressed, like the service does. */
+    private static final CompressionPolicy COMPRESSION = new CompressionPolicy(
+            UProperties.INSTANCE.getPropertyWithName("store.compression.types"),
+            Integer.parseInt(UProperties.INSTANCE
+                    .getPropertyWithName("store.compression.min_size").trim()));
+
+    /** Not instantiated. */
+    private SharedFolder() {
+    }
+
+    /**
+     * Gets the shared folder.
+     * @return
+     *      The folder on the external storage
+     */
+    public static File getRoot() {
+        return new File(Environment.getExternalStorageDirectory()
+                + UProperties.INSTANCE.getPropertyWithName("sharing.folder"));
+    }
+
+    /**
+     * Stores data in the shared folder, compressed if its content type is text.
+     * The data is written to a temporary file and renamed into place, so the service
+     * never sees a partly written file.
+     * @param hash
+     *      The hash of the uncompressed data
+     * @param bytes
+     *      The data
+     * @param contentType
+     *      The content type, may be null
+     * @return
+     *      The stored file
+     * @throws IOException
+     *      In case the data could not be written
+     */
+    public static File store(String hash, byte[] bytes, String contentType)
+            throws IOException {
+        byte[] content = bytes;
+        String suffix = "";
+        if (COMPRESSION.isCompressible(contentType, bytes.length)) {
+            byte[] compressed = StoreLayout.compress(bytes);
+            if (COMPRESSION.isWorthKeeping(compressed.length, bytes.length)) {
+                content = compressed;
+                suffix = StoreLayout.COMPRESSED_SUFFIX;
+            }
+        }
+
+        File root = getRoot();
+        root.mkdirs();
+        File temp = File.createTempFile(TEMPORARY_PREFIX, TEMPORARY_SUFFIX, root);
+        FileUtils.writeByteArrayToFile(temp, content);
+
+        File file = new File(root, StoreLayout.getRelativePath(hash) + suffix);
+        file.getParentFile().mkdirs();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not store the file of " + hash);
+        }
+        return file;
+    }
+
+    /**
+     * Opens a file of the shared folder, decompressing it on the fly if it is compressed.
+     * @param file
+     *      The file
+     * @return
+     *      The stream of the content
+     * @throws IOException
+     *      In case the file could not be opened
+     */
+    public static InputStream openInputStream(File file) throws IOException {
+        return StoreLayout.openContent(file);
+    }
+
+    /**
+     * Gets the length of the content of a file of the shared folder. For a compressed file
+     * it is read from the gzip trailer, which holds the uncompressed length modulo 2^32.
+     * @param file
+     *      The file
+     * @return
+     *      The length of the uncompressed content in bytes
+     * @throws IOException
+     *      In case the trailer could not be read
+     */
+    public static long getContentLength(File file) throws IOException {
+        return StoreLayout.getContentLength(file);
+    }
+
+    /**
+     * Reads a file of the shared folder into a string, decompressing it if it is
+     * compressed.
+     * @param file
+     *      The file
+     * @param encoding
+     *      The encoding of the content
+     * @return
+     *      The content
+     * @throws IOException
+     *      In case the file could not be read
+     */
+    public static String readFileToString(File file, String encoding) throws IOException {
+        InputStream in = openInputStream(file);
+        try {
+            return IOUtils.toString(in, encoding);
+        } finally {
+            in.close();
+        }
+    }
+}
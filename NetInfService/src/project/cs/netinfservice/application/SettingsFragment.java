@@ -27,6 +27,9 @@
 package project.cs.netinfservice.application;
 
 import project.cs.netinfservice.R;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.node.resolution.LocalIoCache;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
 import project.cs.netinfutilities.UProperties;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
@@ -98,7 +101,18 @@ implements OnSharedPreferenceChangeListener {
                         .setPositiveButton("Delete", new DialogInterface.OnClickListener() {  
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
+                                // The shared connection must not outlive the file
+                                MainNetInfApplication.getInjector()
+                                        .getInstance(IODatabaseFactory.class)
+                                        .create(getActivity())
+                                        .close();
                                 getActivity().deleteDatabase("IODatabase");
+                                MainNetInfApplication.getInjector()
+                                        .getInstance(LocalIoCache.class)
+                                        .clear();
+                                MainNetInfApplication.getInjector()
+                                        .getInstance(LocalPresenceIndex.class)
+                                        .reload();
                             }
                         })
                         .setNegativeButton("Cancel", null)
@@ -27,8 +27,12 @@
 package project.cs.netinfservice.database;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import netinf.common.datamodel.DatamodelFactory;
 import netinf.common.datamodel.Identifier;
@@ -41,9 +45,14 @@ import org.json.simple.parser.ParseException;
 
 import project.cs.netinfservice.application.MainNetInfActivity;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
+import project.cs.netinfservice.netinf.node.nrs.CachedResolution;
+import project.cs.netinfservice.netinf.node.nrs.PendingPublish;
 import project.cs.netinfservice.netinf.node.search.SearchResult;
 import project.cs.netinfservice.netinf.node.search.SearchResultImpl;
+import project.cs.netinfservice.netinf.node.store.StoredObject;
 import project.cs.netinfservice.util.IOBuilder;
+import project.cs.netinfservice.util.NiHash;
+import project.cs.netinfutilities.Fingerprint;
 import project.cs.netinfutilities.UProperties;
 import project.cs.netinfutilities.metadata.Metadata;
 import project.cs.netinfutilities.metadata.MetadataParser;
@@ -52,8 +61,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.google.inject.Inject;
@@ -71,7 +82,7 @@ public class IODatabase
 		extends SQLiteOpenHelper
 		implements IODatabaseFactory {
 	/** The current database version. */
-	public static final int DATABASE_VERSION = 1;
+	public static final int DATABASE_VERSION = 5;
 	
 	/** Debug Tag. */
 	private static final String TAG = "IODatabase";
@@ -82,12 +93,27 @@ public class IODatabase
 	/** The name of the table containing our Information Object information. */
 	private static final String TABLE_IO = "IO";
 	
-	/** The name of the table containing the url values corresponding to each hash value. */
-	private static final String TABLE_URL = "IO_url";
+	/** The name of the table containing each url once. */
+	private static final String TABLE_URL = "URL";
 	
-	/** The hash value corresponding to the IO. This is the primary key. */
+	/** The name of the table linking information objects to their urls. */
+	private static final String TABLE_IO_URL = "IO_url";
+	
+	/** The row id of an information object, url or queued publish. */
+	private static final String KEY_ID = "_id";
+	
+	/**
+	 * The hash value corresponding to the IO. The 32 byte digest as a BLOB, or the hash as
+	 * TEXT if it is not a base64 SHA-256 digest.
+	 */
 	private static final String KEY_HASH = "hash";
 	
+	/** The IO row id in the IO_url table. */
+	private static final String KEY_IO_ID = "io_id";
+	
+	/** The url row id in the IO_url table. */
+	private static final String KEY_URL_ID = "url_id";
+	
 	/** The hash algorithm used to create the hash value. */
 	private static final String KEY_HASH_ALGORITHM = "hash_algorithm";
 	
@@ -100,9 +126,65 @@ public class IODatabase
 	/** The URL associated with the file. */
 	private static final String KEY_URL = "url";
 	
-	/** The file size of the file associated with the IO. */
+	/** The 64-bit fingerprint of a url, which is what urls are indexed by. */
+	private static final String KEY_FINGERPRINT = "fingerprint";
+	
+	/** The file size of the file associated with the IO, in bytes. */
 	private static final String KEY_FILE_SIZE = "file_size";
 	
+	/** The point in time (ms since epoch) when the IO was last read. */
+	private static final String KEY_LAST_ACCESS = "last_access";
+	
+	/** The number of times the IO was read. */
+	private static final String KEY_HITS = "hits";
+	
+	/**
+	 * Finds the IO a url belongs to and returns one row per url of that IO, with the
+	 * columns hash, hash algorithm, file path, file size and url. Takes the fingerprint
+	 * and the url.
+	 */
+	private static final String SEARCH_QUERY = "SELECT io." + KEY_HASH + ", io." 
+			+ KEY_HASH_ALGORITHM + ", io." + KEY_FILEPATH + ", io." + KEY_FILE_SIZE + ", u." 
+			+ KEY_URL + " FROM " + TABLE_IO + " io "
+			+ "JOIN " + TABLE_IO_URL + " l ON l." + KEY_IO_ID + " = io." + KEY_ID + " "
+			+ "JOIN " + TABLE_URL + " u ON u." + KEY_ID + " = l." + KEY_URL_ID + " "
+			+ "WHERE io." + KEY_ID + " = (SELECT s." + KEY_IO_ID + " FROM " + TABLE_URL + " f "
+			+ "JOIN " + TABLE_IO_URL + " s ON s." + KEY_URL_ID + " = f." + KEY_ID + " "
+			+ "WHERE f." + KEY_FINGERPRINT + " = ? AND f." + KEY_URL + " = ? LIMIT 1)";
+	
+	/** The tables of version 3 and earlier are renamed with this suffix during migration. */
+	private static final String LEGACY_SUFFIX = "_v3";
+	
+	/** The name of the table containing the cached NRS resolutions. */
+	private static final String TABLE_RESOLUTION = "NRS_resolution";
+	
+	/** The hash-alg;hash key of a cached resolution. This is the primary key. */
+	private static final String KEY_RESOLUTION = "resolution";
+	
+	/** The metadata of a cached resolution. */
+	private static final String KEY_METADATA = "metadata";
+	
+	/** The locators of a cached resolution, as a JSON array. */
+	private static final String KEY_LOCATORS = "locators";
+	
+	/** The point in time (ms since epoch) when a cached resolution expires. */
+	private static final String KEY_EXPIRES = "expires";
+	
+	/** The name of the table containing the publishes waiting to be sent to the NRS. */
+	private static final String TABLE_OUTBOX = "NRS_outbox";
+	
+	/** The locator of a queued publish, empty if there is none. */
+	private static final String KEY_LOCATOR = "locator";
+	
+	/** The point in time (ms since epoch) when a publish was queued. */
+	private static final String KEY_CREATED = "created";
+	
+	/** The number of times the NRS rejected a queued publish. */
+	private static final String KEY_ATTEMPTS = "attempts";
+	
+	/** The point in time (ms since epoch) when a queued publish is due. */
+	private static final String KEY_NEXT_ATTEMPT = "next_attempt";
+	
     /** Local File system (database) transmission used to transfer a resource. */
     public static final String LOCAL_TRANSMISSION = "project.cs.netinfservice.LOCAL_TRANSMISSION";
 
@@ -117,6 +199,15 @@ public class IODatabase
 	
 	/** The datamodel factory used for constructing the IO. */
 	private DatamodelFactory mDatamodelFactory;
+	
+	/** The connection, opened on first use and kept open. */
+	private SQLiteDatabase mDatabase;
+	
+	/** The statements compiled for the connection. */
+	private Statements mStatements;
+	
+	/** The number of transactions committed by addIOs. */
+	private final AtomicLong mCommits = new AtomicLong();
 
 	/**
 	 * Creates a new Database for storing IO information.
@@ -129,7 +220,7 @@ public class IODatabase
 	@Inject
 	public IODatabase(DatamodelFactory datamodelFactory, @Assisted Context context) {
 		// We skip the cursor object factory, since we don't need it
-		super(context, DATABASE_NAME, null, 1); 
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 
 		// Fetch properties
 		UProperties instance = UProperties.INSTANCE;
@@ -150,25 +241,244 @@ public class IODatabase
 	 */
 	@Override
 	public void onCreate(SQLiteDatabase db) {
+		createIoTables(db);
+		createResolutionTable(db);
+		createOutboxTable(db);
+	}
+	
+	/**
+	 * Creates the tables holding the information objects and their urls. Hashes are stored
+	 * as binary keys, every url is stored once and referenced by its row id. Added in 
+	 * version 4, replacing the tables keyed by the hash string.
+	 * 
+	 * @param db
+	 *     The SQLite database.
+	 */
+	private void createIoTables(SQLiteDatabase db) {
 		String createIoTable = "CREATE TABLE " + TABLE_IO + "(" 
-							+ KEY_HASH + " TEXT PRIMARY KEY," 
+							+ KEY_ID + " INTEGER PRIMARY KEY, "
+							+ KEY_HASH + " BLOB NOT NULL UNIQUE, " 
 							+ KEY_HASH_ALGORITHM + " TEXT NOT NULL, "
 							+ KEY_CONTENT_TYPE + " TEXT NOT NULL, "
 							+ KEY_FILEPATH + " TEXT NOT NULL, "
-							+ KEY_FILE_SIZE + " REAL NOT NULL CHECK(" + KEY_FILE_SIZE + " > 0.0))";
+							+ KEY_FILE_SIZE + " INTEGER NOT NULL CHECK(" + KEY_FILE_SIZE + " > 0), "
+							+ KEY_LAST_ACCESS + " INTEGER NOT NULL, "
+							+ KEY_HITS + " INTEGER NOT NULL DEFAULT 0)";
 		
-		String createUrlTable = "CREATE TABLE " + TABLE_URL + "(" 
-							+ KEY_HASH + " TEXT NOT NULL, "
-							+ KEY_URL + " TEXT NOT NULL, " 
-							+ "CONSTRAINT primarykey PRIMARY KEY " 
-							+ "( " + KEY_HASH + ", " + KEY_URL + "), "
-							+ "FOREIGN KEY (" + KEY_HASH + ") " 
-							+ "REFERENCES " + TABLE_IO + " ( " + KEY_HASH + ") "
-							+ "ON DELETE CASCADE )";
+		String createIoUrlTable = "CREATE TABLE " + TABLE_IO_URL + "(" 
+							+ KEY_IO_ID + " INTEGER NOT NULL "
+							+ "REFERENCES " + TABLE_IO + " (" + KEY_ID + ") ON DELETE CASCADE, "
+							+ KEY_URL_ID + " INTEGER NOT NULL "
+							+ "REFERENCES " + TABLE_URL + " (" + KEY_ID + "), "
+							+ "PRIMARY KEY (" + KEY_IO_ID + ", " + KEY_URL_ID + "))";
 		
 		db.execSQL(createIoTable);
+		createUrlTable(db, TABLE_URL);
+		db.execSQL(createIoUrlTable);
+		db.execSQL("CREATE INDEX " + TABLE_IO_URL + "_url ON " 
+				+ TABLE_IO_URL + " (" + KEY_URL_ID + ")");
+		createUrlIndex(db);
+	}
+	
+	/**
+	 * Creates the table holding every url once. Urls are looked up by their fingerprint,
+	 * which keeps the index small no matter how long the urls are. Changed in version 5,
+	 * the urls were indexed as text before.
+	 * 
+	 * @param db
+	 *     The SQLite database.
+	 * @param name
+	 *     The name of the table
+	 */
+	private void createUrlTable(SQLiteDatabase db, String name) {
+		String createUrlTable = "CREATE TABLE " + name + "(" 
+							+ KEY_ID + " INTEGER PRIMARY KEY, "
+							+ KEY_FINGERPRINT + " INTEGER NOT NULL, "
+							+ KEY_URL + " TEXT NOT NULL)";
+		
 		db.execSQL(createUrlTable);
 	}
+	
+	/**
+	 * Creates the index on the url fingerprints.
+	 * 
+	 * @param db
+	 *     The SQLite database.
+	 */
+	private void createUrlIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX " + TABLE_URL + "_" + KEY_FINGERPRINT + " ON " 
+				+ TABLE_URL + " (" + KEY_FINGERPRINT + ")");
+	}
+	
+	/**
+	 * Rebuilds the url table of version 4 with fingerprints. The row ids are kept, so the
+	 * links in IO_url stay valid.
+	 * 
+	 * @param db
+	 *     The SQLite database.
+	 */
+	private void addUrlFingerprints(SQLiteDatabase db) {
+		String newUrl = TABLE_URL + "_v5";
+		createUrlTable(db, newUrl);
+		
+		SQLiteStatement insertUrl = db.compileStatement("INSERT INTO " + newUrl + " (" 
+				+ KEY_ID + ", " + KEY_FINGERPRINT + ", " + KEY_URL + ") VALUES (?, ?, ?)");
+		Cursor cursor = db.query(TABLE_URL, new String[] {KEY_ID, KEY_URL}, 
+				null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				String url = cursor.getString(1);
+				insertUrl.bindLong(1, cursor.getLong(0));
+				insertUrl.bindLong(2, Fingerprint.of(url));
+				insertUrl.bindString(3, url);
+				insertUrl.executeInsert();
+			}
+		} finally {
+			cursor.close();
+			insertUrl.close();
+		}
+		
+		// Swap the tables, IO_url refers to the table by name
+		db.execSQL("DROP TABLE " + TABLE_URL);
+		db.execSQL("ALTER TABLE " + newUrl + " RENAME TO " + TABLE_URL);
+		createUrlIndex(db);
+	}
+	
+	/**
+	 * Moves the information objects from the tables of version 3 and earlier into the
+	 * current tables. Runs inside the upgrade transaction, so either everything is
+	 * moved or the old tables are kept.
+	 * 
+	 * @param db
+	 *     The SQLite database.
+	 */
+	private void migrateIoTables(SQLiteDatabase db) {
+		String legacyIo = TABLE_IO + LEGACY_SUFFIX;
+		String legacyUrl = TABLE_IO_URL + LEGACY_SUFFIX;
+		
+		// Keep the old tables around until everything is copied
+		db.execSQL("ALTER TABLE " + TABLE_IO + " RENAME TO " + legacyIo);
+		db.execSQL("ALTER TABLE " + TABLE_IO_URL + " RENAME TO " + legacyUrl);
+		createIoTables(db);
+		
+		SQLiteStatement insertIo = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_IO 
+				+ " (" + KEY_HASH + ", " + KEY_HASH_ALGORITHM + ", " + KEY_CONTENT_TYPE + ", "
+				+ KEY_FILEPATH + ", " + KEY_FILE_SIZE + ", " + KEY_LAST_ACCESS + ") "
+				+ "VALUES (?, ?, ?, ?, ?, ?)");
+		SQLiteStatement insertUrl = db.compileStatement("INSERT INTO " + TABLE_URL + " (" 
+				+ KEY_FINGERPRINT + ", " + KEY_URL + ") VALUES (?, ?)");
+		SQLiteStatement linkUrl = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_IO_URL 
+				+ " (" + KEY_IO_ID + ", " + KEY_URL_ID + ") VALUES (?, ?)");
+		
+		// Row ids of the copied objects and urls
+		Map<String, Long> ioIds = new HashMap<String, Long>();
+		Map<String, Long> urlIds = new HashMap<String, Long>();
+		
+		long now = System.currentTimeMillis();
+		Cursor cursor = null;
+		try {
+			cursor = db.query(legacyIo, new String[] {KEY_HASH, KEY_HASH_ALGORITHM, 
+					KEY_CONTENT_TYPE, KEY_FILEPATH, KEY_FILE_SIZE}, 
+					null, null, null, null, null);
+			while (cursor.moveToNext()) {
+				String hash = cursor.getString(0);
+				
+				// Sizes used to be stored as REAL
+				bindHash(insertIo, 1, hash);
+				bind(insertIo, 2, cursor.getString(1));
+				bind(insertIo, 3, cursor.getString(2));
+				bind(insertIo, 4, cursor.getString(3));
+				insertIo.bindLong(5, Math.round(cursor.getDouble(4)));
+				insertIo.bindLong(6, now);
+				long id = insertIo.executeInsert();
+				
+				if (id != -1) {
+					ioIds.put(hash, id);
+				}
+			}
+			cursor.close();
+			
+			// Every url once, linked to the objects that were copied
+			cursor = db.query(legacyUrl, new String[] {KEY_HASH, KEY_URL}, 
+					null, null, null, null, null);
+			while (cursor.moveToNext()) {
+				Long ioId = ioIds.get(cursor.getString(0));
+				String url = cursor.getString(1);
+				if (ioId == null) {
+					continue;
+				}
+				
+				Long urlId = urlIds.get(url);
+				if (urlId == null) {
+					insertUrl.bindLong(1, Fingerprint.of(url));
+					insertUrl.bindString(2, url);
+					urlId = insertUrl.executeInsert();
+					urlIds.put(url, urlId);
+				}
+				
+				linkUrl.bindLong(1, ioId);
+				linkUrl.bindLong(2, urlId);
+				linkUrl.executeInsert();
+			}
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+			insertIo.close();
+			insertUrl.close();
+			linkUrl.close();
+		}
+		
+		db.execSQL("DROP TABLE " + legacyUrl);
+		db.execSQL("DROP TABLE " + legacyIo);
+		
+		Log.d(TAG, "Migrated " + ioIds.size() + " information objects.");
+	}
+	
+	/**
+	 * Creates the table holding the cached NRS resolutions. Added in version 2.
+	 * 
+	 * @param db
+	 *     The SQLite database.
+	 */
+	private void createResolutionTable(SQLiteDatabase db) {
+		String createResolutionTable = "CREATE TABLE " + TABLE_RESOLUTION + "("
+							+ KEY_RESOLUTION + " TEXT PRIMARY KEY, "
+							+ KEY_CONTENT_TYPE + " TEXT, "
+							+ KEY_METADATA + " TEXT, "
+							+ KEY_LOCATORS + " TEXT NOT NULL, "
+							+ KEY_FILEPATH + " TEXT, "
+							+ KEY_EXPIRES + " INTEGER NOT NULL)";
+		
+		db.execSQL(createResolutionTable);
+	}
+	
+	/**
+	 * Creates the table holding the publishes waiting to be sent to the NRS. The same hash
+	 * and locator can only be queued once. Added in version 3.
+	 * 
+	 * @param db
+	 *     The SQLite database.
+	 */
+	private void createOutboxTable(SQLiteDatabase db) {
+		String createOutboxTable = "CREATE TABLE " + TABLE_OUTBOX + "("
+							+ KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+							+ KEY_HASH_ALGORITHM + " TEXT NOT NULL, "
+							+ KEY_HASH + " TEXT NOT NULL, "
+							+ KEY_CONTENT_TYPE + " TEXT, "
+							+ KEY_METADATA + " TEXT, "
+							+ KEY_LOCATOR + " TEXT NOT NULL, "
+							+ KEY_FILEPATH + " TEXT, "
+							+ KEY_CREATED + " INTEGER NOT NULL, "
+							+ KEY_ATTEMPTS + " INTEGER NOT NULL, "
+							+ KEY_NEXT_ATTEMPT + " INTEGER NOT NULL, "
+							+ "UNIQUE (" + KEY_HASH_ALGORITHM + ", " + KEY_HASH + ", " 
+							+ KEY_LOCATOR + "))";
+		
+		db.execSQL(createOutboxTable);
+		db.execSQL("CREATE INDEX " + TABLE_OUTBOX + "_due ON " 
+				+ TABLE_OUTBOX + " (" + KEY_NEXT_ATTEMPT + ")");
+	}
 
 	/**
 	 * Called when the database has been opened. The implementation should check isReadOnly() 
@@ -185,8 +495,154 @@ public class IODatabase
 	    if (!db.isReadOnly()) {
 	        // Enable foreign key constraints
 	        db.execSQL("PRAGMA foreign_keys=ON;");
+	        
+	        // Readers do not block the writer and the other way around
+	        if (!db.enableWriteAheadLogging()) {
+	        	Log.w(TAG, "Write-ahead logging not available.");
+	        }
 	    }
 	}
+	
+	/**
+	 * Returns the connection, opening it and compiling the statements on first use. The
+	 * connection is shared by all threads and stays open until {@link #close()}.
+	 * 
+	 * @return
+	 *     The open database
+	 * @throws SQLiteException
+	 *     Thrown, if the database could not be opened
+	 */
+	private synchronized SQLiteDatabase getDatabase() {
+		if (mDatabase == null || !mDatabase.isOpen()) {
+			SQLiteDatabase db = getWritableDatabase();
+			mStatements = new Statements(db);
+			mDatabase = db;
+		}
+		return mDatabase;
+	}
+	
+	/**
+	 * Returns the statements compiled for the connection, opening it if needed.
+	 * 
+	 * @return
+	 *     The compiled statements
+	 * @throws DatabaseException
+	 *     Thrown, if the database could not be opened
+	 */
+	private synchronized Statements getStatements() throws DatabaseException {
+		try {
+			getDatabase();
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Opening database failed.");
+			throw new DatabaseException("Unexpected error while trying to open the database.");
+		}
+		return mStatements;
+	}
+	
+	/**
+	 * Closes the connection and the compiled statements. The next call opens them again.
+	 */
+	@Override
+	public synchronized void close() {
+		if (mStatements != null) {
+			mStatements.close();
+			mStatements = null;
+		}
+		mDatabase = null;
+		super.close();
+	}
+
+	/**
+	 * The rows stored for one information object.
+	 */
+	private static class IORow {
+		/** The hash value. */
+		private String mHash;
+		
+		/** The hash algorithm. */
+		private String mHashAlgorithm;
+		
+		/** The content type. */
+		private String mContentType;
+		
+		/** The file path. */
+		private String mFilePath;
+		
+		/** The file size. */
+		private String mFileSize;
+		
+		/** The urls of the object. */
+		private final List<String> mUrls = new ArrayList<String>();
+	}
+
+	/**
+	 * The statements used on every request, compiled once per connection. A statement can
+	 * only be used by one thread at a time. Queries synchronize on the statement, writers
+	 * on the Statements object for their whole transaction and only use the writer
+	 * statements, so a writer never waits for a reader's statement.
+	 */
+	private static class Statements {
+		/** Writer: insert of an IO row, unless the hash is already stored. */
+		private final SQLiteStatement mInsertIo;
+		
+		/** Writer: lookup of the row id of a hash. */
+		private final SQLiteStatement mIoIdForInsert;
+		
+		/** Writer: insert of a url. */
+		private final SQLiteStatement mInsertUrl;
+		
+		/** Writer: lookup of the row id of a url by fingerprint and url. */
+		private final SQLiteStatement mUrlId;
+		
+		/** Writer: link between an IO and a url. */
+		private final SQLiteStatement mInsertIoUrl;
+		
+		/** Writer: records a read of an IO. */
+		private final SQLiteStatement mTouchIo;
+		
+		/** Lookup of the row id of a hash. */
+		private final SQLiteStatement mIoId;
+		
+		/**
+		 * Compiles the statements.
+		 * 
+		 * @param db
+		 *     The open database
+		 */
+		Statements(SQLiteDatabase db) {
+			String ioId = "SELECT " + KEY_ID + " FROM " + TABLE_IO 
+					+ " WHERE " + KEY_HASH + " = ?";
+			
+			mInsertIo = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_IO + " ("
+					+ KEY_HASH + ", " + KEY_HASH_ALGORITHM + ", " + KEY_CONTENT_TYPE + ", "
+					+ KEY_FILEPATH + ", " + KEY_FILE_SIZE + ", " + KEY_LAST_ACCESS + ") "
+					+ "VALUES (?, ?, ?, ?, ?, ?)");
+			mIoIdForInsert = db.compileStatement(ioId);
+			mInsertUrl = db.compileStatement("INSERT INTO " + TABLE_URL + " ("
+					+ KEY_FINGERPRINT + ", " + KEY_URL + ") VALUES (?, ?)");
+			mUrlId = db.compileStatement("SELECT " + KEY_ID + " FROM " + TABLE_URL 
+					+ " WHERE " + KEY_FINGERPRINT + " = ? AND " + KEY_URL + " = ?");
+			mInsertIoUrl = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_IO_URL + " ("
+					+ KEY_IO_ID + ", " + KEY_URL_ID + ") VALUES (?, ?)");
+			mTouchIo = db.compileStatement("UPDATE " + TABLE_IO + " SET " 
+					+ KEY_LAST_ACCESS + " = ?, " + KEY_HITS + " = " + KEY_HITS + " + 1 "
+					+ "WHERE " + KEY_ID + " = ?");
+			mIoId = db.compileStatement(ioId);
+		}
+		
+		/**
+		 * Releases the statements.
+		 */
+		void close() {
+			mInsertIo.close();
+			mIoIdForInsert.close();
+			mInsertUrl.close();
+			mUrlId.close();
+			mInsertIoUrl.close();
+			mTouchIo.close();
+			mIoId.close();
+		}
+	}
 
 	/**
 	 * Called when the database needs to be upgraded. The implementation should use this method
@@ -202,14 +658,21 @@ public class IODatabase
 	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		Log.d(TAG, "Upgrading database to version " + newVersion);
-
-		// Drop tables to re-build them later
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_IO);
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_URL);
+		Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
 
-		// Re-run the creation of the database
-		onCreate(db);
+		// Apply each step in turn, so the stored information objects are kept
+		if (oldVersion < 2) {
+			createResolutionTable(db);
+		}
+		if (oldVersion < 3) {
+			createOutboxTable(db);
+		}
+		if (oldVersion < 4) {
+			// Creates the current tables right away
+			migrateIoTables(db);
+		} else if (oldVersion < 5) {
+			addUrlFingerprints(db);
+		}
 	}
 
 	/**
@@ -226,27 +689,94 @@ public class IODatabase
 	}
 	
 	/**
-	 * Inserts the specified information object into the database.
+	 * Inserts the specified information object into the database. Urls that are already
+	 * stored for the object are kept, new ones are added.
 	 * 
 	 * @param io					The information object to insert.
 	 * @throws DatabaseException 	thrown if insert operation fails
 	 */
-	@SuppressWarnings("unchecked")
 	public void addIO(InformationObject io) throws DatabaseException  {
-		Log.d(TAG, "Adding information object into database.");
-
+		addIOs(Collections.singletonList(io));
+	}
+	
+	/**
+	 * Inserts the specified information objects into the database in one transaction, so
+	 * that the whole batch costs a single commit. Either all objects are stored or none.
+	 * 
+	 * @param ios
+	 *      The information objects to insert
+	 * @throws DatabaseException
+	 *      Thrown, if an object is invalid or the insert operation fails
+	 */
+	public void addIOs(Collection<InformationObject> ios) throws DatabaseException {
+		Log.d(TAG, "Adding " + ios.size() + " information objects into database.");
+		
+		if (ios.isEmpty()) {
+			return;
+		}
+		
+		// Extract everything before the transaction is started
+		List<IORow> rows = new ArrayList<IORow>(ios.size());
+		for (InformationObject io : ios) {
+			rows.add(createIORow(io));
+		}
+		
+		// Fails here if the database can not be opened
+		Statements statements = getStatements();
+		SQLiteDatabase db = getDatabase();
+		
+		// One writer at a time uses the insert statements
+		synchronized (statements) {
+			db.beginTransactionNonExclusive();
+			try {
+				long now = System.currentTimeMillis();
+				for (IORow row : rows) {
+					// Already stored objects and urls are ignored
+					long ioId = insertIo(statements, row, now);
+					for (String url : row.mUrls) {
+						if (url != null) {
+							insertIoUrl(statements, ioId, insertUrl(statements, url));
+						}
+					}
+				}
+				db.setTransactionSuccessful();
+			} catch (SQLiteException e) {
+				Log.e(TAG, "Failed writing to database.");
+				throw new DatabaseException("The information objects could not be inserted.", e);
+			} finally {
+				db.endTransaction();
+			}
+		}
+		
+		mCommits.incrementAndGet();
+	}
+	
+	/**
+	 * Extracts the rows to insert from an information object.
+	 * 
+	 * @param io
+	 *      The information object
+	 * @return
+	 *      The IO row together with its urls
+	 * @throws DatabaseException
+	 *      Thrown, if the meta-data of the object is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	private IORow createIORow(InformationObject io) throws DatabaseException {
 		// Extract the field values for inserting them into the database tables
 		// Get the Identifier from the Information Object 
 		Identifier identifier = io.getIdentifier();
 		
+		IORow row = new IORow();
+		
 		// Get hash, hashAlgorithm and content-type
-		String hash = identifier.getIdentifierLabel(
+		row.mHash = identifier.getIdentifierLabel(
 				SailDefinedLabelName.HASH_CONTENT.getLabelName()).getLabelValue();
 		
-		String hashAlgorithm = identifier.getIdentifierLabel(
+		row.mHashAlgorithm = identifier.getIdentifierLabel(
 				SailDefinedLabelName.HASH_ALG.getLabelName()).getLabelValue();
 		
-		String contentType = identifier.getIdentifierLabel(
+		row.mContentType = identifier.getIdentifierLabel(
 				SailDefinedLabelName.CONTENT_TYPE.getLabelName()).getLabelValue();
 		
 		// Extract meta data 
@@ -256,75 +786,235 @@ public class IODatabase
 		// Extract the metadata to a map
 		Map<String, Object> metadataMap = extractMetaData(metadata);
 		
-		String filePath = (String) metadataMap.get(mFilepathLabel);
-		String fileSize = (String) metadataMap.get(mFilesizeLabel);
+		row.mFilePath = (String) metadataMap.get(mFilepathLabel);
+		row.mFileSize = (String) metadataMap.get(mFilesizeLabel);
 		
 		// Create list of URLs
 		Object urlJsonObject = metadataMap.get(mUrlLabel);
 		
-		// Populate urlList with one or several URLs
-		List<String> urlList;
-		
-		
 		/*
 		 *  If we the json object is an array, we have more than 1 url.
 		 *  Else, we only received one url. Determines the handling.
 		 */
-		if (urlJsonObject instanceof ArrayList) {
-			urlList  = (ArrayList<String>) urlJsonObject;
-		} else {
-			String url = (String) urlJsonObject;
-			urlList = new ArrayList<String>();
-			urlList.add(url);
+		if (urlJsonObject instanceof List) {
+			row.mUrls.addAll((List<String>) urlJsonObject);
+		} else if (urlJsonObject != null) {
+			row.mUrls.add((String) urlJsonObject);
 		}
-
-		// If the objects hash is not in the database, insert it
-		if (!containsIO(hash)) {
-			Log.d(TAG, "New information object will be inserted into database.");
-			// Insert the IO
-			ContentValues ioEntry = 
-					createIOEntry(hash, hashAlgorithm, contentType, filePath, fileSize);
-			insert(TABLE_IO, ioEntry);
-		} else {
-			Log.d(TAG, "Information object already exists in database.");
-			// Check if the URLs that we want to insert already exist
-			List<String> storedUrls = getURLs(hash);
-			urlList.removeAll(storedUrls);	
+		
+		return row;
+	}
+	
+	/**
+	 * Inserts an IO row unless the hash is already stored. Only called by writers.
+	 * 
+	 * @param statements
+	 *      The compiled statements
+	 * @param row
+	 *      The IO row
+	 * @param now
+	 *      The current time (ms since epoch)
+	 * @return
+	 *      The row id of the new or already stored IO
+	 * @throws SQLiteException
+	 *      Thrown, if the row is invalid or writing to the database failed
+	 */
+	private long insertIo(Statements statements, IORow row, long now) {
+		SQLiteStatement insert = statements.mInsertIo;
+		long id;
+		try {
+			bindHash(insert, 1, row.mHash);
+			bind(insert, 2, row.mHashAlgorithm);
+			bind(insert, 3, row.mContentType);
+			bind(insert, 4, row.mFilePath);
+			bind(insert, 5, row.mFileSize);
+			insert.bindLong(6, now);
+			id = insert.executeInsert();
+		} finally {
+			insert.clearBindings();
 		}
 		
-		// Insert the URLs
-		for (String url : urlList) {
-			
-			// Create a ContentValues object, which is recognized by ContentResolver
-			ContentValues urlEntry = createUrlEntry(hash, url);
-			insert(TABLE_URL, urlEntry);
+		// The IO was stored before, or the row violated a constraint
+		if (id == -1) {
+			id = queryId(statements.mIoIdForInsert, row.mHash, true);
 		}
+		return id;
 	}
 	
 	/**
-	 * Inserts a value in the database.
+	 * Inserts a url unless it is already stored. Only called by writers.
 	 * 
-	 * @param table
-     *      The table where the values will be inserted
-	 * @param values
-	 *      The values that will be inserted
-	 * @throws
-	 * 		SQLiteException	Thrown, if writing to the database failed.
-	 */
-	private synchronized void insert(String table, ContentValues values) {		
-	    // Insert value into table
-
-	    try {
-	    	SQLiteDatabase db = this.getWritableDatabase();
-	    	
-	    	db.insert(table, null, values);	
-	    	
-	    	db.close();
-	    } catch (SQLiteException e) {
-	    	Log.e(TAG, "Failed writing to database.");
-	    }
+	 * @param statements
+	 *      The compiled statements
+	 * @param url
+	 *      The url
+	 * @return
+	 *      The row id of the new or already stored url
+	 * @throws SQLiteException
+	 *      Thrown, if writing to the database failed
+	 */
+	private long insertUrl(Statements statements, String url) {
+		long fingerprint = Fingerprint.of(url);
+		
+		// Look for the url among those with the same fingerprint
+		SQLiteStatement lookup = statements.mUrlId;
+		try {
+			lookup.bindLong(1, fingerprint);
+			lookup.bindString(2, url);
+			return lookup.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			// Not stored yet
+		} finally {
+			lookup.clearBindings();
+		}
+		
+		SQLiteStatement insert = statements.mInsertUrl;
+		try {
+			insert.bindLong(1, fingerprint);
+			insert.bindString(2, url);
+			return insert.executeInsert();
+		} finally {
+			insert.clearBindings();
+		}
 	}
-
+	
+	/**
+	 * Links an IO to a url unless they are already linked. Only called by writers.
+	 * 
+	 * @param statements
+	 *      The compiled statements
+	 * @param ioId
+	 *      The row id of the IO
+	 * @param urlId
+	 *      The row id of the url
+	 * @throws SQLiteException
+	 *      Thrown, if writing to the database failed
+	 */
+	private void insertIoUrl(Statements statements, long ioId, long urlId) {
+		SQLiteStatement insert = statements.mInsertIoUrl;
+		try {
+			insert.bindLong(1, ioId);
+			insert.bindLong(2, urlId);
+			insert.executeInsert();
+		} finally {
+			insert.clearBindings();
+		}
+	}
+	
+	/**
+	 * Runs a compiled lookup of a row id. The caller holds the lock of the statement.
+	 * 
+	 * @param statement
+	 *      The compiled lookup
+	 * @param key
+	 *      The value bound to the lookup
+	 * @param isHash
+	 *      True if the value is a hash and has to be bound as a hash key
+	 * @return
+	 *      The row id
+	 * @throws SQLiteDoneException
+	 *      Thrown, if there is no such row
+	 */
+	private long queryId(SQLiteStatement statement, String key, boolean isHash) {
+		try {
+			if (isHash) {
+				bindHash(statement, 1, key);
+			} else {
+				statement.bindString(1, key);
+			}
+			return statement.simpleQueryForLong();
+		} finally {
+			statement.clearBindings();
+		}
+	}
+	
+	/**
+	 * Binds a hash as key: the digest bytes if the hash is a base64 SHA-256 digest, the
+	 * string otherwise.
+	 * 
+	 * @param statement
+	 *      The compiled statement
+	 * @param index
+	 *      The 1-based index of the parameter
+	 * @param hash
+	 *      The hash
+	 */
+	private static void bindHash(SQLiteStatement statement, int index, String hash) {
+		byte[] digest = NiHash.toBytes(hash);
+		if (digest != null) {
+			statement.bindBlob(index, digest);
+		} else {
+			bind(statement, index, hash);
+		}
+	}
+	
+	/**
+	 * Reads a hash key stored by {@link #bindHash(SQLiteStatement, int, String)}.
+	 * 
+	 * @param cursor
+	 *      The cursor
+	 * @param index
+	 *      The column index
+	 * @return
+	 *      The hash
+	 */
+	private static String getHash(Cursor cursor, int index) {
+		if (cursor.getType(index) == Cursor.FIELD_TYPE_BLOB) {
+			return NiHash.toBase64(cursor.getBlob(index));
+		}
+		return cursor.getString(index);
+	}
+	
+	/**
+	 * Binds a string, which may be null, to a compiled statement.
+	 * 
+	 * @param statement
+	 *      The compiled statement
+	 * @param index
+	 *      The 1-based index of the parameter
+	 * @param value
+	 *      The value
+	 */
+	private static void bind(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+	
+	/**
+	 * Returns the number of transactions committed by {@link #addIOs(Collection)}.
+	 * 
+	 * @return
+	 *      The number of commits since the database was created
+	 */
+	public long getCommitCount() {
+		return mCommits.get();
+	}
+	
+	/**
+	 * Returns the row id of the IO stored for a hash.
+	 * 
+	 * @param hash
+	 *     The hash value identifying the information object
+	 * @return
+	 *     The row id
+	 * @throws DatabaseException
+	 *     Thrown, if the hash is not stored
+	 */
+	private long getIoId(String hash) throws DatabaseException {
+		SQLiteStatement statement = getStatements().mIoId;
+		synchronized (statement) {
+			try {
+				return queryId(statement, hash, true);
+			} catch (SQLiteDoneException e) {
+				throw new DatabaseException("The given key does not correspond to any IO : " 
+						+ KEY_HASH);
+			}
+		}
+	}
+	
 	/**
 	 * Returns the list of URL associated with a hash.
 	 * 
@@ -334,27 +1024,171 @@ public class IODatabase
      *     The list of URL in the IO_url table corresponding to the given hash
 	 */
 	public List<String> getURLs(String hash) {
+		try {
+			return getURLs(getIoId(hash));
+		} catch (DatabaseException e) {
+			return new ArrayList<String>();
+		}
+	}
+	
+	/**
+	 * Returns the list of URL associated with an IO row.
+	 * 
+	 * @param ioId
+	 *     The row id of the IO
+	 * @return
+	 *     The list of URL
+	 */
+	private List<String> getURLs(long ioId) {
 		List<String> urlList = new ArrayList<String>();
 
 		Cursor cursor = null;
 		
 		// Make database query
 		try {
-			cursor = query(TABLE_URL, KEY_HASH, hash);
-		} catch (DatabaseException e) {
+			cursor = getDatabase().rawQuery("SELECT u." + KEY_URL + " FROM " + TABLE_URL 
+					+ " u JOIN " + TABLE_IO_URL + " l ON l." + KEY_URL_ID + " = u." + KEY_ID
+					+ " WHERE l." + KEY_IO_ID + " = ?", new String[] {Long.toString(ioId)});
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Querying database failed. Error during reading database.");
 			return urlList;
 		}
 		
 		// add all results to list
-		do {
-			urlList.add(cursor.getString(1));
-		} while (cursor.moveToNext());
+		try {
+			while (cursor.moveToNext()) {
+				urlList.add(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
 		
 		return urlList;
 	}
 	
 	/**
-	 * Returns the information object specified by the hash value, if existent.
+	 * Returns the hashes of all stored information objects with their content types.
+	 * 
+	 * @return
+	 *     The content type of each stored information object by hash
+	 * @throws DatabaseException
+	 *     Thrown, if the database could not be read
+	 */
+	public Map<String, String> getStoredContentTypes() throws DatabaseException {
+		Map<String, String> contentTypes = new HashMap<String, String>();
+		
+		Cursor cursor = null;
+		try {
+			cursor = getDatabase().query(TABLE_IO, new String[] {KEY_HASH, KEY_CONTENT_TYPE}, 
+					null, null, null, null, null);
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Querying database failed. Error during reading database.");
+			throw new DatabaseException("Unexpected error while trying to read from database.");
+		}
+		
+		try {
+			while (cursor.moveToNext()) {
+				contentTypes.put(getHash(cursor, 0), cursor.getString(1));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return contentTypes;
+	}
+	
+	/**
+	 * Returns all stored information objects with their file and how they were used.
+	 * 
+	 * @return
+	 *     The stored objects
+	 * @throws DatabaseException
+	 *     Thrown, if the database could not be read
+	 */
+	public List<StoredObject> getStoredObjects() throws DatabaseException {
+		List<StoredObject> objects = new ArrayList<StoredObject>();
+		
+		Cursor cursor = null;
+		try {
+			cursor = getDatabase().query(TABLE_IO, new String[] {KEY_HASH, KEY_HASH_ALGORITHM, 
+					KEY_FILEPATH, KEY_FILE_SIZE, KEY_LAST_ACCESS, KEY_HITS}, 
+					null, null, null, null, null);
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Querying database failed. Error during reading database.");
+			throw new DatabaseException("Unexpected error while trying to read from database.");
+		}
+		
+		try {
+			while (cursor.moveToNext()) {
+				objects.add(new StoredObject(getHash(cursor, 0), cursor.getString(1), 
+						cursor.getString(2), cursor.getLong(3), cursor.getLong(4), 
+						cursor.getLong(5)));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return objects;
+	}
+	
+	/**
+	 * Records reads of information objects that were served without the database.
+	 * 
+	 * @param accesses
+	 *     The point in time (ms since epoch) of the latest read and the number of reads, 
+	 *     by hash
+	 * @throws DatabaseException
+	 *     Thrown, if the database could not be written
+	 */
+	public void addAccesses(Map<String, long[]> accesses) throws DatabaseException {
+		SQLiteDatabase db = getDatabase();
+		Statements statements = getStatements();
+		
+		try {
+			synchronized (statements) {
+				SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_IO + " SET " 
+						+ KEY_LAST_ACCESS + " = MAX(" + KEY_LAST_ACCESS + ", ?), " 
+						+ KEY_HITS + " = " + KEY_HITS + " + ? WHERE " + KEY_HASH + " = ?");
+				db.beginTransactionNonExclusive();
+				try {
+					for (Map.Entry<String, long[]> access : accesses.entrySet()) {
+						update.bindLong(1, access.getValue()[0]);
+						update.bindLong(2, access.getValue()[1]);
+						bindHash(update, 3, access.getKey());
+						update.execute();
+						update.clearBindings();
+					}
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+					update.close();
+				}
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Failed recording reads of information objects.");
+			throw new DatabaseException("Unexpected error while trying to write to database.");
+		}
+	}
+	
+	/**
+	 * Queries the IO row with the given row id. The caller has to close the cursor.
+	 * 
+	 * @param ioId
+	 *     The row id
+	 * @return
+	 *     A cursor pointing to the row, with the columns hash, hash algorithm, content type,
+	 *     file path and file size
+	 * @throws DatabaseException
+	 *     Thrown, if the row does not exist
+	 */
+	private Cursor queryIo(long ioId) throws DatabaseException {
+		return query(TABLE_IO, new String[] {KEY_HASH, KEY_HASH_ALGORITHM, KEY_CONTENT_TYPE, 
+				KEY_FILEPATH, KEY_FILE_SIZE}, KEY_ID, Long.toString(ioId));
+	}
+	
+	/**
+	 * Returns the information object specified by the hash value, if existent. Counts as an
+	 * access to the object.
 	 * 
 	 * @param hash
 	 *     The hash value identifying the information object
@@ -366,40 +1200,78 @@ public class IODatabase
 	public InformationObject getIO(String hash) throws DatabaseException {
 		Log.d(TAG, "Searching for information object.");
 		
+		// Build a new IO to host the result
+		IOBuilder builder = new IOBuilder(mDatamodelFactory);
+		
 		// Query. If it fails, it will throw a DatabaseException
-		Cursor cursor = query(TABLE_IO, KEY_HASH, hash);
+		long ioId = getIoId(hash);
+		Cursor cursor = queryIo(ioId);
+		
+		try {
+			// Populate the fields of the IO
+			builder.setHash(getHash(cursor, 0))
+				.setHashAlgorithm(cursor.getString(1))
+				.setContentType(cursor.getString(2))
+				.addFilePathLocator(cursor.getString(3))
+				.addMetaData(mFilepathLabel, cursor.getString(3))
+				.addMetaData(mFilesizeLabel, cursor.getString(4));
+		} finally {
+			cursor.close();
+		}
 		
 		Log.d(TAG, "Found information object.");
-        
-        // Create and send an intent for local transmission
-        if (MainNetInfActivity.getActivity() != null) {
-        	Intent intent = new Intent(LOCAL_TRANSMISSION);        
-        	MainNetInfActivity.getActivity().sendBroadcast(intent);
-        }
-
-        // Build a new IO to host the result
-		IOBuilder builder = new IOBuilder(mDatamodelFactory);
 		
-		// Populate the fields of the IO
-		builder.setHash(cursor.getString(0))
-			.setHashAlgorithm(cursor.getString(1))
-			.setContentType(cursor.getString(2))
-			.addFilePathLocator(cursor.getString(3))
-			.addMetaData(mFilepathLabel, cursor.getString(3))
-			.addMetaData(mFilesizeLabel, cursor.getString(4));
+		// Remember the access
+		touchIo(ioId);
+        
+		// Tell the activity the object is served locally
+		notifyLocalTransmission();
 
-		// Get URLs related to the hash
-		cursor = query(TABLE_URL, KEY_HASH, hash);
-		
-		// Add URLs to metadata
-		do {
-			builder.addMetaData(mUrlLabel, cursor.getString(1));
-		} while (cursor.moveToNext());
+		// Add URLs related to the hash to metadata
+		for (String url : getURLs(ioId)) {
+			builder.addMetaData(mUrlLabel, url);
+		}
 		
 		// Return the Information Object built
 		return builder.build();
 	}
 	
+	/**
+	 * Sends an intent telling the activity that an object is served from the local node.
+	 */
+	public static void notifyLocalTransmission() {
+		if (MainNetInfActivity.getActivity() != null) {
+			Intent intent = new Intent(LOCAL_TRANSMISSION);
+			MainNetInfActivity.getActivity().sendBroadcast(intent);
+		}
+	}
+	
+	/**
+	 * Records that an IO was read.
+	 * 
+	 * @param ioId
+	 *     The row id of the IO
+	 */
+	private void touchIo(long ioId) {
+		try {
+			Statements statements = getStatements();
+			synchronized (statements) {
+				SQLiteStatement touch = statements.mTouchIo;
+				try {
+					touch.bindLong(1, System.currentTimeMillis());
+					touch.bindLong(2, ioId);
+					touch.execute();
+				} finally {
+					touch.clearBindings();
+				}
+			}
+		} catch (DatabaseException e) {
+			Log.w(TAG, "Failed recording access to information object.");
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Failed recording access to information object.");
+		}
+	}
+	
 	/**
 	 * Returns the information object corresponding to the url,
 	 * if existent.
@@ -413,32 +1285,43 @@ public class IODatabase
 	 */
 	@SuppressWarnings("unchecked") // Because of urlArray.add(cursor..)
     public SearchResult searchIO(String url) throws DatabaseException {
-	    // Metadata holder. Uses our Metadata class
-		Metadata metadata = new Metadata();
-		
-		// Find the hash identification of the corresponding object
-		Cursor cursor = query(TABLE_URL, KEY_URL, url);
-		String hash = cursor.getString(0);
-		
-		// Add all url fields
-		JSONArray urlArray = new JSONArray();
-		cursor = query(TABLE_URL, KEY_HASH, hash);
-		do {
-			urlArray.add(cursor.getString(1));
-		} while (cursor.moveToNext());
-		metadata.insert(KEY_URL, urlArray);
-		
-		// Build the metadata corresponding to the hash
-		cursor = query(TABLE_IO, KEY_HASH, hash);
-		
-		metadata.insert(mFilepathLabel, cursor.getString(3));
-		metadata.insert(mFilesizeLabel, cursor.getString(4));
+		// Find the object by the url fingerprint and read it with all its urls at once
+		Cursor cursor;
+		try {
+			cursor = getDatabase().rawQuery(SEARCH_QUERY, 
+					new String[] {Long.toString(Fingerprint.of(url)), url});
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Querying database failed. Error during reading database.");
+			throw new DatabaseException("Unexpected error while trying to read from database.");
+		}
 		
-		// Get the hash algorithm used to create the object's hash
-		String hashAlg = cursor.getString(1);
-
-		// Return a SearchResult object, accessible through the SearchResult interface
-		return new SearchResultImpl(hash, hashAlg, metadata);
+		try {
+			if (!cursor.moveToFirst()) {
+				throw new DatabaseException("The given key does not correspond to any IO : " 
+						+ KEY_URL);
+			}
+			
+		    // Metadata holder. Uses our Metadata class
+			Metadata metadata = new Metadata();
+			metadata.insert(mFilepathLabel, cursor.getString(2));
+			metadata.insert(mFilesizeLabel, cursor.getString(3));
+			
+			// Get the hash and the hash algorithm used to create it
+			String hash = getHash(cursor, 0);
+			String hashAlg = cursor.getString(1);
+			
+			// Add all url fields, one per row
+			JSONArray urlArray = new JSONArray();
+			do {
+				urlArray.add(cursor.getString(4));
+			} while (cursor.moveToNext());
+			metadata.insert(KEY_URL, urlArray);
+			
+			// Return a SearchResult object, accessible through the SearchResult interface
+			return new SearchResultImpl(hash, hashAlg, metadata);
+		} finally {
+			cursor.close();
+		}
 	}
 
 	/**
@@ -450,18 +1333,82 @@ public class IODatabase
 	public void deleteIO(String hash) {
 		Log.d(TAG, "Deleting an information object from the database.");
 		try {
-			SQLiteDatabase db = getWritableDatabase();
+			long ioId = getIoId(hash);
+			SQLiteDatabase db = getDatabase();
+			Statements statements = getStatements();
 			
-			// Finds and deletes object
-			db.delete(TABLE_IO, KEY_HASH + " = ?", new String[] {hash});
-			
-			db.close();
+			// Finds and deletes object, its links go with it
+			synchronized (statements) {
+				db.beginTransactionNonExclusive();
+				try {
+					db.delete(TABLE_IO, KEY_ID + " = ?", new String[] {Long.toString(ioId)});
+					
+					// Drop the urls no other object uses
+					db.delete(TABLE_URL, KEY_ID + " NOT IN (SELECT " + KEY_URL_ID 
+							+ " FROM " + TABLE_IO_URL + ")", null);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		} catch (DatabaseException e) {
+			Log.d(TAG, "Information object was not stored.");
 		} catch (SQLiteException e) {
 			Log.e(TAG, "Failed deleting information object. " 
 					+ "Error occured due to an unexpected database problem.");
 		}
 	}
 	
+	/**
+	 * Points the information object corresponding to the specified hash value at a 
+	 * different copy of its file, for example after the file has been moved.
+	 * 
+	 * @param hash
+	 *      The hash value identifying the information object.
+	 * @param filePath
+	 *      The new path to the file
+	 * @throws DatabaseException
+	 *     Thrown, if the object was not stored or the path could not be updated
+	 */
+	public void setFilePath(String hash, String filePath) throws DatabaseException {
+		long ioId = getIoId(hash);
+		SQLiteDatabase db = getDatabase();
+		Statements statements = getStatements();
+		
+		ContentValues values = new ContentValues();
+		values.put(KEY_FILEPATH, filePath);
+		try {
+			synchronized (statements) {
+				db.update(TABLE_IO, values, KEY_ID + " = ?", new String[] {Long.toString(ioId)});
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Failed updating the file path of an information object.");
+			throw new DatabaseException("Unexpected error while trying to update file path.");
+		}
+	}
+	
+	/**
+	 * Updates the statistics of the query planner and gives the space of deleted rows 
+	 * back to the file system. Takes a while, so it should be called when the node is idle.
+	 * 
+	 * @throws DatabaseException
+	 *     Thrown, if the database could not be optimized
+	 */
+	public void optimize() throws DatabaseException {
+		SQLiteDatabase db = getDatabase();
+		Statements statements = getStatements();
+		
+		try {
+			synchronized (statements) {
+				db.execSQL("ANALYZE");
+				db.execSQL("VACUUM");
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Failed optimizing the database.");
+			throw new DatabaseException("Unexpected error while trying to optimize database.");
+		}
+	}
+	
 	/**
 	 * Deletes the information object that is specified from the database.
 	 * 
@@ -523,65 +1470,12 @@ public class IODatabase
 	}
 	
 	/**
-	 * Returns a content value object representing an entry in the IO table.
-	 * 
-	 * @param hash
-	 * 		The hash value of the IO
-	 * @param hashAlgorithm
-	 *      The hash algorithm
-	 * @param contentType
-	 *     	The content type
-	 * @param filePath
-	 *     	The file path
-	 * @param fileSize
-	 *     	The file size
-	 * @return
-	 * 		The corresponding content value
-	 */
-	private ContentValues createIOEntry(
-			String hash, String hashAlgorithm, String contentType, 
-			String filePath, String fileSize) {
-		// Create a new ContentValues object, readable by ContentResolver
-		ContentValues ioEntry = new ContentValues();
-		
-		// Add attributes
-		ioEntry.put(KEY_HASH, hash);
-		ioEntry.put(KEY_HASH_ALGORITHM, hashAlgorithm);
-		ioEntry.put(KEY_CONTENT_TYPE, contentType);
-		ioEntry.put(KEY_FILEPATH, filePath);
-		ioEntry.put(KEY_FILE_SIZE, fileSize);
-		
-		// Return the ContentValues with attributes
-		return ioEntry;
-	}
-	
-	/**
-	 * Returns a content value object representing an entry in the IO_url table.
-	 * 
-	 * @param hash
-	 *     	The hash value of the IO
-	 * @param url
-	 *     	The url where it can be found
-	 * @return
-	 * 		The corresponding content value
-	 */
-	private ContentValues createUrlEntry(String hash, String url) {
-	    // Create new ContentValues object, which is processed by ContentResolver
-		ContentValues urlEntry = new ContentValues();	
-
-		// Add attributes
-		urlEntry.put(KEY_HASH, hash);
-		urlEntry.put(KEY_URL, url);
-		
-		// Return ContentValues with attributes
-		return urlEntry;
-	}
-	
-	/**
-	 * Queries the database and returns a cursor.
+	 * Queries the database and returns a cursor. The caller has to close the cursor.
 	 * 
 	 * @param table
 	 * 		The table in which we want to query
+	 * @param columns
+	 * 		The columns to return, null for all
 	 * @param key
 	 * 		The key
 	 * @param value
@@ -591,55 +1485,255 @@ public class IODatabase
 	 * @throws DatabaseException
 	 *     	Thrown, if no entry was found for the specified key value pair
 	 */
-	private synchronized Cursor query(String table, String key, String value) throws DatabaseException {
-		SQLiteDatabase db = null;
+	private Cursor query(String table, String[] columns, String key, String value) 
+			throws DatabaseException {
+		Cursor cursor = null;
 		
+		// Makes the query for (key,value)
 		try {
-			db = this.getReadableDatabase();
+			cursor = getDatabase().query(table, columns, key + "=?", 
+					new String[]{value}, null, null, null);
 		} catch (SQLiteException e) {
 			Log.e(TAG, "Querying database failed. Error during reading database.");
 			throw new DatabaseException("Unexpected error while trying to read from database.");
 		}
-
-		// Makes the query for (key,value)
-		Cursor cursor = db.query(table, null, key + "=?", 
-				new String[]{value}, null, null, null);
 		
 		// If there was any result, move the cursor to the first result
-		if (cursor != null && cursor.getCount() != 0) {
-			cursor.moveToFirst();
-		} else {
+		if (!cursor.moveToFirst()) {
 		    // Fails if it does not find anything
-		    db.close();
+		    cursor.close();
 			throw new DatabaseException("The given key does not correspond to any IO : " + key);
 		}
 		
-		db.close();
-		
 		// Return first object
 		return cursor;
 	}
 	
 	/**
-	 * Query the database to see if a hash already exists.
+	 * Stores a cached NRS resolution, replacing an older one with the same key.
 	 * 
-	 * @param hash
-	 *     	The hash of an information object
+	 * @param key
+	 *     The hash-alg;hash key of the resolution
+	 * @param resolution
+	 *     The resolution
+	 */
+	@SuppressWarnings("unchecked")
+	public void putCachedResolution(String key, CachedResolution resolution) {
+		// Locators are stored as a JSON array
+		JSONArray locators = new JSONArray();
+		locators.addAll(resolution.getLocators());
+		
+		ContentValues entry = new ContentValues();
+		entry.put(KEY_RESOLUTION, key);
+		entry.put(KEY_CONTENT_TYPE, resolution.getContentType());
+		entry.put(KEY_METADATA, resolution.getMetadata());
+		entry.put(KEY_LOCATORS, locators.toJSONString());
+		entry.put(KEY_FILEPATH, resolution.getFilePath());
+		entry.put(KEY_EXPIRES, resolution.getExpires());
+		
+		getDatabase().replace(TABLE_RESOLUTION, null, entry);
+	}
+	
+	/**
+	 * Returns the cached NRS resolution with the given key.
+	 * 
+	 * @param key
+	 *     The hash-alg;hash key of the resolution
 	 * @return
-	 * 		false if the hash does not exist,
-	 *		true  if it does
+	 *     The resolution, which may have expired
+	 * @throws DatabaseException
+	 *     Thrown, if there is no resolution with the given key
 	 */
-	private boolean containsIO(String hash) {
+	@SuppressWarnings("unchecked")
+	public CachedResolution getCachedResolution(String key) throws DatabaseException {
+		Cursor cursor = query(TABLE_RESOLUTION, null, KEY_RESOLUTION, key);
+		
 		try {
-			// Check if the IO we want to insert already exists
-			query(TABLE_IO, KEY_HASH, hash);
+			// Restore the locators from the JSON array
+			List<String> locators = new ArrayList<String>();
+			Object json = JSONValue.parse(
+					cursor.getString(cursor.getColumnIndexOrThrow(KEY_LOCATORS)));
+			if (json instanceof JSONArray) {
+				locators.addAll((JSONArray) json);
+			}
 			
-		} catch (DatabaseException e) {
-			// This exception is thrown if the query is empty, in that case we say that 
-		    // the IO is not stored
-			return false;
+			return new CachedResolution(
+					cursor.getString(cursor.getColumnIndexOrThrow(KEY_CONTENT_TYPE)),
+					cursor.getString(cursor.getColumnIndexOrThrow(KEY_METADATA)),
+					locators,
+					cursor.getString(cursor.getColumnIndexOrThrow(KEY_FILEPATH)),
+					cursor.getLong(cursor.getColumnIndexOrThrow(KEY_EXPIRES)));
+		} finally {
+			cursor.close();
 		}
+	}
+	
+	/**
+	 * Deletes the cached NRS resolution with the given key.
+	 * 
+	 * @param key
+	 *     The hash-alg;hash key of the resolution
+	 */
+	public void deleteCachedResolution(String key) {
+		getDatabase().delete(TABLE_RESOLUTION, KEY_RESOLUTION + " = ?", new String[] {key});
+	}
+	
+	/**
+	 * Deletes all cached NRS resolutions that have expired.
+	 * 
+	 * @param now
+	 *     The current time (ms since epoch)
+	 */
+	public void deleteExpiredResolutions(long now) {
+		int deleted = getDatabase().delete(TABLE_RESOLUTION, KEY_EXPIRES + " <= ?", 
+				new String[] {Long.toString(now)});
+		
+		Log.d(TAG, "Deleted " + deleted + " expired NRS resolutions.");
+	}
 
-		return true;
+	/**
+	 * Queues a publish for the NRS, unless the same hash and locator is already queued.
+	 * 
+	 * @param publish
+	 *     The publish
+	 * @return
+	 *     true if the publish was queued, false if it was already queued
+	 * @throws SQLiteException
+	 *     Thrown, if writing to the database failed
+	 */
+	public boolean addPendingPublish(PendingPublish publish) {
+		ContentValues entry = new ContentValues();
+		entry.put(KEY_HASH_ALGORITHM, publish.getHashAlg());
+		entry.put(KEY_HASH, publish.getHash());
+		entry.put(KEY_CONTENT_TYPE, publish.getContentType());
+		entry.put(KEY_METADATA, publish.getMetadata());
+		entry.put(KEY_LOCATOR, publish.getLocator() == null ? "" : publish.getLocator());
+		entry.put(KEY_FILEPATH, publish.getFilePath());
+		entry.put(KEY_CREATED, publish.getCreated());
+		entry.put(KEY_ATTEMPTS, publish.getAttempts());
+		entry.put(KEY_NEXT_ATTEMPT, publish.getCreated());
+		
+		long id = getDatabase().insertWithOnConflict(TABLE_OUTBOX, null, entry, 
+				SQLiteDatabase.CONFLICT_IGNORE);
+		
+		return id != -1;
+	}
+	
+	/**
+	 * Returns the queued publishes that are due, the longest waiting first.
+	 * 
+	 * @param now
+	 *     The current time (ms since epoch)
+	 * @param limit
+	 *     The maximum number of publishes to return
+	 * @return
+	 *     The publishes that are due
+	 */
+	public List<PendingPublish> getDuePublishes(long now, int limit) {
+		List<PendingPublish> publishes = new ArrayList<PendingPublish>();
+		
+		Cursor cursor = getDatabase().query(TABLE_OUTBOX, null, KEY_NEXT_ATTEMPT + " <= ?", 
+				new String[] {Long.toString(now)}, null, null, 
+				KEY_NEXT_ATTEMPT + ", " + KEY_ID, Integer.toString(limit));
+		
+		try {
+			while (cursor.moveToNext()) {
+				String locator = cursor.getString(cursor.getColumnIndexOrThrow(KEY_LOCATOR));
+				publishes.add(new PendingPublish(
+						cursor.getLong(cursor.getColumnIndexOrThrow(KEY_ID)),
+						cursor.getString(cursor.getColumnIndexOrThrow(KEY_HASH_ALGORITHM)),
+						cursor.getString(cursor.getColumnIndexOrThrow(KEY_HASH)),
+						cursor.getString(cursor.getColumnIndexOrThrow(KEY_CONTENT_TYPE)),
+						cursor.getString(cursor.getColumnIndexOrThrow(KEY_METADATA)),
+						locator.length() == 0 ? null : locator,
+						cursor.getString(cursor.getColumnIndexOrThrow(KEY_FILEPATH)),
+						cursor.getLong(cursor.getColumnIndexOrThrow(KEY_CREATED)),
+						cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ATTEMPTS))));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return publishes;
+	}
+	
+	/**
+	 * Returns when the next queued publish is due.
+	 * 
+	 * @return
+	 *     The point in time (ms since epoch), or -1 if nothing is queued
+	 */
+	public long getNextPublishAttempt() {
+		Cursor cursor = getDatabase().rawQuery("SELECT MIN(" + KEY_NEXT_ATTEMPT + ") FROM " 
+				+ TABLE_OUTBOX, null);
+		
+		try {
+			if (cursor.moveToFirst() && !cursor.isNull(0)) {
+				return cursor.getLong(0);
+			}
+			return -1;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Returns the depth of the publish queue.
+	 * 
+	 * @return
+	 *     The number of queued publishes and the point in time (ms since epoch) when the 
+	 *     oldest one was queued
+	 */
+	public long[] getPendingPublishDepth() {
+		Cursor cursor = getDatabase().rawQuery("SELECT COUNT(*), MIN(" + KEY_CREATED + ") FROM " 
+				+ TABLE_OUTBOX, null);
+		
+		try {
+			cursor.moveToFirst();
+			return new long[] {cursor.getLong(0), cursor.isNull(1) ? 0 : cursor.getLong(1)};
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Reschedules a queued publish after the NRS rejected it.
+	 * 
+	 * @param id
+	 *     The row id of the publish
+	 * @param attempts
+	 *     The number of rejections so far
+	 * @param nextAttempt
+	 *     The point in time (ms since epoch) when the publish is due again
+	 */
+	public void updatePendingPublish(long id, int attempts, long nextAttempt) {
+		ContentValues entry = new ContentValues();
+		entry.put(KEY_ATTEMPTS, attempts);
+		entry.put(KEY_NEXT_ATTEMPT, nextAttempt);
+		
+		getDatabase().update(TABLE_OUTBOX, entry, KEY_ID + " = ?", 
+				new String[] {Long.toString(id)});
+	}
+	
+	/**
+	 * Removes a publish from the queue.
+	 * 
+	 * @param id
+	 *     The row id of the publish
+	 */
+	public void deletePendingPublish(long id) {
+		getDatabase().delete(TABLE_OUTBOX, KEY_ID + " = ?", new String[] {Long.toString(id)});
+	}
+	
+	/**
+	 * Removes all queued publishes of a hash, since the object is no longer stored.
+	 * 
+	 * @param hash
+	 *     The hash
+	 * @return
+	 *     The number of publishes removed
+	 */
+	public int deletePendingPublishes(String hash) {
+		return getDatabase().delete(TABLE_OUTBOX, KEY_HASH + " = ?", new String[] {hash});
 	}
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.database;
+
+import netinf.common.datamodel.DatamodelFactory;
+import android.content.Context;
+
+import com.google.inject.Inject;
+
+/**
+ * Hands out one IODatabase for the whole application, so that every service shares
+ * the same open connection instead of opening the database on every call.
+ */
+public class SharedIODatabaseFactory implements IODatabaseFactory {
+	/** The factory used by the database to create information objects. */
+	private final DatamodelFactory mDatamodelFactory;
+	
+	/** The shared database, created on first use. */
+	private IODatabase mDatabase;
+	
+	/**
+	 * Creates the factory.
+	 * 
+	 * @param datamodelFactory
+	 *     The factory used by the database to create information objects
+	 */
+	@Inject
+	public SharedIODatabaseFactory(DatamodelFactory datamodelFactory) {
+		mDatamodelFactory = datamodelFactory;
+	}
+	
+	/**
+	 * Returns the shared IODatabase.
+	 * 
+	 * @param context
+	 *     Any context of the application, only used the first time
+	 * @return
+	 *     The IODatabase
+	 */
+	@Override
+	public synchronized IODatabase create(Context context) {
+		if (mDatabase == null) {
+			mDatabase = new IODatabase(mDatamodelFactory, context.getApplicationContext());
+		}
+		return mDatabase;
+	}
+}
@@ -39,6 +39,7 @@ import org.restlet.routing.Router;
 import project.cs.netinfservice.netinf.access.rest.resources.BOResource;
 import project.cs.netinfservice.netinf.access.rest.resources.IOResource;
 import project.cs.netinfservice.netinf.access.rest.resources.SearchResource;
+import project.cs.netinfservice.netinf.access.rest.resources.StatisticsResource;
 
 /**
  * Routes NetInf requests to the appropriate classes.
@@ -95,7 +96,7 @@ public class RESTApplication extends Application {
     }
 
     /**
-     * Route where each 'action' -- publish, retrieve and search -- should redirect to.  
+     * Route where each 'action' -- publish, retrieve, search, statistics -- should go to.  
      */
     @Override
     public Restlet createInboundRoot() {
@@ -111,6 +112,9 @@ public class RESTApplication extends Application {
         // Search
         router.attach("/search", SearchResource.class);
 
+        // Node statistics
+        router.attach("/statistics", StatisticsResource.class);
+
         // Return the router
         return router;
     }
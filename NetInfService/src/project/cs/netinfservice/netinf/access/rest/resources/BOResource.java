@@ -57,23 +57,28 @@ package project.cs.netinfservice.netinf.access.rest.resources;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
 
 import netinf.common.datamodel.Identifier;
 import netinf.common.datamodel.InformationObject;
 import netinf.common.datamodel.attribute.Attribute;
 import netinf.common.exceptions.NetInfCheckedException;
 
-import org.apache.commons.io.FileUtils;
 import org.restlet.resource.Get;
 
 import project.cs.netinfservice.application.MainNetInfApplication;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedAttributeIdentification;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
+import project.cs.netinfservice.netinf.node.resolution.LocalWriteThrough;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.ContentStoreManager;
+import project.cs.netinfservice.netinf.provider.TransferListener;
 import project.cs.netinfservice.netinf.transferdispatcher.TransferDispatcher;
+import project.cs.netinfservice.util.SingleFlight;
 import project.cs.netinfutilities.UProperties;
 import project.cs.netinfutilities.metadata.Metadata;
 import android.media.MediaScannerConnection;
-import android.os.Environment;
 import android.util.Log;
 
 /**
@@ -90,6 +95,10 @@ public class BOResource extends LisaServerResource {
 	/** Debugging Tag. */
 	private static final String TAG = "BOResource";
 
+	/** Retrievals in flight on this node, keyed by hash-alg;hash. */
+	private static final SingleFlight<String, String> IN_FLIGHT =
+			new SingleFlight<String, String>();
+
 	/** HashMap Key: Filepath. */
 	private static String sFilepath;
 
@@ -102,9 +111,6 @@ public class BOResource extends LisaServerResource {
 	/** The hash algorithm used to generate the hash value. */
 	private String mHashAlgorithm;
 
-	/** The directory containing the published files. */
-	private String mSharedFolder;
-
 	/**
 	 * Initializes the context of a BOResource.
 	 */
@@ -119,13 +125,6 @@ public class BOResource extends LisaServerResource {
         // Grab hash identifiers
 		mHashValue = getQuery().getFirstValue("hash", true);
 		mHashAlgorithm = getQuery().getFirstValue("hashAlg", true);
-
-		// Get where to save information
-		String relativeFolderPath = UProperties.INSTANCE.getPropertyWithName("sharing.folder");
-		mSharedFolder = Environment.getExternalStorageDirectory() + relativeFolderPath;
-		
-		// Sanity checks the shared folder
-		createSharedFolder();
 	}
 
 	/**
@@ -144,7 +143,33 @@ public class BOResource extends LisaServerResource {
 	public String retrieveBO() {
 	    Log.d(TAG, "RESTful API received retrieve request");
 
-		byte[] fileData = null;
+	    // Concurrent requests for the same object share one resolution and one transfer
+	    try {
+	    	return IN_FLIGHT.execute(mHashAlgorithm + ";" + mHashValue, new Callable<String>() {
+	    		@Override
+	    		public String call() {
+	    			return retrieve();
+	    		}
+	    	});
+	    } catch (Exception e) {
+	    	Log.e(TAG, "Retrieval failed: " + e.getMessage());
+	    	return null;
+	    }
+	}
+
+	/**
+	 * Resolves the requested object and transfers it, unless the resolution already
+	 * contained the file.
+	 *
+	 * @return
+	 *      The meta-data of the retrieved file or <i>null</i> if it couldn't be retrieved.
+	 */
+	private String retrieve() {
+		// Stored objects need no resolution
+		String localMetadata = retrieveStored();
+		if (localMetadata != null) {
+			return localMetadata;
+		}
 
 		// Retrieve a data object from a node (could be an NRS)
 		InformationObject io = retrieveDO();
@@ -175,8 +200,27 @@ public class BOResource extends LisaServerResource {
 			// Get Filepath information and insert it into metadata
 			String filePath = filepathAttribute.getValueRaw();
 			filePath = filePath.substring(filePath.indexOf(":") + 1);
+			
+			// The object may only be packed, the application needs a file
+			if (!new File(filePath).exists()) {
+				try {
+					File file = getStore().materialize(mHashValue);
+					if (file == null) {
+						Log.e(TAG, "The file of the resolved object is gone");
+						return null;
+					}
+					filePath = file.getAbsolutePath();
+				} catch (IOException e) {
+					Log.e(TAG, "Failed to read the stored object: " + e.getMessage());
+					return null;
+				}
+			}
 			metadata.insert(sFilepath, filePath);
 			
+			// Remember the file for the next request
+			getPresenceIndex().add(mHashValue, contentType);
+			getStoreManager().onStored(mHashValue);
+			
 			// Return the metadata created
 			return metadata.convertToString();
 		}
@@ -187,37 +231,109 @@ public class BOResource extends LisaServerResource {
 		// Get transfer dispatcher instance
 		TransferDispatcher tsDispatcher = TransferDispatcher.INSTANCE;
 
-		// Fire off request to get the IO
+		// Stream the object into the content store, it never has to fit in memory
+		File file;
 		try {
-			fileData = tsDispatcher.getByteArray(io);
+			file = tsDispatcher.transfer(io, getStore(), new ProgressLogger());
 		} catch (IOException e) {
 			Log.e(TAG, "Couldn't retrieve the requested data.");
 			return null;
 		}
 
-		// Got the file
-		if (fileData != null) {
-		    // Get the metadata string representation of the file
-			String metaDataString = saveBO(io, fileData);
-			return metaDataString;
-		} else {
-			Log.e(TAG, "No file data to write.");
+		// Get the metadata string representation of the file
+		return saveBO(io, file);
+	}
+
+	/**
+	 * Looks up the requested object among the objects stored on this node.
+	 *
+	 * @return
+	 *      The meta-data of the stored file or <i>null</i> if the file is not stored or its
+	 *      content type is not known.
+	 */
+	private String retrieveStored() {
+		// Ask the index, it does not touch the database
+		String contentType = getPresenceIndex().getContentType(mHashValue);
+		if (contentType == null) {
 			return null;
 		}
+
+		// The file may have been deleted from the shared folder, or be packed
+		File file;
+		try {
+			file = getStore().materialize(mHashValue);
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to read the stored object: " + e.getMessage());
+			return null;
+		}
+		if (file == null) {
+			return null;
+		}
+
+		Log.d(TAG, "Requested object is stored on this node");
+		getStoreManager().onRead(mHashValue);
+
+		// Make a new metadata to pass along the content_type and filepath
+		Metadata metadata = new Metadata();
+		metadata.insert(sContentType, contentType);
+		metadata.insert(sFilepath, file.getAbsolutePath());
+
+		// Return the metadata
+		return metadata.convertToString();
 	}
 
 	/**
-	 * Saves the file data corresponding to the specified io and
+	 * Gets the index of the objects stored on this node.
+	 *
+	 * @return
+	 *      The presence index
+	 */
+	private LocalPresenceIndex getPresenceIndex() {
+		return MainNetInfApplication.getInjector().getInstance(LocalPresenceIndex.class);
+	}
+
+	/**
+	 * Gets the files of the objects stored on this node.
+	 *
+	 * @return
+	 *      The content store
+	 */
+	private ContentStore getStore() {
+		return MainNetInfApplication.getInjector().getInstance(ContentStore.class);
+	}
+
+	/**
+	 * Gets the manager keeping the stored files within the quota.
+	 *
+	 * @return
+	 *      The content store manager
+	 */
+	private ContentStoreManager getStoreManager() {
+		return MainNetInfApplication.getInjector().getInstance(ContentStoreManager.class);
+	}
+
+	/**
+	 * Gets the stage recording fetched objects in the local resolution service.
+	 *
+	 * @return
+	 *      The write-through stage
+	 */
+	private LocalWriteThrough getWriteThrough() {
+		return MainNetInfApplication.getInjector().getInstance(LocalWriteThrough.class);
+	}
+
+	/**
+	 * Announces the stored file corresponding to the specified io and
 	 * returns a String representation of the related meta-data.
 	 *
 	 * @param io
 	 * 		The Information Object describing the file data
-	 * @param fileData
-	 *     	The file data corresponding to the io
+	 * @param file
+	 *     	The stored file corresponding to the io
 	 * @return
 	 * 		Returns a String representation of the meta data.
 	 */
-	private String saveBO(InformationObject io, byte[] fileData) {
+	private String saveBO(InformationObject io, File file) {
 		// Store the content type of the requested BO
 		String contentType = io.getIdentifier().getIdentifierLabel(
 				SailDefinedLabelName.CONTENT_TYPE.getLabelName())
@@ -227,20 +343,16 @@ public class BOResource extends LisaServerResource {
 		String hash = io.getIdentifier().getIdentifierLabel(
 				SailDefinedLabelName.HASH_CONTENT.getLabelName()).getLabelValue();
 		
-		String filePath = Environment.getExternalStorageDirectory() 
-				+ UProperties.INSTANCE.getPropertyWithName("sharing.folder")
-				+ hash;
-
-		// Write file to file
-		try {
-			FileUtils.writeByteArrayToFile(new File(filePath), fileData);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		String filePath = file.getAbsolutePath();
 		
 		// Make file visible to user
 		makeFileVisibleToPhone(filePath, contentType);
 
+		// Remember the file for the next request, the database is written in the background
+		getPresenceIndex().add(hash, contentType);
+		getStoreManager().onStored(hash);
+		getWriteThrough().record(io, filePath, getStore().getLength(hash));
+
 		// Make a new metadata to pass along the content_type and filepath
 		Metadata metadata = new Metadata();
 		metadata.insert(sContentType, contentType);
@@ -250,6 +362,26 @@ public class BOResource extends LisaServerResource {
 		return metadata.convertToString();
 	}
 
+	/**
+	 * Logs the progress of a transfer every tenth of the object.
+	 */
+	private static class ProgressLogger implements TransferListener {
+		/** The last logged tenth. */
+		private long mLogged = -1;
+
+		@Override
+		public void onProgress(long transferred, long total) {
+			if (total <= 0) {
+				return;
+			}
+			long tenth = transferred * 10 / total;
+			if (tenth > mLogged) {
+				mLogged = tenth;
+				Log.d(TAG, "Received " + transferred + " of " + total + " bytes");
+			}
+		}
+	}
+
 	/**
 	 * Returns an IO (i.e. DO) containing the list of locators that own the
 	 * requested BO.
@@ -276,26 +408,6 @@ public class BOResource extends LisaServerResource {
 		return io;
 	}
 
-	/**
-	 * Creates the folder that contains the files to be shared with other phones.
-	 * If it is unable to create the folder, it sets the shared folder to /DCIM/.
-	 */
-	private void createSharedFolder() {
-	    // Initiates folder check
-		File folder = new File(mSharedFolder);
-
-		// If the folder is not created, create the shared folder
-		if (!folder.exists()) {
-			boolean created = folder.mkdir();
-
-			if (!created) {
-			    // Fail-safe
-				Log.e(TAG, "Failed creating the shared folder. Set shared folder to DCIM/");
-				mSharedFolder = Environment.getExternalStorageDirectory() + "/DCIM/";
-			}
-		}
-	}
-
 	/**
 	 * Makes the file specified by file path visible to the user.
 	 *
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.access.rest.resources;
+
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import project.cs.netinfservice.application.MainNetInfApplication;
+import project.cs.netinfservice.netinf.node.nrs.NrsCircuitBreaker;
+import project.cs.netinfservice.netinf.node.nrs.NrsEndpoints;
+import project.cs.netinfservice.netinf.node.nrs.NrsPublishOutbox;
+import project.cs.netinfservice.netinf.node.nrs.NrsResolutionCache;
+import project.cs.netinfservice.netinf.node.resolution.AdaptiveResolutionServiceSelector;
+import project.cs.netinfservice.netinf.node.resolution.LocalIoCache;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
+import project.cs.netinfservice.netinf.node.resolution.LocalWriteThrough;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.ContentStoreManager;
+import project.cs.netinfservice.netinf.server.bluetooth.ConnectionPool;
+import android.util.Log;
+
+/**
+ * Provides the counters of the node, used to tune caches and timeouts.
+ */
+public class StatisticsResource extends ServerResource {
+    /** Debug tag. */
+    private static final String TAG = "StatisticsResource";
+
+    /**
+     * Statistics handler.
+     *
+     * @return
+     *      <i>JSON String</i> with the counters grouped by component
+     */
+    @SuppressWarnings("unchecked") // JSON Object
+    @Get
+    public String statistics() {
+        Log.d(TAG, "RESTful API received statistics request");
+
+        // NRS resolution cache
+        Map<String, Long> cache = MainNetInfApplication.getInjector()
+                .getInstance(NrsResolutionCache.class).getStatistics();
+
+        // NRS publish outbox
+        Map<String, Long> outbox = MainNetInfApplication.getInjector()
+                .getInstance(NrsPublishOutbox.class).getStatistics();
+
+        // Observed latency and errors per NRS
+        Map<String, Map<String, Long>> endpoints = MainNetInfApplication.getInjector()
+                .getInstance(NrsEndpoints.class).getStatistics();
+        JSONObject endpointsObject = new JSONObject();
+        for (Map.Entry<String, Map<String, Long>> endpoint : endpoints.entrySet()) {
+            endpointsObject.put(endpoint.getKey(), new JSONObject(endpoint.getValue()));
+        }
+
+        // Observed latency and answers per resolution service
+        Map<String, Map<String, Long>> services = MainNetInfApplication.getInjector()
+                .getInstance(AdaptiveResolutionServiceSelector.class).getStatistics();
+        JSONObject servicesObject = new JSONObject();
+        for (Map.Entry<String, Map<String, Long>> service : services.entrySet()) {
+            servicesObject.put(service.getKey(), new JSONObject(service.getValue()));
+        }
+
+        // Local IO cache
+        Map<String, Long> localCache = MainNetInfApplication.getInjector()
+                .getInstance(LocalIoCache.class).getStatistics();
+
+        // Index of the stored objects
+        Map<String, Long> localIndex = MainNetInfApplication.getInjector()
+                .getInstance(LocalPresenceIndex.class).getStatistics();
+
+        // Objects resolved elsewhere recorded locally
+        Map<String, Long> writeThrough = MainNetInfApplication.getInjector()
+                .getInstance(LocalWriteThrough.class).getStatistics();
+
+        // Content store
+        Map<String, Long> store = MainNetInfApplication.getInjector()
+                .getInstance(ContentStoreManager.class).getStatistics();
+
+        // Packs of the small objects
+        Map<String, Long> packs = MainNetInfApplication.getInjector()
+                .getInstance(ContentStore.class).getPacks().getStatistics();
+
+        // Connections served to other devices
+        Map<String, Long> bluetoothServer = MainNetInfApplication.getInjector()
+                .getInstance(ConnectionPool.class).getStatistics();
+
+        // NRS circuit breaker
+        Map<String, Object> circuitBreaker = MainNetInfApplication.getInjector()
+                .getInstance(NrsCircuitBreaker.class).getStatistics();
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("nrs_endpoints", endpointsObject);
+        jsonObject.put("nrs_circuit_breaker", new JSONObject(circuitBreaker));
+        jsonObject.put("nrs_cache", new JSONObject(cache));
+        jsonObject.put("nrs_outbox", new JSONObject(outbox));
+        jsonObject.put("resolution_services", servicesObject);
+        jsonObject.put("lrs_cache", new JSONObject(localCache));
+        jsonObject.put("lrs_index", new JSONObject(localIndex));
+        jsonObject.put("lrs_write_through", new JSONObject(writeThrough));
+        jsonObject.put("store", new JSONObject(store));
+        jsonObject.put("store_packs", new JSONObject(packs));
+        jsonObject.put("bluetooth_server", new JSONObject(bluetoothServer));
+
+        return jsonObject.toJSONString();
+    }
+}
@@ -33,6 +33,9 @@ import netinf.node.resolution.ResolutionService;
 import netinf.node.search.SearchController;
 import netinf.node.search.SearchService;
 import project.cs.netinfservice.application.MainNetInfApplication;
+import project.cs.netinfservice.netinf.node.nrs.NrsCircuitBreaker;
+import project.cs.netinfservice.netinf.node.resolution.NameResolutionService;
+import project.cs.netinfservice.netinf.node.store.ContentStoreManager;
 import android.util.Log;
 
 /**
@@ -60,6 +63,18 @@ public class StarterNodeThread extends Thread {
 
         // Start Resolution Services
         startResolution();
+
+        // Follow the network state, so NRS requests fail fast without a network
+        startNrsCircuitBreaker();
+
+        // Open the NRS connections ahead of the first request
+        warmUpNrsConnections();
+
+        // Send the publishes queued for the NRS
+        startNrsPublishing();
+
+        // Keep the stored files within the quota
+        startContentStore();
         
         // Start Search Service
         startSearch();
@@ -97,6 +112,46 @@ public class StarterNodeThread extends Thread {
         }
     }
 
+    /**
+     * Starts the circuit breaker guarding all NRS traffic.
+     */
+    private void startNrsCircuitBreaker() {
+        Log.d(TAG, "Starting NRS circuit breaker...");
+        NrsCircuitBreaker circuitBreaker =
+                MainNetInfApplication.getInjector().getInstance(NrsCircuitBreaker.class);
+        circuitBreaker.start(MainNetInfApplication.getAppContext());
+    }
+
+    /**
+     * Pre-warms the connection pool shared by all NRS traffic.
+     */
+    private void warmUpNrsConnections() {
+        Log.d(TAG, "Pre-warming NRS connections...");
+        NameResolutionService nameResolutionService =
+                MainNetInfApplication.getInjector().getInstance(NameResolutionService.class);
+        nameResolutionService.warmUp();
+    }
+
+    /**
+     * Starts draining the queue of publishes to the NRS.
+     */
+    private void startNrsPublishing() {
+        Log.d(TAG, "Starting NRS publish outbox...");
+        NameResolutionService nameResolutionService =
+                MainNetInfApplication.getInjector().getInstance(NameResolutionService.class);
+        nameResolutionService.startPublishing();
+    }
+
+    /**
+     * Starts reconciling the shared folder with the database.
+     */
+    private void startContentStore() {
+        Log.d(TAG, "Starting content store manager...");
+        ContentStoreManager contentStore =
+                MainNetInfApplication.getInjector().getInstance(ContentStoreManager.class);
+        contentStore.start();
+    }
+
     /**
      * Starts Search Service.
      */
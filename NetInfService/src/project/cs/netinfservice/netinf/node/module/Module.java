@@ -38,8 +38,6 @@ import netinf.node.api.impl.NetInfNodeReceiveHandler;
 import netinf.node.resolution.ResolutionController;
 import netinf.node.resolution.ResolutionService;
 import netinf.node.resolution.ResolutionServiceSelector;
-import netinf.node.resolution.impl.ResolutionControllerImplWithoutSecurity;
-import netinf.node.resolution.impl.SimpleResolutionServiceSelector;
 import netinf.node.search.SearchController;
 import netinf.node.search.SearchService;
 import netinf.node.search.impl.SearchControllerImpl;
@@ -48,18 +46,34 @@ import netinf.node.transfer.impl.TransferControllerImpl;
 
 import org.apache.commons.lang.ArrayUtils;
 
-import project.cs.netinfservice.database.IODatabase;
 import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.database.SharedIODatabaseFactory;
 import project.cs.netinfservice.netinf.access.rest.RESTAccessServer;
+import project.cs.netinfservice.netinf.node.nrs.NrsCircuitBreaker;
+import project.cs.netinfservice.netinf.node.nrs.NrsEndpoints;
+import project.cs.netinfservice.netinf.node.nrs.NrsHttpClient;
+import project.cs.netinfservice.netinf.node.nrs.NrsPublishOutbox;
+import project.cs.netinfservice.netinf.node.nrs.NrsResolutionCache;
+import project.cs.netinfservice.netinf.node.resolution.AdaptiveResolutionServiceSelector;
+import project.cs.netinfservice.netinf.node.resolution.LocalIoCache;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
 import project.cs.netinfservice.netinf.node.resolution.LocalResolutionService;
+import project.cs.netinfservice.netinf.node.resolution.LocalWriteThrough;
 import project.cs.netinfservice.netinf.node.resolution.NameResolutionService;
+import project.cs.netinfservice.netinf.node.resolution.RacingResolutionController;
 import project.cs.netinfservice.netinf.node.search.UrlSearchService;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.ContentStoreManager;
+import project.cs.netinfservice.netinf.node.store.EvictionPolicy;
+import project.cs.netinfservice.netinf.node.store.FrequencyEvictionPolicy;
+import project.cs.netinfservice.netinf.node.store.LruEvictionPolicy;
+import project.cs.netinfservice.netinf.server.bluetooth.ConnectionPool;
 import project.cs.netinfutilities.UProperties;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
-import com.google.inject.assistedinject.FactoryProvider;
+import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 
 /**
@@ -83,16 +97,43 @@ public class Module extends AbstractModule  {
         bind(AsyncReceiveHandler.class).to(NetInfNodeReceiveHandler.class);
 
         bind(ResolutionController.class).to(
-                ResolutionControllerImplWithoutSecurity.class).in(Singleton.class);
+                RacingResolutionController.class).in(Singleton.class);
 
-        bind(ResolutionServiceSelector.class).to(SimpleResolutionServiceSelector.class);
+        bind(AdaptiveResolutionServiceSelector.class).in(Singleton.class);
+
+        bind(ResolutionServiceSelector.class).to(AdaptiveResolutionServiceSelector.class);
 
         bind(TransferController.class).to(TransferControllerImpl.class).in(Singleton.class);
 
         bind(AccessServer.class).to(RESTAccessServer.class).in(Singleton.class);
 
-        bind(IODatabaseFactory.class)
-        .toProvider(FactoryProvider.newFactory(IODatabaseFactory.class, IODatabase.class));
+        bind(IODatabaseFactory.class).to(SharedIODatabaseFactory.class).in(Singleton.class);
+
+        bind(NrsEndpoints.class).in(Singleton.class);
+
+        bind(NrsCircuitBreaker.class).in(Singleton.class);
+
+        bind(NrsHttpClient.class).in(Singleton.class);
+
+        bind(NrsResolutionCache.class).in(Singleton.class);
+
+        bind(NrsPublishOutbox.class).in(Singleton.class);
+
+        bind(NameResolutionService.class).in(Singleton.class);
+
+        bind(LocalIoCache.class).in(Singleton.class);
+
+        bind(LocalPresenceIndex.class).in(Singleton.class);
+
+        bind(LocalResolutionService.class).in(Singleton.class);
+
+        bind(LocalWriteThrough.class).in(Singleton.class);
+
+        bind(ContentStore.class).in(Singleton.class);
+
+        bind(ContentStoreManager.class).in(Singleton.class);
+
+        bind(ConnectionPool.class).in(Singleton.class);
 
         bind(UrlSearchService.class);
 
@@ -139,4 +180,24 @@ public class Module extends AbstractModule  {
        return new SearchService[] { searchServiceSQLite };
     }
 
+    /**
+     * Provides the eviction policy of the content store.
+     *
+     * @param policy
+     *      The name of the policy, lru or frequency
+     * @param halfLife
+     *      Time in ms after which reads count half for the frequency policy
+     * @return
+     *      The eviction policy
+     */
+    @Singleton
+    @Provides
+    EvictionPolicy provideEvictionPolicy(@Named("store.eviction_policy") String policy,
+            @Named("store.frequency_half_life") long halfLife) {
+        if ("frequency".equals(policy)) {
+            return new FrequencyEvictionPolicy(halfLife);
+        }
+        return new LruEvictionPolicy();
+    }
+
 }
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of a NRS resolution that is worth remembering: content type, metadata and
+ * locators, plus the local copy of the file if the NRS sent one along.
+ * <p>
+ * A negative resolution records that the NRS did not know the object.
+ */
+public class CachedResolution {
+    /** The content type, may be null. */
+    private final String mContentType;
+
+    /** The metadata as a JSON string, may be null. */
+    private final String mMetadata;
+
+    /** The locators returned by the NRS. */
+    private final List<String> mLocators;
+
+    /** Path to the file received together with the resolution, may be null. */
+    private final String mFilePath;
+
+    /** Point in time (ms since epoch) when the resolution expires. */
+    private final long mExpires;
+
+    /** True if the NRS did not know the object. */
+    private final boolean mNegative;
+
+    /**
+     * Creates a resolution.
+     *
+     * @param contentType
+     *      The content type, may be null
+     * @param metadata
+     *      The metadata as a JSON string, may be null
+     * @param locators
+     *      The locators returned by the NRS
+     * @param filePath
+     *      Path to the file received together with the resolution, may be null
+     * @param expires
+     *      Point in time (ms since epoch) when the resolution expires
+     */
+    public CachedResolution(String contentType, String metadata, List<String> locators,
+            String filePath, long expires) {
+        this(contentType, metadata, locators, filePath, expires, false);
+    }
+
+    /**
+     * Creates a resolution.
+     *
+     * @param contentType
+     *      The content type, may be null
+     * @param metadata
+     *      The metadata as a JSON string, may be null
+     * @param locators
+     *      The locators returned by the NRS, may be null
+     * @param filePath
+     *      Path to the file received together with the resolution, may be null
+     * @param expires
+     *      Point in time (ms since epoch) when the resolution expires
+     * @param negative
+     *      True if the NRS did not know the object
+     */
+    private CachedResolution(String contentType, String metadata, List<String> locators,
+            String filePath, long expires, boolean negative) {
+        mContentType = contentType;
+        mMetadata = metadata;
+        mLocators = locators == null
+                ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<String>(locators));
+        mFilePath = filePath;
+        mExpires = expires;
+        mNegative = negative;
+    }
+
+    /**
+     * Creates a resolution recording that the NRS did not know the object.
+     *
+     * @param expires
+     *      Point in time (ms since epoch) when the resolution expires
+     * @return
+     *      The negative resolution
+     */
+    public static CachedResolution negative(long expires) {
+        return new CachedResolution(null, null, null, null, expires, true);
+    }
+
+    /**
+     * Gets the content type.
+     *
+     * @return
+     *      The content type, may be null
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * Gets the metadata.
+     *
+     * @return
+     *      The metadata as a JSON string, may be null
+     */
+    public String getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Gets the locators.
+     *
+     * @return
+     *      The locators returned by the NRS
+     */
+    public List<String> getLocators() {
+        return mLocators;
+    }
+
+    /**
+     * Gets the local copy of the file.
+     *
+     * @return
+     *      The path to the file received together with the resolution, may be null
+     */
+    public String getFilePath() {
+        return mFilePath;
+    }
+
+    /**
+     * Gets the expiry time.
+     *
+     * @return
+     *      Point in time (ms since epoch) when the resolution expires
+     */
+    public long getExpires() {
+        return mExpires;
+    }
+
+    /**
+     * Checks if this is a negative resolution.
+     *
+     * @return
+     *      True if the NRS did not know the object
+     */
+    public boolean isNegative() {
+        return mNegative;
+    }
+
+    /**
+     * Checks if the resolution has expired.
+     *
+     * @param now
+     *      The current time (ms since epoch)
+     * @return
+     *      True if the resolution must not be used anymore
+     */
+    public boolean isExpired(long now) {
+        return now >= mExpires;
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Stops sending requests to the NRS while it cannot be reached.
+ * <p>
+ * The breaker opens after a number of NRS requests in a row failed, or as soon as the
+ * device loses its network connection. While it is open requests fail right away, so the
+ * node falls back to local and Bluetooth paths without waiting out a timeout. A background
+ * probe tries to connect to the NRS and closes the breaker again once it succeeds. The probe
+ * is also run right away when the network comes back.
+ */
+public class NrsCircuitBreaker {
+    /** Debug tag. */
+    private static final String TAG = "NrsCircuitBreaker";
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State {
+        /** Requests are sent. */
+        CLOSED,
+        /** Requests fail right away. */
+        OPEN,
+        /** Requests fail right away while a probe is running. */
+        HALF_OPEN
+    }
+
+    /** Number of failed requests in a row that opens the breaker. */
+    private final int mFailureThreshold;
+
+    /** Time in ms between two probes. */
+    private final long mProbeInterval;
+
+    /** Connection timeout in ms of a probe. */
+    private final int mProbeTimeout;
+
+    /** The NRS that are probed. */
+    private final NrsEndpoints mEndpoints;
+
+    /** Runs the probes. */
+    private final ScheduledExecutorService mProber;
+
+    /** The next probe. */
+    private ScheduledFuture<?> mNextProbe;
+
+    /** The current state. */
+    private State mState = State.CLOSED;
+
+    /** Number of failed requests in a row. */
+    private int mConsecutiveFailures;
+
+    /** True if the device has a network connection. */
+    private boolean mNetworkAvailable = true;
+
+    /** Point in time (ms since epoch) when the breaker last opened. */
+    private long mOpenedAt;
+
+    /** Total time in ms the breaker has been open before the current opening. */
+    private long mTimeOpen;
+
+    /** Number of state transitions. */
+    private long mTransitions;
+
+    /** Number of times the breaker opened. */
+    private long mOpenings;
+
+    /** Number of requests that failed right away. */
+    private long mRejected;
+
+    /** Follows the network state. */
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean noConnectivity =
+                    intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+            setNetworkAvailable(!noConnectivity && isConnected(context));
+        }
+    };
+
+    /**
+     * Creates the breaker.
+     *
+     * @param failureThreshold
+     *      Number of failed requests in a row that opens the breaker
+     * @param probeInterval
+     *      Time in ms between two probes
+     * @param probeTimeout
+     *      Connection timeout in ms of a probe
+     * @param endpoints
+     *      The NRS that are probed
+     */
+    @Inject
+    public NrsCircuitBreaker(
+            @Named("nrs.breaker.failures") int failureThreshold,
+            @Named("nrs.breaker.probe_interval") long probeInterval,
+            @Named("nrs.timeout") int probeTimeout,
+            NrsEndpoints endpoints) {
+        mFailureThreshold = failureThreshold;
+        mProbeInterval = probeInterval;
+        mProbeTimeout = probeTimeout;
+        mEndpoints = endpoints;
+
+        mProber = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts following the network state.
+     *
+     * @param context
+     *      The application context
+     */
+    public void start(Context context) {
+        setNetworkAvailable(isConnected(context));
+        context.registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Checks if a request may be sent to the NRS.
+     *
+     * @return
+     *      True if the request may be sent, false if it has to fail right away
+     */
+    public synchronized boolean allowRequest() {
+        if (mState == State.CLOSED) {
+            return true;
+        }
+        mRejected++;
+        return false;
+    }
+
+    /**
+     * Records that a NRS answered.
+     */
+    public synchronized void recordSuccess() {
+        mConsecutiveFailures = 0;
+        if (mState != State.CLOSED) {
+            transition(State.CLOSED, "NRS answered");
+        }
+    }
+
+    /**
+     * Records that no NRS could be reached.
+     */
+    public synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold) {
+            transition(State.OPEN, mConsecutiveFailures + " failed requests in a row");
+            scheduleProbe(mProbeInterval);
+        }
+    }
+
+    /**
+     * Gets the current state.
+     *
+     * @return
+     *      The state
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Gets the state and counters of the breaker.
+     *
+     * @return
+     *      The statistics by name
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        long timeOpen = mTimeOpen;
+        if (mState != State.CLOSED) {
+            timeOpen += System.currentTimeMillis() - mOpenedAt;
+        }
+
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("state", mState.name());
+        statistics.put("network", mNetworkAvailable);
+        statistics.put("transitions", mTransitions);
+        statistics.put("openings", mOpenings);
+        statistics.put("time_open", timeOpen);
+        statistics.put("rejected", mRejected);
+        return statistics;
+    }
+
+    /**
+     * Handles a change of the network state.
+     *
+     * @param available
+     *      True if the device has a network connection
+     */
+    private synchronized void setNetworkAvailable(boolean available) {
+        if (available == mNetworkAvailable) {
+            return;
+        }
+        mNetworkAvailable = available;
+        Log.d(TAG, "Network " + (available ? "available" : "lost"));
+
+        if (!available) {
+            if (mState == State.CLOSED) {
+                transition(State.OPEN, "network lost");
+            }
+        } else if (mState != State.CLOSED) {
+            // Do not wait for the next scheduled probe
+            scheduleProbe(0);
+        }
+    }
+
+    /**
+     * Changes the state.
+     *
+     * @param state
+     *      The new state
+     * @param reason
+     *      Why the state changes, for the log
+     */
+    private void transition(State state, String reason) {
+        long now = System.currentTimeMillis();
+        Log.i(TAG, mState + " -> " + state + ": " + reason);
+
+        if (mState == State.CLOSED) {
+            mOpenedAt = now;
+            mOpenings++;
+        } else if (state == State.CLOSED) {
+            mTimeOpen += now - mOpenedAt;
+            mConsecutiveFailures = 0;
+        }
+        mState = state;
+        mTransitions++;
+    }
+
+    /**
+     * Schedules the next probe, replacing a probe scheduled earlier.
+     *
+     * @param delay
+     *      Delay in ms
+     */
+    private synchronized void scheduleProbe(long delay) {
+        if (mNextProbe != null) {
+            mNextProbe.cancel(false);
+        }
+        mNextProbe = mProber.schedule(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tries to connect to the best NRS and closes the breaker if one accepts.
+     */
+    private void probe() {
+        synchronized (this) {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            if (!mNetworkAvailable) {
+                // Wait for the network to come back
+                return;
+            }
+            transition(State.HALF_OPEN, "probing");
+        }
+
+        // Connect outside the lock, requests keep failing fast meanwhile
+        List<NrsEndpoint> endpoints = mEndpoints.getOrdered();
+        for (NrsEndpoint endpoint : endpoints) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(endpoint.getHost(), endpoint.getPort()),
+                        mProbeTimeout);
+                recordSuccess();
+                return;
+            } catch (IOException e) {
+                Log.d(TAG, "Probe of " + endpoint + " failed: " + e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close probe socket");
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (mState == State.HALF_OPEN) {
+                transition(State.OPEN, "probe failed");
+                scheduleProbe(mProbeInterval);
+            }
+        }
+    }
+
+    /**
+     * Checks if the device has a network connection.
+     *
+     * @param context
+     *      The application context
+     * @return
+     *      True if there is a connected network
+     */
+    private static boolean isConnected(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+}
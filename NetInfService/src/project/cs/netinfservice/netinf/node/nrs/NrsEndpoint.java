@@ -0,0 +1,199 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A NRS the node can talk to, together with what has been observed about it.
+ * <p>
+ * The latency estimate follows the TCP retransmission timer: a smoothed time to the
+ * response headers and a smoothed deviation from it.
+ */
+public class NrsEndpoint {
+    /** HTTP Scheme. */
+    private static final String HTTP = "http://";
+
+    /** The NRS host. */
+    private final String mHost;
+
+    /** The NRS port. */
+    private final int mPort;
+
+    /** Smoothed latency in ms, -1 until the first response. */
+    private long mLatency = -1;
+
+    /** Smoothed deviation of the latency in ms. */
+    private long mDeviation;
+
+    /** Number of failed requests since the last successful one. */
+    private int mConsecutiveErrors;
+
+    /** Number of requests that got a response. */
+    private long mResponses;
+
+    /** Number of failed requests. */
+    private long mErrors;
+
+    /**
+     * Creates an endpoint.
+     *
+     * @param host
+     *      The NRS host
+     * @param port
+     *      The NRS port
+     */
+    public NrsEndpoint(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Gets the host.
+     *
+     * @return
+     *      The NRS host
+     */
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Gets the port.
+     *
+     * @return
+     *      The NRS port
+     */
+    public int getPort() {
+        return mPort;
+    }
+
+    /**
+     * Creates the URI of a NRS operation.
+     *
+     * @param path
+     *      The path of the operation, for example /netinfproto/get
+     * @return
+     *      The full URI
+     */
+    public String getUri(String path) {
+        return HTTP + mHost + ":" + mPort + path;
+    }
+
+    /**
+     * Records a response.
+     *
+     * @param latency
+     *      Time in ms until the response headers arrived
+     */
+    public synchronized void recordResponse(long latency) {
+        if (mLatency < 0) {
+            mLatency = latency;
+            mDeviation = latency / 2;
+        } else {
+            mDeviation = (3 * mDeviation + Math.abs(mLatency - latency)) / 4;
+            mLatency = (7 * mLatency + latency) / 8;
+        }
+        mConsecutiveErrors = 0;
+        mResponses++;
+    }
+
+    /**
+     * Records a request that was aborted before its response arrived. The response took at
+     * least the given time, so the estimate is raised if it is lower.
+     *
+     * @param elapsed
+     *      Time in ms the request had been waiting
+     */
+    public synchronized void recordAborted(long elapsed) {
+        if (elapsed > mLatency) {
+            if (mLatency < 0) {
+                mLatency = elapsed;
+                mDeviation = elapsed / 2;
+            } else {
+                mDeviation = (3 * mDeviation + elapsed - mLatency) / 4;
+                mLatency = (7 * mLatency + elapsed) / 8;
+            }
+        }
+    }
+
+    /**
+     * Records a failed request.
+     */
+    public synchronized void recordError() {
+        mConsecutiveErrors++;
+        mErrors++;
+    }
+
+    /**
+     * Gets the time after which a request to this endpoint is considered slow.
+     *
+     * @param initial
+     *      The time in ms to use before anything has been observed
+     * @return
+     *      The time in ms
+     */
+    public synchronized long getSlowThreshold(long initial) {
+        return mLatency < 0 ? initial : mLatency + 4 * mDeviation;
+    }
+
+    /**
+     * Gets the score used to order endpoints, lower is better.
+     *
+     * @param initial
+     *      The latency in ms to assume before anything has been observed
+     * @param errorPenalty
+     *      The penalty in ms for each failed request in a row
+     * @return
+     *      The score
+     */
+    public synchronized long getScore(long initial, long errorPenalty) {
+        return (mLatency < 0 ? initial : mLatency) + mConsecutiveErrors * errorPenalty;
+    }
+
+    /**
+     * Gets what has been observed about this endpoint.
+     *
+     * @return
+     *      The statistics by name
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("latency", mLatency);
+        statistics.put("deviation", mDeviation);
+        statistics.put("responses", mResponses);
+        statistics.put("errors", mErrors);
+        statistics.put("consecutive_errors", (long) mConsecutiveErrors);
+        return statistics;
+    }
+
+    @Override
+    public String toString() {
+        return mHost + ":" + mPort;
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import project.cs.netinfservice.application.MainNetInfActivity;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * The NRS the node knows about, ordered by how well they have been doing.
+ * <p>
+ * The primary NRS is the one set in the preferences, or the one in the properties if none
+ * is set. Fallbacks come from the comma separated host:port list in nrs.http.fallbacks.
+ * Endpoints are ordered by their smoothed latency plus a penalty for each failed request in
+ * a row, so a slow or dead NRS moves to the back.
+ */
+public class NrsEndpoints {
+    /** Debug tag. */
+    private static final String TAG = "NrsEndpoints";
+
+    /** Key for accessing the NRS IP. */
+    private static final String PREF_KEY_NRS_IP = "pref_key_nrs_ip";
+
+    /** Key for accessing the NRS Port. */
+    private static final String PREF_KEY_NRS_PORT = "pref_key_nrs_port";
+
+    /** Default NRS host from the properties. */
+    private final String mDefaultHost;
+
+    /** Default NRS port from the properties. */
+    private final int mDefaultPort;
+
+    /** The fallback NRS. */
+    private final List<NrsEndpoint> mFallbacks = new ArrayList<NrsEndpoint>();
+
+    /** Every endpoint seen so far by host:port, so statistics survive preference changes. */
+    private final Map<String, NrsEndpoint> mKnown = new LinkedHashMap<String, NrsEndpoint>();
+
+    /** Time in ms after which a request is hedged before anything has been observed. */
+    private final long mInitialDelay;
+
+    /** Shortest time in ms after which a request is hedged. */
+    private final long mMinDelay;
+
+    /** Longest time in ms after which a request is hedged, also the penalty per error. */
+    private final long mTimeout;
+
+    /**
+     * Creates the endpoint list.
+     *
+     * @param host
+     *      Default NRS host
+     * @param port
+     *      Default NRS port
+     * @param fallbacks
+     *      Comma separated host:port list of fallback NRS, may be empty
+     * @param timeout
+     *      NRS timeout in ms
+     * @param initialDelay
+     *      Time in ms after which a request is hedged before anything has been observed
+     * @param minDelay
+     *      Shortest time in ms after which a request is hedged
+     */
+    @Inject
+    public NrsEndpoints(
+            @Named("nrs.http.host") String host,
+            @Named("nrs.http.port") int port,
+            @Named("nrs.http.fallbacks") String fallbacks,
+            @Named("nrs.timeout") int timeout,
+            @Named("nrs.hedge.initial_delay") long initialDelay,
+            @Named("nrs.hedge.min_delay") long minDelay) {
+        mDefaultHost = host;
+        mDefaultPort = port;
+        mTimeout = timeout;
+        mInitialDelay = initialDelay;
+        mMinDelay = minDelay;
+
+        // Parse host:port,host:port
+        for (String fallback : fallbacks.split(",")) {
+            fallback = fallback.trim();
+            int colon = fallback.lastIndexOf(':');
+            if (colon <= 0) {
+                if (fallback.length() > 0) {
+                    Log.w(TAG, "Ignoring fallback NRS without port: " + fallback);
+                }
+                continue;
+            }
+            try {
+                int fallbackPort = Integer.parseInt(fallback.substring(colon + 1));
+                mFallbacks.add(getEndpoint(fallback.substring(0, colon), fallbackPort));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring fallback NRS with invalid port: " + fallback);
+            }
+        }
+    }
+
+    /**
+     * Gets the endpoints, best first.
+     *
+     * @return
+     *      The endpoints
+     */
+    public List<NrsEndpoint> getOrdered() {
+        List<NrsEndpoint> endpoints = new ArrayList<NrsEndpoint>();
+        endpoints.add(getPrimary());
+        for (NrsEndpoint fallback : mFallbacks) {
+            if (!endpoints.contains(fallback)) {
+                endpoints.add(fallback);
+            }
+        }
+
+        // Stable, so equal endpoints keep the configured order
+        Collections.sort(endpoints, new Comparator<NrsEndpoint>() {
+            @Override
+            public int compare(NrsEndpoint lhs, NrsEndpoint rhs) {
+                long left = lhs.getScore(mInitialDelay, mTimeout);
+                long right = rhs.getScore(mInitialDelay, mTimeout);
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        return endpoints;
+    }
+
+    /**
+     * Gets the time after which a request to an endpoint is hedged to the next one.
+     *
+     * @param endpoint
+     *      The endpoint
+     * @return
+     *      The time in ms
+     */
+    public long getHedgeDelay(NrsEndpoint endpoint) {
+        long delay = endpoint.getSlowThreshold(mInitialDelay);
+        return Math.max(mMinDelay, Math.min(delay, mTimeout));
+    }
+
+    /**
+     * Gets what has been observed about each endpoint.
+     *
+     * @return
+     *      The statistics by endpoint
+     */
+    public synchronized Map<String, Map<String, Long>> getStatistics() {
+        Map<String, Map<String, Long>> statistics = new LinkedHashMap<String, Map<String, Long>>();
+        for (NrsEndpoint endpoint : mKnown.values()) {
+            statistics.put(endpoint.toString(), endpoint.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Gets the primary NRS, as set in the preferences.
+     *
+     * @return
+     *      The primary NRS
+     */
+    private NrsEndpoint getPrimary() {
+        String host = mDefaultHost;
+        int port = mDefaultPort;
+
+        // The preferences override the properties
+        if (MainNetInfActivity.getActivity() != null) {
+            SharedPreferences sharedPreferences =
+                    PreferenceManager.getDefaultSharedPreferences(MainNetInfActivity.getActivity());
+            host = sharedPreferences.getString(PREF_KEY_NRS_IP, host);
+            try {
+                port = Integer.parseInt(sharedPreferences
+                        .getString(PREF_KEY_NRS_PORT, Integer.toString(port)));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid NRS port in the preferences, using " + port);
+            }
+        }
+
+        return getEndpoint(host, port);
+    }
+
+    /**
+     * Gets the endpoint for a host and port, creating it the first time.
+     *
+     * @param host
+     *      The NRS host
+     * @param port
+     *      The NRS port
+     * @return
+     *      The endpoint
+     */
+    private synchronized NrsEndpoint getEndpoint(String host, int port) {
+        String key = host + ":" + port;
+        NrsEndpoint endpoint = mKnown.get(key);
+        if (endpoint == null) {
+            endpoint = new NrsEndpoint(host, port);
+            mKnown.put(key, endpoint);
+        }
+        return endpoint;
+    }
+}
@@ -0,0 +1,612 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import project.cs.netinfservice.netinf.node.exceptions.NrsUnavailableException;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * The HTTP client shared by all services that talk to the NRS.
+ * <p>
+ * Connections are kept alive and pooled per route, so consecutive NRS requests reuse an
+ * already established TCP connection instead of paying the handshake (and slow start) again.
+ * Idle connections are evicted in the background and the pool can be pre-warmed when the
+ * node starts.
+ * <p>
+ * Requests go to the known NRS best first. If the answer takes longer than usual for that
+ * NRS, the request is hedged: the same request goes to the next NRS as well, the first
+ * valid answer wins and the other request is aborted. A failed request fails over to the
+ * next NRS right away.
+ * <p>
+ * While the circuit breaker is open requests fail right away with a
+ * {@link NrsUnavailableException}.
+ * <p>
+ * Callers must hand every response back through {@link #release(HttpResponse)} once they are
+ * done reading it, otherwise the underlying connection never returns to the pool.
+ */
+public class NrsHttpClient {
+    /** Debug tag. */
+    private static final String TAG = "NrsHttpClient";
+
+    /** Default HTTP port, the actual NRS port is part of each route. */
+    private static final int HTTP_PORT = 80;
+
+    /** The connection manager holding the pooled connections. */
+    private final ThreadSafeClientConnManager mConnectionManager;
+
+    /** The client executing requests on top of the pooled connections. */
+    private final DefaultHttpClient mClient;
+
+    /** Runs the idle connection eviction. */
+    private final ScheduledExecutorService mEvictor;
+
+    /** Runs the requests, so that a hedged request can run next to the first one. */
+    private final ExecutorService mAttempts;
+
+    /** The NRS requests are sent to. */
+    private final NrsEndpoints mEndpoints;
+
+    /** Stops requests while the NRS cannot be reached. */
+    private final NrsCircuitBreaker mCircuitBreaker;
+
+    /** Default connection and socket timeout in ms. */
+    private final int mTimeout;
+
+    /** Longest time in ms a connection is kept alive. */
+    private final long mKeepAlive;
+
+    /** Time in ms after which an idle connection is closed. */
+    private final long mIdleTimeout;
+
+    /** Number of connections opened when the pool is pre-warmed. */
+    private final int mWarmConnections;
+
+    /**
+     * Creates the shared NRS client.
+     *
+     * @param timeout
+     *      Default connection and socket timeout in ms
+     * @param maxConnections
+     *      Maximum number of pooled connections
+     * @param maxConnectionsPerRoute
+     *      Maximum number of pooled connections to a single NRS
+     * @param keepAlive
+     *      Longest time in ms a connection is kept alive if the NRS does not say otherwise
+     * @param idleTimeout
+     *      Time in ms after which an idle connection is closed
+     * @param warmConnections
+     *      Number of connections opened when the pool is pre-warmed
+     * @param endpoints
+     *      The NRS requests are sent to
+     * @param circuitBreaker
+     *      Stops requests while the NRS cannot be reached
+     */
+    @Inject
+    public NrsHttpClient(
+            @Named("nrs.timeout") int timeout,
+            @Named("nrs.http.max_connections") int maxConnections,
+            @Named("nrs.http.max_connections_per_route") int maxConnectionsPerRoute,
+            @Named("nrs.http.keep_alive") long keepAlive,
+            @Named("nrs.http.idle_timeout") long idleTimeout,
+            @Named("nrs.http.warm_connections") int warmConnections,
+            NrsEndpoints endpoints,
+            NrsCircuitBreaker circuitBreaker) {
+        mTimeout = timeout;
+        mEndpoints = endpoints;
+        mCircuitBreaker = circuitBreaker;
+        mKeepAlive = keepAlive;
+        mIdleTimeout = idleTimeout;
+        mWarmConnections = Math.min(warmConnections, maxConnectionsPerRoute);
+
+        // Default parameters, requests may override the timeouts
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setConnectionTimeout(params, timeout);
+        HttpConnectionParams.setSoTimeout(params, timeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        // Pool limits, waiting for a free connection never takes longer than the timeout
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(maxConnectionsPerRoute));
+        ConnManagerParams.setTimeout(params, timeout);
+
+        // The NRS is only reached over plain HTTP
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), HTTP_PORT));
+
+        mConnectionManager = new ThreadSafeClientConnManager(params, registry);
+        mClient = new DefaultHttpClient(mConnectionManager, params);
+        mClient.setKeepAliveStrategy(new NrsKeepAliveStrategy());
+
+        // Close connections that have been idle for too long
+        mEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(mIdleTimeout / 2, 1000);
+        mEvictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionManager.closeExpiredConnections();
+                mConnectionManager.closeIdleConnections(mIdleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        mAttempts = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-request");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends a request using the default timeout, hedging it if the NRS is slow.
+     *
+     * @param request
+     *      The request to send to the NRS
+     * @return
+     *      The first valid response, otherwise the last invalid one. It has to be handed back
+     *      using {@link #release(HttpResponse)}
+     * @throws IOException
+     *      In case no NRS could be reached
+     */
+    public HttpResponse execute(NrsRequest request) throws IOException {
+        return execute(request, mTimeout, true);
+    }
+
+    /**
+     * Sends a request using a specific timeout, hedging it if the NRS is slow.
+     *
+     * @param request
+     *      The request to send to the NRS
+     * @param timeout
+     *      Connection and socket timeout in ms for this request only
+     * @return
+     *      The first valid response, otherwise the last invalid one. It has to be handed back
+     *      using {@link #release(HttpResponse)}
+     * @throws IOException
+     *      In case no NRS could be reached
+     */
+    public HttpResponse execute(NrsRequest request, int timeout) throws IOException {
+        return execute(request, timeout, true);
+    }
+
+    /**
+     * Sends a request to one NRS at a time, only moving on to the next NRS if the request
+     * failed. Used for requests that should not be sent twice, like publishes.
+     *
+     * @param request
+     *      The request to send to the NRS
+     * @return
+     *      The first valid response, otherwise the last invalid one. It has to be handed back
+     *      using {@link #release(HttpResponse)}
+     * @throws IOException
+     *      In case no NRS could be reached
+     */
+    public HttpResponse executeWithFailover(NrsRequest request) throws IOException {
+        return execute(request, mTimeout, false);
+    }
+
+    /**
+     * Sends a request to the NRS, best first.
+     *
+     * @param request
+     *      The request to send to the NRS
+     * @param timeout
+     *      Connection and socket timeout in ms
+     * @param hedge
+     *      True if a slow request may be sent to the next NRS as well
+     * @return
+     *      The first valid response, otherwise the last invalid one
+     * @throws IOException
+     *      In case no NRS could be reached
+     */
+    private HttpResponse execute(NrsRequest request, int timeout, boolean hedge)
+            throws IOException {
+        // Fail fast while the NRS is known to be unreachable
+        if (!mCircuitBreaker.allowRequest()) {
+            throw new NrsUnavailableException("NRS unreachable, circuit breaker is open");
+        }
+
+        HttpResponse response;
+        try {
+            response = race(request, timeout, hedge);
+        } catch (IOException e) {
+            // Timeouts count against the NRS, the caller giving up does not
+            if (!Thread.currentThread().isInterrupted()) {
+                mCircuitBreaker.recordFailure();
+            }
+            throw e;
+        }
+
+        // Server errors are no answer either, other invalid responses at least show that
+        // the NRS is there
+        if (request.isValid(response)) {
+            mCircuitBreaker.recordSuccess();
+        } else if (response.getStatusLine().getStatusCode()
+                >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            mCircuitBreaker.recordFailure();
+        }
+        return response;
+    }
+
+    /**
+     * Sends a request to the NRS, best first, hedging and failing over as needed.
+     *
+     * @param request
+     *      The request to send to the NRS
+     * @param timeout
+     *      Connection and socket timeout in ms
+     * @param hedge
+     *      True if a slow request may be sent to the next NRS as well
+     * @return
+     *      The first valid response, otherwise the last invalid one
+     * @throws IOException
+     *      In case no NRS could be reached
+     */
+    private HttpResponse race(NrsRequest request, int timeout, boolean hedge)
+            throws IOException {
+        List<NrsEndpoint> endpoints = mEndpoints.getOrdered();
+        CompletionService<HttpResponse> completion =
+                new ExecutorCompletionService<HttpResponse>(mAttempts);
+        Map<Future<HttpResponse>, Attempt> running = new HashMap<Future<HttpResponse>, Attempt>();
+
+        HttpResponse invalid = null;
+        IOException failure = null;
+        int next = 0;
+
+        // Start with the best NRS
+        Attempt latest = start(completion, running, request, endpoints.get(next++), timeout);
+
+        try {
+            while (!running.isEmpty()) {
+                Future<HttpResponse> done;
+
+                // Hedge once the latest request takes longer than usual
+                if (hedge && running.size() < 2 && next < endpoints.size()) {
+                    long hedgeAt = latest.mStarted + mEndpoints.getHedgeDelay(latest.mEndpoint);
+                    long wait = hedgeAt - System.currentTimeMillis();
+                    done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (done == null) {
+                        Log.d(TAG, latest.mEndpoint + " is slow, hedging to "
+                                + endpoints.get(next));
+                        latest = start(completion, running, request, endpoints.get(next++),
+                                timeout);
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+
+                Attempt attempt = running.remove(done);
+                try {
+                    HttpResponse response = done.get();
+                    if (request.isValid(response)) {
+                        release(invalid);
+                        return response;
+                    }
+                    // Keep the latest invalid response in case nothing better comes
+                    release(invalid);
+                    invalid = response;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Request to " + attempt.mEndpoint + " failed: "
+                            + e.getCause().getMessage());
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause().getMessage());
+                }
+
+                // Fail over to the next NRS
+                if (running.isEmpty() && next < endpoints.size()) {
+                    latest = start(completion, running, request, endpoints.get(next++), timeout);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(invalid);
+            throw new InterruptedIOException("Interrupted while waiting for the NRS");
+        } finally {
+            // Abort the losers
+            for (Attempt attempt : running.values()) {
+                attempt.abort();
+            }
+        }
+
+        if (invalid != null) {
+            return invalid;
+        }
+        throw failure != null ? failure : new IOException("No NRS available");
+    }
+
+    /**
+     * Starts sending a request to a NRS.
+     *
+     * @param completion
+     *      Collects the responses
+     * @param running
+     *      The requests in flight
+     * @param request
+     *      The request
+     * @param endpoint
+     *      The NRS
+     * @param timeout
+     *      Connection and socket timeout in ms
+     * @return
+     *      The started attempt
+     * @throws IOException
+     *      In case the request could not be created
+     */
+    private Attempt start(CompletionService<HttpResponse> completion,
+            Map<Future<HttpResponse>, Attempt> running, NrsRequest request,
+            NrsEndpoint endpoint, int timeout) throws IOException {
+        Attempt attempt = new Attempt(endpoint, request.create(endpoint), timeout);
+        running.put(completion.submit(attempt), attempt);
+        return attempt;
+    }
+
+    /**
+     * Consumes whatever is left of a response so that its connection returns to the pool.
+     *
+     * @param response
+     *      The response, may be null
+     */
+    public void release(HttpResponse response) {
+        if (response == null) {
+            return;
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        try {
+            entity.consumeContent();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to consume response, connection is dropped.");
+        }
+    }
+
+    /**
+     * Opens connections to the best NRS and the one requests are hedged to, ahead of the
+     * first request.
+     */
+    public void warmUp() {
+        List<NrsEndpoint> endpoints = mEndpoints.getOrdered();
+        for (int i = 0; i < Math.min(2, endpoints.size()); i++) {
+            warmUp(endpoints.get(i));
+        }
+    }
+
+    /**
+     * Opens connections to a NRS ahead of the first request. The connections are put in
+     * the pool right away, so the first resolution does not pay for the TCP handshake.
+     *
+     * @param endpoint
+     *      The NRS
+     */
+    private void warmUp(NrsEndpoint endpoint) {
+        Log.d(TAG, "Pre-warming " + mWarmConnections + " connections to " + endpoint);
+
+        HttpRoute route = new HttpRoute(new HttpHost(endpoint.getHost(), endpoint.getPort()));
+        HttpContext context = new BasicHttpContext();
+        List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>();
+
+        try {
+            // Hold on to every connection until all are open, otherwise the same one is reused
+            for (int i = 0; i < mWarmConnections; i++) {
+                ClientConnectionRequest request = mConnectionManager.requestConnection(route, null);
+                ManagedClientConnection connection =
+                        request.getConnection(mTimeout, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!connection.isOpen()) {
+                    connection.open(route, context, mClient.getParams());
+                }
+                connection.markReusable();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.w(TAG, "Pre-warming the NRS connections failed: " + e.getMessage());
+        } finally {
+            // Hand everything back to the pool
+            for (ManagedClientConnection connection : connections) {
+                mConnectionManager.releaseConnection(connection, mKeepAlive, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Closes all pooled connections and stops the eviction.
+     */
+    public void shutdown() {
+        mEvictor.shutdownNow();
+        mAttempts.shutdownNow();
+        mConnectionManager.shutdown();
+    }
+
+    /**
+     * A request to a single NRS. Records the time to the response headers, or the failure,
+     * with the NRS.
+     */
+    private class Attempt implements Callable<HttpResponse> {
+        /** The NRS. */
+        private final NrsEndpoint mEndpoint;
+
+        /** The request. */
+        private final HttpUriRequest mRequest;
+
+        /** Connection and socket timeout in ms. */
+        private final int mRequestTimeout;
+
+        /** Point in time (ms since epoch) when the attempt was created. */
+        private final long mStarted = System.currentTimeMillis();
+
+        /** True once the attempt lost against another one. */
+        private volatile boolean mAborted;
+
+        /** True once the response arrived or the request failed. */
+        private volatile boolean mCompleted;
+
+        /**
+         * Creates an attempt.
+         *
+         * @param endpoint
+         *      The NRS
+         * @param request
+         *      The request
+         * @param timeout
+         *      Connection and socket timeout in ms
+         */
+        Attempt(NrsEndpoint endpoint, HttpUriRequest request, int timeout) {
+            mEndpoint = endpoint;
+            mRequest = request;
+            mRequestTimeout = timeout;
+        }
+
+        @Override
+        public HttpResponse call() throws IOException {
+            // Request parameters take precedence over the client defaults
+            HttpConnectionParams.setConnectionTimeout(mRequest.getParams(), mRequestTimeout);
+            HttpConnectionParams.setSoTimeout(mRequest.getParams(), mRequestTimeout);
+
+            try {
+                HttpResponse response = mClient.execute(mRequest);
+                mCompleted = true;
+
+                // Server errors count against the NRS, anything else is an answer
+                if (response.getStatusLine().getStatusCode()
+                        >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    mEndpoint.recordError();
+                } else {
+                    mEndpoint.recordResponse(System.currentTimeMillis() - mStarted);
+                }
+                return response;
+            } catch (IOException e) {
+                mCompleted = true;
+
+                // Losing the race is not the fault of the NRS
+                if (!mAborted) {
+                    mEndpoint.recordError();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Aborts the request, which also drops its connection if a response arrived.
+         */
+        void abort() {
+            mAborted = true;
+            mRequest.abort();
+
+            // A loser still tells how slow the NRS is at least
+            if (!mCompleted) {
+                mEndpoint.recordAborted(System.currentTimeMillis() - mStarted);
+            }
+        }
+    }
+
+    /**
+     * Keeps connections alive as long as the NRS asks for, but never longer than the
+     * configured keep alive.
+     */
+    private class NrsKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            // Look for a "Keep-Alive: timeout=<seconds>" header
+            HeaderElementIterator iterator =
+                    new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (iterator.hasNext()) {
+                HeaderElement element = iterator.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000, mKeepAlive);
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid Keep-Alive timeout: " + element.getValue());
+                    }
+                }
+            }
+            return mKeepAlive;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+import org.apache.commons.fileupload.MultipartStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import project.cs.netinfservice.netinf.node.exceptions.InvalidResponseException;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.util.NiHash;
+import android.util.Log;
+
+/**
+ * Reads the multipart body of a NRS response that carries both the resolution and the
+ * object itself.
+ * <p>
+ * The parts are recognized by their headers, not by their order. The octets are streamed
+ * to a temporary file of the content store while their hash and size are computed, and
+ * the file is only committed to the store if the hash matches the ni name. Octets under a
+ * hash algorithm that is not supported are refused.
+ */
+public class NrsMultipartReader {
+    /** Debug tag. */
+    private static final String TAG = "NrsMultipartReader";
+
+    /** Form field name the NRS uses for the object. */
+    private static final String OCTETS = "octets";
+
+    /** Content type of the resolution part. */
+    private static final String JSON = "application/json";
+
+    /** The hash algorithm of the requested object. */
+    private final String mHashAlg;
+
+    /** The hash of the requested object. */
+    private final String mHash;
+
+    /** Where the object is stored if it is valid. */
+    private final ContentStore mStore;
+
+    /** The resolution part, null until read. */
+    private String mJson;
+
+    /** The verified object, null until read. */
+    private File mFile;
+
+    /** Size of the verified object in bytes. */
+    private long mFileSize;
+
+    /**
+     * Creates a reader for one response.
+     *
+     * @param hashAlg
+     *      The hash algorithm of the requested object
+     * @param hash
+     *      The hash of the requested object
+     * @param store
+     *      Where the object is stored if it is valid
+     */
+    public NrsMultipartReader(String hashAlg, String hash, ContentStore store) {
+        mHashAlg = hashAlg;
+        mHash = hash;
+        mStore = store;
+    }
+
+    /**
+     * Reads all parts of a multipart body.
+     *
+     * @param content
+     *      The body
+     * @param boundary
+     *      The multipart boundary
+     * @throws IOException
+     *      In case reading the body or writing the file failed
+     * @throws InvalidResponseException
+     *      In case the body is missing a part or the object does not match its name
+     */
+    public void read(InputStream content, byte[] boundary)
+            throws IOException, InvalidResponseException {
+        @SuppressWarnings("deprecation")
+        MultipartStream multipartStream = new MultipartStream(content, boundary);
+
+        // Go through the parts in whatever order the NRS sent them
+        boolean hasNext = multipartStream.skipPreamble();
+        while (hasNext) {
+            String headers = multipartStream.readHeaders();
+            String contentType = getHeader(headers, "content-type");
+            String disposition = getHeader(headers, "content-disposition");
+            String name = getParameter(disposition, "name");
+            String filename = getParameter(disposition, "filename");
+
+            boolean isJson = contentType != null
+                    && contentType.toLowerCase(Locale.US).startsWith(JSON);
+            boolean isOctets = OCTETS.equals(name) || filename != null;
+
+            if (mFile == null && (isOctets || !isJson)) {
+                readOctets(multipartStream);
+            } else if (mJson == null && isJson) {
+                ByteArrayOutputStream jsonStream = new ByteArrayOutputStream();
+                multipartStream.readBodyData(jsonStream);
+                mJson = jsonStream.toString("UTF-8");
+            } else {
+                Log.d(TAG, "Skipping part: " + headers.trim());
+                multipartStream.discardBodyData();
+            }
+
+            hasNext = multipartStream.readBoundary();
+        }
+
+        if (mJson == null) {
+            throw new InvalidResponseException("Response is missing the JSON part.");
+        }
+        if (mFile == null) {
+            throw new InvalidResponseException("Response is missing the octets part.");
+        }
+    }
+
+    /**
+     * Streams the octets part to a temporary file and moves it into place if it matches
+     * the requested hash.
+     *
+     * @param multipartStream
+     *      The multipart stream, positioned at the body of the octets part
+     * @throws IOException
+     *      In case the file could not be written
+     * @throws InvalidResponseException
+     *      In case the octets can not be verified or do not match the requested hash
+     */
+    private void readOctets(MultipartStream multipartStream)
+            throws IOException, InvalidResponseException {
+        // Octets that can not be verified never enter the store
+        MessageDigest digest = NiHash.createDigest(mHashAlg);
+        if (digest == null) {
+            throw new InvalidResponseException("Unsupported hash algorithm " + mHashAlg
+                    + ", octets can not be verified");
+        }
+
+        // The store renames the file into place once it is complete
+        File temp = mStore.createTempFile();
+
+        CountingOutputStream out = null;
+        boolean done = false;
+        try {
+            // Hash and count while writing
+            out = new CountingOutputStream(
+                    new DigestOutputStream(new FileOutputStream(temp), digest));
+            multipartStream.readBodyData(out);
+            out.close();
+
+            // Only keep the object if it is the one that was asked for
+            if (!NiHash.matches(mHashAlg, mHash, digest.digest())) {
+                throw new InvalidResponseException("Octets do not match "
+                        + mHashAlg + ";" + mHash);
+            }
+
+            mFile = mStore.commit(temp, mHash);
+            mFileSize = out.getByteCount();
+            done = true;
+        } finally {
+            if (!done) {
+                if (out != null) {
+                    out.close();
+                }
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Gets the value of a header from a block of part headers.
+     *
+     * @param headers
+     *      The headers, one per line
+     * @param name
+     *      The lower case header name
+     * @return
+     *      The header value, or null if the header is missing
+     */
+    private static String getHeader(String headers, String name) {
+        for (String line : headers.split("\r?\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.US).equals(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a parameter from a header value like form-data; name="octets".
+     *
+     * @param value
+     *      The header value, may be null
+     * @param name
+     *      The lower case parameter name
+     * @return
+     *      The unquoted parameter value, or null if the parameter is missing
+     */
+    private static String getParameter(String value, String name) {
+        if (value == null) {
+            return null;
+        }
+        for (String parameter : value.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0
+                    && parameter.substring(0, equals).trim().toLowerCase(Locale.US).equals(name)) {
+                String result = parameter.substring(equals + 1).trim();
+                if (result.length() >= 2 && result.startsWith("\"") && result.endsWith("\"")) {
+                    result = result.substring(1, result.length() - 1);
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the resolution part.
+     *
+     * @return
+     *      The JSON string, null if it has not been read
+     */
+    public String getJson() {
+        return mJson;
+    }
+
+    /**
+     * Gets the verified object.
+     *
+     * @return
+     *      The file, null if it has not been read
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Gets the size of the verified object.
+     *
+     * @return
+     *      The size in bytes
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import project.cs.netinfservice.application.MainNetInfApplication;
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Queue of publishes that still have to reach the NRS.
+ * <p>
+ * Publishes are stored in the IO database as soon as they are made, so a publish returns
+ * without waiting for the NRS and is not lost while the NRS is unreachable. A background
+ * sender drains the queue in batches. A publish the NRS rejects is retried with exponential
+ * backoff and dropped after too many attempts. If the NRS cannot be reached at all the whole
+ * queue backs off instead, without charging the publishes.
+ * <p>
+ * The same hash and locator is only queued once.
+ */
+public class NrsPublishOutbox {
+    /** Debug tag. */
+    private static final String TAG = "NrsPublishOutbox";
+
+    /**
+     * Sends a single publish to the NRS.
+     */
+    public interface Sender {
+        /**
+         * Sends a publish.
+         *
+         * @param publish
+         *      The publish
+         * @return
+         *      True if the NRS accepted it, false if it rejected it
+         * @throws IOException
+         *      In case the NRS could not be reached
+         */
+        boolean send(PendingPublish publish) throws IOException;
+    }
+
+    /** Maximum number of publishes sent in one round. */
+    private final int mBatchSize;
+
+    /** Delay in ms after the first failure. */
+    private final long mBackoff;
+
+    /** Longest delay in ms between two attempts. */
+    private final long mMaxBackoff;
+
+    /** Number of rejections after which a publish is dropped. */
+    private final int mMaxAttempts;
+
+    /** Creates the database the queue is stored in. */
+    private final IODatabaseFactory mDatabaseFactory;
+
+    /** The database, created on first use. */
+    private IODatabase mDatabase;
+
+    /** Runs the sender. */
+    private final ScheduledExecutorService mExecutor;
+
+    /** The next round of the sender. */
+    private ScheduledFuture<?> mNextRound;
+
+    /** Sends the publishes, null until started. */
+    private volatile Sender mSender;
+
+    /** Number of rounds in a row in which the NRS could not be reached. */
+    private volatile int mUnreachable;
+
+    /** Number of publishes the NRS accepted. */
+    private final AtomicLong mSent = new AtomicLong();
+
+    /** Number of publishes the NRS rejected. */
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /** Number of publishes dropped after too many rejections. */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /** Number of publishes that were already queued. */
+    private final AtomicLong mDuplicates = new AtomicLong();
+
+    /** Drains one batch from the queue. */
+    private final Runnable mRound = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sendBatch();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to read the outbox, trying again later");
+                schedule(mMaxBackoff);
+            } catch (RuntimeException e) {
+                // A round that ends without scheduling the next one stalls the queue
+                Log.e(TAG, "Sending the outbox failed, trying again later", e);
+                schedule(mMaxBackoff);
+            }
+        }
+    };
+
+    /**
+     * Creates the outbox.
+     *
+     * @param batchSize
+     *      Maximum number of publishes sent in one round
+     * @param backoff
+     *      Delay in ms after the first failure
+     * @param maxBackoff
+     *      Longest delay in ms between two attempts
+     * @param maxAttempts
+     *      Number of rejections after which a publish is dropped
+     * @param databaseFactory
+     *      Creates the database the queue is stored in
+     */
+    @Inject
+    public NrsPublishOutbox(
+            @Named("nrs.outbox.batch_size") int batchSize,
+            @Named("nrs.outbox.backoff") long backoff,
+            @Named("nrs.outbox.max_backoff") long maxBackoff,
+            @Named("nrs.outbox.max_attempts") int maxAttempts,
+            IODatabaseFactory databaseFactory) {
+        mBatchSize = batchSize;
+        mBackoff = backoff;
+        mMaxBackoff = maxBackoff;
+        mMaxAttempts = maxAttempts;
+        mDatabaseFactory = databaseFactory;
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts sending, including whatever was left in the queue from an earlier run.
+     *
+     * @param sender
+     *      Sends the publishes to the NRS
+     */
+    public void start(Sender sender) {
+        mSender = sender;
+        schedule(0);
+    }
+
+    /**
+     * Queues a publish and wakes up the sender, unless it is backing off because the NRS
+     * cannot be reached.
+     *
+     * @param publish
+     *      The publish
+     * @throws SQLiteException
+     *      In case the publish could not be stored
+     */
+    public void enqueue(PendingPublish publish) {
+        if (getDatabase().addPendingPublish(publish)) {
+            Log.d(TAG, "Queued publish of " + publish.getHash());
+            // While backing off the publish waits for the scheduled round
+            if (mSender != null && mUnreachable == 0) {
+                schedule(0);
+            }
+        } else {
+            Log.d(TAG, "Publish of " + publish.getHash() + " is already queued");
+            mDuplicates.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the metrics of the outbox.
+     *
+     * @return
+     *      The metrics by name
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        try {
+            long[] depthAndOldest = getDatabase().getPendingPublishDepth();
+            statistics.put("depth", depthAndOldest[0]);
+            statistics.put("oldest_age", depthAndOldest[0] == 0
+                    ? 0 : System.currentTimeMillis() - depthAndOldest[1]);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to read the outbox depth");
+        }
+        statistics.put("sent", mSent.get());
+        statistics.put("rejected", mRejected.get());
+        statistics.put("dropped", mDropped.get());
+        statistics.put("duplicates", mDuplicates.get());
+        return statistics;
+    }
+
+    /**
+     * Sends the publishes that are due and schedules the next round.
+     */
+    private void sendBatch() {
+        Sender sender = mSender;
+        IODatabase database = getDatabase();
+        long now = System.currentTimeMillis();
+
+        List<PendingPublish> batch = database.getDuePublishes(now, mBatchSize);
+        for (PendingPublish publish : batch) {
+            try {
+                if (sender.send(publish)) {
+                    database.deletePendingPublish(publish.getId());
+                    mSent.incrementAndGet();
+                } else {
+                    reject(database, publish, now);
+                }
+            } catch (IOException e) {
+                // The NRS is unreachable, the publish is not to blame
+                mUnreachable++;
+                long delay = getBackoff(mUnreachable);
+                Log.w(TAG, "NRS unreachable, retrying the outbox in " + delay + " ms");
+                schedule(delay);
+                return;
+            }
+        }
+        mUnreachable = 0;
+
+        // A full batch probably means there is more waiting
+        if (batch.size() == mBatchSize) {
+            schedule(0);
+            return;
+        }
+
+        // Otherwise wake up when the next publish is due
+        long next = database.getNextPublishAttempt();
+        if (next >= 0) {
+            schedule(Math.max(0, next - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Handles a publish rejected by the NRS.
+     *
+     * @param database
+     *      The database holding the queue
+     * @param publish
+     *      The rejected publish
+     * @param now
+     *      The current time (ms since epoch)
+     */
+    private void reject(IODatabase database, PendingPublish publish, long now) {
+        mRejected.incrementAndGet();
+        int attempts = publish.getAttempts() + 1;
+
+        if (attempts >= mMaxAttempts) {
+            Log.e(TAG, "Dropping publish of " + publish.getHash()
+                    + " after " + attempts + " attempts");
+            database.deletePendingPublish(publish.getId());
+            mDropped.incrementAndGet();
+        } else {
+            database.updatePendingPublish(publish.getId(), attempts, now + getBackoff(attempts));
+        }
+    }
+
+    /**
+     * Gets the delay after a number of failures, doubling with each failure.
+     *
+     * @param failures
+     *      Number of failures in a row
+     * @return
+     *      The delay in ms
+     */
+    private long getBackoff(int failures) {
+        int shift = Math.min(failures - 1, 20);
+        return Math.min(mBackoff << shift, mMaxBackoff);
+    }
+
+    /**
+     * Schedules the next round, replacing a round scheduled earlier.
+     *
+     * @param delay
+     *      Delay in ms
+     */
+    private synchronized void schedule(long delay) {
+        if (mSender == null) {
+            return;
+        }
+        if (mNextRound != null) {
+            mNextRound.cancel(false);
+        }
+        mNextRound = mExecutor.schedule(mRound, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the database, creating it on first use.
+     *
+     * @return
+     *      The database
+     */
+    private synchronized IODatabase getDatabase() {
+        if (mDatabase == null) {
+            mDatabase = mDatabaseFactory.create(MainNetInfApplication.getAppContext());
+        }
+        return mDatabase;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * A request that can be sent to any of the known NRS.
+ */
+public interface NrsRequest {
+    /**
+     * Creates the request for a specific NRS.
+     *
+     * @param endpoint
+     *      The NRS the request is sent to
+     * @return
+     *      The request
+     * @throws IOException
+     *      In case the request could not be created
+     */
+    HttpUriRequest create(NrsEndpoint endpoint) throws IOException;
+
+    /**
+     * Checks if a response answers the request. Other responses make the client ask the
+     * next NRS.
+     *
+     * @param response
+     *      The response
+     * @return
+     *      True if the response answers the request
+     */
+    boolean isValid(HttpResponse response);
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import project.cs.netinfservice.application.MainNetInfApplication;
+import project.cs.netinfservice.database.DatabaseException;
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import android.database.sqlite.SQLiteException;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Remembers what the NRS answered, so that the same hash is not resolved over and over
+ * again while a page and its sub-resources are loaded.
+ * <p>
+ * Resolutions are kept in a bounded LRU in memory. Positive resolutions are also written to
+ * the IO database in the background, so they survive eviction and restarts of the node.
+ * Every entry expires after its TTL. Objects the NRS did not know are remembered as negative
+ * entries with a shorter TTL, and these are only kept in memory.
+ */
+public class NrsResolutionCache {
+    /** Debug tag. */
+    private static final String TAG = "NrsResolutionCache";
+
+    /** The resolutions in memory, keyed by hash-alg;hash. */
+    private final LruCache<String, CachedResolution> mEntries;
+
+    /** Time in ms a positive resolution is valid. */
+    private final long mTtl;
+
+    /** Time in ms a negative resolution is valid. */
+    private final long mNegativeTtl;
+
+    /** True if positive resolutions are written to the database. */
+    private final boolean mPersist;
+
+    /** Creates the database the resolutions are written to. */
+    private final IODatabaseFactory mDatabaseFactory;
+
+    /** The database, created on first use. */
+    private IODatabase mDatabase;
+
+    /** Writes to the database off the resolving thread. */
+    private final ExecutorService mWriter;
+
+    /** Number of lookups answered with a positive resolution. */
+    private final AtomicLong mHits = new AtomicLong();
+
+    /** Number of lookups answered with a negative resolution. */
+    private final AtomicLong mNegativeHits = new AtomicLong();
+
+    /** Number of lookups that have to go to the NRS. */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /** Number of resolutions found but dropped because they had expired. */
+    private final AtomicLong mExpirations = new AtomicLong();
+
+    /**
+     * Creates the cache.
+     *
+     * @param size
+     *      Maximum number of resolutions kept in memory
+     * @param ttl
+     *      Time in ms a positive resolution is valid
+     * @param negativeTtl
+     *      Time in ms a negative resolution is valid
+     * @param persist
+     *      True if positive resolutions should be written to the database
+     * @param databaseFactory
+     *      Creates the database the resolutions are written to
+     */
+    @Inject
+    public NrsResolutionCache(
+            @Named("nrs.cache.size") int size,
+            @Named("nrs.cache.ttl") long ttl,
+            @Named("nrs.cache.negative_ttl") long negativeTtl,
+            @Named("nrs.cache.persist") boolean persist,
+            IODatabaseFactory databaseFactory) {
+        mEntries = new LruCache<String, CachedResolution>(size);
+        mTtl = ttl;
+        mNegativeTtl = negativeTtl;
+        mPersist = persist;
+        mDatabaseFactory = databaseFactory;
+
+        // A single writer keeps the database writes in order
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Looks up a resolution.
+     *
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     * @return
+     *      The resolution, which may be negative, or null if the NRS has to be asked
+     */
+    public CachedResolution get(String hashAlg, String hash) {
+        String key = createKey(hashAlg, hash);
+        long now = System.currentTimeMillis();
+
+        // Memory first, then whatever was written to the database earlier
+        CachedResolution entry = mEntries.get(key);
+        if (entry == null && mPersist) {
+            entry = readEntry(key);
+            if (entry != null && !entry.isExpired(now)) {
+                mEntries.put(key, entry);
+            }
+        }
+
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        // Expired entries are dropped and count as a miss
+        if (entry.isExpired(now)) {
+            Log.d(TAG, "Resolution of " + key + " expired");
+            mExpirations.incrementAndGet();
+            mMisses.incrementAndGet();
+            remove(key);
+            return null;
+        }
+
+        if (entry.isNegative()) {
+            mNegativeHits.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Remembers a resolution returned by the NRS.
+     *
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     * @param contentType
+     *      The content type, may be null
+     * @param metadata
+     *      The metadata as a JSON string, may be null
+     * @param locators
+     *      The locators returned by the NRS
+     * @param filePath
+     *      Path to the file received together with the resolution, may be null
+     */
+    public void put(String hashAlg, String hash, String contentType, String metadata,
+            List<String> locators, String filePath) {
+        final String key = createKey(hashAlg, hash);
+        final CachedResolution entry = new CachedResolution(contentType, metadata, locators,
+                filePath, System.currentTimeMillis() + mTtl);
+        mEntries.put(key, entry);
+
+        // Write behind
+        if (mPersist) {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getDatabase().putCachedResolution(key, entry);
+                    } catch (SQLiteException e) {
+                        Log.w(TAG, "Failed to write resolution of " + key);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Remembers that the NRS did not know an object.
+     *
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     */
+    public void putNegative(String hashAlg, String hash) {
+        String key = createKey(hashAlg, hash);
+        mEntries.put(key, CachedResolution.negative(System.currentTimeMillis() + mNegativeTtl));
+    }
+
+    /**
+     * Forgets the resolution of an object, for example because it has just been published.
+     *
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     */
+    public void invalidate(String hashAlg, String hash) {
+        remove(createKey(hashAlg, hash));
+    }
+
+    /**
+     * Gets the counters of the cache, used to tune the TTLs.
+     *
+     * @return
+     *      The counters by name
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("hits", mHits.get());
+        statistics.put("negative_hits", mNegativeHits.get());
+        statistics.put("misses", mMisses.get());
+        statistics.put("expirations", mExpirations.get());
+        statistics.put("evictions", (long) mEntries.evictionCount());
+        statistics.put("size", (long) mEntries.size());
+        return statistics;
+    }
+
+    /**
+     * Removes a resolution from memory and the database.
+     *
+     * @param key
+     *      The hash-alg;hash key
+     */
+    private void remove(final String key) {
+        mEntries.remove(key);
+
+        if (mPersist) {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getDatabase().deleteCachedResolution(key);
+                    } catch (SQLiteException e) {
+                        Log.w(TAG, "Failed to delete resolution of " + key);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads a resolution from the database.
+     *
+     * @param key
+     *      The hash-alg;hash key
+     * @return
+     *      The resolution or null if there is none
+     */
+    private CachedResolution readEntry(String key) {
+        try {
+            return getDatabase().getCachedResolution(key);
+        } catch (DatabaseException e) {
+            return null;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to read resolution of " + key);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the database, creating it on first use. Expired resolutions are purged when the
+     * database is first opened.
+     *
+     * @return
+     *      The database
+     */
+    private synchronized IODatabase getDatabase() {
+        if (mDatabase == null) {
+            mDatabase = mDatabaseFactory.create(MainNetInfApplication.getAppContext());
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getDatabase().deleteExpiredResolutions(System.currentTimeMillis());
+                    } catch (SQLiteException e) {
+                        Log.w(TAG, "Failed to purge expired resolutions");
+                    }
+                }
+            });
+        }
+        return mDatabase;
+    }
+
+    /**
+     * Creates the key of an object.
+     *
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     * @return
+     *      The key hash-alg;hash
+     */
+    private static String createKey(String hashAlg, String hash) {
+        return hashAlg + ";" + hash;
+    }
+}
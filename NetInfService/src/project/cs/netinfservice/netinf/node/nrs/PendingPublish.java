@@ -0,0 +1,206 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.nrs;
+
+/**
+ * A publish waiting in the outbox to be sent to the NRS.
+ */
+public class PendingPublish {
+    /** The row id in the outbox, -1 if not stored yet. */
+    private final long mId;
+
+    /** The hash algorithm. */
+    private final String mHashAlg;
+
+    /** The hash. */
+    private final String mHash;
+
+    /** The content type, may be null. */
+    private final String mContentType;
+
+    /** The metadata as a JSON string, may be null. */
+    private final String mMetadata;
+
+    /** The locator to publish, may be null. */
+    private final String mLocator;
+
+    /** The file to upload along (full put), may be null. */
+    private final String mFilePath;
+
+    /** Point in time (ms since epoch) when the publish was queued. */
+    private final long mCreated;
+
+    /** Number of times the NRS has rejected the publish. */
+    private final int mAttempts;
+
+    /**
+     * Creates a publish that has not been queued yet.
+     *
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     * @param contentType
+     *      The content type, may be null
+     * @param metadata
+     *      The metadata as a JSON string, may be null
+     * @param locator
+     *      The locator to publish, may be null
+     * @param filePath
+     *      The file to upload along, may be null
+     */
+    public PendingPublish(String hashAlg, String hash, String contentType, String metadata,
+            String locator, String filePath) {
+        this(-1, hashAlg, hash, contentType, metadata, locator, filePath,
+                System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Creates a publish read from the outbox.
+     *
+     * @param id
+     *      The row id in the outbox
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     * @param contentType
+     *      The content type, may be null
+     * @param metadata
+     *      The metadata as a JSON string, may be null
+     * @param locator
+     *      The locator to publish, may be null
+     * @param filePath
+     *      The file to upload along, may be null
+     * @param created
+     *      Point in time (ms since epoch) when the publish was queued
+     * @param attempts
+     *      Number of times the NRS has rejected the publish
+     */
+    public PendingPublish(long id, String hashAlg, String hash, String contentType,
+            String metadata, String locator, String filePath, long created, int attempts) {
+        mId = id;
+        mHashAlg = hashAlg;
+        mHash = hash;
+        mContentType = contentType;
+        mMetadata = metadata;
+        mLocator = locator;
+        mFilePath = filePath;
+        mCreated = created;
+        mAttempts = attempts;
+    }
+
+    /**
+     * Gets the row id.
+     *
+     * @return
+     *      The row id in the outbox, -1 if not stored yet
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Gets the hash algorithm.
+     *
+     * @return
+     *      The hash algorithm
+     */
+    public String getHashAlg() {
+        return mHashAlg;
+    }
+
+    /**
+     * Gets the hash.
+     *
+     * @return
+     *      The hash
+     */
+    public String getHash() {
+        return mHash;
+    }
+
+    /**
+     * Gets the content type.
+     *
+     * @return
+     *      The content type, may be null
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * Gets the metadata.
+     *
+     * @return
+     *      The metadata as a JSON string, may be null
+     */
+    public String getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Gets the locator.
+     *
+     * @return
+     *      The locator to publish, may be null
+     */
+    public String getLocator() {
+        return mLocator;
+    }
+
+    /**
+     * Gets the file to upload along.
+     *
+     * @return
+     *      The file path, may be null
+     */
+    public String getFilePath() {
+        return mFilePath;
+    }
+
+    /**
+     * Gets the time the publish was queued.
+     *
+     * @return
+     *      Point in time (ms since epoch) when the publish was queued
+     */
+    public long getCreated() {
+        return mCreated;
+    }
+
+    /**
+     * Gets the number of rejections.
+     *
+     * @return
+     *      Number of times the NRS has rejected the publish
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Provides the shared HTTP access to the NRS used by the resolution and search services.
+ */
+package project.cs.netinfservice.netinf.node.nrs;
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.resolution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import netinf.common.datamodel.identity.ResolutionServiceIdentityObject;
+import netinf.node.resolution.ResolutionServiceSelector;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Orders the resolution services by how they have been doing, instead of only by the
+ * priorities from the properties.
+ * <p>
+ * The latency and the answer rate of every service are kept separately for gets and puts.
+ * Services are ordered by their expected time until an answer, equal ones keep the
+ * priority order, so the priorities decide until something has been observed. A service
+ * expected to take longer than resolution.adaptive.max_expected_time is left out of gets,
+ * apart from one probe per resolution.adaptive.probe_interval. Puts and deletes always go
+ * to every service, otherwise objects would not be stored.
+ */
+public class AdaptiveResolutionServiceSelector implements ResolutionServiceSelector {
+    /** Debug tag. */
+    private static final String TAG = "AdaptiveResolutionServiceSelector";
+
+    /** The requests statistics are kept for. */
+    public enum Operation {
+        /** Resolving an identifier. */
+        GET,
+
+        /** Storing an information object. */
+        PUT
+    }
+
+    /** The services by priority, highest first. */
+    private final List<ResolutionServiceIdentityObject> mServices =
+            new ArrayList<ResolutionServiceIdentityObject>();
+
+    /** What has been observed about gets by service. */
+    private final Map<ResolutionServiceIdentityObject, ResolutionServiceStatistics> mGets =
+            new HashMap<ResolutionServiceIdentityObject, ResolutionServiceStatistics>();
+
+    /** What has been observed about puts by service. */
+    private final Map<ResolutionServiceIdentityObject, ResolutionServiceStatistics> mPuts =
+            new HashMap<ResolutionServiceIdentityObject, ResolutionServiceStatistics>();
+
+    /** Latency in ms assumed before anything has been observed. */
+    private final long mInitialLatency;
+
+    /** Longest expected time in ms of a service that is not skipped. */
+    private final long mMaxExpectedTime;
+
+    /** Time in ms after which a skipped service is tried again. */
+    private final long mProbeInterval;
+
+    /**
+     * Creates a new selector.
+     *
+     * @param initialLatency
+     *      Latency in ms assumed before anything has been observed
+     * @param maxExpectedTime
+     *      Longest expected time in ms of a service that is not skipped
+     * @param probeInterval
+     *      Time in ms after which a skipped service is tried again
+     */
+    @Inject
+    public AdaptiveResolutionServiceSelector(
+            @Named("resolution.adaptive.initial_latency") long initialLatency,
+            @Named("resolution.adaptive.max_expected_time") long maxExpectedTime,
+            @Named("resolution.adaptive.probe_interval") long probeInterval) {
+        mInitialLatency = initialLatency;
+        mMaxExpectedTime = maxExpectedTime;
+        mProbeInterval = probeInterval;
+    }
+
+    @Override
+    public synchronized void addResolutionService(ResolutionServiceIdentityObject identity) {
+        if (mServices.contains(identity)) {
+            return;
+        }
+        mServices.add(identity);
+        mGets.put(identity, new ResolutionServiceStatistics());
+        mPuts.put(identity, new ResolutionServiceStatistics());
+
+        // Stable, so equal priorities keep the order they were added in
+        Collections.sort(mServices, new Comparator<ResolutionServiceIdentityObject>() {
+            @Override
+            public int compare(ResolutionServiceIdentityObject lhs,
+                    ResolutionServiceIdentityObject rhs) {
+                return getPriority(rhs) - getPriority(lhs);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void removeResolutionService(ResolutionServiceIdentityObject identity) {
+        mServices.remove(identity);
+        mGets.remove(identity);
+        mPuts.remove(identity);
+    }
+
+    @Override
+    public List<ResolutionServiceIdentityObject> getRSForGet() {
+        List<ResolutionServiceIdentityObject> ordered = getOrdered(Operation.GET);
+
+        // Leave out the services that take too long, but always keep the best one
+        List<ResolutionServiceIdentityObject> selected =
+                new ArrayList<ResolutionServiceIdentityObject>();
+        for (ResolutionServiceIdentityObject identity : ordered) {
+            ResolutionServiceStatistics statistics = getStatistics(Operation.GET, identity);
+            if (selected.isEmpty() || statistics == null
+                    || !statistics.shouldSkip(mInitialLatency, mMaxExpectedTime,
+                            mProbeInterval)) {
+                selected.add(identity);
+            } else {
+                Log.d(TAG, "Skipping " + identity.getName() + ", expected to take "
+                        + statistics.getExpectedTime(mInitialLatency) + " ms");
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public List<ResolutionServiceIdentityObject> getRSForPut() {
+        return getOrdered(Operation.PUT);
+    }
+
+    @Override
+    public synchronized List<ResolutionServiceIdentityObject> getRSForDelete() {
+        return new ArrayList<ResolutionServiceIdentityObject>(mServices);
+    }
+
+    /**
+     * Records a finished request to a resolution service.
+     *
+     * @param identity
+     *      The resolution service
+     * @param operation
+     *      The kind of request
+     * @param latency
+     *      Time in ms the request took
+     * @param answered
+     *      True if the request produced an answer
+     */
+    public void record(ResolutionServiceIdentityObject identity, Operation operation,
+            long latency, boolean answered) {
+        ResolutionServiceStatistics statistics = getStatistics(operation, identity);
+        if (statistics != null) {
+            statistics.record(latency, answered);
+        }
+    }
+
+    /**
+     * Records a request to a resolution service that was cancelled before it finished.
+     *
+     * @param identity
+     *      The resolution service
+     * @param operation
+     *      The kind of request
+     * @param elapsed
+     *      Time in ms the request had been running
+     */
+    public void recordAborted(ResolutionServiceIdentityObject identity, Operation operation,
+            long elapsed) {
+        ResolutionServiceStatistics statistics = getStatistics(operation, identity);
+        if (statistics != null) {
+            statistics.recordAborted(elapsed);
+        }
+    }
+
+    /**
+     * Gets what has been observed about each service, used to debug the order.
+     *
+     * @return
+     *      The statistics by service and kind of request, like LocalResolutionService.get
+     */
+    public synchronized Map<String, Map<String, Long>> getStatistics() {
+        Map<String, Map<String, Long>> statistics = new LinkedHashMap<String, Map<String, Long>>();
+        for (ResolutionServiceIdentityObject identity : mServices) {
+            statistics.put(identity.getName() + ".get",
+                    mGets.get(identity).getStatistics(mInitialLatency));
+            statistics.put(identity.getName() + ".put",
+                    mPuts.get(identity).getStatistics(mInitialLatency));
+        }
+        return statistics;
+    }
+
+    /**
+     * Gets the services ordered by their expected time until an answer.
+     *
+     * @param operation
+     *      The kind of request
+     * @return
+     *      The services, best first
+     */
+    private synchronized List<ResolutionServiceIdentityObject> getOrdered(
+            final Operation operation) {
+        // Take the expected times once, they may change while sorting
+        final Map<ResolutionServiceIdentityObject, Long> expected =
+                new HashMap<ResolutionServiceIdentityObject, Long>();
+        for (ResolutionServiceIdentityObject identity : mServices) {
+            expected.put(identity,
+                    getStatistics(operation, identity).getExpectedTime(mInitialLatency));
+        }
+
+        // Stable, so equal services keep the priority order
+        List<ResolutionServiceIdentityObject> ordered =
+                new ArrayList<ResolutionServiceIdentityObject>(mServices);
+        Collections.sort(ordered, new Comparator<ResolutionServiceIdentityObject>() {
+            @Override
+            public int compare(ResolutionServiceIdentityObject lhs,
+                    ResolutionServiceIdentityObject rhs) {
+                return expected.get(lhs).compareTo(expected.get(rhs));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Gets what has been observed about a kind of request to a service.
+     *
+     * @param operation
+     *      The kind of request
+     * @param identity
+     *      The resolution service
+     * @return
+     *      The statistics, null if the service is not registered
+     */
+    private synchronized ResolutionServiceStatistics getStatistics(Operation operation,
+            ResolutionServiceIdentityObject identity) {
+        return operation == Operation.GET ? mGets.get(identity) : mPuts.get(identity);
+    }
+
+    /**
+     * Gets the priority of a service.
+     *
+     * @param identity
+     *      The resolution service
+     * @return
+     *      The priority from the properties, 0 if it has none
+     */
+    private static int getPriority(ResolutionServiceIdentityObject identity) {
+        Integer priority = identity.getDefaultPriority();
+        return priority == null ? 0 : priority;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.resolution;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import netinf.common.datamodel.Identifier;
+import netinf.common.datamodel.IdentifierLabel;
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.attribute.Attribute;
+import android.support.v4.util.LruCache;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Keeps the information objects read from the local database in memory, so that pages
+ * visited again are served without going to SQLite and rebuilding the objects.
+ * <p>
+ * The cache is bounded by the estimated number of bytes the objects take up, not by the
+ * number of objects, since an object with many urls is much bigger than one with a few.
+ * Objects are copied on the way in and out, so callers may change what they get.
+ */
+public class LocalIoCache {
+    /** Estimated bytes taken by an object apart from its strings. */
+    private static final int OBJECT_OVERHEAD = 256;
+
+    /** Estimated bytes taken by a label or attribute apart from its strings. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** The objects in memory, keyed by content hash. */
+    private final LruCache<String, Entry> mEntries;
+
+    /** Number of lookups answered from memory. */
+    private final AtomicLong mHits = new AtomicLong();
+
+    /** Number of lookups that have to go to the database. */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxBytes
+     *      Maximum number of bytes the objects in memory may take up
+     */
+    @Inject
+    public LocalIoCache(@Named("lrs.cache.size_bytes") int maxBytes) {
+        mEntries = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String hash, Entry entry) {
+                return entry.mSize;
+            }
+        };
+    }
+
+    /**
+     * Looks up an information object.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      A copy of the information object, or null if it has to be read from the database
+     */
+    public InformationObject get(String hash) {
+        Entry entry = mEntries.get(hash);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        mHits.incrementAndGet();
+        return (InformationObject) entry.mIo.clone();
+    }
+
+    /**
+     * Remembers an information object read from the database.
+     *
+     * @param hash
+     *      The content hash
+     * @param io
+     *      The information object
+     */
+    public void put(String hash, InformationObject io) {
+        InformationObject copy = (InformationObject) io.clone();
+        mEntries.put(hash, new Entry(copy, estimateSize(copy)));
+    }
+
+    /**
+     * Forgets an information object, because it was changed or deleted in the database.
+     *
+     * @param hash
+     *      The content hash
+     */
+    public void remove(String hash) {
+        mEntries.remove(hash);
+    }
+
+    /**
+     * Forgets all information objects.
+     */
+    public void clear() {
+        mEntries.evictAll();
+    }
+
+    /**
+     * Gets the counters of the cache.
+     *
+     * @return
+     *      The counters by name
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("hits", mHits.get());
+        statistics.put("misses", mMisses.get());
+        statistics.put("evictions", (long) mEntries.evictionCount());
+        statistics.put("entries", (long) mEntries.snapshot().size());
+        statistics.put("size_bytes", (long) mEntries.size());
+        statistics.put("max_size_bytes", (long) mEntries.maxSize());
+        return statistics;
+    }
+
+    /**
+     * Estimates the bytes an information object takes up in memory.
+     *
+     * @param io
+     *      The information object
+     * @return
+     *      The estimated size in bytes
+     */
+    static int estimateSize(InformationObject io) {
+        int size = OBJECT_OVERHEAD;
+
+        Identifier identifier = io.getIdentifier();
+        if (identifier != null) {
+            for (IdentifierLabel label : identifier.getIdentifierLabels()) {
+                size += ENTRY_OVERHEAD
+                        + sizeOf(label.getLabelName()) + sizeOf(label.getLabelValue());
+            }
+        }
+
+        return size + sizeOf(io.getAttributes());
+    }
+
+    /**
+     * Estimates the bytes a list of attributes and their subattributes take up in memory.
+     *
+     * @param attributes
+     *      The attributes, may be null
+     * @return
+     *      The estimated size in bytes
+     */
+    private static int sizeOf(List<Attribute> attributes) {
+        int size = 0;
+        if (attributes != null) {
+            for (Attribute attribute : attributes) {
+                size += ENTRY_OVERHEAD
+                        + sizeOf(attribute.getIdentification())
+                        + sizeOf(attribute.getValueRaw())
+                        + sizeOf(attribute.getSubattributes());
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the bytes a string takes up in memory.
+     *
+     * @param string
+     *      The string, may be null
+     * @return
+     *      The estimated size in bytes
+     */
+    private static int sizeOf(String string) {
+        return string == null ? 0 : 2 * string.length();
+    }
+
+    /**
+     * An information object together with its estimated size.
+     */
+    private static class Entry {
+        /** The information object. */
+        private final InformationObject mIo;
+
+        /** The estimated size in bytes. */
+        private final int mSize;
+
+        /**
+         * Creates an entry.
+         *
+         * @param io
+         *      The information object
+         * @param size
+         *      The estimated size in bytes
+         */
+        Entry(InformationObject io, int size) {
+            mIo = io;
+            mSize = size;
+        }
+    }
+}
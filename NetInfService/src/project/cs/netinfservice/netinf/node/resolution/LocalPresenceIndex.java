@@ -0,0 +1,308 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.resolution;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import project.cs.netinfservice.application.MainNetInfApplication;
+import project.cs.netinfservice.database.DatabaseException;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.util.BloomFilter;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Knows which content hashes are stored on this node, in the IO database or as a file in
+ * the shared folder, without going to either.
+ * <p>
+ * The stored hashes are kept in an exact set, together with their content type when it is
+ * known. A Bloom filter in front of the set answers most questions about objects that are
+ * not stored. Hashes can not be removed from the filter, so it is rebuilt from the set when
+ * it has filled up.
+ * <p>
+ * The index is built in the background when it is created. Until then it answers that every
+ * object might be stored and that no content type is known.
+ */
+public class LocalPresenceIndex {
+    /** Debug tag. */
+    private static final String TAG = "LocalPresenceIndex";
+
+    /** Content type recorded for files whose content type is not known. */
+    private static final String UNKNOWN_CONTENT_TYPE = "";
+
+    /** The stored hashes, with their content type or UNKNOWN_CONTENT_TYPE. */
+    private final Map<String, String> mContentTypes = new ConcurrentHashMap<String, String>();
+
+    /** Number of hashes the Bloom filter is at least sized for. */
+    private final int mExpectedSize;
+
+    /** Rate of false positives the Bloom filter is sized for. */
+    private final double mFalsePositiveRate;
+
+    /** Creates the database the index is built from. */
+    private final IODatabaseFactory mDatabaseFactory;
+
+    /** The files of the stored objects. */
+    private final ContentStore mContentStore;
+
+    /** Every hash in the set and possibly some that were removed. */
+    private BloomFilter mFilter;
+
+    /** True once the index has been built. */
+    private volatile boolean mLoaded;
+
+    /** Number of lookups answered as not stored. */
+    private final AtomicLong mNegatives = new AtomicLong();
+
+    /** Number of lookups the Bloom filter let through to the set. */
+    private final AtomicLong mFilterPasses = new AtomicLong();
+
+    /** Number of lookups the Bloom filter let through that were not stored. */
+    private final AtomicLong mFalsePositives = new AtomicLong();
+
+    /**
+     * Creates the index and starts building it.
+     *
+     * @param expectedSize
+     *      Number of hashes the Bloom filter is at least sized for
+     * @param falsePositiveRate
+     *      Rate of false positives the Bloom filter is sized for
+     * @param contentStore
+     *      The files of the stored objects
+     * @param databaseFactory
+     *      Creates the database the index is built from
+     */
+    @Inject
+    public LocalPresenceIndex(
+            @Named("lrs.index.expected_size") int expectedSize,
+            @Named("lrs.index.false_positive_rate") double falsePositiveRate,
+            ContentStore contentStore,
+            IODatabaseFactory databaseFactory) {
+        mExpectedSize = expectedSize;
+        mFalsePositiveRate = falsePositiveRate;
+        mContentStore = contentStore;
+        mDatabaseFactory = databaseFactory;
+        mFilter = new BloomFilter(expectedSize, falsePositiveRate);
+
+        reload();
+    }
+
+    /**
+     * Builds the index again in the background, from the IO database and the shared folder.
+     */
+    public void reload() {
+        synchronized (this) {
+            mLoaded = false;
+            mContentTypes.clear();
+        }
+
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        }, TAG + "-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Builds the index from the IO database and the shared folder.
+     */
+    private void load() {
+        Log.d(TAG, "Building the index of stored objects");
+        Map<String, String> contentTypes = new HashMap<String, String>();
+
+        // Files in the shared folder are named by their hash
+        for (String hash : mContentStore.listFiles().keySet()) {
+            contentTypes.put(hash, UNKNOWN_CONTENT_TYPE);
+        }
+        try {
+            for (String hash : mContentStore.listPacked().keySet()) {
+                contentTypes.put(hash, UNKNOWN_CONTENT_TYPE);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to list the packed objects: " + e.getMessage());
+        }
+
+        // The database knows the content types
+        try {
+            Map<String, String> stored = mDatabaseFactory
+                    .create(MainNetInfApplication.getAppContext())
+                    .getStoredContentTypes();
+            for (Map.Entry<String, String> entry : stored.entrySet()) {
+                contentTypes.put(entry.getKey(), contentTypeOrUnknown(entry.getValue()));
+            }
+        } catch (DatabaseException e) {
+            // Stay unloaded, so that every object might be stored
+            Log.e(TAG, "Could not read the stored objects: " + e.getMessage());
+            return;
+        }
+
+        // Objects added while building are at least as up to date
+        synchronized (this) {
+            for (Map.Entry<String, String> entry : contentTypes.entrySet()) {
+                String known = mContentTypes.get(entry.getKey());
+                if (known == null || UNKNOWN_CONTENT_TYPE.equals(known)) {
+                    mContentTypes.put(entry.getKey(), entry.getValue());
+                }
+            }
+            rebuildFilter();
+            mLoaded = true;
+        }
+        Log.d(TAG, "Index holds " + mContentTypes.size() + " stored objects");
+    }
+
+    /**
+     * Records that an object is stored.
+     *
+     * @param hash
+     *      The content hash
+     * @param contentType
+     *      The content type, may be null if not known
+     */
+    public synchronized void add(String hash, String contentType) {
+        String known = mContentTypes.get(hash);
+        if (contentType == null && known != null) {
+            return;
+        }
+        mContentTypes.put(hash, contentTypeOrUnknown(contentType));
+
+        // Keep the false positive rate down as the index grows
+        if (mFilter.getCount() >= mFilter.getExpectedInsertions()) {
+            rebuildFilter();
+        } else {
+            mFilter.add(hash);
+        }
+    }
+
+    /**
+     * Records that an object is no longer stored.
+     *
+     * @param hash
+     *      The content hash
+     */
+    public void remove(String hash) {
+        mContentTypes.remove(hash);
+    }
+
+    /**
+     * Checks if an object might be stored.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      False if the object is definitely not stored, true if it might be
+     */
+    public boolean mightContain(String hash) {
+        if (!mLoaded) {
+            return true;
+        }
+
+        synchronized (this) {
+            if (!mFilter.mightContain(hash)) {
+                mNegatives.incrementAndGet();
+                return false;
+            }
+        }
+
+        mFilterPasses.incrementAndGet();
+        if (!mContentTypes.containsKey(hash)) {
+            mFalsePositives.incrementAndGet();
+            mNegatives.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the content type of a stored object.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The content type, or null if the object is not stored or its content type is not
+     *      known
+     */
+    public String getContentType(String hash) {
+        if (!mightContain(hash)) {
+            return null;
+        }
+        String contentType = mContentTypes.get(hash);
+        return UNKNOWN_CONTENT_TYPE.equals(contentType) ? null : contentType;
+    }
+
+    /**
+     * Gets the counters of the index.
+     *
+     * @return
+     *      The counters by name
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("loaded", mLoaded ? 1L : 0L);
+        statistics.put("size", (long) mContentTypes.size());
+        statistics.put("filter_capacity", (long) mFilter.getExpectedInsertions());
+        statistics.put("negatives", mNegatives.get());
+        statistics.put("filter_passes", mFilterPasses.get());
+        statistics.put("false_positives", mFalsePositives.get());
+        return statistics;
+    }
+
+    /**
+     * Builds a new Bloom filter from the set of stored hashes. The caller has to hold the
+     * lock of the index.
+     */
+    private void rebuildFilter() {
+        int expected = Math.max(mExpectedSize, 2 * mContentTypes.size());
+        BloomFilter filter = new BloomFilter(expected, mFalsePositiveRate);
+        for (String hash : mContentTypes.keySet()) {
+            filter.add(hash);
+        }
+        mFilter = filter;
+    }
+
+    /**
+     * Maps a missing content type to UNKNOWN_CONTENT_TYPE.
+     *
+     * @param contentType
+     *      The content type, may be null
+     * @return
+     *      The content type to record
+     */
+    private static String contentTypeOrUnknown(String contentType) {
+        return contentType == null ? UNKNOWN_CONTENT_TYPE : contentType;
+    }
+}
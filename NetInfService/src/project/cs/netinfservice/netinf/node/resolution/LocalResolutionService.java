@@ -30,6 +30,7 @@ import java.util.List;
 
 import netinf.common.datamodel.DatamodelFactory;
 import netinf.common.datamodel.Identifier;
+import netinf.common.datamodel.IdentifierLabel;
 import netinf.common.datamodel.InformationObject;
 import netinf.common.datamodel.identity.ResolutionServiceIdentityObject;
 import project.cs.netinfservice.application.MainNetInfApplication;
@@ -37,6 +38,7 @@ import project.cs.netinfservice.database.DatabaseException;
 import project.cs.netinfservice.database.IODatabase;
 import project.cs.netinfservice.database.IODatabaseFactory;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
+import project.cs.netinfservice.netinf.node.store.ContentStoreManager;
 import project.cs.netinfutilities.UProperties;
 import android.util.Log;
 
@@ -64,6 +66,15 @@ extends AbstractResolutionServiceWithoutId {
     /** DataModel Factory. **/
     private DatamodelFactory mDatamodelFactory;
 
+    /** Information objects recently read from the database. */
+    private LocalIoCache mCache;
+
+    /** The hashes stored on this node. */
+    private LocalPresenceIndex mIndex;
+
+    /** Keeps the stored files within the quota. */
+    private ContentStoreManager mStoreManager;
+
     /**
      * Creates a new local resolution service.
      *
@@ -71,16 +82,32 @@ extends AbstractResolutionServiceWithoutId {
      *     	The factory used for creating the database.
      * @param datamodelFactory
      *     	The factory used for creating information objects.
+     * @param cache
+     *      Information objects recently read from the database.
+     * @param index
+     *      The hashes stored on this node.
+     * @param storeManager
+     *      Keeps the stored files within the quota.
      */
     @Inject
     public LocalResolutionService(IODatabaseFactory databaseFactory,
-            DatamodelFactory datamodelFactory) {
+            DatamodelFactory datamodelFactory, LocalIoCache cache, LocalPresenceIndex index,
+            ContentStoreManager storeManager) {
         // Database factory
         mDatabaseFactory = databaseFactory;
 
         // DataModel Factory
         mDatamodelFactory = datamodelFactory;
 
+        // IO cache
+        mCache = cache;
+
+        // Index of stored hashes
+        mIndex = index;
+
+        // Content store
+        mStoreManager = storeManager;
+
         // Database
         mDatabase = mDatabaseFactory.create(MainNetInfApplication.getAppContext());
     }
@@ -99,8 +126,10 @@ extends AbstractResolutionServiceWithoutId {
         String hash = identifier.getIdentifierLabel(
                 SailDefinedLabelName.HASH_CONTENT.getLabelName()).getLabelValue();
 
-        // Calls deleteIO function
+        // Calls deleteIO function, then forget the cached copy
         mDatabase.deleteIO(hash);
+        mCache.remove(hash);
+        mIndex.remove(hash);
     }
     
     /**
@@ -120,7 +149,19 @@ extends AbstractResolutionServiceWithoutId {
         String hash = identifier.getIdentifierLabel(
                 SailDefinedLabelName.HASH_CONTENT.getLabelName()).getLabelValue();
 
-        InformationObject io = null;
+        // Serve recently read objects from memory
+        InformationObject io = mCache.get(hash);
+        if (io != null) {
+            mStoreManager.onRead(hash);
+            IODatabase.notifyLocalTransmission();
+            return io;
+        }
+
+        // Objects that are definitely not stored need no query
+        if (!mIndex.mightContain(hash)) {
+            Log.d(TAG, "The information object is not stored.");
+            return null;
+        }
         
         // Tries to fetch the IO from the database using the hash
         try {
@@ -133,6 +174,11 @@ extends AbstractResolutionServiceWithoutId {
             return null;
         }
 
+        // Remember the IO for the next visit
+        if (io != null) {
+            mCache.put(hash, io);
+        }
+
         // Returns IO
         return io;
     }
@@ -147,12 +193,26 @@ extends AbstractResolutionServiceWithoutId {
     public void put(InformationObject io) {
         Log.d(TAG, "Trying to put an IO into the database");
         
+        // Extracts hash from the identifier
+        Identifier identifier = io.getIdentifier();
+        String hash = identifier.getIdentifierLabel(
+                SailDefinedLabelName.HASH_CONTENT.getLabelName()).getLabelValue();
+
         // Tries to add IO using the addIO function from the IODatabase class
         try {
             mDatabase.addIO(io);
+
+            // Stored objects must never be answered as definite misses
+            IdentifierLabel contentType = identifier.getIdentifierLabel(
+                    SailDefinedLabelName.CONTENT_TYPE.getLabelName());
+            mIndex.add(hash, contentType == null ? null : contentType.getLabelValue());
+            mStoreManager.onStored(hash);
         } catch (DatabaseException e) {
             Log.e(TAG, "Failed adding the information object into the database.");
         }
+
+        // Forget the cached copy, the stored IO may have changed
+        mCache.remove(hash);
     }
 
     /**
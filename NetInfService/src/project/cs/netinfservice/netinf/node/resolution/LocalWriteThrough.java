@@ -0,0 +1,255 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.resolution;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.DefinedAttributePurpose;
+import netinf.common.datamodel.Identifier;
+import netinf.common.datamodel.IdentifierLabel;
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.attribute.Attribute;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import project.cs.netinfservice.netinf.common.datamodel.SailDefinedAttributeIdentification;
+import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
+import project.cs.netinfutilities.UProperties;
+import android.util.Log;
+
+import com.google.inject.Inject;
+
+/**
+ * Records objects resolved elsewhere in the local resolution service once their content is
+ * stored on this node, so the next request for them is a local hit and the node can hand
+ * them to its peers.
+ * <p>
+ * Recording happens on a single background thread, the request that fetched the content
+ * does not wait for the database. Resolutions that only returned locators are not recorded,
+ * the local database only holds objects whose file is stored here and the NRS resolution
+ * cache already remembers the locators.
+ */
+public class LocalWriteThrough {
+    /** Debug tag. */
+    private static final String TAG = "LocalWriteThrough";
+
+    /** Meta-data label for the file path. */
+    private static final String FILEPATH_LABEL =
+            UProperties.INSTANCE.getPropertyWithName("metadata.filepath");
+
+    /** Meta-data label for the file size. */
+    private static final String FILESIZE_LABEL =
+            UProperties.INSTANCE.getPropertyWithName("metadata.filesize");
+
+    /** The local resolution service objects are recorded in. */
+    private final LocalResolutionService mLocalResolutionService;
+
+    /** Creates the recorded information objects. */
+    private final DatamodelFactory mDatamodelFactory;
+
+    /** Records off the requesting thread. */
+    private final ExecutorService mWriter;
+
+    /** Hashes waiting to be recorded, the same object is only queued once. */
+    private final Set<String> mPending =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Number of objects recorded. */
+    private final AtomicLong mRecorded = new AtomicLong();
+
+    /** Number of objects already waiting to be recorded. */
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    /** Number of objects that could not be recorded. */
+    private final AtomicLong mFailed = new AtomicLong();
+
+    /**
+     * Creates the write-through stage.
+     *
+     * @param localResolutionService
+     *      The local resolution service objects are recorded in
+     * @param datamodelFactory
+     *      Creates the recorded information objects
+     */
+    @Inject
+    public LocalWriteThrough(LocalResolutionService localResolutionService,
+            DatamodelFactory datamodelFactory) {
+        mLocalResolutionService = localResolutionService;
+        mDatamodelFactory = datamodelFactory;
+
+        // A single writer keeps the database writes in order
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Records an object whose content was fetched and stored on this node.
+     *
+     * @param io
+     *      The information object the object was resolved to
+     * @param filePath
+     *      Path to the stored file
+     * @param fileSize
+     *      Size of the content in bytes
+     */
+    public void record(InformationObject io, final String filePath, final long fileSize) {
+        final Identifier identifier = io.getIdentifier();
+        final String hash = getLabelValue(identifier, SailDefinedLabelName.HASH_CONTENT);
+        if (hash == null || !mPending.add(hash)) {
+            mCoalesced.incrementAndGet();
+            return;
+        }
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mLocalResolutionService.put(createLocalIo(identifier, filePath, fileSize));
+                    mRecorded.incrementAndGet();
+                    Log.d(TAG, "Recorded " + hash + " locally");
+                } catch (RuntimeException e) {
+                    mFailed.incrementAndGet();
+                    Log.e(TAG, "Failed to record " + hash + ": " + e.getMessage());
+                } finally {
+                    mPending.remove(hash);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the counters of the write-through stage.
+     *
+     * @return
+     *      The statistics by name
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("recorded", mRecorded.get());
+        statistics.put("coalesced", mCoalesced.get());
+        statistics.put("failed", mFailed.get());
+        statistics.put("pending", (long) mPending.size());
+        return statistics;
+    }
+
+    /**
+     * Creates the information object recorded locally. It keeps the labels of the resolved
+     * object and points to the stored file.
+     *
+     * @param resolved
+     *      The identifier of the resolved object
+     * @param filePath
+     *      Path to the stored file
+     * @param fileSize
+     *      Size of the content in bytes
+     * @return
+     *      The information object
+     */
+    @SuppressWarnings("unchecked")
+    private InformationObject createLocalIo(Identifier resolved, String filePath,
+            long fileSize) {
+        Identifier identifier = (Identifier) resolved.clone();
+
+        // Metadata looks like {"meta": {...}}, the database reads the file from it
+        String label = getLabelValue(identifier, SailDefinedLabelName.META_DATA);
+        Object parsed = label == null ? null : JSONValue.parse(label);
+        JSONObject metadata = parsed instanceof JSONObject ? (JSONObject) parsed : new JSONObject();
+        if (!(metadata.get("meta") instanceof JSONObject)) {
+            metadata.put("meta", new JSONObject());
+        }
+        JSONObject meta = (JSONObject) metadata.get("meta");
+        meta.put(FILEPATH_LABEL, filePath);
+        if (!meta.containsKey(FILESIZE_LABEL)) {
+            meta.put(FILESIZE_LABEL, String.valueOf(fileSize));
+        }
+        setLabelValue(identifier, SailDefinedLabelName.META_DATA, metadata.toJSONString());
+
+        InformationObject io = mDatamodelFactory.createInformationObject();
+        io.setIdentifier(identifier);
+
+        // The file path locator, as if the object had been published from this node
+        Attribute locator = mDatamodelFactory.createAttribute();
+        locator.setAttributePurpose(DefinedAttributePurpose.LOCATOR_ATTRIBUTE.toString());
+        locator.setIdentification(SailDefinedAttributeIdentification.FILE_PATH.getURI());
+        locator.setValue(filePath);
+        io.addAttribute(locator);
+
+        return io;
+    }
+
+    /**
+     * Gets the value of a label.
+     *
+     * @param identifier
+     *      The identifier
+     * @param labelName
+     *      The label
+     * @return
+     *      The value, null if the identifier has no such label
+     */
+    private String getLabelValue(Identifier identifier, SailDefinedLabelName labelName) {
+        IdentifierLabel label = identifier.getIdentifierLabel(labelName.getLabelName());
+        return label == null ? null : label.getLabelValue();
+    }
+
+    /**
+     * Sets the value of a label, adding the label if the identifier has none.
+     *
+     * @param identifier
+     *      The identifier
+     * @param labelName
+     *      The label
+     * @param value
+     *      The value
+     */
+    private void setLabelValue(Identifier identifier, SailDefinedLabelName labelName,
+            String value) {
+        IdentifierLabel label = identifier.getIdentifierLabel(labelName.getLabelName());
+        if (label == null) {
+            label = mDatamodelFactory.createIdentifierLabel();
+            label.setLabelName(labelName.getLabelName());
+            identifier.addIdentifierLabel(label);
+        }
+        label.setLabelValue(value);
+    }
+}
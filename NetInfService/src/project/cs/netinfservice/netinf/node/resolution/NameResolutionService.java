@@ -27,13 +27,13 @@
 package project.cs.netinfservice.netinf.node.resolution;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -49,20 +49,19 @@ import netinf.common.datamodel.identity.ResolutionServiceIdentityObject;
 import netinf.common.exceptions.NetInfResolutionException;
 import netinf.node.resolution.ResolutionService;
 
-import org.apache.commons.fileupload.MultipartStream;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
@@ -71,18 +70,24 @@ import project.cs.netinfservice.application.MainNetInfActivity;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedAttributeIdentification;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
 import project.cs.netinfservice.netinf.node.exceptions.InvalidResponseException;
+import project.cs.netinfservice.netinf.node.nrs.CachedResolution;
+import project.cs.netinfservice.netinf.node.nrs.PendingPublish;
+import project.cs.netinfservice.netinf.node.nrs.NrsEndpoint;
+import project.cs.netinfservice.netinf.node.nrs.NrsHttpClient;
+import project.cs.netinfservice.netinf.node.nrs.NrsMultipartReader;
+import project.cs.netinfservice.netinf.node.nrs.NrsPublishOutbox;
+import project.cs.netinfservice.netinf.node.nrs.NrsRequest;
+import project.cs.netinfservice.netinf.node.nrs.NrsResolutionCache;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
 import project.cs.netinfutilities.UProperties;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.os.Environment;
-import android.preference.PreferenceManager;
+import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
 import com.google.inject.Inject;
-import com.google.inject.name.Named;
 
 /**
- * A resolution service implementation that uses the HTTP convergence layer to a specific NRS.
+ * A resolution service implementation that uses the HTTP convergence layer to the known NRS.
  * @author Linus Sunde
  * @author Harold Martinez
  * @author Thiago Costa Porto
@@ -96,18 +101,20 @@ implements ResolutionService {
     public static final int MSG_ID_MAX = Integer
             .parseInt(UProperties.INSTANCE.getPropertyWithName("nrs.max_messsage"));
 
-    /** HTTP Scheme. */
-    private static final String HTTP = "http://";
+    /** The HTTP client shared by all NRS traffic. **/
+    private final NrsHttpClient mHttpClient;
 
-    /** NRS IP address. **/
-    private String mHost;
+    /** Remembers earlier answers of the NRS. **/
+    private final NrsResolutionCache mResolutionCache;
 
-    /** NRS port. **/
-    private int mPort;
+    /** Queue of publishes that still have to reach the NRS. **/
+    private final NrsPublishOutbox mPublishOutbox;
 
-    /** HTTP connection timeout. **/
-    private static final int TIMEOUT = Integer
-            .parseInt(UProperties.INSTANCE.getPropertyWithName("nrs.timeout"));
+    /** Stores the files that come with a resolution. **/
+    private final ContentStore mContentStore;
+
+    /** Records the objects that came with their file in the local resolution service. **/
+    private final LocalWriteThrough mWriteThrough;
 
     /** Implementation of DatamodelFactory, used to create and edit InformationObjects etc. **/
     private final DatamodelFactory mDatamodelFactory;
@@ -118,70 +125,58 @@ implements ResolutionService {
     /** NRS cache transmission used to transfer a resource. */
     public static final String NRS_TRANSMISSION = "project.cs.netinfservice.NRS_TRANSMISSION";
 
-    /** Key for accessing the NRS IP. */
-    private static final String PREF_KEY_NRS_IP = "pref_key_nrs_ip";
-
-    /** Key for accessing the NRS Port. */
-    private static final String PREF_KEY_NRS_PORT = "pref_key_nrs_port";
-
     /**
-     * Creates a new Name Resolution Service that communicates with a specific NRS.
-     * @param host
-     *      The NRS IP Address
-     * @param port
-     *      The NRS Port
+     * Creates a new Name Resolution Service that communicates with the known NRS.
      * @param datamodelFactory
      *      Creates different objects necessary in the NetInf model
+     * @param httpClient
+     *      The HTTP client shared by all NRS traffic
+     * @param resolutionCache
+     *      Remembers earlier answers of the NRS
+     * @param publishOutbox
+     *      Queue of publishes that still have to reach the NRS
+     * @param contentStore
+     *      Stores the files that come with a resolution
+     * @param writeThrough
+     *      Records the objects that came with their file in the local resolution service
      */
     @Inject
     public NameResolutionService(
-            @Named("nrs.http.host") String host,
-            @Named("nrs.http.port") int port,
-            DatamodelFactory datamodelFactory) {
-
-        // Setup other private variables
-        mHost = host;
-        mPort = port;
+            DatamodelFactory datamodelFactory,
+            NrsHttpClient httpClient,
+            NrsResolutionCache resolutionCache,
+            NrsPublishOutbox publishOutbox,
+            ContentStore contentStore,
+            LocalWriteThrough writeThrough) {
+
+        // Setup private variables
         mDatamodelFactory = datamodelFactory;
+        mHttpClient = httpClient;
+        mResolutionCache = resolutionCache;
+        mPublishOutbox = publishOutbox;
+        mContentStore = contentStore;
+        mWriteThrough = writeThrough;
     }
 
     /**
-     * Get the NRS Address.
-     *
-     * @return
-     *      <p>The IP Address of the NRS.
+     * Opens connections to the best known NRS, so that the first
+     * resolution does not have to wait for the TCP handshake.
      */
-    private String getHost() {
-        // Shared preferences
-        SharedPreferences sharedPreferences =
-                PreferenceManager.getDefaultSharedPreferences(MainNetInfActivity.getActivity());
-
-        // Host is set to NRS IP that is set in the shared preferences. If none is set, uses
-        // default value stored in mHost (set by constructor)
-        mHost = sharedPreferences.getString(PREF_KEY_NRS_IP, mHost);
-
-        // Returns NRS IP.
-        return mHost;
+    public void warmUp() {
+        mHttpClient.warmUp();
     }
 
     /**
-     * Get the NRS port.
-     *
-     * @return
-     *      <p>The port of the NRS
+     * Starts sending the queued publishes to the NRS, including those left from an
+     * earlier run.
      */
-    private int getPort() {
-        // Shared preferences
-        SharedPreferences sharedPreferences =
-                PreferenceManager.getDefaultSharedPreferences(MainNetInfActivity.getActivity());
-
-        // Port is set to the NRS PORT that is set in the shared preferences. If none is set,
-        // uses the default value stored in mPort (set by constructor)
-        mPort = Integer.parseInt(sharedPreferences
-                .getString(PREF_KEY_NRS_PORT, Integer.toString(mPort)));
-
-        // Returns NRS PORT
-        return mPort;
+    public void startPublishing() {
+        mPublishOutbox.start(new NrsPublishOutbox.Sender() {
+            @Override
+            public boolean send(PendingPublish publish) throws IOException {
+                return publish(publish);
+            }
+        });
     }
 
     /**
@@ -433,15 +428,129 @@ implements ResolutionService {
 
         // Iterate through locators list and add them to the IO
         for (Object locator : locators) {
-            // Create a new attribute and add the locator to it
-            Attribute newLocator = mDatamodelFactory.createAttribute();
-            newLocator.setAttributePurpose(DefinedAttributePurpose.LOCATOR_ATTRIBUTE.toString());
-            newLocator.setIdentification(SailDefinedAttributeIdentification.BLUETOOTH_MAC.getURI());
-            newLocator.setValue(locator);
-
-            // Attach locator to the IO
-            io.addAttribute(newLocator);
+            addLocator(io, SailDefinedAttributeIdentification.BLUETOOTH_MAC, locator);
+        }
+    }
+
+    /**
+     * Adds a single locator to an InformationObject.
+     *
+     * @param io
+     *      The InformationObject
+     * @param identification
+     *      The kind of locator
+     * @param locator
+     *      The locator value
+     */
+    private void addLocator(InformationObject io,
+            SailDefinedAttributeIdentification identification, Object locator) {
+        // Create a new attribute and add the locator to it
+        Attribute newLocator = mDatamodelFactory.createAttribute();
+        newLocator.setAttributePurpose(DefinedAttributePurpose.LOCATOR_ATTRIBUTE.toString());
+        newLocator.setIdentification(identification.getURI());
+        newLocator.setValue(locator);
+
+        // Attach locator to the IO
+        io.addAttribute(newLocator);
+    }
+
+    /**
+     * Adds a label to an identifier, unless the value is missing.
+     *
+     * @param identifier
+     *      The identifier
+     * @param labelName
+     *      The label
+     * @param value
+     *      The label value, may be null
+     */
+    private void addLabel(Identifier identifier, SailDefinedLabelName labelName, String value) {
+        if (value == null) {
+            return;
+        }
+
+        // Create identifier label and attach it
+        IdentifierLabel label = mDatamodelFactory.createIdentifierLabel();
+        label.setLabelName(labelName.getLabelName());
+        label.setLabelValue(value);
+        identifier.addIdentifierLabel(label);
+    }
+
+    /**
+     * Gets the value of a label, if the identifier has it.
+     *
+     * @param identifier
+     *      The identifier
+     * @param labelName
+     *      The label
+     * @return
+     *      The label value or null
+     */
+    private String getLabelValue(Identifier identifier, SailDefinedLabelName labelName) {
+        IdentifierLabel label = identifier.getIdentifierLabel(labelName.getLabelName());
+        return label != null ? label.getLabelValue() : null;
+    }
+
+    /**
+     * Creates an InformationObject from a cached resolution, the same way it was created
+     * from the NRS response.
+     *
+     * @param identifier
+     *      The identifier
+     * @param resolution
+     *      The cached resolution
+     * @return
+     *      The InformationObject
+     */
+    private InformationObject readCachedIo(Identifier identifier, CachedResolution resolution) {
+        // Creates a new InformationObject
+        InformationObject io = mDatamodelFactory.createInformationObject();
+        io.setIdentifier(identifier);
+
+        // Add content-type, metadata and locators
+        addLabel(identifier, SailDefinedLabelName.CONTENT_TYPE, resolution.getContentType());
+        addLabel(identifier, SailDefinedLabelName.META_DATA, resolution.getMetadata());
+        for (String locator : resolution.getLocators()) {
+            addLocator(io, SailDefinedAttributeIdentification.BLUETOOTH_MAC, locator);
+        }
+
+        // The file that came with the resolution may have been deleted or packed since
+        String filePath = resolution.getFilePath();
+        if (filePath != null && (new File(filePath).exists()
+                || mContentStore.isPacked(getHash(identifier)))) {
+            addLocator(io, SailDefinedAttributeIdentification.FILE_PATH, filePath);
         }
+
+        return io;
+    }
+
+    /**
+     * Remembers the InformationObject the NRS resolved an identifier to.
+     *
+     * @param hashAlg
+     *      The hash algorithm
+     * @param hash
+     *      The hash
+     * @param io
+     *      The InformationObject created from the NRS response
+     */
+    private void cacheIo(String hashAlg, String hash, InformationObject io) {
+        // Collect the bluetooth locators
+        List<String> locators = new ArrayList<String>();
+        for (Attribute attribute
+                : io.getAttributesForPurpose(DefinedAttributePurpose.LOCATOR_ATTRIBUTE.toString())) {
+            if (SailDefinedAttributeIdentification.BLUETOOTH_MAC.getURI()
+                    .equals(attribute.getIdentification())) {
+                locators.add(attribute.getValue(String.class));
+            }
+        }
+
+        Identifier identifier = io.getIdentifier();
+        mResolutionCache.put(hashAlg, hash,
+                getLabelValue(identifier, SailDefinedLabelName.CONTENT_TYPE),
+                getLabelValue(identifier, SailDefinedLabelName.META_DATA),
+                locators,
+                getFilePath(io));
     }
 
     /**
@@ -508,78 +617,81 @@ implements ResolutionService {
                     + ", expected to start with \"multipart/form-data\"");
         }
 
-        // Reads IO and File
-        try {
-            // Create IO
-            InformationObject io = mDatamodelFactory.createInformationObject();
-            io.setIdentifier(identifier);
-
-            // Extract Content-type from header
-            String contentType = response.getHeaders("Content-Type")[0].getValue();
-
-            // Get boundary bytes
-            byte[] boundary = (contentType.substring(contentType.indexOf("boundary=") + 9)).getBytes();
-
-            // Raises intent
-            Intent intent = new Intent(NRS_TRANSMISSION);
-            MainNetInfActivity.getActivity().sendBroadcast(intent);
-
-            // Start multipart
-            @SuppressWarnings("deprecation")
-            MultipartStream multipartStream =
-            new MultipartStream(response.getEntity().getContent(), boundary);
-
-            // Skip multipart preamble
-            multipartStream.skipPreamble();
+        // Get boundary from the Content-Type header
+        NameValuePair boundary = null;
+        for (HeaderElement element : response.getEntity().getContentType().getElements()) {
+            if (boundary == null) {
+                boundary = element.getParameterByName("boundary");
+            }
+        }
+        if (boundary == null || boundary.getValue() == null) {
+            throw new InvalidResponseException("Content-Type has no boundary.");
+        }
 
-            // TODO Dependant on order used by NRS
-            // Read JSON
-            ByteArrayOutputStream jsonStream = new ByteArrayOutputStream();
+        // Raises intent
+        Intent intent = new Intent(NRS_TRANSMISSION);
+        MainNetInfActivity.getActivity().sendBroadcast(intent);
 
-            // Move on multipart stream
-            multipartStream.readHeaders();
-            multipartStream.readBodyData(jsonStream);
-            multipartStream.readBoundary();
+        // The file is only stored in the shared folder if it matches the hash
+        NrsMultipartReader reader =
+                new NrsMultipartReader(getHashAlg(identifier), getHash(identifier), mContentStore);
 
-            // Parse JSON Object
-            JSONObject jsonObject = parseJson(jsonStream.toString());
+        // Reads JSON and file, in any order
+        try {
+            reader.read(response.getEntity().getContent(), boundary.getValue().getBytes("US-ASCII"));
+        } catch (IOException e) {
+            throw new InvalidResponseException("Failed to read InformationObject from response", e);
+        }
 
-            // Close stream used to read JSON
-            jsonStream.close();
+        // Parse JSON Object
+        JSONObject jsonObject = parseJson(reader.getJson());
 
-            // Add attributes to the new Information Object
-            addContentType(io.getIdentifier(), jsonObject);
-            addMetadata(io.getIdentifier(), jsonObject);
-            addLocators(io, jsonObject);
+        // The size was counted while the file was written
+        addFilesize(jsonObject, reader.getFileSize());
 
-            // Create the new file
-            File file = new File(Environment.getExternalStorageDirectory()
-                    + "/DCIM/Shared/" + getHash(io.getIdentifier()));
+        // Create IO
+        InformationObject io = mDatamodelFactory.createInformationObject();
+        io.setIdentifier(identifier);
 
-            // Write file in disk
-            FileOutputStream fos = new FileOutputStream(file);
+        // Add attributes to the new Information Object
+        addContentType(identifier, jsonObject);
+        addMetadata(identifier, jsonObject);
+        addLocators(io, jsonObject);
 
-            // move on Multipart
-            multipartStream.readHeaders();
-            multipartStream.readBodyData(fos);
+        // Add file path locator
+        addLocator(io, SailDefinedAttributeIdentification.FILE_PATH,
+                reader.getFile().getAbsolutePath());
 
-            // Close file stream
-            fos.flush();
-            fos.close();
+        // The next request for the object is answered locally
+        mWriteThrough.record(io, reader.getFile().getAbsolutePath(), reader.getFileSize());
 
-            // Add file path locator
-            Attribute locator = mDatamodelFactory.createAttribute();
-            locator.setAttributePurpose(DefinedAttributePurpose.LOCATOR_ATTRIBUTE.toString());
-            locator.setIdentification(SailDefinedAttributeIdentification.FILE_PATH.getURI());
-            locator.setValue(file.getAbsoluteFile());
+        // Return new Information Object created
+        return io;
+    }
 
-            // Add atributes
-            io.addAttribute(locator);
+    /**
+     * Adds the size of the received file to the metadata, unless the NRS already sent it.
+     *
+     * @param json
+     *      The JSON of the NRS response
+     * @param fileSize
+     *      The file size in bytes
+     */
+    @SuppressWarnings("unchecked")
+    private void addFilesize(JSONObject json, long fileSize) {
+        // Metadata looks like {"meta": {...}}
+        if (!(json.get("metadata") instanceof JSONObject)) {
+            json.put("metadata", new JSONObject());
+        }
+        JSONObject metadata = (JSONObject) json.get("metadata");
+        if (!(metadata.get("meta") instanceof JSONObject)) {
+            metadata.put("meta", new JSONObject());
+        }
+        JSONObject meta = (JSONObject) metadata.get("meta");
 
-            // Return new Information Object created
-            return io;
-        } catch (IOException e) {
-            throw new InvalidResponseException("Failed to read InformationObject from response", e);
+        String label = UProperties.INSTANCE.getPropertyWithName("metadata.filesize");
+        if (!meta.containsKey(label)) {
+            meta.put(label, String.valueOf(fileSize));
         }
     }
 
@@ -614,7 +726,14 @@ implements ResolutionService {
                 // Read IO and the File
                 return readIoAndFile(identifier, response);
 
-            // Everything else
+            // HTTP 404
+            case HttpStatus.SC_NOT_FOUND:
+                Log.d(TAG, statusCode + ": The NRS does not know the object");
+                // Do not ask again for a while
+                mResolutionCache.putNegative(getHashAlg(identifier), getHash(identifier));
+                throw new InvalidResponseException("Object not found");
+
+            // Everything else, server errors say nothing about the object
             default:
                 Log.w(TAG, statusCode + ": Unexpected Response Code");
                 throw new InvalidResponseException("Unexpected Response Code = " + statusCode);
@@ -634,23 +753,47 @@ implements ResolutionService {
     public InformationObject get(Identifier identifier) {
         Log.d(TAG, "Get information object from NRS.");
 
+        String hashAlg = getHashAlg(identifier);
+        String hash = getHash(identifier);
+
+        // Answer from the cache if the NRS was asked recently
+        CachedResolution cached = mResolutionCache.get(hashAlg, hash);
+        if (cached != null) {
+            if (cached.isNegative()) {
+                Log.d(TAG, "NRS recently did not know the object, returning null");
+                return null;
+            }
+            Log.d(TAG, "Information object found in the resolution cache.");
+            return readCachedIo(identifier, cached);
+        }
+
+        HttpResponse response = null;
+
         try {
             // Create NetInf GET request. Request looks like ni:///hash-alg;hash
-            String uri = "ni:///" + getHashAlg(identifier) + ";" + getHash(identifier);
-            HttpPost getRequest = createGet(uri);
-
-            // Setup HTTP client
-            HttpParams params = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
-            HttpConnectionParams.setSoTimeout(params, TIMEOUT);
-            HttpClient client = new DefaultHttpClient(params);
-            
-            // Execute NetInf GET request
-            HttpResponse response = client.execute(getRequest);
+            final String uri = "ni:///" + hashAlg + ";" + hash;
+
+            // Execute NetInf GET request on the shared client, hedged if the NRS is slow
+            response = mHttpClient.execute(new NrsRequest() {
+                @Override
+                public HttpUriRequest create(NrsEndpoint endpoint) throws IOException {
+                    return createGet(endpoint, uri);
+                }
+
+                @Override
+                public boolean isValid(HttpResponse response) {
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    return statusCode == HttpStatus.SC_OK
+                            || statusCode == HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION;
+                }
+            });
 
             // Handle the response
             InformationObject io = handleResponse(identifier, response);
 
+            // Remember the answer
+            cacheIo(hashAlg, hash, io);
+
             // Returns Information Object found
             return io;
         } catch (InvalidResponseException e) {
@@ -659,6 +802,9 @@ implements ResolutionService {
             Log.e(TAG, "get() failed, UnsupportedEncodingException, returning null");
         } catch (IOException e) {
             Log.e(TAG, "IOException: " + (e.getMessage() != null ? e.getMessage() : ""));
+        } finally {
+            // Give the connection back to the pool
+            mHttpClient.release(response);
         }
 
         Log.e(TAG, "get() failed. Returning null");
@@ -676,26 +822,59 @@ implements ResolutionService {
     }
 
     /**
-     * Publishes an object to the NRS.
+     * Queues an object to be published to the NRS. The publish is stored locally right
+     * away and sent in the background.
      *
      * @param io
      *      The Information Object to be published
      */
     @Override
     public void put(InformationObject io) {
-        // Try to publish to the NRS
+        Identifier identifier = io.getIdentifier();
+
+        // Everything needed to send the publish later
+        PendingPublish publish = new PendingPublish(
+                getHashAlg(identifier),
+                getHash(identifier),
+                getContentType(identifier),
+                getMetadata(identifier),
+                getBluetoothMac(io),
+                getFilePath(io));
+
+        // Queue the publish
         try {
-            // Create a new HTTP Post to publish
-            HttpPost post = createPublish(io);
-
-            // Setup HTTP client
-            HttpParams params = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
-            HttpConnectionParams.setSoTimeout(params, TIMEOUT);
-            HttpClient client = new DefaultHttpClient(params);
-            
-            // Execute HTTP request
-            HttpResponse response = client.execute(post);
+            mPublishOutbox.enqueue(publish);
+        } catch (SQLiteException e) {
+            throw new NetInfResolutionException("Unable to queue publish", e);
+        }
+    }
+
+    /**
+     * Sends a queued publish to the NRS.
+     *
+     * @param publish
+     *      The publish
+     * @return
+     *      true if the NRS created the object, false if it rejected it
+     * @throws IOException
+     *      In case the NRS could not be reached
+     */
+    private boolean publish(final PendingPublish publish) throws IOException {
+        HttpResponse response = null;
+
+        try {
+            // Execute HTTP request on the shared client, publishes are never sent twice
+            response = mHttpClient.executeWithFailover(new NrsRequest() {
+                @Override
+                public HttpUriRequest create(NrsEndpoint endpoint) throws IOException {
+                    return createPublish(endpoint, publish);
+                }
+
+                @Override
+                public boolean isValid(HttpResponse response) {
+                    return response.getStatusLine().getStatusCode() == HttpStatus.SC_CREATED;
+                }
+            });
 
             // Get status code
             int status = response.getStatusLine().getStatusCode();
@@ -703,36 +882,42 @@ implements ResolutionService {
             // Check if object was created
             if (status != HttpStatus.SC_CREATED) {
                 Log.e(TAG, "Publish to NRS failed, status code: " + status);
+                return false;
             }
-        } catch (UnsupportedEncodingException e) {
-            throw new NetInfResolutionException("Encoding not supported", e);
-        } catch (IOException e) {
-            throw new NetInfResolutionException("Unable to connect to NRS", e);
+
+            // The NRS knows a new locator now
+            mResolutionCache.invalidate(publish.getHashAlg(), publish.getHash());
+            return true;
+        } finally {
+            // Give the connection back to the pool
+            mHttpClient.release(response);
         }
     }
 
     /**
      * Creates an HTTP POST representation of a NetInf PUBLISH message.
      *
-     * @param io
-     *     The information object to publish
+     * @param endpoint
+     *     The NRS the message is sent to
+     * @param publish
+     *     The queued publish
      * @return
      *     A HttpPost representing the NetInf PUBLISH message
      * @throws UnsupportedEncodingException
      *     In case the encoding is not supported
      */
-    private HttpPost createPublish(InformationObject io)
+    private HttpPost createPublish(NrsEndpoint endpoint, PendingPublish publish)
             throws UnsupportedEncodingException {
-        // Extracting attributes from IO's identifier
-        String hashAlg = getHashAlg(io.getIdentifier());
-        String hash = getHash(io.getIdentifier());
-        String contentType = getContentType(io.getIdentifier());
-        String meta = getMetadata(io.getIdentifier());
-        String bluetoothMac = getBluetoothMac(io);
-        String filePath = getFilePath(io);
+        // Extracting attributes from the queued publish
+        String hashAlg = publish.getHashAlg();
+        String hash = publish.getHash();
+        String contentType = publish.getContentType();
+        String meta = publish.getMetadata();
+        String bluetoothMac = publish.getLocator();
+        String filePath = publish.getFilePath();
 
         // Creates a new post. Looks like http://host:port/netinfproto/publish
-        HttpPost post = new HttpPost(HTTP + getHost() + ":" + getPort() + "/netinfproto/publish");
+        HttpPost post = new HttpPost(endpoint.getUri("/netinfproto/publish"));
 
         // Create a multipart entity
         MultipartEntity entity = new MultipartEntity();
@@ -758,11 +943,28 @@ implements ResolutionService {
             entity.addPart("ext", ext);
         }
 
-        // Add fullput and octets
-        if (filePath != null) {
+        // Add fullput and octets, unless the file was removed while queued
+        ContentBody octets = null;
+        File file = filePath == null ? null : new File(filePath);
+        if (file != null && file.exists() && !ContentStore.isCompressed(file)) {
+            octets = new FileBody(file);
+        } else if (file != null) {
+            // The NRS gets the uncompressed content, the file may also have been packed
+            try {
+                ByteBuffer data = mContentStore.getBuffer(hash);
+                if (data != null) {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    octets = new ByteArrayBody(bytes, "application/octet-stream",
+                            mContentStore.getFile(hash).getName());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read the packed object: " + e.getMessage());
+            }
+        }
+        if (octets != null) {
             StringBody fullPut = new StringBody("true");
             entity.addPart("fullPut", fullPut);
-            FileBody octets = new FileBody(new File(filePath));
             entity.addPart("octets", octets);
         }
 
@@ -787,6 +989,8 @@ implements ResolutionService {
     /**
      * Creates an HTTP Post request to get an IO from the NRS.
      *
+     * @param endpoint
+     *      The NRS the request is sent to
      * @param uri
      *      The NetInf format URI for getting IOs
      * @return
@@ -794,9 +998,10 @@ implements ResolutionService {
      * @throws UnsupportedEncodingException
      *      In case UTF-8 is not supported
      */
-    private HttpPost createGet(String uri) throws UnsupportedEncodingException {
+    private HttpPost createGet(NrsEndpoint endpoint, String uri)
+            throws UnsupportedEncodingException {
         // Create a new post, with url = http://host:port/netinfproto/get
-        HttpPost post = new HttpPost(HTTP + getHost() + ":" + getPort() + "/netinfproto/get");
+        HttpPost post = new HttpPost(endpoint.getUri("/netinfproto/get"));
 
         // Get message id and ext
         String msgid = Integer.toString(mRandomGenerator.nextInt(MSG_ID_MAX));
@@ -0,0 +1,397 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.resolution;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import netinf.common.datamodel.Identifier;
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.identity.ResolutionServiceIdentityObject;
+import netinf.common.exceptions.NetInfResolutionException;
+import netinf.node.resolution.ResolutionService;
+import netinf.node.resolution.eventprocessing.EventPublisher;
+import netinf.node.resolution.impl.ResolutionControllerImplWithoutSecurity;
+import project.cs.netinfservice.netinf.common.datamodel.SailDefinedAttributeIdentification;
+import project.cs.netinfservice.netinf.node.resolution.AdaptiveResolutionServiceSelector.Operation;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A resolution controller that queries the resolution services concurrently instead of
+ * one after another. The service the selector ranks first, the local one by default, gets
+ * a head start, so a local hit never waits for the network. When it misses or is slow the
+ * other services are queried as well.
+ * <p>
+ * The first information object with a file locator wins right away, the object is then
+ * already stored on this node. Otherwise all services are waited for and the first object
+ * found is returned, even if it only has bluetooth locators. The services still running
+ * when the query is decided are cancelled.
+ * <p>
+ * With racing turned off the services are queried one after another as before.
+ * <p>
+ * The time every get and put takes is reported to the selector, which orders the
+ * services by it.
+ */
+public class RacingResolutionController extends ResolutionControllerImplWithoutSecurity {
+
+    /** Debug tag. */
+    private static final String TAG = "RacingResolutionController";
+
+    /** The registered resolution services by their identity. */
+    private final Map<ResolutionServiceIdentityObject, ResolutionService> mServices =
+            new ConcurrentHashMap<ResolutionServiceIdentityObject, ResolutionService>();
+
+    /** Orders the resolution services by what has been observed about them. */
+    private final AdaptiveResolutionServiceSelector mSelector;
+
+    /** Runs the queries of the resolution services. */
+    private final ExecutorService mQueries;
+
+    /** True if the resolution services are queried concurrently. */
+    private final boolean mRace;
+
+    /** Time in ms the first resolution service runs alone. */
+    private final long mHeadStart;
+
+    /**
+     * Creates a new racing resolution controller.
+     *
+     * @param selector
+     *      Orders the resolution services by what has been observed about them
+     * @param race
+     *      True if the resolution services are queried concurrently
+     * @param headStart
+     *      Time in ms the first resolution service runs alone
+     */
+    @Inject
+    public RacingResolutionController(AdaptiveResolutionServiceSelector selector,
+            @Named("resolution.race") boolean race,
+            @Named("resolution.race.head_start") long headStart) {
+        super(selector);
+        mSelector = selector;
+        mRace = race;
+        mHeadStart = Math.max(headStart, 0);
+        mQueries = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-query");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void addResolutionService(ResolutionService resolutionService) {
+        // Queries in priority order and puts are measured on the way through
+        super.addResolutionService(new MeasuredResolutionService(resolutionService));
+        mServices.put(resolutionService.getIdentity(), resolutionService);
+    }
+
+    @Override
+    public void removeResolutionService(ResolutionService resolutionService) {
+        super.removeResolutionService(resolutionService);
+        mServices.remove(resolutionService.getIdentity());
+    }
+
+    @Override
+    public void removeResolutionService(ResolutionServiceIdentityObject identity) {
+        super.removeResolutionService(identity);
+        mServices.remove(identity);
+    }
+
+    @Override
+    public InformationObject get(Identifier identifier,
+            List<ResolutionServiceIdentityObject> resolutionServicesToUse,
+            String userName, String privateKey) {
+        if (!mRace || resolutionServicesToUse.size() < 2) {
+            return super.get(identifier, resolutionServicesToUse, userName, privateKey);
+        }
+
+        // Look up the services before anything is started
+        List<ResolutionService> services = new ArrayList<ResolutionService>();
+        for (ResolutionServiceIdentityObject identity : resolutionServicesToUse) {
+            ResolutionService service = mServices.get(identity);
+            if (service == null) {
+                throw new NetInfResolutionException(
+                        "The requested resolution service is not registered in the resolution"
+                        + " controller");
+            }
+            services.add(service);
+        }
+
+        return race(identifier, services);
+    }
+
+    /**
+     * Queries the resolution services concurrently.
+     *
+     * @param identifier
+     *      The identifier to resolve
+     * @param services
+     *      The resolution services, the first one gets a head start
+     * @return
+     *      The first information object with a file locator, otherwise the first one found,
+     *      null if no service found one
+     */
+    private InformationObject race(Identifier identifier, List<ResolutionService> services) {
+        CompletionService<InformationObject> completion =
+                new ExecutorCompletionService<InformationObject>(mQueries);
+        Map<Future<InformationObject>, Attempt> running =
+                new HashMap<Future<InformationObject>, Attempt>();
+
+        InformationObject found = null;
+        int next = 0;
+
+        // The first service runs alone for a while
+        start(completion, running, identifier, services.get(next++));
+        long headStartEnd = System.currentTimeMillis() + mHeadStart;
+
+        try {
+            while (!running.isEmpty()) {
+                Future<InformationObject> done;
+
+                // Start the others once the head start is over
+                if (next < services.size()) {
+                    long wait = headStartEnd - System.currentTimeMillis();
+                    done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (done == null) {
+                        while (next < services.size()) {
+                            start(completion, running, identifier, services.get(next++));
+                        }
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+
+                ResolutionService service = running.remove(done).mService;
+                try {
+                    InformationObject io = done.get();
+                    if (hasFileLocator(io)) {
+                        Log.d(TAG, service.describe() + " won the resolution");
+                        return io;
+                    }
+                    // Keep the first object in case no service has the file
+                    if (found == null) {
+                        found = io;
+                    }
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Could not use resolution service " + service.describe()
+                            + ": " + e.getCause());
+                }
+
+                // Nothing to wait for on the first service, start the others right away
+                while (running.isEmpty() && next < services.size()) {
+                    start(completion, running, identifier, services.get(next++));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Cancel the stragglers
+            for (Map.Entry<Future<InformationObject>, Attempt> entry : running.entrySet()) {
+                entry.getValue().abort();
+                entry.getKey().cancel(true);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Starts querying a resolution service.
+     *
+     * @param completion
+     *      Collects the results
+     * @param running
+     *      The queries in flight
+     * @param identifier
+     *      The identifier to resolve
+     * @param service
+     *      The resolution service
+     */
+    private void start(CompletionService<InformationObject> completion,
+            Map<Future<InformationObject>, Attempt> running, Identifier identifier,
+            ResolutionService service) {
+        Log.d(TAG, "Trying to resolve over " + service.describe());
+        Attempt attempt = new Attempt(identifier, service);
+        running.put(completion.submit(attempt), attempt);
+    }
+
+    /**
+     * Checks if an information object points to a file on this node.
+     *
+     * @param io
+     *      The information object, may be null
+     * @return
+     *      True if the object has a file locator
+     */
+    private boolean hasFileLocator(InformationObject io) {
+        return io != null && io.getSingleAttribute(
+                SailDefinedAttributeIdentification.FILE_PATH.getURI()) != null;
+    }
+
+    /**
+     * A query of a resolution service during a race, measured unless it is cancelled.
+     */
+    private class Attempt implements Callable<InformationObject> {
+        /** The identifier to resolve. */
+        private final Identifier mIdentifier;
+
+        /** The resolution service. */
+        private final ResolutionService mService;
+
+        /** Time in ms the attempt was created. */
+        private final long mStarted = System.currentTimeMillis();
+
+        /** True once the attempt has finished or was cancelled. */
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        /**
+         * Creates a new attempt.
+         *
+         * @param identifier
+         *      The identifier to resolve
+         * @param service
+         *      The resolution service
+         */
+        public Attempt(Identifier identifier, ResolutionService service) {
+            mIdentifier = identifier;
+            mService = service;
+        }
+
+        @Override
+        public InformationObject call() {
+            InformationObject io = null;
+            try {
+                io = mService.get(mIdentifier);
+                return io;
+            } finally {
+                if (mFinished.compareAndSet(false, true)) {
+                    mSelector.record(mService.getIdentity(), Operation.GET,
+                            System.currentTimeMillis() - mStarted, io != null);
+                }
+            }
+        }
+
+        /**
+         * Records that the attempt was cancelled, the service took at least this long.
+         */
+        public void abort() {
+            if (mFinished.compareAndSet(false, true)) {
+                mSelector.recordAborted(mService.getIdentity(), Operation.GET,
+                        System.currentTimeMillis() - mStarted);
+            }
+        }
+    }
+
+    /**
+     * A resolution service reporting the time its gets and puts take to the selector.
+     */
+    private class MeasuredResolutionService implements ResolutionService {
+        /** The measured resolution service. */
+        private final ResolutionService mService;
+
+        /**
+         * Creates a new measured resolution service.
+         *
+         * @param service
+         *      The measured resolution service
+         */
+        public MeasuredResolutionService(ResolutionService service) {
+            mService = service;
+        }
+
+        @Override
+        public InformationObject get(Identifier identifier) {
+            long started = System.currentTimeMillis();
+            InformationObject io = null;
+            try {
+                io = mService.get(identifier);
+                return io;
+            } finally {
+                mSelector.record(getIdentity(), Operation.GET,
+                        System.currentTimeMillis() - started, io != null);
+            }
+        }
+
+        @Override
+        public void put(InformationObject io) {
+            long started = System.currentTimeMillis();
+            boolean stored = false;
+            try {
+                mService.put(io);
+                stored = true;
+            } finally {
+                mSelector.record(getIdentity(), Operation.PUT,
+                        System.currentTimeMillis() - started, stored);
+            }
+        }
+
+        @Override
+        public List<Identifier> getAllVersions(Identifier identifier) {
+            return mService.getAllVersions(identifier);
+        }
+
+        @Override
+        public void delete(Identifier identifier) {
+            mService.delete(identifier);
+        }
+
+        @Override
+        public void addEventService(EventPublisher eventPublisher) {
+            mService.addEventService(eventPublisher);
+        }
+
+        @Override
+        public ResolutionServiceIdentityObject getIdentity() {
+            return mService.getIdentity();
+        }
+
+        @Override
+        public String describe() {
+            return mService.describe();
+        }
+    }
+}
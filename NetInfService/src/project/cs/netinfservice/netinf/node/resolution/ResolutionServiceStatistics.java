@@ -0,0 +1,157 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.resolution;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What has been observed about one kind of request to a resolution service.
+ * <p>
+ * The latency is smoothed like the one of a NRS endpoint. The answer rate is the smoothed
+ * share of requests that produced an answer, in per mille. Dividing the latency by it gives
+ * the expected time until the service answers, which is used to order the services.
+ */
+public class ResolutionServiceStatistics {
+    /** Answer rate in per mille of a service that always answers. */
+    private static final int ALWAYS = 1000;
+
+    /** Lowest answer rate used for the expected time, so it stays finite. */
+    private static final int MIN_ANSWER_RATE = 10;
+
+    /** Smoothed latency in ms, -1 until the first request. */
+    private long mLatency = -1;
+
+    /** Smoothed answer rate in per mille. */
+    private int mAnswerRate = ALWAYS;
+
+    /** Number of requests that produced an answer. */
+    private long mAnswers;
+
+    /** Number of requests without an answer or failed. */
+    private long mMisses;
+
+    /** Number of requests cancelled before they finished. */
+    private long mAborted;
+
+    /** Time in ms of the last request, or of the last probe of a skipped service. */
+    private long mLastAttempt;
+
+    /**
+     * Records a finished request.
+     *
+     * @param latency
+     *      Time in ms the request took
+     * @param answered
+     *      True if the request produced an answer
+     */
+    public synchronized void record(long latency, boolean answered) {
+        mLatency = mLatency < 0 ? latency : (7 * mLatency + latency) / 8;
+        mAnswerRate = (7 * mAnswerRate + (answered ? ALWAYS : 0)) / 8;
+        if (answered) {
+            mAnswers++;
+        } else {
+            mMisses++;
+        }
+        mLastAttempt = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a request that was cancelled before it finished. It would have taken at least
+     * the given time, so the estimate is raised if it is lower.
+     *
+     * @param elapsed
+     *      Time in ms the request had been running
+     */
+    public synchronized void recordAborted(long elapsed) {
+        if (elapsed > mLatency) {
+            mLatency = mLatency < 0 ? elapsed : (7 * mLatency + elapsed) / 8;
+        }
+        mAborted++;
+        mLastAttempt = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the expected time until the service answers, lower is better.
+     *
+     * @param initial
+     *      The latency in ms to assume before anything has been observed
+     * @return
+     *      The time in ms
+     */
+    public synchronized long getExpectedTime(long initial) {
+        long latency = mLatency < 0 ? initial : mLatency;
+        return latency * ALWAYS / Math.max(mAnswerRate, MIN_ANSWER_RATE);
+    }
+
+    /**
+     * Checks if the service should be skipped because it is expected to take too long.
+     * A skipped service is still tried once per probe interval, so it can recover.
+     *
+     * @param initial
+     *      The latency in ms to assume before anything has been observed
+     * @param maxExpectedTime
+     *      Longest expected time in ms of a service that is not skipped
+     * @param probeInterval
+     *      Time in ms after which a skipped service is tried again
+     * @return
+     *      True if the service should be skipped
+     */
+    public synchronized boolean shouldSkip(long initial, long maxExpectedTime,
+            long probeInterval) {
+        if (getExpectedTime(initial) <= maxExpectedTime) {
+            return false;
+        }
+
+        // Let one request through to see if the service got better
+        long now = System.currentTimeMillis();
+        if (now - mLastAttempt >= probeInterval) {
+            mLastAttempt = now;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets what has been observed.
+     *
+     * @param initial
+     *      The latency in ms to assume before anything has been observed
+     * @return
+     *      The statistics by name
+     */
+    public synchronized Map<String, Long> getStatistics(long initial) {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("latency", mLatency);
+        statistics.put("answer_rate", (long) mAnswerRate);
+        statistics.put("expected_time", getExpectedTime(initial));
+        statistics.put("answers", mAnswers);
+        statistics.put("misses", mMisses);
+        statistics.put("aborted", mAborted);
+        return statistics;
+    }
+}
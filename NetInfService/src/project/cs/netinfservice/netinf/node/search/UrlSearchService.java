@@ -27,6 +27,7 @@
 package project.cs.netinfservice.netinf.node.search;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.HashSet;
@@ -44,26 +45,22 @@ import netinf.node.search.impl.events.SearchServiceResultEvent;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
-import project.cs.netinfservice.application.MainNetInfActivity;
 import project.cs.netinfservice.application.MainNetInfApplication;
 import project.cs.netinfservice.database.DatabaseException;
 import project.cs.netinfservice.database.IODatabase;
 import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.node.nrs.NrsEndpoint;
+import project.cs.netinfservice.netinf.node.nrs.NrsHttpClient;
+import project.cs.netinfservice.netinf.node.nrs.NrsRequest;
 import project.cs.netinfservice.util.IdentifierBuilder;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.google.inject.Inject;
@@ -79,24 +76,9 @@ public class UrlSearchService implements SearchService {
     /** Log Tag. */
     private static final String TAG = "UrlSearchService";
 
-    /** Key for accessing the NRS IP. */
-    private static final String PREF_KEY_NRS_IP = "pref_key_nrs_ip";
-
-    /** Key for accessing the NRS Port. */
-    private static final String PREF_KEY_NRS_PORT = "pref_key_nrs_port";
-
     /** Message ID random value max. */
     public static final int MSG_ID_MAX = 100000000;
 
-    /** HTTP Scheme. */
-    private static final String HTTP = "http://";
-
-    /** NRS IP address. **/
-    private String mDefaultHost;
-
-    /** NRS port. **/
-    private String mDefaultPort;
-
     /** DatamodelFactory used to create identifiers. */
     private DatamodelFactory mDatamodelFactory;
 
@@ -112,35 +94,34 @@ public class UrlSearchService implements SearchService {
     /** Linus does not play instruments. But he TIMES OUT. */
     private int mTimeout;
 
+    /** The HTTP client shared by all NRS traffic. */
+    private final NrsHttpClient mHttpClient;
+
     /**
      * Creates a new instance of this class.
      * 
-     * @param host
-     *      Default NRS Address from property file
-     * @param port
-     *      Default NRS Port from property file
      * @param timeout,
      *      Default NRS timeout from property file
      * @param datamodelFactory
      *      The DatamodelFactory to use when creating identifiers
      * @param databaseFactory
      *      The IODatabaseFactory to use when accessing the local SQLite DB
+     * @param httpClient
+     *      The HTTP client shared by all NRS traffic
      */
     @Inject
     public UrlSearchService(
-            @Named("nrs.http.host") String host,
-            @Named("nrs.http.port") int port,
             @Named("nrs.http.search.timeout") int timeout,
             final DatamodelFactory datamodelFactory,
-            IODatabaseFactory databaseFactory) {
+            IODatabaseFactory databaseFactory,
+            NrsHttpClient httpClient) {
         // Initialize private variables
-        mDefaultHost = host;
-        mDefaultPort = Integer.toString(port);
         mDatamodelFactory = datamodelFactory;
 
         // Grabs Android's SQLite database
         mDatabase = databaseFactory.create(MainNetInfApplication.getAppContext());
         mTimeout = timeout;
+        mHttpClient = httpClient;
     }
 
     /**
@@ -186,33 +167,32 @@ public class UrlSearchService implements SearchService {
 
         // Search in the NRS
         Set<Identifier> results = new HashSet<Identifier>();
+        HttpResponse response = null;
 
         try {
-            // HTTP Params
-            HttpParams params = new BasicHttpParams();
-            
-            // Sets timeout accordingly
-            HttpConnectionParams.setConnectionTimeout(params, mTimeout);
-            HttpConnectionParams.setSoTimeout(params, mTimeout);
-            
-            // Create a new HTTP Client
-            HttpClient client = new DefaultHttpClient(params);
-            
-            // Creates a HTTP post for search
-            Log.e(TAG, "x");
-            HttpPost search = createSearch(url);
-
-            Log.e(TAG, "y");
-            // Executes HTTP post
-            HttpResponse response = client.execute(search);
-
-            Log.e(TAG, "z");
+            // Executes HTTP post on the shared client, searches have their own timeout
+            final String token = url;
+            response = mHttpClient.execute(new NrsRequest() {
+                @Override
+                public HttpUriRequest create(NrsEndpoint endpoint) throws IOException {
+                    return createSearch(endpoint, token);
+                }
+
+                @Override
+                public boolean isValid(HttpResponse response) {
+                    return response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+                }
+            }, mTimeout);
+
             // Handles HTTP response
             results = handleResponse(response);
 
             Log.d(TAG, "Search found the url in the NRS");
         } catch (Exception e) {
             Log.e(TAG, "Search in NRS didn't find anything or failed: " + e.getClass());
+        } finally {
+            // Give the connection back to the pool
+            mHttpClient.release(response);
         }
 
         // This sends the search results to the search controller, covering two scenarios:
@@ -367,6 +347,8 @@ public class UrlSearchService implements SearchService {
     /**
      * Creates the search request that is going to be sent to the NRS.
      * 
+     * @param endpoint
+     *      The NRS the request is sent to
      * @param url
      *      URL that is going to be searched for
      * @return
@@ -374,9 +356,10 @@ public class UrlSearchService implements SearchService {
      * @throws UnsupportedEncodingException
      *      In case UTF-8 is not supported
      */
-    private HttpPost createSearch(String url) throws UnsupportedEncodingException {
+    private HttpPost createSearch(NrsEndpoint endpoint, String url)
+            throws UnsupportedEncodingException {
         // Create URI to look like http://host:port/netinfproto/search
-        String uri = HTTP + getHost() + ":" + getPort() + "/netinfproto/search";
+        String uri = endpoint.getUri("/netinfproto/search");
 
         // Create the HTTP Post object with the uri from above
         HttpPost post = new HttpPost(uri);
@@ -415,38 +398,6 @@ public class UrlSearchService implements SearchService {
         return post;
     }
 
-    /**
-     * Get the NRS Address.
-     * 
-     * @return
-     *      The IP Address of the NRS
-     */
-    private String getHost() {
-        // Get shared preferences from Android phone
-        SharedPreferences sharedPreferences =
-                PreferenceManager.getDefaultSharedPreferences(MainNetInfActivity.getActivity());
-
-        // Returns NRS IP. If the IP is not stored into the shared preferences,
-        // the function returns mDefaultHost, which is the NRS IP stored in this class.
-        return sharedPreferences.getString(PREF_KEY_NRS_IP, mDefaultHost);
-    }
-
-    /**
-     * Get the NRS port.
-     * 
-     * @return
-     *      The port of the NRS
-     */
-    private int getPort() {
-        // Get shared preferences from Android phone
-        SharedPreferences sharedPreferences =
-                PreferenceManager.getDefaultSharedPreferences(MainNetInfActivity.getActivity());
-        
-        // Returns NRS PORT. If the PORT is not stored into the shared preferences,
-        // the function returns mDefaultPort, which is the NRS PORT stored in this class.
-        return Integer.parseInt(sharedPreferences.getString(PREF_KEY_NRS_PORT, mDefaultPort));
-    }
-
     /**
      * Function not supported but required to be implemented to comply with the Search Service
      * interface. We do not implement the RDF database (our project runs on SQLite), thus turning
@@ -0,0 +1,848 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import project.cs.netinfservice.util.NiHash;
+import project.cs.netinfutilities.store.CompressionPolicy;
+import project.cs.netinfutilities.store.StoreLayout;
+import android.os.Environment;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * The files of the objects stored on this node, kept in the shared folder by their hash.
+ * <p>
+ * The files are spread over two levels of directories named after the first two bytes of
+ * the hash in hex, like <code>ab/cd/&lt;hash&gt;</code>, so that no directory grows large
+ * enough to slow down lookups. Slashes in the hash are replaced in the file name. The
+ * applications write into the same layout, it is defined by {@link StoreLayout}.
+ * <p>
+ * Files are written to a temporary file in the shared folder and renamed into place, so
+ * a stored file is always complete.
+ * <p>
+ * Earlier versions put the files directly into the shared folder, at the path
+ * <code>&lt;shared folder&gt;&lt;hash&gt;</code>. Such files are still found and listed
+ * until {@link #migrate()} has moved them into place.
+ * <p>
+ * Small objects are moved from their files into the {@link PackStore} in the pack folder
+ * by {@link #pack(String)}. A packed object has no file of its own, it is read with
+ * {@link #getBuffer(String)} or {@link #openStream(String)}. Code that needs a file, like
+ * the application displaying it, gets a copy at the usual path from
+ * {@link #materialize(String)}, which is packed again later.
+ * <p>
+ * Text content, like HTML, CSS, JavaScript and JSON, can be stored gzip compressed in a
+ * file with the suffix <code>.gz</code>. The hash is always over the uncompressed
+ * content. The accessors decompress on the fly, and {@link #getCompressedBuffer(String)}
+ * gives the compressed form to send to peers that accept it.
+ * <p>
+ * Downloads that have not completed are kept in the folder <code>.partial</code> by
+ * {@link #openPartial(String)}, so a later attempt continues where the last one stopped.
+ */
+public class ContentStore {
+    /** Debug tag. */
+    private static final String TAG = "ContentStore";
+
+    /** Prefix of the temporary files. */
+    private static final String TEMPORARY_PREFIX = ".";
+
+    /** Suffix of the temporary files. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** Name of the folder of the packs, inside the shared folder. */
+    private static final String PACK_DIRECTORY = ".packs";
+
+    /** Name of the folder of the downloads that have not completed, inside the shared folder. */
+    private static final String PARTIAL_DIRECTORY = ".partial";
+
+    /** Suffix of the content of a download that has not completed. */
+    private static final String PART_SUFFIX = ".part";
+
+    /** Suffix of the record of the ranges received by a download. */
+    private static final String RANGES_SUFFIX = ".ranges";
+
+    /** Matches the relative paths of files in place. */
+    private static final Pattern SHARDED_PATH = Pattern.compile("[0-9a-f]{2}/[0-9a-f]{2}/[^/]+");
+
+    /** The shared folder. */
+    private final File mRoot;
+
+    /** Objects smaller than this many bytes are packed. */
+    private final int mPackThreshold;
+
+    /** The small objects. */
+    private final PackStore mPacks;
+
+    /** Decides which objects are stored compressed. */
+    private final CompressionPolicy mCompression;
+
+    /**
+     * Creates the store in the shared folder on the external storage.
+     *
+     * @param sharedFolder
+     *      The shared folder, relative to the external storage
+     * @param packThreshold
+     *      Objects smaller than this many bytes are packed
+     * @param maxPackSize
+     *      Size in bytes at which a pack is full
+     * @param compressedTypes
+     *      Comma separated prefixes of the content types stored compressed, empty to store
+     *      all content uncompressed
+     * @param minCompressedSize
+     *      Objects smaller than this many bytes are not compressed
+     */
+    @Inject
+    public ContentStore(@Named("sharing.folder") String sharedFolder,
+            @Named("store.pack.threshold") int packThreshold,
+            @Named("store.pack.max_size") long maxPackSize,
+            @Named("store.compression.types") String compressedTypes,
+            @Named("store.compression.min_size") int minCompressedSize) {
+        this(new File(Environment.getExternalStorageDirectory() + sharedFolder),
+                packThreshold, maxPackSize, compressedTypes, minCompressedSize);
+    }
+
+    /**
+     * Creates the store in a folder.
+     *
+     * @param root
+     *      The folder
+     * @param packThreshold
+     *      Objects smaller than this many bytes are packed
+     * @param maxPackSize
+     *      Size in bytes at which a pack is full
+     * @param compressedTypes
+     *      Comma separated prefixes of the content types stored compressed, empty to store
+     *      all content uncompressed
+     * @param minCompressedSize
+     *      Objects smaller than this many bytes are not compressed
+     */
+    public ContentStore(File root, int packThreshold, long maxPackSize,
+            String compressedTypes, int minCompressedSize) {
+        mRoot = root.getAbsoluteFile();
+        mPackThreshold = packThreshold;
+        mPacks = new PackStore(new File(mRoot, PACK_DIRECTORY), maxPackSize);
+        mCompression = new CompressionPolicy(compressedTypes, minCompressedSize);
+    }
+
+    /**
+     * Gets the shared folder.
+     *
+     * @return
+     *      The folder all stored files are in
+     */
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Gets the packs of the small objects.
+     *
+     * @return
+     *      The pack store
+     */
+    public PackStore getPacks() {
+        return mPacks;
+    }
+
+    /**
+     * Gets the file an object is stored in, whether it is stored or not.
+     * Packed objects have no file at this path unless they were materialized.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The file
+     */
+    public File getFile(String hash) {
+        return new File(mRoot, StoreLayout.getRelativePath(hash));
+    }
+
+    /**
+     * Gets the file an object is stored in if it is compressed.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The file
+     */
+    public File getCompressedFile(String hash) {
+        return new File(mRoot,
+                StoreLayout.getRelativePath(hash) + StoreLayout.COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Checks if a file of the store holds compressed content.
+     *
+     * @param file
+     *      The file
+     * @return
+     *      True if the content must be decompressed
+     */
+    public static boolean isCompressed(File file) {
+        return StoreLayout.isCompressed(file);
+    }
+
+    /**
+     * Finds the file of a stored object, also where earlier versions put it.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The file, or null if the object is not stored
+     */
+    public File find(String hash) {
+        File file = getFile(hash);
+        if (file.isFile()) {
+            return file;
+        }
+
+        File compressed = getCompressedFile(hash);
+        if (compressed.isFile()) {
+            return compressed;
+        }
+
+        File legacy = new File(mRoot, hash);
+        if (legacy.isFile()) {
+            return legacy;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if an object is packed.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      True if the object is packed
+     */
+    public boolean isPacked(String hash) {
+        try {
+            return mPacks.contains(hash);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open the packs: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Checks if an object is stored, in a file or packed.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      True if the object is stored
+     */
+    public boolean contains(String hash) {
+        return find(hash) != null || isPacked(hash);
+    }
+
+    /**
+     * Gets the length of a stored object.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The length in bytes, or -1 if the object is not stored
+     */
+    public long getLength(String hash) {
+        File file = find(hash);
+        if (file != null) {
+            return getContentLength(file);
+        }
+        try {
+            return mPacks.getLength(hash);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open the packs: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a stored object, from the packs if it is packed.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The content, or null if the object is not stored
+     * @throws IOException
+     *      In case the object could not be read
+     */
+    public ByteBuffer getBuffer(String hash) throws IOException {
+        ByteBuffer buffer = mPacks.getBuffer(hash);
+        if (buffer != null) {
+            return buffer;
+        }
+
+        File file = find(hash);
+        return file == null ? null : ByteBuffer.wrap(readContent(file));
+    }
+
+    /**
+     * Reads the compressed form of an object, if it is stored compressed.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The gzip compressed content, or null if the object is not stored compressed
+     * @throws IOException
+     *      In case the object could not be read
+     */
+    public ByteBuffer getCompressedBuffer(String hash) throws IOException {
+        File file = find(hash);
+        if (file == null || !isCompressed(file)) {
+            return null;
+        }
+        return ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+    }
+
+    /**
+     * Opens a stored object for reading, from the packs if it is packed.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The stream, or null if the object is not stored
+     * @throws IOException
+     *      In case the object could not be opened
+     */
+    public InputStream openStream(String hash) throws IOException {
+        ByteBuffer buffer = mPacks.getBuffer(hash);
+        if (buffer != null) {
+            return new ByteArrayInputStream(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+
+        File file = find(hash);
+        return file == null ? null : StoreLayout.openContent(file);
+    }
+
+    /**
+     * Gets a file with the content of a stored object, copying a packed object to its
+     * usual path. The file may be compressed, see {@link #isCompressed(File)}.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The file, or null if the object is not stored
+     * @throws IOException
+     *      In case the packed object could not be copied
+     */
+    public File materialize(String hash) throws IOException {
+        File file = find(hash);
+        if (file != null) {
+            return file;
+        }
+
+        ByteBuffer buffer = mPacks.getBuffer(hash);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return write(hash, data);
+    }
+
+    /**
+     * Moves a small object from its file into the packs. Objects that are too large, or
+     * whose hash is not a full SHA-256 digest, are left alone.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      True if the object was packed and its file deleted
+     * @throws IOException
+     *      In case the object could not be packed
+     */
+    public boolean pack(String hash) throws IOException {
+        File file = find(hash);
+        if (file == null || getContentLength(file) >= mPackThreshold
+                || NiHash.toBytes(hash) == null || !mPacks.append(hash, readContent(file))) {
+            return false;
+        }
+        return file.delete();
+    }
+
+    /**
+     * Checks if an object is small enough to be packed.
+     *
+     * @param length
+     *      The length of the object in bytes
+     * @return
+     *      True if the object would be packed
+     */
+    public boolean isPackable(long length) {
+        return length < mPackThreshold;
+    }
+
+    /**
+     * Removes a stored object, its file as well as its packed copy.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      True if no copy is left
+     */
+    public boolean remove(String hash) {
+        boolean removed = true;
+        File file;
+        while ((file = find(hash)) != null) {
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+                removed = false;
+                break;
+            }
+        }
+
+        try {
+            mPacks.remove(hash);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to remove " + hash + " from the packs: " + e.getMessage());
+            removed = false;
+        }
+        return removed;
+    }
+
+    /**
+     * Lists the packed objects.
+     *
+     * @return
+     *      The length of each packed object by hash
+     * @throws IOException
+     *      In case the packs could not be opened
+     */
+    public Map<String, Long> listPacked() throws IOException {
+        return mPacks.list();
+    }
+
+    /**
+     * Creates an empty temporary file to be written and then committed.
+     *
+     * @return
+     *      The temporary file
+     * @throws IOException
+     *      In case the file could not be created
+     */
+    public File createTempFile() throws IOException {
+        if (!mRoot.isDirectory() && !mRoot.mkdirs()) {
+            throw new IOException("Unable to create " + mRoot);
+        }
+        return File.createTempFile(TEMPORARY_PREFIX + "object", TEMPORARY_SUFFIX, mRoot);
+    }
+
+    /**
+     * Moves a written temporary file into place. The temporary file is deleted if it can
+     * not be moved.
+     *
+     * @param temp
+     *      The temporary file
+     * @param hash
+     *      The content hash of the file
+     * @return
+     *      The stored file
+     * @throws IOException
+     *      In case the file could not be moved
+     */
+    public File commit(File temp, String hash) throws IOException {
+        return moveInto(temp, getFile(hash));
+    }
+
+    /**
+     * Moves a written temporary file into place, compressed if its content type is
+     * compressible and compressing pays off. The file is compressed from disk, so the
+     * object never has to fit in memory. If the object is already stored the temporary
+     * file is deleted.
+     *
+     * @param temp
+     *      The temporary file
+     * @param hash
+     *      The content hash of the file, over the uncompressed content
+     * @param contentType
+     *      The content type, may be null
+     * @return
+     *      The stored file
+     * @throws IOException
+     *      In case the file could not be compressed or moved
+     */
+    public File commit(File temp, String hash, String contentType) throws IOException {
+        File stored = find(hash);
+        if (stored != null) {
+            temp.delete();
+            return stored;
+        }
+
+        long length = temp.length();
+        if (!isCompressible(contentType, length)) {
+            return commit(temp, hash);
+        }
+
+        File compressed = createTempFile();
+        try {
+            StoreLayout.compress(temp, compressed);
+        } catch (IOException e) {
+            compressed.delete();
+            temp.delete();
+            throw e;
+        }
+        if (!mCompression.isWorthKeeping(compressed.length(), length)) {
+            compressed.delete();
+            return commit(temp, hash);
+        }
+
+        temp.delete();
+        return moveInto(compressed, getCompressedFile(hash));
+    }
+
+    /**
+     * Moves a written temporary file to its path. The temporary file is deleted if it can
+     * not be moved.
+     *
+     * @param temp
+     *      The temporary file
+     * @param target
+     *      The path in the sharded layout
+     * @return
+     *      The stored file
+     * @throws IOException
+     *      In case the file could not be moved
+     */
+    private File moveInto(File temp, File target) throws IOException {
+        File directory = target.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            temp.delete();
+            throw new IOException("Unable to create " + directory);
+        }
+
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " to " + target);
+        }
+        return target;
+    }
+
+    /**
+     * Stores an object.
+     *
+     * @param hash
+     *      The content hash
+     * @param data
+     *      The content
+     * @return
+     *      The stored file
+     * @throws IOException
+     *      In case the file could not be written
+     */
+    public File write(String hash, byte[] data) throws IOException {
+        File temp = createTempFile();
+        try {
+            FileUtils.writeByteArrayToFile(temp, data);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        return commit(temp, hash);
+    }
+
+    /**
+     * Stores an object, compressed if its content type is compressible and compressing
+     * pays off. An object that is already stored is not written again.
+     *
+     * @param hash
+     *      The content hash, over the uncompressed content
+     * @param data
+     *      The content
+     * @param contentType
+     *      The content type, may be null
+     * @return
+     *      The stored file
+     * @throws IOException
+     *      In case the file could not be written
+     */
+    public File write(String hash, byte[] data, String contentType) throws IOException {
+        File stored = find(hash);
+        if (stored != null) {
+            return stored;
+        }
+        if (!isCompressible(contentType, data.length)) {
+            return write(hash, data);
+        }
+
+        byte[] compressed = StoreLayout.compress(data);
+        if (!mCompression.isWorthKeeping(compressed.length, data.length)) {
+            return write(hash, data);
+        }
+
+        File temp = createTempFile();
+        try {
+            FileUtils.writeByteArrayToFile(temp, compressed);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        return moveInto(temp, getCompressedFile(hash));
+    }
+
+    /**
+     * Checks if content is stored compressed.
+     *
+     * @param contentType
+     *      The content type, may be null
+     * @param length
+     *      The length of the content in bytes
+     * @return
+     *      True if the content type is compressible and the content is large enough
+     */
+    public boolean isCompressible(String contentType, long length) {
+        return mCompression.isCompressible(contentType, length);
+    }
+
+    /**
+     * Opens the download of an object that has not completed, or a new one.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The download
+     */
+    public PartialDownload openPartial(String hash) {
+        File directory = new File(mRoot, PARTIAL_DIRECTORY);
+        String name = hash.replace('/', StoreLayout.SLASH_REPLACEMENT);
+        return new PartialDownload(new File(directory, name + PART_SUFFIX),
+                new File(directory, name + RANGES_SUFFIX));
+    }
+
+    /**
+     * Deletes the downloads that have not been continued for some time.
+     *
+     * @param maxAge
+     *      Downloads not written for this long are deleted, in ms
+     * @return
+     *      The number of downloads deleted
+     */
+    public int deletePartials(long maxAge) {
+        File[] files = new File(mRoot, PARTIAL_DIRECTORY).listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int deleted = 0;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > maxAge && file.delete()
+                    && file.getName().endsWith(PART_SUFFIX)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Checks if a file is a temporary file of the store.
+     *
+     * @param file
+     *      The file
+     * @return
+     *      True if the file was created by {@link #createTempFile()}
+     */
+    public boolean isTemporary(File file) {
+        String name = file.getName();
+        return mRoot.equals(file.getAbsoluteFile().getParentFile())
+                && name.startsWith(TEMPORARY_PREFIX) && name.endsWith(TEMPORARY_SUFFIX);
+    }
+
+    /**
+     * Lists the objects stored in files, also those where earlier versions put them.
+     * The packed objects are listed by {@link #listPacked()}.
+     *
+     * @return
+     *      The file of each stored object by hash
+     */
+    public Map<String, File> listFiles() {
+        Map<String, File> files = new HashMap<String, File>();
+        Map<String, File> legacy = new HashMap<String, File>();
+        collect(mRoot, "", files, legacy);
+
+        // A file in place wins over a copy left behind
+        for (Map.Entry<String, File> entry : legacy.entrySet()) {
+            if (!files.containsKey(entry.getKey())) {
+                files.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Moves the files earlier versions put directly into the shared folder into place,
+     * and removes the directories left empty.
+     */
+    public void migrate() {
+        Map<String, File> files = new HashMap<String, File>();
+        Map<String, File> legacy = new HashMap<String, File>();
+        collect(mRoot, "", files, legacy);
+        if (legacy.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "Moving " + legacy.size() + " files into the sharded layout");
+        for (Map.Entry<String, File> entry : legacy.entrySet()) {
+            File file = entry.getValue();
+            try {
+                if (files.containsKey(entry.getKey())) {
+                    // Same hash, same content
+                    file.delete();
+                } else {
+                    commit(file, entry.getKey());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to move " + file + ": " + e.getMessage());
+            }
+        }
+
+        deleteEmptyDirectories(mRoot);
+    }
+
+    /**
+     * Collects the files below a directory, telling files in place from files left
+     * behind by earlier versions. Temporary files are skipped.
+     *
+     * @param directory
+     *      The directory
+     * @param prefix
+     *      The path of the directory relative to the shared folder, ending in a slash
+     *      unless empty
+     * @param files
+     *      Receives the files in place by hash
+     * @param legacy
+     *      Receives the files left behind by hash
+     */
+    private void collect(File directory, String prefix, Map<String, File> files,
+            Map<String, File> legacy) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.equals(mPacks.getDirectory())
+                    || child.equals(new File(mRoot, PARTIAL_DIRECTORY))) {
+                continue;
+            } else if (child.isDirectory()) {
+                collect(child, path + "/", files, legacy);
+            } else if (!isTemporary(child)) {
+                if (SHARDED_PATH.matcher(path).matches()) {
+                    String name = child.getName();
+                    if (isCompressed(child)) {
+                        name = name.substring(0,
+                                name.length() - StoreLayout.COMPRESSED_SUFFIX.length());
+                    }
+                    files.put(name.replace(StoreLayout.SLASH_REPLACEMENT, '/'), child);
+                } else {
+                    // Earlier versions used the hash as path, slashes included
+                    legacy.put(path, child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the content of a stored file, decompressing it if it is compressed.
+     *
+     * @param file
+     *      The file
+     * @return
+     *      The content
+     * @throws IOException
+     *      In case the file could not be read
+     */
+    private static byte[] readContent(File file) throws IOException {
+        if (!isCompressed(file)) {
+            return FileUtils.readFileToByteArray(file);
+        }
+
+        InputStream in = StoreLayout.openContent(file);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the length of the content of a stored file. A compressed file records the
+     * length, modulo 2^32, in its last four bytes.
+     *
+     * @param file
+     *      The file
+     * @return
+     *      The length in bytes
+     */
+    private static long getContentLength(File file) {
+        try {
+            return StoreLayout.getContentLength(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the length of " + file + ": " + e.getMessage());
+            return file.length();
+        }
+    }
+
+    /**
+     * Deletes the empty directories below a directory.
+     *
+     * @param directory
+     *      The directory, which is kept
+     */
+    private static void deleteEmptyDirectories(File directory) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                deleteEmptyDirectories(child);
+                String[] left = child.list();
+                if (left != null && left.length == 0) {
+                    child.delete();
+                }
+            }
+        }
+    }
+}
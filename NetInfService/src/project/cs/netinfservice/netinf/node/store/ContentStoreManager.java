@@ -0,0 +1,667 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import project.cs.netinfservice.application.MainNetInfApplication;
+import project.cs.netinfservice.database.DatabaseException;
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.node.nrs.NrsResolutionCache;
+import project.cs.netinfservice.netinf.node.resolution.LocalIoCache;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Keeps the files in the shared folder within a quota.
+ * <p>
+ * Whenever an object is stored the manager checks the quota in the background. If the
+ * files take up more, the objects the eviction policy values least are deleted until the
+ * files fit again with some room to spare. Evicting an object deletes its file, its row in
+ * the IO database and its queued publishes, and drops it from the in-memory caches.
+ * <p>
+ * Every now and then the manager also reconciles the folder with the database: rows whose
+ * file is gone are deleted, temporary files left behind by interrupted downloads are
+ * deleted, and files without a row are kept but are evicted like any other object. When
+ * the node has been idle for a while the database is optimized.
+ * <p>
+ * Reads served from memory never reach the database, so they are recorded here and
+ * written to the database when reconciling.
+ * <p>
+ * Small files that were not read for a while, copies materialized from the packs
+ * included, are moved into the packs when reconciling, and packs that are mostly garbage
+ * are compacted.
+ */
+public class ContentStoreManager {
+    /** Debug tag. */
+    private static final String TAG = "ContentStoreManager";
+
+    /** Part of the quota the files are brought down to, so that not every store evicts. */
+    private static final double LOW_WATERMARK = 0.9;
+
+    /** Maximum number of bytes the files may take up. */
+    private final long mQuota;
+
+    /** Time in ms between two reconciliations. */
+    private final long mReconcileInterval;
+
+    /** Time in ms after which a temporary file is considered left behind. */
+    private final long mTemporaryGrace;
+
+    /** Time in ms after which a download that has not completed is given up. */
+    private final long mPartialGrace;
+
+    /** Time in ms without activity after which the node is considered idle. */
+    private final long mIdleTime;
+
+    /** Minimum time in ms between two optimizations of the database. */
+    private final long mOptimizeInterval;
+
+    /** Time in ms without reads after which a small file is packed. */
+    private final long mPackIdleTime;
+
+    /** Share of live bytes below which a pack is compacted. */
+    private final double mCompactRatio;
+
+    /** The files of the stored objects. */
+    private final ContentStore mContentStore;
+
+    /** Decides which objects to evict. */
+    private final EvictionPolicy mPolicy;
+
+    /** Creates the database the objects are stored in. */
+    private final IODatabaseFactory mDatabaseFactory;
+
+    /** Information objects recently read from the database. */
+    private final LocalIoCache mIoCache;
+
+    /** The hashes stored on this node. */
+    private final LocalPresenceIndex mIndex;
+
+    /** Resolutions the NRS answered. */
+    private final NrsResolutionCache mResolutionCache;
+
+    /** Runs the checks off the calling threads. */
+    private final ScheduledExecutorService mExecutor;
+
+    /** The database, created on first use. */
+    private IODatabase mDatabase;
+
+    /** Reads not yet written to the database, as {latest read, number of reads} by hash. */
+    private final Map<String, long[]> mAccesses = new HashMap<String, long[]>();
+
+    /** Point in time (ms since epoch) of the latest store or read. */
+    private volatile long mLastActivity = System.currentTimeMillis();
+
+    /** Point in time (ms since epoch) of the latest optimization. */
+    private long mLastOptimize;
+
+    /** True if a quota check is waiting to run. */
+    private final AtomicBoolean mCheckQueued = new AtomicBoolean();
+
+    /** Number of bytes the files took up at the latest check. */
+    private final AtomicLong mUsedBytes = new AtomicLong();
+
+    /** Number of evicted objects. */
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /** Number of bytes freed by evicting. */
+    private final AtomicLong mEvictedBytes = new AtomicLong();
+
+    /** Number of rows deleted because their file was gone. */
+    private final AtomicLong mDanglingRows = new AtomicLong();
+
+    /** Number of temporary files deleted. */
+    private final AtomicLong mTemporaryFiles = new AtomicLong();
+
+    /** Number of unfinished downloads given up. */
+    private final AtomicLong mPartialFiles = new AtomicLong();
+
+    /** Number of database optimizations. */
+    private final AtomicLong mOptimizations = new AtomicLong();
+
+    /** Number of files moved into the packs. */
+    private final AtomicLong mPackedFiles = new AtomicLong();
+
+    /** Checks the quota after objects were stored. */
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            mCheckQueued.set(false);
+            try {
+                enforceQuota(takeInventory(false));
+            } catch (DatabaseException e) {
+                Log.e(TAG, "Failed to check the quota: " + e.getMessage());
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to check the quota: " + e.getMessage());
+            }
+        }
+    };
+
+    /** Reconciles the folder with the database and checks the quota. */
+    private final Runnable mReconcile = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Inventory inventory = takeInventory(true);
+                flushAccesses(inventory);
+                enforceQuota(inventory);
+                packIdleFiles(inventory);
+                compactPacks();
+                optimizeIfIdle();
+            } catch (DatabaseException e) {
+                Log.e(TAG, "Failed to reconcile the store: " + e.getMessage());
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to reconcile the store: " + e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * Creates the manager.
+     *
+     * @param quota
+     *      Maximum number of bytes the files may take up
+     * @param reconcileInterval
+     *      Time in ms between two reconciliations
+     * @param temporaryGrace
+     *      Time in ms after which a temporary file is considered left behind
+     * @param partialGrace
+     *      Time in ms after which a download that has not completed is given up
+     * @param idleTime
+     *      Time in ms without activity after which the node is considered idle
+     * @param optimizeInterval
+     *      Minimum time in ms between two optimizations of the database
+     * @param packIdleTime
+     *      Time in ms without reads after which a small file is packed
+     * @param compactRatio
+     *      Share of live bytes below which a pack is compacted
+     * @param contentStore
+     *      The files of the stored objects
+     * @param policy
+     *      Decides which objects to evict
+     * @param databaseFactory
+     *      Creates the database the objects are stored in
+     * @param ioCache
+     *      Information objects recently read from the database
+     * @param index
+     *      The hashes stored on this node
+     * @param resolutionCache
+     *      Resolutions the NRS answered
+     */
+    @Inject
+    public ContentStoreManager(
+            @Named("store.quota") long quota,
+            @Named("store.reconcile_interval") long reconcileInterval,
+            @Named("store.temporary_grace") long temporaryGrace,
+            @Named("store.partial_grace") long partialGrace,
+            @Named("store.idle_time") long idleTime,
+            @Named("store.optimize_interval") long optimizeInterval,
+            @Named("store.pack.idle_time") long packIdleTime,
+            @Named("store.pack.compact_ratio") double compactRatio,
+            ContentStore contentStore,
+            EvictionPolicy policy,
+            IODatabaseFactory databaseFactory,
+            LocalIoCache ioCache,
+            LocalPresenceIndex index,
+            NrsResolutionCache resolutionCache) {
+        mQuota = quota;
+        mReconcileInterval = reconcileInterval;
+        mTemporaryGrace = temporaryGrace;
+        mPartialGrace = partialGrace;
+        mIdleTime = idleTime;
+        mOptimizeInterval = optimizeInterval;
+        mPackIdleTime = packIdleTime;
+        mCompactRatio = compactRatio;
+        mContentStore = contentStore;
+        mPolicy = policy;
+        mDatabaseFactory = databaseFactory;
+        mIoCache = ioCache;
+        mIndex = index;
+        mResolutionCache = resolutionCache;
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-worker");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts reconciling, beginning with whatever an earlier run left behind.
+     */
+    public void start() {
+        // Files stored by earlier versions are moved into place first
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mContentStore.migrate();
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(mReconcile, 0, mReconcileInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that an object was stored, and checks the quota in the background.
+     *
+     * @param hash
+     *      The content hash
+     */
+    public void onStored(String hash) {
+        mLastActivity = System.currentTimeMillis();
+        if (mCheckQueued.compareAndSet(false, true)) {
+            mExecutor.execute(mCheck);
+        }
+    }
+
+    /**
+     * Records a read of an object that was served without the database.
+     *
+     * @param hash
+     *      The content hash
+     */
+    public void onRead(String hash) {
+        long now = System.currentTimeMillis();
+        mLastActivity = now;
+        synchronized (mAccesses) {
+            long[] access = mAccesses.get(hash);
+            if (access == null) {
+                mAccesses.put(hash, new long[] {now, 1});
+            } else {
+                access[0] = now;
+                access[1]++;
+            }
+        }
+    }
+
+    /**
+     * Gets the counters of the store.
+     *
+     * @return
+     *      The counters by name
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("quota", mQuota);
+        statistics.put("used_bytes", mUsedBytes.get());
+        statistics.put("evictions", mEvictions.get());
+        statistics.put("evicted_bytes", mEvictedBytes.get());
+        statistics.put("dangling_rows", mDanglingRows.get());
+        statistics.put("temporary_files", mTemporaryFiles.get());
+        statistics.put("partial_files", mPartialFiles.get());
+        statistics.put("optimizations", mOptimizations.get());
+        statistics.put("packed_files", mPackedFiles.get());
+        return statistics;
+    }
+
+    /**
+     * Lists the objects in the shared folder.
+     *
+     * @param reconcile
+     *      True if rows without a file and left behind temporary files should be deleted
+     * @return
+     *      The objects that may be evicted
+     * @throws DatabaseException
+     *      In case the database could not be read
+     */
+    private Inventory takeInventory(boolean reconcile) throws DatabaseException {
+        Inventory inventory = new Inventory();
+        long now = System.currentTimeMillis();
+        String folder = mContentStore.getRoot().getAbsolutePath() + File.separator;
+
+        // The rows of the database, with their files
+        Set<String> rowFiles = new HashSet<String>();
+        Set<String> folderHashes = new HashSet<String>();
+        for (StoredObject object : getDatabase().getStoredObjects()) {
+            String hash = object.getHash();
+            File file = new File(object.getFilePath());
+            if (!file.isFile()) {
+                // The file was moved into the sharded layout, or packed
+                File moved = mContentStore.find(hash);
+                if (moved == null && mContentStore.isPacked(hash)) {
+                    moved = mContentStore.getFile(hash);
+                }
+
+                if (moved == null) {
+                    if (reconcile) {
+                        Log.d(TAG, "Deleting " + hash + ", its file is gone");
+                        removeObject(object);
+                        mDanglingRows.incrementAndGet();
+                    }
+                    continue;
+                }
+
+                if (!moved.equals(file.getAbsoluteFile())) {
+                    if (reconcile) {
+                        getDatabase().setFilePath(hash, moved.getAbsolutePath());
+                        mIoCache.remove(hash);
+                    }
+                    object = new StoredObject(hash, object.getHashAlg(),
+                            moved.getAbsolutePath(), object.getFileSize(),
+                            object.getLastAccess(), object.getHits());
+                }
+                file = moved;
+            }
+
+            inventory.mRowHashes.add(hash);
+            rowFiles.add(file.getAbsolutePath());
+
+            // Only the shared folder is managed, published files elsewhere are the user's
+            if (file.getAbsolutePath().startsWith(folder)) {
+                // Compressed files take up less than their content
+                if (file.isFile() && file.length() != object.getFileSize()) {
+                    object = new StoredObject(hash, object.getHashAlg(), object.getFilePath(),
+                            file.length(), object.getLastAccess(), object.getHits());
+                }
+                inventory.mObjects.add(object);
+                folderHashes.add(hash);
+            }
+        }
+
+        // The files without a row
+        for (Map.Entry<String, File> entry : mContentStore.listFiles().entrySet()) {
+            File file = entry.getValue();
+            if (!rowFiles.contains(file.getAbsolutePath())) {
+                inventory.mObjects.add(new StoredObject(entry.getKey(), null,
+                        file.getAbsolutePath(), file.length(), file.lastModified(), 0));
+                folderHashes.add(entry.getKey());
+            }
+        }
+
+        // The packed objects without a row, their last read is not known
+        try {
+            for (Map.Entry<String, Long> entry : mContentStore.listPacked().entrySet()) {
+                if (!folderHashes.contains(entry.getKey())) {
+                    inventory.mObjects.add(new StoredObject(entry.getKey(), null,
+                            mContentStore.getFile(entry.getKey()).getAbsolutePath(),
+                            entry.getValue(), 0, 0));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to list the packed objects: " + e.getMessage());
+        }
+
+        // Temporary files left behind by interrupted downloads
+        File[] files = mContentStore.getRoot().listFiles();
+        if (reconcile && files != null) {
+            for (File file : files) {
+                if (mContentStore.isTemporary(file)
+                        && now - file.lastModified() > mTemporaryGrace && file.delete()) {
+                    mTemporaryFiles.incrementAndGet();
+                }
+            }
+        }
+
+        // Downloads nobody continued
+        if (reconcile) {
+            mPartialFiles.addAndGet(mContentStore.deletePartials(mPartialGrace));
+        }
+
+        // Count the reads served from memory
+        synchronized (mAccesses) {
+            for (int i = 0; i < inventory.mObjects.size(); i++) {
+                StoredObject object = inventory.mObjects.get(i);
+                long[] access = mAccesses.get(object.getHash());
+                if (access != null) {
+                    inventory.mObjects.set(i, object.withAccesses(access[0], access[1]));
+                }
+            }
+        }
+
+        return inventory;
+    }
+
+    /**
+     * Writes the reads served from memory to the database. Reads of files without a row
+     * are kept in memory, reads of objects that are gone are dropped.
+     *
+     * @param inventory
+     *      The objects in the shared folder
+     * @throws DatabaseException
+     *      In case the database could not be written
+     */
+    private void flushAccesses(Inventory inventory) throws DatabaseException {
+        Set<String> files = new HashSet<String>();
+        for (StoredObject object : inventory.mObjects) {
+            files.add(object.getHash());
+        }
+
+        Map<String, long[]> flushed = new HashMap<String, long[]>();
+        synchronized (mAccesses) {
+            Iterator<Map.Entry<String, long[]>> accesses = mAccesses.entrySet().iterator();
+            while (accesses.hasNext()) {
+                Map.Entry<String, long[]> access = accesses.next();
+                if (inventory.mRowHashes.contains(access.getKey())) {
+                    flushed.put(access.getKey(), access.getValue());
+                    accesses.remove();
+                } else if (!files.contains(access.getKey())) {
+                    accesses.remove();
+                }
+            }
+        }
+
+        if (!flushed.isEmpty()) {
+            getDatabase().addAccesses(flushed);
+        }
+    }
+
+    /**
+     * Evicts objects until the files fit into the quota again.
+     *
+     * @param inventory
+     *      The objects in the shared folder
+     */
+    private void enforceQuota(Inventory inventory) {
+        long used = 0;
+        for (StoredObject object : inventory.mObjects) {
+            used += object.getFileSize();
+        }
+        mUsedBytes.set(used);
+
+        if (used <= mQuota) {
+            return;
+        }
+
+        // Least valuable first
+        final long now = System.currentTimeMillis();
+        List<StoredObject> objects = new ArrayList<StoredObject>(inventory.mObjects);
+        Collections.sort(objects, new Comparator<StoredObject>() {
+            @Override
+            public int compare(StoredObject lhs, StoredObject rhs) {
+                return Double.compare(mPolicy.getValue(lhs, now), mPolicy.getValue(rhs, now));
+            }
+        });
+
+        long target = (long) (mQuota * LOW_WATERMARK);
+        Log.d(TAG, used + " bytes stored, evicting down to " + target);
+        for (StoredObject object : objects) {
+            if (used <= target) {
+                break;
+            }
+            if (evict(object, inventory)) {
+                used -= object.getFileSize();
+            }
+        }
+        mUsedBytes.set(used);
+    }
+
+    /**
+     * Evicts an object.
+     *
+     * @param object
+     *      The object
+     * @param inventory
+     *      The objects in the shared folder
+     * @return
+     *      True if the file was deleted
+     */
+    private boolean evict(StoredObject object, Inventory inventory) {
+        if (!mContentStore.remove(object.getHash())) {
+            return false;
+        }
+        Log.d(TAG, "Evicted " + object.getHash());
+
+        if (object.isInDatabase()) {
+            removeObject(object);
+        } else if (!inventory.mRowHashes.contains(object.getHash())) {
+            // A copy published from elsewhere is still stored
+            mIndex.remove(object.getHash());
+        }
+
+        synchronized (mAccesses) {
+            mAccesses.remove(object.getHash());
+        }
+        mEvictions.incrementAndGet();
+        mEvictedBytes.addAndGet(object.getFileSize());
+        return true;
+    }
+
+    /**
+     * Deletes an object from the database, so it is neither resolved locally nor
+     * published anymore, and drops it from the in-memory caches.
+     *
+     * @param object
+     *      The object
+     */
+    private void removeObject(StoredObject object) {
+        IODatabase database = getDatabase();
+        database.deleteIO(object.getHash());
+        database.deletePendingPublishes(object.getHash());
+        mIoCache.remove(object.getHash());
+        mIndex.remove(object.getHash());
+        mResolutionCache.invalidate(object.getHashAlg(), object.getHash());
+    }
+
+    /**
+     * Moves the small files that were not read for a while into the packs.
+     *
+     * @param inventory
+     *      The objects in the shared folder
+     */
+    private void packIdleFiles(Inventory inventory) {
+        long now = System.currentTimeMillis();
+        for (StoredObject object : inventory.mObjects) {
+            String hash = object.getHash();
+            File file = mContentStore.find(hash);
+            if (file == null || !mContentStore.isPackable(mContentStore.getLength(hash))
+                    || now - Math.max(object.getLastAccess(), file.lastModified())
+                            < mPackIdleTime) {
+                continue;
+            }
+
+            try {
+                if (mContentStore.pack(hash)) {
+                    mPackedFiles.incrementAndGet();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to pack " + hash + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compacts the packs that are mostly garbage and writes the packs to the storage.
+     */
+    private void compactPacks() {
+        try {
+            PackStore packs = mContentStore.getPacks();
+            packs.compact(mCompactRatio);
+            packs.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact the packs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Optimizes the database if the node is idle and it was not done recently.
+     *
+     * @throws DatabaseException
+     *      In case the database could not be optimized
+     */
+    private void optimizeIfIdle() throws DatabaseException {
+        long now = System.currentTimeMillis();
+        if (now - mLastActivity < mIdleTime || now - mLastOptimize < mOptimizeInterval) {
+            return;
+        }
+
+        Log.d(TAG, "Node is idle, optimizing the database");
+        getDatabase().optimize();
+        mLastOptimize = now;
+        mOptimizations.incrementAndGet();
+    }
+
+    /**
+     * Gets the database, creating it on first use.
+     *
+     * @return
+     *      The database
+     */
+    private synchronized IODatabase getDatabase() {
+        if (mDatabase == null) {
+            mDatabase = mDatabaseFactory.create(MainNetInfApplication.getAppContext());
+        }
+        return mDatabase;
+    }
+
+    /**
+     * The objects in the shared folder at one point in time.
+     */
+    private static class Inventory {
+        /** The objects that may be evicted. */
+        private final List<StoredObject> mObjects = new ArrayList<StoredObject>();
+
+        /** The hashes with a row in the database, wherever their file is. */
+        private final Set<String> mRowHashes = new HashSet<String>();
+    }
+}
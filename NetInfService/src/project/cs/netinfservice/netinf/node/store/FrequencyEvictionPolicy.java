@@ -0,0 +1,56 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.store;
+
+/**
+ * Evicts the least frequently used objects first. Reads count less the longer ago the
+ * object was last read, so objects that were popular once do not stay forever.
+ */
+public class FrequencyEvictionPolicy implements EvictionPolicy {
+    /** Time in ms after which the reads of an object count half. */
+    private final long mHalfLife;
+
+    /**
+     * Creates the policy.
+     *
+     * @param halfLife
+     *      Time in ms after which the reads of an object count half
+     */
+    public FrequencyEvictionPolicy(long halfLife) {
+        if (halfLife <= 0) {
+            throw new IllegalArgumentException("Half life must be positive");
+        }
+        mHalfLife = halfLife;
+    }
+
+    @Override
+    public double getValue(StoredObject object, long now) {
+        // Storing the object counts as the first read
+        double age = Math.max(0, now - object.getLastAccess());
+        return (object.getHits() + 1) * Math.pow(2, -age / mHalfLife);
+    }
+}
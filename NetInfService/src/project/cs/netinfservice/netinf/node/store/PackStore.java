@@ -0,0 +1,1128 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import project.cs.netinfservice.util.NiHash;
+import android.util.Log;
+
+/**
+ * An append-only store for small objects, keeping many objects in a few large pack files
+ * instead of one file each.
+ * <p>
+ * Each object is appended to the current pack as a record: a header with the digest and
+ * the length, followed by the content. When the pack is full the next one is started.
+ * Packs are never written in place, so a removed object stays behind as garbage until its
+ * pack is compacted: the live records are appended to the current pack and the old pack
+ * is deleted.
+ * <p>
+ * The index from digest to pack, offset and length is an open addressing hash table in a
+ * memory-mapped file, so opening the store does not read it and lookups do not allocate.
+ * If the index is lost it is rebuilt from the records, which brings back removed objects
+ * that were not compacted yet. Only full SHA-256 hashes can be packed.
+ */
+public class PackStore {
+    /** Debug tag. */
+    private static final String TAG = "PackStore";
+
+    /** Name of the index file. */
+    private static final String INDEX_FILE = "index";
+
+    /** Prefix of the pack files, followed by the pack number. */
+    private static final String PACK_PREFIX = "pack-";
+
+    /** Suffix of the pack files. */
+    private static final String PACK_SUFFIX = ".dat";
+
+    /** Identifies an index file. */
+    private static final int INDEX_MAGIC = 0x4e49504b;
+
+    /** Version of the index layout. */
+    private static final int INDEX_VERSION = 1;
+
+    /** Identifies the start of a record. */
+    private static final int RECORD_MAGIC = 0x4e49524b;
+
+    /** Size of the index header: magic, version, capacity, count, tombstones, pack, end. */
+    private static final int INDEX_HEADER_SIZE = 32;
+
+    /** Position of the capacity in the index header. */
+    private static final int CAPACITY = 8;
+
+    /** Position of the number of objects in the index header. */
+    private static final int COUNT = 12;
+
+    /** Position of the number of removed slots in the index header. */
+    private static final int TOMBSTONES = 16;
+
+    /** Position of the number of the current pack in the index header. */
+    private static final int ACTIVE_PACK = 20;
+
+    /** Position of the end of the indexed records in the current pack. */
+    private static final int ACTIVE_LENGTH = 24;
+
+    /** Size of a digest. */
+    private static final int DIGEST_SIZE = 32;
+
+    /** Size of an index slot: digest, pack, length and offset. */
+    private static final int SLOT_SIZE = 48;
+
+    /** Position of the pack number in a slot, 0 if empty and -1 if removed. */
+    private static final int SLOT_PACK = 32;
+
+    /** Position of the length in a slot. */
+    private static final int SLOT_LENGTH = 36;
+
+    /** Position of the offset of the content in a slot. */
+    private static final int SLOT_OFFSET = 40;
+
+    /** Pack number of a slot that was never used. */
+    private static final int EMPTY = 0;
+
+    /** Pack number of a slot whose object was removed. */
+    private static final int REMOVED = -1;
+
+    /** Size of a record header: magic, digest and length. */
+    private static final int RECORD_HEADER_SIZE = 4 + DIGEST_SIZE + 4;
+
+    /** Smallest number of index slots. */
+    private static final int MIN_CAPACITY = 1024;
+
+    /** Maximum share of used slots, removed ones included, before the index grows. */
+    private static final double MAX_LOAD = 0.7;
+
+    /** The directory of the packs and the index. */
+    private final File mDirectory;
+
+    /** Size in bytes at which a pack is full. */
+    private final long mMaxPackSize;
+
+    /** Lookups and reads share the lock, appends, removals and compactions do not. */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    /** True once the index is mapped and the packs are open. */
+    private volatile boolean mOpen;
+
+    /** The mapped index. */
+    private MappedByteBuffer mIndex;
+
+    /** Number of slots in the index. */
+    private int mCapacity;
+
+    /** Number of packed objects. */
+    private int mCount;
+
+    /** Number of slots of removed objects. */
+    private int mTombstones;
+
+    /** Number of the pack appended to. */
+    private int mActivePack;
+
+    /** End of the records in the pack appended to. */
+    private long mActiveLength;
+
+    /** The open packs by number. */
+    private final Map<Integer, FileChannel> mPacks = new HashMap<Integer, FileChannel>();
+
+    /** Bytes of live records by pack number. */
+    private final Map<Integer, Long> mLiveBytes = new HashMap<Integer, Long>();
+
+    /** Number of objects read. */
+    private final AtomicLong mReads = new AtomicLong();
+
+    /** Number of objects appended. */
+    private final AtomicLong mAppends = new AtomicLong();
+
+    /** Number of packs compacted. */
+    private final AtomicLong mCompactions = new AtomicLong();
+
+    /** Number of bytes freed by compacting. */
+    private final AtomicLong mReclaimedBytes = new AtomicLong();
+
+    /**
+     * Creates the store. Nothing is read until the store is first used.
+     *
+     * @param directory
+     *      The directory of the packs and the index
+     * @param maxPackSize
+     *      Size in bytes at which a pack is full
+     */
+    public PackStore(File directory, long maxPackSize) {
+        mDirectory = directory;
+        mMaxPackSize = maxPackSize;
+    }
+
+    /**
+     * Gets the directory of the packs and the index.
+     *
+     * @return
+     *      The directory
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Appends an object, unless it is already packed.
+     *
+     * @param hash
+     *      The content hash
+     * @param data
+     *      The content
+     * @return
+     *      True if the object is packed, false if its hash is not a full SHA-256 digest
+     * @throws IOException
+     *      In case the object could not be written
+     */
+    public boolean append(String hash, byte[] data) throws IOException {
+        byte[] digest = NiHash.toBytes(hash);
+        if (digest == null) {
+            return false;
+        }
+
+        open();
+        mLock.writeLock().lock();
+        try {
+            if (findSlot(digest) < 0) {
+                appendRecord(digest, ByteBuffer.wrap(data));
+                mAppends.incrementAndGet();
+            }
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if an object is packed.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      True if the object is packed
+     * @throws IOException
+     *      In case the store could not be opened
+     */
+    public boolean contains(String hash) throws IOException {
+        return getLength(hash) >= 0;
+    }
+
+    /**
+     * Gets the length of a packed object.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The length in bytes, or -1 if the object is not packed
+     * @throws IOException
+     *      In case the store could not be opened
+     */
+    public long getLength(String hash) throws IOException {
+        byte[] digest = NiHash.toBytes(hash);
+        if (digest == null) {
+            return -1;
+        }
+
+        open();
+        mLock.readLock().lock();
+        try {
+            int slot = findSlot(digest);
+            return slot < 0 ? -1 : mIndex.getInt(slot + SLOT_LENGTH);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a packed object.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The content, or null if the object is not packed
+     * @throws IOException
+     *      In case the object could not be read
+     */
+    public ByteBuffer getBuffer(String hash) throws IOException {
+        byte[] digest = NiHash.toBytes(hash);
+        if (digest == null) {
+            return null;
+        }
+
+        open();
+        mLock.readLock().lock();
+        try {
+            int slot = findSlot(digest);
+            if (slot < 0) {
+                return null;
+            }
+            mReads.incrementAndGet();
+            return readRecord(digest, mIndex.getInt(slot + SLOT_PACK),
+                    mIndex.getLong(slot + SLOT_OFFSET), mIndex.getInt(slot + SLOT_LENGTH));
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an object. Its record stays in the pack until the pack is compacted.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      True if the object was packed
+     * @throws IOException
+     *      In case the store could not be opened
+     */
+    public boolean remove(String hash) throws IOException {
+        byte[] digest = NiHash.toBytes(hash);
+        if (digest == null) {
+            return false;
+        }
+
+        open();
+        mLock.writeLock().lock();
+        try {
+            int slot = findSlot(digest);
+            if (slot < 0) {
+                return false;
+            }
+
+            int pack = mIndex.getInt(slot + SLOT_PACK);
+            addLiveBytes(pack, -(RECORD_HEADER_SIZE + mIndex.getInt(slot + SLOT_LENGTH)));
+            mIndex.putInt(slot + SLOT_PACK, REMOVED);
+            mCount--;
+            mTombstones++;
+            writeHeader();
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lists the packed objects.
+     *
+     * @return
+     *      The length of each packed object by hash
+     * @throws IOException
+     *      In case the store could not be opened
+     */
+    public Map<String, Long> list() throws IOException {
+        open();
+        Map<String, Long> objects = new HashMap<String, Long>();
+        byte[] digest = new byte[DIGEST_SIZE];
+        mLock.readLock().lock();
+        try {
+            for (int i = 0; i < mCapacity; i++) {
+                int slot = getSlotPosition(i);
+                if (mIndex.getInt(slot + SLOT_PACK) > 0) {
+                    getDigest(slot, digest);
+                    objects.put(NiHash.toBase64(digest),
+                            (long) mIndex.getInt(slot + SLOT_LENGTH));
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return objects;
+    }
+
+    /**
+     * Compacts the full packs that are mostly garbage: their live records are appended to
+     * the current pack and the packs are deleted.
+     *
+     * @param minLiveRatio
+     *      Share of live bytes below which a pack is compacted
+     * @return
+     *      The number of bytes freed
+     * @throws IOException
+     *      In case a pack could not be compacted
+     */
+    public long compact(double minLiveRatio) throws IOException {
+        open();
+        List<Integer> packs;
+        mLock.readLock().lock();
+        try {
+            packs = new ArrayList<Integer>(mPacks.keySet());
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        // One pack at a time, so reads only wait for the copy of a single pack
+        long reclaimed = 0;
+        for (int pack : packs) {
+            mLock.writeLock().lock();
+            try {
+                FileChannel channel = mPacks.get(pack);
+                if (pack == mActivePack || channel == null) {
+                    continue;
+                }
+
+                long size = channel.size();
+                long live = getLiveBytes(pack);
+                if (live >= size * minLiveRatio) {
+                    continue;
+                }
+
+                Log.d(TAG, "Compacting pack " + pack + ", " + live + " of " + size
+                        + " bytes live");
+                // Appending may grow the index, so the live slots are taken first
+                List<byte[]> digests = new ArrayList<byte[]>();
+                for (int i = 0; i < mCapacity; i++) {
+                    int slot = getSlotPosition(i);
+                    if (mIndex.getInt(slot + SLOT_PACK) == pack) {
+                        byte[] digest = new byte[DIGEST_SIZE];
+                        getDigest(slot, digest);
+                        digests.add(digest);
+                    }
+                }
+                for (byte[] digest : digests) {
+                    int slot = findSlot(digest);
+                    appendRecord(digest, readRecord(digest, pack,
+                            mIndex.getLong(slot + SLOT_OFFSET),
+                            mIndex.getInt(slot + SLOT_LENGTH)));
+                }
+
+                // The copies must be durable before the originals are gone
+                flush();
+                channel.close();
+                mPacks.remove(pack);
+                mLiveBytes.remove(pack);
+                if (!getPackFile(pack).delete()) {
+                    Log.w(TAG, "Could not delete " + getPackFile(pack));
+                }
+
+                reclaimed += size - live;
+                mCompactions.incrementAndGet();
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+
+        mReclaimedBytes.addAndGet(reclaimed);
+        return reclaimed;
+    }
+
+    /**
+     * Writes the index and the current pack to the storage.
+     *
+     * @throws IOException
+     *      In case they could not be written
+     */
+    public void flush() throws IOException {
+        if (!mOpen) {
+            return;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            mIndex.force();
+            mPacks.get(mActivePack).force(false);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes everything to the storage and closes the packs. The store opens again when
+     * it is used.
+     *
+     * @throws IOException
+     *      In case the packs could not be closed
+     */
+    public void close() throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (!mOpen) {
+                return;
+            }
+
+            flush();
+            for (FileChannel channel : mPacks.values()) {
+                channel.close();
+            }
+            mPacks.clear();
+            mLiveBytes.clear();
+            mIndex = null;
+            mOpen = false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the counters of the store.
+     *
+     * @return
+     *      The counters by name
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        long packBytes = 0;
+        long liveBytes = 0;
+        int packs = 0;
+        int count = 0;
+        mLock.readLock().lock();
+        try {
+            for (FileChannel channel : mPacks.values()) {
+                try {
+                    packBytes += channel.size();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not get the size of a pack");
+                }
+            }
+            for (long live : mLiveBytes.values()) {
+                liveBytes += live;
+            }
+            packs = mPacks.size();
+            count = mCount;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        statistics.put("packs", (long) packs);
+        statistics.put("packed_objects", (long) count);
+        statistics.put("pack_bytes", packBytes);
+        statistics.put("live_bytes", liveBytes);
+        statistics.put("reads", mReads.get());
+        statistics.put("appends", mAppends.get());
+        statistics.put("compactions", mCompactions.get());
+        statistics.put("reclaimed_bytes", mReclaimedBytes.get());
+        return statistics;
+    }
+
+    /**
+     * Maps the index and opens the packs, unless already done. A missing or damaged index
+     * is rebuilt from the packs, records appended after the index was written are added.
+     *
+     * @throws IOException
+     *      In case the store could not be opened
+     */
+    private void open() throws IOException {
+        if (mOpen) {
+            return;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            if (mOpen) {
+                return;
+            }
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + mDirectory);
+            }
+
+            // The packs, in the order they were written
+            int lastPack = 0;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    int pack = getPackNumber(file.getName());
+                    if (pack > 0) {
+                        mPacks.put(pack, new RandomAccessFile(file, "rw").getChannel());
+                        lastPack = Math.max(lastPack, pack);
+                    }
+                }
+            }
+
+            File indexFile = new File(mDirectory, INDEX_FILE);
+            if (mapIndex(indexFile)) {
+                // Records appended after the index was last written
+                FileChannel active = mPacks.get(mActivePack);
+                if (active == null || active.size() < mActiveLength) {
+                    Log.w(TAG, "Index does not match the packs, rebuilding it");
+                    rebuild(indexFile);
+                } else if (active.size() > mActiveLength) {
+                    mActiveLength = scan(mActivePack, mActiveLength);
+                    writeHeader();
+                }
+            } else {
+                Log.d(TAG, "Building the index from " + mPacks.size() + " packs");
+                rebuild(indexFile);
+            }
+
+            if (!mPacks.containsKey(mActivePack)) {
+                startPack(lastPack + 1);
+            }
+
+            // The live bytes follow from the index
+            mLiveBytes.clear();
+            for (int i = 0; i < mCapacity; i++) {
+                int slot = getSlotPosition(i);
+                int pack = mIndex.getInt(slot + SLOT_PACK);
+                if (pack > 0) {
+                    addLiveBytes(pack, RECORD_HEADER_SIZE + mIndex.getInt(slot + SLOT_LENGTH));
+                }
+            }
+            mOpen = true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maps an existing index file.
+     *
+     * @param file
+     *      The index file
+     * @return
+     *      True if the file is a complete index
+     * @throws IOException
+     *      In case the file could not be mapped
+     */
+    private boolean mapIndex(File file) throws IOException {
+        if (!file.isFile() || file.length() < INDEX_HEADER_SIZE) {
+            return false;
+        }
+
+        MappedByteBuffer index = map(file, file.length());
+        int capacity = index.getInt(CAPACITY);
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != INDEX_VERSION
+                || capacity <= 0
+                || file.length() != INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+            return false;
+        }
+
+        mIndex = index;
+        mCapacity = capacity;
+        mCount = index.getInt(COUNT);
+        mTombstones = index.getInt(TOMBSTONES);
+        mActivePack = index.getInt(ACTIVE_PACK);
+        mActiveLength = index.getLong(ACTIVE_LENGTH);
+        return true;
+    }
+
+    /**
+     * Builds a new index from the records in the packs. Where an object was packed twice,
+     * the later record wins.
+     *
+     * @param file
+     *      The index file
+     * @throws IOException
+     *      In case the packs could not be read or the index could not be written
+     */
+    private void rebuild(File file) throws IOException {
+        createIndex(file, MIN_CAPACITY);
+
+        Integer[] packs = mPacks.keySet().toArray(new Integer[mPacks.size()]);
+        Arrays.sort(packs);
+        for (int pack : packs) {
+            long end = scan(pack, 0);
+            mActivePack = pack;
+            mActiveLength = end;
+        }
+        writeHeader();
+    }
+
+    /**
+     * Creates an empty index.
+     *
+     * @param file
+     *      The index file
+     * @param capacity
+     *      The number of slots
+     * @throws IOException
+     *      In case the index could not be written
+     */
+    private void createIndex(File file, int capacity) throws IOException {
+        file.delete();
+        mIndex = map(file, INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        mCapacity = capacity;
+        mCount = 0;
+        mTombstones = 0;
+        mIndex.putInt(0, INDEX_MAGIC);
+        mIndex.putInt(4, INDEX_VERSION);
+        mIndex.putInt(CAPACITY, capacity);
+        writeHeader();
+    }
+
+    /**
+     * Maps a file, growing it to a size.
+     *
+     * @param file
+     *      The file
+     * @param size
+     *      The size in bytes
+     * @return
+     *      The mapped file
+     * @throws IOException
+     *      In case the file could not be mapped
+     */
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Indexes the complete records of a pack from a position on, and cuts off a record
+     * that was only partly written.
+     *
+     * @param pack
+     *      The pack number
+     * @param from
+     *      The position of the first record
+     * @return
+     *      The end of the last complete record
+     * @throws IOException
+     *      In case the pack could not be read
+     */
+    private long scan(int pack, long from) throws IOException {
+        FileChannel channel = mPacks.get(pack);
+        long size = channel.size();
+        long position = from;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        byte[] digest = new byte[DIGEST_SIZE];
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            if (header.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            header.get(digest);
+            int length = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            putSlot(digest, pack, position + RECORD_HEADER_SIZE, length);
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        if (position < size) {
+            Log.w(TAG, "Cutting off " + (size - position) + " bytes of pack " + pack);
+            channel.truncate(position);
+        }
+        return position;
+    }
+
+    /**
+     * Appends a record to the current pack, starting the next pack when it is full, and
+     * points the index at it.
+     *
+     * @param digest
+     *      The digest
+     * @param content
+     *      The content
+     * @throws IOException
+     *      In case the record could not be written
+     */
+    private void appendRecord(byte[] digest, ByteBuffer content) throws IOException {
+        int length = content.remaining();
+        if (mActiveLength > 0 && mActiveLength + RECORD_HEADER_SIZE + length > mMaxPackSize) {
+            startPack(mActivePack + 1);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC);
+        header.put(digest);
+        header.putInt(length);
+        header.flip();
+
+        FileChannel channel = mPacks.get(mActivePack);
+        long position = mActiveLength;
+        writeFully(channel, header, position);
+        writeFully(channel, content, position + RECORD_HEADER_SIZE);
+
+        mActiveLength = position + RECORD_HEADER_SIZE + length;
+        putSlot(digest, mActivePack, position + RECORD_HEADER_SIZE, length);
+        writeHeader();
+    }
+
+    /**
+     * Reads a record and checks that it is the expected one.
+     *
+     * @param digest
+     *      The digest of the object
+     * @param pack
+     *      The pack number
+     * @param offset
+     *      The position of the content in the pack
+     * @param length
+     *      The length of the content
+     * @return
+     *      The content
+     * @throws IOException
+     *      In case the record could not be read or does not match
+     */
+    private ByteBuffer readRecord(byte[] digest, int pack, long offset, int length)
+            throws IOException {
+        FileChannel channel = mPacks.get(pack);
+        if (channel == null) {
+            throw new IOException("Pack " + pack + " is missing");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        readFully(channel, record, offset - RECORD_HEADER_SIZE);
+        record.flip();
+
+        byte[] recorded = new byte[DIGEST_SIZE];
+        int magic = record.getInt();
+        record.get(recorded);
+        if (magic != RECORD_MAGIC || !Arrays.equals(digest, recorded)
+                || record.getInt() != length) {
+            throw new IOException("Damaged record in pack " + pack + " at " + offset);
+        }
+        return record.slice();
+    }
+
+    /**
+     * Starts a new pack to append to.
+     *
+     * @param pack
+     *      The pack number
+     * @throws IOException
+     *      In case the pack could not be created
+     */
+    private void startPack(int pack) throws IOException {
+        File file = getPackFile(pack);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        mPacks.put(pack, raf.getChannel());
+
+        // The full pack is written out, it is not touched again
+        FileChannel previous = mPacks.get(mActivePack);
+        if (previous != null) {
+            previous.force(false);
+        }
+
+        mActivePack = pack;
+        mActiveLength = 0;
+        writeHeader();
+    }
+
+    /**
+     * Points the slot of a digest at a record, growing the index if needed.
+     *
+     * @param digest
+     *      The digest
+     * @param pack
+     *      The pack number
+     * @param offset
+     *      The position of the content in the pack
+     * @param length
+     *      The length of the content
+     * @throws IOException
+     *      In case the index could not grow
+     */
+    private void putSlot(byte[] digest, int pack, long offset, int length) throws IOException {
+        int slot = findSlot(digest);
+        if (slot >= 0) {
+            // Packed again, the old record is garbage now
+            addLiveBytes(mIndex.getInt(slot + SLOT_PACK),
+                    -(RECORD_HEADER_SIZE + mIndex.getInt(slot + SLOT_LENGTH)));
+        } else {
+            if (mCount + mTombstones + 1 > mCapacity * MAX_LOAD) {
+                resize();
+            }
+            slot = findFreeSlot(digest);
+            if (mIndex.getInt(slot + SLOT_PACK) == REMOVED) {
+                mTombstones--;
+            }
+            mCount++;
+        }
+
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            mIndex.put(slot + i, digest[i]);
+        }
+        mIndex.putInt(slot + SLOT_LENGTH, length);
+        mIndex.putLong(slot + SLOT_OFFSET, offset);
+        mIndex.putInt(slot + SLOT_PACK, pack);
+        addLiveBytes(pack, RECORD_HEADER_SIZE + length);
+    }
+
+    /**
+     * Moves the index to a new file, big enough to stay below the maximum load for a
+     * while. The slots of removed objects are dropped.
+     *
+     * @throws IOException
+     *      In case the new index could not be written
+     */
+    private void resize() throws IOException {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < (mCount + 1) * 2) {
+            capacity *= 2;
+        }
+
+        MappedByteBuffer old = mIndex;
+        int oldCapacity = mCapacity;
+        File file = new File(mDirectory, INDEX_FILE);
+        File temp = new File(mDirectory, INDEX_FILE + ".tmp");
+        createIndex(temp, capacity);
+
+        byte[] digest = new byte[DIGEST_SIZE];
+        for (int i = 0; i < oldCapacity; i++) {
+            int slot = getSlotPosition(i);
+            if (old.getInt(slot + SLOT_PACK) > 0) {
+                for (int j = 0; j < DIGEST_SIZE; j++) {
+                    digest[j] = old.get(slot + j);
+                }
+                int target = findFreeSlot(digest);
+                for (int j = 0; j < SLOT_SIZE; j++) {
+                    mIndex.put(target + j, old.get(slot + j));
+                }
+                mCount++;
+            }
+        }
+        writeHeader();
+        mIndex.force();
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to move " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Finds the slot of a packed object.
+     *
+     * @param digest
+     *      The digest
+     * @return
+     *      The position of the slot in the index, or -1 if the object is not packed
+     */
+    private int findSlot(byte[] digest) {
+        for (int i = getStart(digest), probes = 0; probes < mCapacity;
+                i = (i + 1) % mCapacity, probes++) {
+            int slot = getSlotPosition(i);
+            int pack = mIndex.getInt(slot + SLOT_PACK);
+            if (pack == EMPTY) {
+                return -1;
+            }
+            if (pack > 0 && hasDigest(slot, digest)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a slot to put an object that is not packed into.
+     *
+     * @param digest
+     *      The digest
+     * @return
+     *      The position of the first empty or removed slot
+     */
+    private int findFreeSlot(byte[] digest) {
+        int i = getStart(digest);
+        while (mIndex.getInt(getSlotPosition(i) + SLOT_PACK) > 0) {
+            i = (i + 1) % mCapacity;
+        }
+        return getSlotPosition(i);
+    }
+
+    /**
+     * Gets the slot where the search for a digest starts.
+     *
+     * @param digest
+     *      The digest
+     * @return
+     *      The slot number
+     */
+    private int getStart(byte[] digest) {
+        int value = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+                | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+        return (value & Integer.MAX_VALUE) % mCapacity;
+    }
+
+    /**
+     * Gets the position of a slot in the index.
+     *
+     * @param i
+     *      The slot number
+     * @return
+     *      The position
+     */
+    private static int getSlotPosition(int i) {
+        return INDEX_HEADER_SIZE + i * SLOT_SIZE;
+    }
+
+    /**
+     * Checks if a slot holds a digest.
+     *
+     * @param slot
+     *      The position of the slot
+     * @param digest
+     *      The digest
+     * @return
+     *      True if the slot holds the digest
+     */
+    private boolean hasDigest(int slot, byte[] digest) {
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            if (mIndex.get(slot + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the digest of a slot.
+     *
+     * @param slot
+     *      The position of the slot
+     * @param digest
+     *      Receives the digest
+     */
+    private void getDigest(int slot, byte[] digest) {
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            digest[i] = mIndex.get(slot + i);
+        }
+    }
+
+    /**
+     * Writes the counters and the end of the current pack to the index header.
+     */
+    private void writeHeader() {
+        mIndex.putInt(COUNT, mCount);
+        mIndex.putInt(TOMBSTONES, mTombstones);
+        mIndex.putInt(ACTIVE_PACK, mActivePack);
+        mIndex.putLong(ACTIVE_LENGTH, mActiveLength);
+    }
+
+    /**
+     * Gets the bytes of live records in a pack.
+     *
+     * @param pack
+     *      The pack number
+     * @return
+     *      The number of bytes
+     */
+    private long getLiveBytes(int pack) {
+        Long live = mLiveBytes.get(pack);
+        return live == null ? 0 : live;
+    }
+
+    /**
+     * Changes the bytes of live records in a pack.
+     *
+     * @param pack
+     *      The pack number
+     * @param bytes
+     *      The number of bytes to add, negative to subtract
+     */
+    private void addLiveBytes(int pack, long bytes) {
+        mLiveBytes.put(pack, getLiveBytes(pack) + bytes);
+    }
+
+    /**
+     * Gets the file of a pack.
+     *
+     * @param pack
+     *      The pack number
+     * @return
+     *      The file
+     */
+    private File getPackFile(int pack) {
+        return new File(mDirectory, PACK_PREFIX + pack + PACK_SUFFIX);
+    }
+
+    /**
+     * Gets the number of a pack from its file name.
+     *
+     * @param name
+     *      The file name
+     * @return
+     *      The pack number, or -1 if the file is not a pack
+     */
+    private static int getPackNumber(String name) {
+        if (!name.startsWith(PACK_PREFIX) || !name.endsWith(PACK_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PACK_PREFIX.length(),
+                    name.length() - PACK_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads until a buffer is full.
+     *
+     * @param channel
+     *      The channel to read from
+     * @param buffer
+     *      The buffer
+     * @param position
+     *      The position to read from
+     * @throws IOException
+     *      In case the channel ends before the buffer is full
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Pack ended at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes all of a buffer.
+     *
+     * @param channel
+     *      The channel to write to
+     * @param buffer
+     *      The buffer
+     * @param position
+     *      The position to write to
+     * @throws IOException
+     *      In case the buffer could not be written
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
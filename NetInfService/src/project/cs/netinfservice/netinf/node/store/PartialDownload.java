@@ -0,0 +1,344 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * A download that has not completed, kept across failed attempts so that the next attempt,
+ * from the same locator or another one holding the same hash, continues where the last
+ * one stopped.
+ * <p>
+ * The received content is in a <code>.part</code> file. The ranges of the content it holds
+ * are recorded in a <code>.ranges</code> file next to it, one <code>start-end</code> line
+ * per range. The ranges are only recorded after the content is synced to the storage, so
+ * bytes that may not have reached the storage before a crash are never trusted.
+ * <p>
+ * A download is written by one attempt at a time, the caller makes sure of that.
+ */
+public class PartialDownload {
+    /** Debug tag. */
+    private static final String TAG = "PartialDownload";
+
+    /** The received ranges are recorded at least after this many bytes. */
+    private static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+    /** The received content. */
+    private final File mPart;
+
+    /** The record of the received ranges. */
+    private final File mRanges;
+
+    /** The received ranges as start and end, sorted and not touching each other. */
+    private final List<long[]> mReceived = new ArrayList<long[]>();
+
+    /**
+     * Opens a download, reading the ranges received by earlier attempts.
+     *
+     * @param part
+     *      The file of the received content
+     * @param ranges
+     *      The file recording the received ranges
+     */
+    PartialDownload(File part, File ranges) {
+        mPart = part;
+        mRanges = ranges;
+        if (mPart.exists() && mRanges.exists()) {
+            readRanges();
+        }
+    }
+
+    /**
+     * Gets the file of the received content. Once the download is complete it is
+     * committed to the store like a temporary file.
+     *
+     * @return
+     *      The file
+     */
+    public File getFile() {
+        return mPart;
+    }
+
+    /**
+     * Gets the number of bytes received from the start of the content on, where the next
+     * attempt continues.
+     *
+     * @return
+     *      The number of bytes
+     */
+    public synchronized long getReceived() {
+        if (mReceived.isEmpty() || mReceived.get(0)[0] > 0) {
+            return 0;
+        }
+        return mReceived.get(0)[1];
+    }
+
+    /**
+     * Gets the received ranges.
+     *
+     * @return
+     *      The ranges as start and end, sorted
+     */
+    public synchronized List<long[]> getRanges() {
+        List<long[]> ranges = new ArrayList<long[]>(mReceived.size());
+        for (long[] range : mReceived) {
+            ranges.add(range.clone());
+        }
+        return ranges;
+    }
+
+    /**
+     * Opens the content for writing at an offset. The bytes written are recorded as
+     * received as they reach the storage, at the latest when the stream is closed.
+     *
+     * @param offset
+     *      Where in the content the written bytes go
+     * @return
+     *      The stream, it must be closed
+     * @throws IOException
+     *      In case the content could not be opened
+     */
+    public OutputStream openOutput(long offset) throws IOException {
+        File directory = mPart.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        // Bytes past the received ranges may not have reached the storage intact
+        long end = offset;
+        synchronized (this) {
+            for (long[] range : mReceived) {
+                end = Math.max(end, range[1]);
+            }
+        }
+        RandomAccessFile file = new RandomAccessFile(mPart, "rw");
+        try {
+            if (file.length() > end) {
+                file.setLength(end);
+            }
+            file.seek(offset);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return new RangeOutputStream(file, offset);
+    }
+
+    /**
+     * Forgets all received content, the next attempt starts from the beginning.
+     */
+    public synchronized void reset() {
+        mReceived.clear();
+        mPart.delete();
+        mRanges.delete();
+    }
+
+    /**
+     * Removes what is left of the download once it is committed or given up.
+     */
+    public synchronized void delete() {
+        reset();
+    }
+
+    /**
+     * Records a range as received.
+     *
+     * @param start
+     *      Start of the range
+     * @param end
+     *      End of the range, exclusive
+     * @throws IOException
+     *      In case the record could not be written
+     */
+    private synchronized void addRange(long start, long end) throws IOException {
+        if (end <= start) {
+            return;
+        }
+
+        // Merge with the ranges it overlaps or touches
+        List<long[]> merged = new ArrayList<long[]>(mReceived.size() + 1);
+        long[] added = {start, end};
+        for (long[] range : mReceived) {
+            if (range[1] < added[0] || range[0] > added[1]) {
+                merged.add(range);
+            } else {
+                added[0] = Math.min(added[0], range[0]);
+                added[1] = Math.max(added[1], range[1]);
+            }
+        }
+        int index = 0;
+        while (index < merged.size() && merged.get(index)[0] < added[0]) {
+            index++;
+        }
+        merged.add(index, added);
+        mReceived.clear();
+        mReceived.addAll(merged);
+
+        writeRanges();
+    }
+
+    /**
+     * Writes the record of the received ranges, replacing the old record at once.
+     *
+     * @throws IOException
+     *      In case the record could not be written
+     */
+    private void writeRanges() throws IOException {
+        File temp = new File(mRanges.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "US-ASCII");
+        try {
+            for (long[] range : mReceived) {
+                writer.write(range[0] + "-" + range[1] + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(mRanges)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " to " + mRanges);
+        }
+    }
+
+    /**
+     * Reads the record of the received ranges. Ranges beyond the end of the content file
+     * are cut off, a broken record is dropped.
+     */
+    private void readRanges() {
+        long length = mPart.length();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(mRanges));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] bounds = line.trim().split("-");
+                    long start = Long.parseLong(bounds[0]);
+                    long end = Math.min(Long.parseLong(bounds[1]), length);
+                    if (start < end) {
+                        mReceived.add(new long[] {start, end});
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mRanges + ": " + e.getMessage());
+            mReceived.clear();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Dropping the broken record " + mRanges);
+            mReceived.clear();
+        }
+    }
+
+    /**
+     * Writes content at an offset and records it as received once it is synced.
+     */
+    private class RangeOutputStream extends OutputStream {
+        /** The content file. */
+        private final RandomAccessFile mFile;
+
+        /** Start of the bytes not yet recorded. */
+        private long mStart;
+
+        /** Position of the next byte. */
+        private long mPosition;
+
+        /**
+         * Creates the stream.
+         *
+         * @param file
+         *      The content file, positioned at the offset
+         * @param offset
+         *      The offset
+         */
+        RangeOutputStream(RandomAccessFile file, long offset) {
+            mFile = file;
+            mStart = offset;
+            mPosition = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mFile.write(b);
+            mPosition++;
+            checkpointIfDue();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            mFile.write(buffer, offset, length);
+            mPosition += length;
+            checkpointIfDue();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                checkpoint();
+            } finally {
+                mFile.close();
+            }
+        }
+
+        /**
+         * Records the written bytes once enough have been written since the last record.
+         *
+         * @throws IOException
+         *      In case the bytes could not be synced or recorded
+         */
+        private void checkpointIfDue() throws IOException {
+            if (mPosition - mStart >= CHECKPOINT_INTERVAL) {
+                checkpoint();
+            }
+        }
+
+        /**
+         * Syncs the written bytes and records them as received.
+         *
+         * @throws IOException
+         *      In case the bytes could not be synced or recorded
+         */
+        private void checkpoint() throws IOException {
+            if (mPosition == mStart) {
+                return;
+            }
+            mFile.getFD().sync();
+            addRange(mStart, mPosition);
+            mStart = mPosition;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.node.store;
+
+/**
+ * A file in the content store, with what is known about how it is used.
+ */
+public class StoredObject {
+    /** The content hash. */
+    private final String mHash;
+
+    /** The hash algorithm, null if the file has no information object. */
+    private final String mHashAlg;
+
+    /** Path to the file. */
+    private final String mFilePath;
+
+    /** Size of the file in bytes. */
+    private final long mFileSize;
+
+    /** Point in time (ms since epoch) when the object was last read. */
+    private final long mLastAccess;
+
+    /** Number of times the object was read. */
+    private final long mHits;
+
+    /**
+     * Creates a stored object.
+     *
+     * @param hash
+     *      The content hash
+     * @param hashAlg
+     *      The hash algorithm, null if the file has no information object
+     * @param filePath
+     *      Path to the file
+     * @param fileSize
+     *      Size of the file in bytes
+     * @param lastAccess
+     *      Point in time (ms since epoch) when the object was last read
+     * @param hits
+     *      Number of times the object was read
+     */
+    public StoredObject(String hash, String hashAlg, String filePath, long fileSize,
+            long lastAccess, long hits) {
+        mHash = hash;
+        mHashAlg = hashAlg;
+        mFilePath = filePath;
+        mFileSize = fileSize;
+        mLastAccess = lastAccess;
+        mHits = hits;
+    }
+
+    /**
+     * Gets the content hash.
+     *
+     * @return
+     *      The content hash
+     */
+    public String getHash() {
+        return mHash;
+    }
+
+    /**
+     * Gets the hash algorithm.
+     *
+     * @return
+     *      The hash algorithm, null if the file has no information object
+     */
+    public String getHashAlg() {
+        return mHashAlg;
+    }
+
+    /**
+     * Gets the path to the file.
+     *
+     * @return
+     *      The path to the file
+     */
+    public String getFilePath() {
+        return mFilePath;
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return
+     *      The size in bytes
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /**
+     * Gets the last access time.
+     *
+     * @return
+     *      Point in time (ms since epoch) when the object was last read
+     */
+    public long getLastAccess() {
+        return mLastAccess;
+    }
+
+    /**
+     * Gets the number of reads.
+     *
+     * @return
+     *      Number of times the object was read
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Checks if the file has an information object in the database.
+     *
+     * @return
+     *      True if the object is in the database, false for a file on its own
+     */
+    public boolean isInDatabase() {
+        return mHashAlg != null;
+    }
+
+    /**
+     * Creates a copy that includes reads not yet written to the database.
+     *
+     * @param lastAccess
+     *      Point in time (ms since epoch) of the latest such read
+     * @param hits
+     *      Number of such reads
+     * @return
+     *      The updated copy
+     */
+    public StoredObject withAccesses(long lastAccess, long hits) {
+        return new StoredObject(mHash, mHashAlg, mFilePath, mFileSize,
+                Math.max(mLastAccess, lastAccess), mHits + hits);
+    }
+}
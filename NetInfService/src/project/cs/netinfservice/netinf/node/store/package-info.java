@@ -0,0 +1,4 @@
+/**
+ * Stores the objects of the node, in files or packed, and keeps them within a quota.
+ */
+package project.cs.netinfservice.netinf.node.store;
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A provider that streams an object to where it is stored instead of handing back the
+ * whole object in memory. The object passes through a buffer of bounded size, so large
+ * objects do not need a heap of their size.
+ * <p>
+ * {@link #getByteArray(String, String)} remains for callers that want the object in memory.
+ */
+public interface StreamProvider extends ByteArrayProvider {
+
+    /**
+     * Fetches an object and writes it to a stream.
+     *
+     * @param locator
+     *      The locator from where the object should be fetched
+     * @param hash
+     *      The hash of the object
+     * @param out
+     *      Where the content of the object is written, it is not closed
+     * @param listener
+     *      Gets told how far the transfer has come, may be null
+     * @return
+     *      Number of content bytes written
+     * @throws IOException
+     *      In case the object could not be fetched or written
+     */
+    long transfer(String locator, String hash, OutputStream out, TransferListener listener)
+            throws IOException;
+
+    /**
+     * Fetches an object from an offset on and writes it to a stream, to continue a
+     * transfer that broke off. The content is written uncompressed.
+     *
+     * @param locator
+     *      The locator from where the object should be fetched
+     * @param hash
+     *      The hash of the object
+     * @param offset
+     *      The byte of the content to start at
+     * @param out
+     *      Where the content of the object from the offset on is written, it is not closed
+     * @param listener
+     *      Gets told how far the transfer has come, counted from the offset, may be null
+     * @return
+     *      Number of content bytes written
+     * @throws RangeNotSupportedException
+     *      In case the source can not start after the beginning, nothing is written then
+     * @throws IOException
+     *      In case the object could not be fetched or written
+     */
+    long transfer(String locator, String hash, long offset, OutputStream out,
+            TransferListener listener) throws IOException;
+}
@@ -27,13 +27,31 @@
 
 package project.cs.netinfservice.netinf.provider.bluetooth;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 
 import project.cs.netinfservice.application.MainNetInfActivity;
-import project.cs.netinfservice.netinf.provider.ByteArrayProvider;
+import project.cs.netinfservice.netinf.provider.RangeNotSupportedException;
+import project.cs.netinfservice.netinf.provider.StreamProvider;
+import project.cs.netinfservice.netinf.provider.TransferListener;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothServer;
 import project.cs.netinfutilities.UProperties;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -43,12 +61,20 @@ import android.util.Log;
 
 /**
  * The BluetoothProvider handles data transmission via Bluetooth.
+ * The received object is streamed through a buffer of bluetooth.buffer bytes, so its size
+ * announced by the remote device never decides how much memory is allocated.
+ * <p>
+ * Remote devices speaking version 2 of the {@link BluetoothProtocol} are kept connected
+ * and several objects are requested over one connection. Devices that only speak version
+ * 1 get one connection per object. Whether such a device understands requests accepting
+ * compression is learned from its first answers, so objects are requested twice only
+ * until then.
  *
  * @author Kim-Anh Tran
  * @author Paolo Boschini
  *
  */
-public class BluetoothProvider implements ByteArrayProvider {
+public class BluetoothProvider implements StreamProvider {
 
     /** Debug Tag. */
     private static final String TAG = "BluetoothProvider";
@@ -64,12 +90,47 @@ public class BluetoothProvider implements ByteArrayProvider {
     private static final int NUMBER_OF_ATTEMPTS = Integer
             .parseInt(UProperties.INSTANCE.getPropertyWithName("bluetooth.number_attempts"));
 
+    /** Size of the buffer the received object is streamed through. */
+    private static final int BUFFER_SIZE = Integer
+            .parseInt(UProperties.INSTANCE.getPropertyWithName("bluetooth.buffer"));
+
+    /** True if compressed files are accepted from remote devices. */
+    private static final boolean ACCEPT_COMPRESSED = Boolean
+            .parseBoolean(UProperties.INSTANCE.getPropertyWithName("bluetooth.compression"));
+
+    /** The highest protocol version spoken to remote devices. */
+    private static final int PROTOCOL_VERSION = Integer
+            .parseInt(UProperties.INSTANCE.getPropertyWithName("bluetooth.protocol"));
+
+    /** Remote devices close connections idle for this long, in ms. */
+    private static final long IDLE_TIMEOUT = Long
+            .parseLong(UProperties.INSTANCE.getPropertyWithName("bluetooth.idle_timeout"));
+
     /** Bluetooth transmission used to transfer a resource. */
     public static final String BLUETOOTH_TRANSMISSION = "project.cs.netinfservice.BLUETOOTH_TRANSMISSION";
 
     /** The Bluetooth adapter. */
     private BluetoothAdapter mBluetoothAdapter = null;
 
+    /** Kept alive connections by the address of the remote device. */
+    private final ConcurrentMap<String, PipelinedConnection> mConnections =
+            new ConcurrentHashMap<String, PipelinedConnection>();
+
+    /** Held while connecting to a remote device, by its address. */
+    private final ConcurrentMap<String, Object> mConnecting =
+            new ConcurrentHashMap<String, Object>();
+
+    /** Addresses of the remote devices that only speak version 1 of the protocol. */
+    private final Set<String> mVersion1Devices =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Whether version 1 remote devices understand requests accepting compression, by their
+     * address. Devices not in the map have not told yet.
+     */
+    private final ConcurrentMap<String, Boolean> mCompressionDevices =
+            new ConcurrentHashMap<String, Boolean>();
+
     /**
      * Creates a BluetoothProvider that will handle data transmission
      * via Bluetooth.
@@ -84,36 +145,172 @@ public class BluetoothProvider implements ByteArrayProvider {
      *
      * @param   locator     The source from where to fetch the BO
      * @param   hash        A hash identifying the BO
-     * @return  The byte array referring to the requested BO
+     * @return  The byte array referring to the requested BO, or null on failure
      */
     @Override
     public byte[] getByteArray(String locator, String hash) {
-        byte[] fileArray = null;
-        BluetoothSocket socket = null;
-
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            // Connect
-            socket = connectToRemoteDevice(locator);
+            transfer(locator, hash, out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Transfer from locator failed: " + e.getMessage());
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Fetches a BO from a remote device and streams it to the output stream.
+     *
+     * @param   locator     The source from where to fetch the BO
+     * @param   hash        A hash identifying the BO
+     * @param   out         Where the content of the BO is written
+     * @param   listener    Gets told how far the transfer has come, may be null
+     * @return  Number of content bytes written
+     * @throws  IOException In case the connection or the transfer failed
+     */
+    @Override
+    public long transfer(String locator, String hash, OutputStream out,
+            TransferListener listener) throws IOException {
+        return transfer(locator, hash, 0, out, listener);
+    }
+
+    /**
+     * Fetches a BO from a remote device from an offset on and streams it to the output
+     * stream. Only devices speaking version 2 of the protocol can start after the beginning.
+     *
+     * @param   locator     The source from where to fetch the BO
+     * @param   hash        A hash identifying the BO
+     * @param   offset      The byte of the content to start at
+     * @param   out         Where the content of the BO from the offset on is written
+     * @param   listener    Gets told how far the transfer has come, may be null
+     * @return  Number of content bytes written
+     * @throws  RangeNotSupportedException In case the remote device only sends whole BOs
+     * @throws  IOException In case the connection or the transfer failed
+     */
+    @Override
+    public long transfer(String locator, String hash, long offset, OutputStream out,
+            TransferListener listener) throws IOException {
+        if (PROTOCOL_VERSION >= BluetoothProtocol.VERSION && !mVersion1Devices.contains(locator)) {
+            PipelinedConnection connection = getConnection(locator);
+            if (connection != null) {
+                CountingOutputStream counted = new CountingOutputStream(out);
+                try {
+                    return connection.request(hash, ACCEPT_COMPRESSED, offset, counted,
+                            listener);
+                } catch (FileNotFoundException e) {
+                    throw e;
+                } catch (RangeNotSupportedException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // The remote device may have closed the connection for being idle
+                    if (counted.getByteCount() > 0) {
+                        throw e;
+                    }
+                    Log.d(TAG, "Request failed, trying once more: " + e.getMessage());
+                    connection = getConnection(locator);
+                    if (connection != null) {
+                        return connection.request(hash, ACCEPT_COMPRESSED, offset, out,
+                                listener);
+                    }
+                }
+            }
+        }
+
+        if (offset > 0) {
+            throw new RangeNotSupportedException(locator + " only sends whole objects");
+        }
+
+        // One connection per object
+        Boolean acceptsCompression = mCompressionDevices.get(locator);
+        if (!ACCEPT_COMPRESSED || Boolean.FALSE.equals(acceptsCompression)) {
+            return request(locator, hash, out, listener);
+        }
+
+        long written = request(locator, hash + BluetoothServer.ACCEPT_COMPRESSED, out, listener);
+        if (written > 0) {
+            mCompressionDevices.put(locator, Boolean.TRUE);
+        } else if (acceptsCompression == null) {
+            // Devices that do not know compression do not find the hash
+            Log.d(TAG, "Empty response, requesting again without compression");
+            written = request(locator, hash, out, listener);
+            if (written > 0) {
+                Log.d(TAG, "Remote device " + locator + " does not know compression");
+                mCompressionDevices.put(locator, Boolean.FALSE);
+            }
+        }
+        return written;
+    }
 
+    /**
+     * Connects to a remote device, requests a BO and streams it to the output stream.
+     *
+     * @param   locator     The source from where to fetch the BO
+     * @param   request     The hash, possibly accepting compression
+     * @param   out         Where the content of the BO is written
+     * @param   listener    Gets told how far the transfer has come, may be null
+     * @return  Number of content bytes written
+     * @throws  IOException In case the connection or the transfer failed
+     */
+    private long request(String locator, String request, OutputStream out,
+            TransferListener listener) throws IOException {
+        BluetoothSocket socket = connectToRemoteDevice(locator);
+        try {
             // Send request
-            sendRequest(socket, hash);
+            sendRequest(socket, request);
 
             // Download file
-            fileArray = downloadFile(socket);
+            return downloadFile(socket, out, listener);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Something went wrong when closing the socket!");
+            }
+        }
+    }
 
-        } catch (IOException e) {
-            Log.e(TAG, "Connection to locator failed.");
-            fileArray = null;
+    /**
+     * Gets a kept alive connection to a remote device, connecting if there is none.
+     *
+     * @param   locator     The device we want to connect to
+     * @return  The connection, or null if the remote device only speaks version 1
+     * @throws  IOException In case the connection could not be established
+     */
+    private PipelinedConnection getConnection(String locator) throws IOException {
+        // Let go of the connections remote devices are about to close
+        for (PipelinedConnection connection : mConnections.values()) {
+            if (!connection.isUsable(IDLE_TIMEOUT / 2)) {
+                connection.close();
+            }
+        }
 
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch (IOException e1) {
-                    Log.e(TAG, "Something went wrong when closing the socket!");
-                }
+        mConnecting.putIfAbsent(locator, new Object());
+        synchronized (mConnecting.get(locator)) {
+            PipelinedConnection connection = mConnections.get(locator);
+            if (connection != null && connection.isUsable(IDLE_TIMEOUT / 2)) {
+                return connection;
             }
+            mConnections.remove(locator);
+
+            connection = new PipelinedConnection(connectToRemoteDevice(locator));
+            boolean version2;
+            try {
+                version2 = connection.handshake();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            if (!version2) {
+                Log.d(TAG, "Remote device " + locator + " only speaks version 1");
+                connection.close();
+                mVersion1Devices.add(locator);
+                return null;
+            }
+
+            mConnections.put(locator, connection);
+            return connection;
         }
-        return fileArray;
     }
 
     /**
@@ -176,34 +373,66 @@ public class BluetoothProvider implements ByteArrayProvider {
 
     /**
      * Attempt to retrieve a BO blocking the connection.
-     * @param   socket  The socket for the connection
-     * @return  The byte stream representing the retrieved BO
+     * @param   socket      The socket for the connection
+     * @param   out         Where the content of the BO is written
+     * @param   listener    Gets told how far the transfer has come, may be null
+     * @return  Number of content bytes written
+     * @throws  IOException Exception for the streams
+     */
+    private long downloadFile(BluetoothSocket socket, OutputStream out,
+            TransferListener listener) throws IOException {
+        // Get the input stream for receiving the file, a negative size means compressed
+        DataInputStream inStream = new DataInputStream(socket.getInputStream());
+        final int fileSize = inStream.readInt();
+        return readContent(inStream, Math.abs((long) fileSize), fileSize < 0, out, listener);
+    }
+
+    /**
+     * Reads the content of a BO and streams it to the output stream. Exactly the announced
+     * number of bytes is read, so a kept alive connection stays in step.
+     * @param   in          The stream from the remote device
+     * @param   total       The number of content bytes announced
+     * @param   compressed  True if the content is gzip compressed
+     * @param   out         Where the content of the BO is written
+     * @param   listener    Gets told how far the transfer has come, may be null
+     * @return  Number of content bytes written, after decompression
      * @throws  IOException Exception for the streams
      */
-    private byte[] downloadFile(BluetoothSocket socket) throws IOException {
+    static long readContent(InputStream in, long total, boolean compressed, OutputStream out,
+            TransferListener listener) throws IOException {
         Log.d(TAG, "Begining downloading the file");
 
         Intent intent = new Intent(BLUETOOTH_TRANSMISSION);
         MainNetInfActivity.getActivity().sendBroadcast(intent);
 
-        DataInputStream inStream = null;
-        byte[] buffer = null;
-
-
-        // Get the input stream for receiving the file
-        inStream = new DataInputStream(socket.getInputStream());
-        final int fileSize = inStream.readInt();
-        buffer = new byte[fileSize];
-
-        int offset = 0;
-
-        while (offset < fileSize) {
-            offset += inStream.read(buffer, offset, (fileSize - offset));
+        // Never read past the announced size, progress counts the bytes received
+        CountingInputStream received =
+                new CountingInputStream(new BoundedInputStream(in, total));
+        InputStream content = compressed
+                ? new GZIPInputStream(received, BUFFER_SIZE)
+                : received;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            written += read;
+            if (listener != null) {
+                listener.onProgress(received.getByteCount(), total);
+            }
         }
 
-        inStream.close();
+        // Skip what the decompression left, the next response follows it
+        while (received.read(buffer) != -1) {
+            continue;
+        }
 
-        return buffer;
+        if (received.getByteCount() < total) {
+            throw new EOFException("Connection closed after " + received.getByteCount()
+                    + " of " + total + " bytes");
+        }
+        return written;
     }
 
     /**
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.provider.bluetooth;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+import project.cs.netinfservice.netinf.provider.RangeNotSupportedException;
+import project.cs.netinfservice.netinf.provider.TransferListener;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol.Request;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol.Response;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * A kept alive connection to a remote device speaking version 2 of the
+ * {@link BluetoothProtocol}. Several threads may request objects at the same time, their
+ * requests are sent right away and the responses are read in the order of the requests.
+ * A connection that fails in the middle of a response is closed, since the next response
+ * can no longer be found.
+ */
+class PipelinedConnection {
+
+    /** Debug Tag. */
+    private static final String TAG = "PipelinedConnection";
+
+    /** The socket to the remote device. */
+    private final BluetoothSocket mSocket;
+
+    /** The stream from the remote device. */
+    private final InputStream mIn;
+
+    /** The stream to the remote device. */
+    private final OutputStream mOut;
+
+    /** Ids of the requests waiting for their response, in the order they were sent. */
+    private final LinkedList<Integer> mPending = new LinkedList<Integer>();
+
+    /** The id of the next request. */
+    private int mNextId;
+
+    /** Set once the connection is closed. */
+    private boolean mClosed;
+
+    /** When the last response was read, in ms. */
+    private long mLastUsed = System.currentTimeMillis();
+
+    /**
+     * Creates a connection over a connected socket.
+     *
+     * @param   socket      The socket to the remote device
+     * @throws  IOException In case the streams of the socket could not be opened
+     */
+    PipelinedConnection(BluetoothSocket socket) throws IOException {
+        mSocket = socket;
+        mIn = socket.getInputStream();
+        mOut = socket.getOutputStream();
+    }
+
+    /**
+     * Exchanges the preamble with the remote device.
+     *
+     * @return  True if the remote device speaks version 2, false if it only speaks version 1
+     * @throws  IOException In case the preamble could not be exchanged
+     */
+    boolean handshake() throws IOException {
+        BluetoothProtocol.writePreamble(mOut);
+        return BluetoothProtocol.readPreamble(mIn, 0);
+    }
+
+    /**
+     * Checks if the connection can take another request.
+     *
+     * @param   idleTimeout The time after which the remote device may close an idle connection
+     * @return  True if the connection is open and has not been idle for too long
+     */
+    synchronized boolean isUsable(long idleTimeout) {
+        return !mClosed
+                && (!mPending.isEmpty() || System.currentTimeMillis() - mLastUsed < idleTimeout);
+    }
+
+    /**
+     * Requests an object and streams it to the output stream.
+     *
+     * @param   hash        A hash identifying the object
+     * @param   acceptGzip  True if gzip compressed content is accepted, ignored after an offset
+     * @param   offset      The byte of the content to start at
+     * @param   out         Where the content of the object from the offset on is written
+     * @param   listener    Gets told how far the transfer has come, may be null
+     * @return  Number of content bytes written
+     * @throws  FileNotFoundException In case the remote device does not have the object
+     * @throws  RangeNotSupportedException In case the remote device sent the whole object
+     * @throws  IOException In case the transfer failed
+     */
+    long request(String hash, boolean acceptGzip, long offset, OutputStream out,
+            TransferListener listener) throws IOException {
+        int id;
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Connection is closed");
+            }
+            id = mNextId++;
+            mPending.addLast(id);
+            try {
+                new Request(id, hash, acceptGzip, offset).writeTo(mOut);
+                mOut.flush();
+            } catch (IOException e) {
+                closeLocked();
+                throw e;
+            }
+
+            // Responses come in the order of the requests
+            while (!mClosed && mPending.getFirst() != id) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    closeLocked();
+                    throw new InterruptedIOException("Interrupted waiting for the response");
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Connection closed while waiting for the response");
+            }
+        }
+
+        boolean healthy = false;
+        try {
+            Response response = Response.readFrom(mIn);
+            if (response == null) {
+                throw new EOFException("Connection closed by the remote device");
+            }
+            if (response.getId() != id) {
+                throw new IOException("Got response " + response.getId() + " to request " + id);
+            }
+
+            // Only successful responses have content
+            switch (response.getStatus()) {
+            case BluetoothProtocol.STATUS_OK:
+                // Devices that do not know offsets skip the field and send everything
+                if (response.getOffset() != offset) {
+                    throw new RangeNotSupportedException("Remote device sent from "
+                            + response.getOffset() + " instead of " + offset);
+                }
+                long written = BluetoothProvider.readContent(mIn, response.getLength(),
+                        response.isGzip(), out, listener);
+                healthy = true;
+                return written;
+            case BluetoothProtocol.STATUS_NOT_FOUND:
+                healthy = true;
+                throw new FileNotFoundException("Remote device does not have " + hash);
+            default:
+                healthy = true;
+                throw new IOException("Remote device answered with status "
+                        + response.getStatus());
+            }
+        } finally {
+            synchronized (this) {
+                if (!mClosed) {
+                    mPending.removeFirst();
+                    mLastUsed = System.currentTimeMillis();
+                    if (!healthy) {
+                        closeLocked();
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Closes the connection. Requests waiting for their response fail.
+     */
+    synchronized void close() {
+        closeLocked();
+    }
+
+    /**
+     * Closes the connection, the caller holds the lock.
+     */
+    private void closeLocked() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mPending.clear();
+        notifyAll();
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Something went wrong when closing the socket!");
+        }
+    }
+}
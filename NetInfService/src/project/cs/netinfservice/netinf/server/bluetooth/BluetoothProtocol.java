@@ -0,0 +1,601 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.server.bluetooth;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Version 2 of the protocol between the {@link BluetoothServer} and the Bluetooth provider.
+ * <p>
+ * A version 2 connection starts with both sides sending the {@link #PREAMBLE}. Version 1
+ * requests are a plain hash, which never starts with a zero byte, so the server tells the
+ * versions apart from the first byte. A version 1 server answers the preamble with an
+ * empty file, which the client takes as the signal to fall back to version 1.
+ * <p>
+ * After the preamble the client sends any number of requests without waiting for the
+ * responses, and the server answers them in order over the same connection. Every
+ * message is written with the protobuf runtime, preceded by its length as a varint:
+ * <pre>
+ * message Request {
+ *     optional uint32 id = 1;
+ *     optional string hash = 2;
+ *     optional bool accept_gzip = 3;
+ *     optional uint64 offset = 4;
+ * }
+ *
+ * message Response {
+ *     optional uint32 id = 1;
+ *     optional uint32 status = 2;
+ *     optional string content_type = 3;
+ *     optional uint64 length = 4;
+ *     optional bool gzip = 5;
+ *     optional uint64 offset = 6;
+ * }
+ * </pre>
+ * A response with {@link #STATUS_OK} is followed by length bytes of content, gzip
+ * compressed if gzip is set. Other responses have no content.
+ * <p>
+ * A request with an offset asks for the content from that byte on, to continue a
+ * download that broke off. Such content is never compressed, and the response carries the
+ * offset it starts at. An offset past the end of the content is a bad request.
+ */
+public final class BluetoothProtocol {
+
+    /** The protocol version. */
+    public static final int VERSION = 2;
+
+    /** Sent by both sides to open a version 2 connection. */
+    private static final byte[] PREAMBLE = {0, 'N', 'I', VERSION};
+
+    /** The object follows. */
+    public static final int STATUS_OK = 0;
+
+    /** The object is not stored on the server. */
+    public static final int STATUS_NOT_FOUND = 1;
+
+    /** The server failed to read the object. */
+    public static final int STATUS_ERROR = 2;
+
+    /** The request could not be understood. */
+    public static final int STATUS_BAD_REQUEST = 3;
+
+    /** Largest message accepted, the content of an object is not part of it. */
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024;
+
+    /** Field numbers shared by the messages. */
+    private static final int FIELD_ID = 1;
+
+    /** Request field with the hash. */
+    private static final int FIELD_HASH = 2;
+
+    /** Request field set if gzip compressed content is accepted. */
+    private static final int FIELD_ACCEPT_GZIP = 3;
+
+    /** Response field with the status. */
+    private static final int FIELD_STATUS = 2;
+
+    /** Response field with the content type. */
+    private static final int FIELD_CONTENT_TYPE = 3;
+
+    /** Response field with the content length. */
+    private static final int FIELD_LENGTH = 4;
+
+    /** Response field set if the content is gzip compressed. */
+    private static final int FIELD_GZIP = 5;
+
+    /** Request field with the offset to start at. */
+    private static final int FIELD_OFFSET = 4;
+
+    /** Response field with the offset the content starts at. */
+    private static final int FIELD_RESPONSE_OFFSET = 6;
+
+    /** Not instantiable. */
+    private BluetoothProtocol() {
+    }
+
+    /**
+     * Checks if the first byte of a connection starts a version 2 connection.
+     *
+     * @param first
+     *      The first byte
+     * @return
+     *      True if the byte starts the preamble
+     */
+    public static boolean isPreambleStart(int first) {
+        return first == PREAMBLE[0];
+    }
+
+    /**
+     * Writes the preamble.
+     *
+     * @param out
+     *      The stream to the other side
+     * @throws IOException
+     *      In case the preamble could not be written
+     */
+    public static void writePreamble(OutputStream out) throws IOException {
+        out.write(PREAMBLE);
+        out.flush();
+    }
+
+    /**
+     * Reads the preamble of the other side.
+     *
+     * @param in
+     *      The stream from the other side
+     * @param skip
+     *      Number of preamble bytes already read
+     * @return
+     *      True if the other side speaks version 2
+     * @throws IOException
+     *      In case the preamble could not be read
+     */
+    public static boolean readPreamble(InputStream in, int skip) throws IOException {
+        byte[] preamble = new byte[PREAMBLE.length - skip];
+        new DataInputStream(in).readFully(preamble);
+        return Arrays.equals(preamble, Arrays.copyOfRange(PREAMBLE, skip, PREAMBLE.length));
+    }
+
+    /**
+     * Writes a message preceded by its length.
+     *
+     * @param out
+     *      The stream to the other side
+     * @param message
+     *      The encoded message
+     * @throws IOException
+     *      In case the message could not be written
+     */
+    private static void writeMessage(OutputStream out, byte[] message) throws IOException {
+        CodedOutputStream coded = CodedOutputStream.newInstance(out);
+        coded.writeRawVarint32(message.length);
+        coded.writeRawBytes(message);
+        coded.flush();
+    }
+
+    /**
+     * Reads a message preceded by its length. Nothing past the message is read, the
+     * content of an object may follow it.
+     *
+     * @param in
+     *      The stream from the other side
+     * @return
+     *      The message, or null if the stream ended before it
+     * @throws IOException
+     *      In case the message could not be read or is too large
+     */
+    private static CodedInputStream readMessage(InputStream in) throws IOException {
+        // The length is a varint, read byte by byte
+        int size = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed within a message length");
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed message length");
+            }
+            size |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (size < 0 || size > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message of " + size + " bytes is too large");
+        }
+
+        byte[] message = new byte[size];
+        new DataInputStream(in).readFully(message);
+        return CodedInputStream.newInstance(message);
+    }
+
+    /**
+     * A request for an object.
+     */
+    public static class Request {
+        /** Identifies the response. */
+        private final int mId;
+
+        /** The hash of the requested object. */
+        private final String mHash;
+
+        /** True if gzip compressed content is accepted. */
+        private final boolean mAcceptGzip;
+
+        /** The byte of the content to start at. */
+        private final long mOffset;
+
+        /**
+         * Creates a request for the whole object.
+         *
+         * @param id
+         *      Identifies the response
+         * @param hash
+         *      The hash of the requested object
+         * @param acceptGzip
+         *      True if gzip compressed content is accepted
+         */
+        public Request(int id, String hash, boolean acceptGzip) {
+            this(id, hash, acceptGzip, 0);
+        }
+
+        /**
+         * Creates a request.
+         *
+         * @param id
+         *      Identifies the response
+         * @param hash
+         *      The hash of the requested object
+         * @param acceptGzip
+         *      True if gzip compressed content is accepted, ignored past the start
+         * @param offset
+         *      The byte of the content to start at
+         */
+        public Request(int id, String hash, boolean acceptGzip, long offset) {
+            mId = id;
+            mHash = hash;
+            mAcceptGzip = acceptGzip && offset == 0;
+            mOffset = offset;
+        }
+
+        /**
+         * Gets the id identifying the response.
+         *
+         * @return
+         *      The id
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Gets the hash of the requested object.
+         *
+         * @return
+         *      The hash, may be null in a malformed request
+         */
+        public String getHash() {
+            return mHash;
+        }
+
+        /**
+         * Checks if gzip compressed content is accepted.
+         *
+         * @return
+         *      True if gzip compressed content is accepted
+         */
+        public boolean isAcceptGzip() {
+            return mAcceptGzip;
+        }
+
+        /**
+         * Gets the byte of the content to start at.
+         *
+         * @return
+         *      The offset, 0 for the whole object
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * Writes the request.
+         *
+         * @param out
+         *      The stream to the server, it is not flushed
+         * @throws IOException
+         *      In case the request could not be written
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            int size = CodedOutputStream.computeUInt32Size(FIELD_ID, mId)
+                    + CodedOutputStream.computeStringSize(FIELD_HASH, mHash)
+                    + CodedOutputStream.computeBoolSize(FIELD_ACCEPT_GZIP, mAcceptGzip);
+            if (mOffset > 0) {
+                size += CodedOutputStream.computeUInt64Size(FIELD_OFFSET, mOffset);
+            }
+
+            byte[] message = new byte[size];
+            CodedOutputStream coded = CodedOutputStream.newInstance(message);
+            coded.writeUInt32(FIELD_ID, mId);
+            coded.writeString(FIELD_HASH, mHash);
+            coded.writeBool(FIELD_ACCEPT_GZIP, mAcceptGzip);
+            if (mOffset > 0) {
+                coded.writeUInt64(FIELD_OFFSET, mOffset);
+            }
+            writeMessage(out, message);
+        }
+
+        /**
+         * Reads a request.
+         *
+         * @param in
+         *      The stream from the client
+         * @return
+         *      The request, or null if the client closed the connection
+         * @throws IOException
+         *      In case the request could not be read
+         */
+        public static Request readFrom(InputStream in) throws IOException {
+            CodedInputStream coded = readMessage(in);
+            if (coded == null) {
+                return null;
+            }
+
+            int id = 0;
+            String hash = null;
+            boolean acceptGzip = false;
+            long offset = 0;
+            int tag;
+            while ((tag = coded.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                case FIELD_ID:
+                    id = coded.readUInt32();
+                    break;
+                case FIELD_HASH:
+                    hash = coded.readString();
+                    break;
+                case FIELD_ACCEPT_GZIP:
+                    acceptGzip = coded.readBool();
+                    break;
+                case FIELD_OFFSET:
+                    offset = coded.readUInt64();
+                    break;
+                default:
+                    coded.skipField(tag);
+                    break;
+                }
+            }
+            return new Request(id, hash, acceptGzip, offset);
+        }
+    }
+
+    /**
+     * The header of a response, followed by the content if the status is
+     * {@link BluetoothProtocol#STATUS_OK}.
+     */
+    public static class Response {
+        /** The id of the request. */
+        private final int mId;
+
+        /** The status. */
+        private final int mStatus;
+
+        /** The content type, may be null. */
+        private final String mContentType;
+
+        /** Number of content bytes following the header. */
+        private final long mLength;
+
+        /** True if the content is gzip compressed. */
+        private final boolean mGzip;
+
+        /** The byte of the content the following bytes start at. */
+        private final long mOffset;
+
+        /**
+         * Creates a response header for the whole object.
+         *
+         * @param id
+         *      The id of the request
+         * @param status
+         *      The status
+         * @param contentType
+         *      The content type, may be null
+         * @param length
+         *      Number of content bytes following the header
+         * @param gzip
+         *      True if the content is gzip compressed
+         */
+        public Response(int id, int status, String contentType, long length, boolean gzip) {
+            this(id, status, contentType, length, gzip, 0);
+        }
+
+        /**
+         * Creates a response header.
+         *
+         * @param id
+         *      The id of the request
+         * @param status
+         *      The status
+         * @param contentType
+         *      The content type, may be null
+         * @param length
+         *      Number of content bytes following the header
+         * @param gzip
+         *      True if the content is gzip compressed
+         * @param offset
+         *      The byte of the content the following bytes start at
+         */
+        public Response(int id, int status, String contentType, long length, boolean gzip,
+                long offset) {
+            mId = id;
+            mStatus = status;
+            mContentType = contentType;
+            mLength = length;
+            mGzip = gzip;
+            mOffset = offset;
+        }
+
+        /**
+         * Gets the id of the request.
+         *
+         * @return
+         *      The id
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Gets the status.
+         *
+         * @return
+         *      One of the STATUS constants
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * Gets the content type.
+         *
+         * @return
+         *      The content type, or null if the server does not know it
+         */
+        public String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * Gets the number of content bytes following the header.
+         *
+         * @return
+         *      The length
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * Checks if the content is gzip compressed.
+         *
+         * @return
+         *      True if the content is gzip compressed
+         */
+        public boolean isGzip() {
+            return mGzip;
+        }
+
+        /**
+         * Gets the byte of the content the following bytes start at.
+         *
+         * @return
+         *      The offset, 0 for the whole object
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * Writes the header.
+         *
+         * @param out
+         *      The stream to the client, it is not flushed
+         * @throws IOException
+         *      In case the header could not be written
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            int size = CodedOutputStream.computeUInt32Size(FIELD_ID, mId)
+                    + CodedOutputStream.computeUInt32Size(FIELD_STATUS, mStatus)
+                    + CodedOutputStream.computeUInt64Size(FIELD_LENGTH, mLength)
+                    + CodedOutputStream.computeBoolSize(FIELD_GZIP, mGzip);
+            if (mContentType != null) {
+                size += CodedOutputStream.computeStringSize(FIELD_CONTENT_TYPE, mContentType);
+            }
+            if (mOffset > 0) {
+                size += CodedOutputStream.computeUInt64Size(FIELD_RESPONSE_OFFSET, mOffset);
+            }
+
+            byte[] message = new byte[size];
+            CodedOutputStream coded = CodedOutputStream.newInstance(message);
+            coded.writeUInt32(FIELD_ID, mId);
+            coded.writeUInt32(FIELD_STATUS, mStatus);
+            if (mContentType != null) {
+                coded.writeString(FIELD_CONTENT_TYPE, mContentType);
+            }
+            coded.writeUInt64(FIELD_LENGTH, mLength);
+            coded.writeBool(FIELD_GZIP, mGzip);
+            if (mOffset > 0) {
+                coded.writeUInt64(FIELD_RESPONSE_OFFSET, mOffset);
+            }
+            writeMessage(out, message);
+        }
+
+        /**
+         * Reads a header, leaving the content in the stream.
+         *
+         * @param in
+         *      The stream from the server
+         * @return
+         *      The header, or null if the server closed the connection
+         * @throws IOException
+         *      In case the header could not be read
+         */
+        public static Response readFrom(InputStream in) throws IOException {
+            CodedInputStream coded = readMessage(in);
+            if (coded == null) {
+                return null;
+            }
+
+            int id = 0;
+            int status = STATUS_ERROR;
+            String contentType = null;
+            long length = 0;
+            boolean gzip = false;
+            long offset = 0;
+            int tag;
+            while ((tag = coded.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                case FIELD_ID:
+                    id = coded.readUInt32();
+                    break;
+                case FIELD_STATUS:
+                    status = coded.readUInt32();
+                    break;
+                case FIELD_CONTENT_TYPE:
+                    contentType = coded.readString();
+                    break;
+                case FIELD_LENGTH:
+                    length = coded.readUInt64();
+                    break;
+                case FIELD_GZIP:
+                    gzip = coded.readBool();
+                    break;
+                case FIELD_RESPONSE_OFFSET:
+                    offset = coded.readUInt64();
+                    break;
+                default:
+                    coded.skipField(tag);
+                    break;
+                }
+            }
+            return new Response(id, status, contentType, length, gzip, offset);
+        }
+    }
+}
@@ -26,20 +26,26 @@
  */
 package project.cs.netinfservice.netinf.server.bluetooth;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.UUID;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import project.cs.netinfservice.application.MainNetInfApplication;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol.Request;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol.Response;
 import project.cs.netinfutilities.UProperties;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
-import android.os.Environment;
 import android.util.Log;
 
 /**
@@ -48,6 +54,16 @@ import android.util.Log;
  * with a remote device, the BluetoothServer waits for a file request
  * containing the hash. If the specified file is existing, the file will
  * be transferred to the remote device.
+ * <p>
+ * The file is sent as its length followed by its content. A remote device that
+ * appends {@link #ACCEPT_COMPRESSED} to the hash accepts the gzip compressed form
+ * of files stored compressed, which is sent with the length negated.
+ * <p>
+ * Remote devices speaking the {@link BluetoothProtocol} keep the connection open and send
+ * several requests over it, each answered with a status and the headers of the file.
+ * <p>
+ * Accepted connections are served by the workers of the {@link ConnectionPool}, so
+ * several remote devices can fetch files at the same time.
  *
  * @author Kim-Anh Tran
  *
@@ -57,6 +73,9 @@ public class BluetoothServer extends Thread {
     /** Debug Tag. */
     private static final String TAG = "BluetoothServer";
 
+    /** Appended to the requested hash by remote devices accepting compressed files. */
+    public static final String ACCEPT_COMPRESSED = ";gzip";
+
     /**
      * Unique UUID. For more information see
      * {@link project.cs.netinfservice.netinf.provider.bluetooth#MY_UUID} */
@@ -73,6 +92,28 @@ public class BluetoothServer extends Thread {
     private static final int NUMBER_OF_ATTEMPTS = Integer
     		.parseInt(UProperties.INSTANCE.getPropertyWithName("bluetooth.number_attempts"));
 
+    /** Size of the buffers files are sent through. */
+    private static final int SEND_BUFFER_SIZE = Integer
+            .parseInt(UProperties.INSTANCE.getPropertyWithName("bluetooth.send.buffer"));
+
+    /** Files at least this large are memory mapped when sent. */
+    private static final long SEND_MAP_THRESHOLD = Long
+            .parseLong(UProperties.INSTANCE.getPropertyWithName("bluetooth.send.map_threshold"));
+
+    /** Kept alive connections without a request for this long are closed, in ms. */
+    private static final long IDLE_TIMEOUT = Long
+            .parseLong(UProperties.INSTANCE.getPropertyWithName("bluetooth.idle_timeout"));
+
+    /** Closes idle connections. */
+    private static final ScheduledExecutorService IDLE_TIMER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + "-idle");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     /** Flag determining how long to listen for incoming pairing 
      * requests. 
@@ -85,14 +126,17 @@ public class BluetoothServer extends Thread {
     /** Device's Bluetooth Adapter. */
     private BluetoothAdapter mBtAdapter;
 
-    /** The input stream used for reading in the hash. */
-    private DataInputStream mInStream;
+    /** Holds the objects that are served. */
+    private ContentStore mStore;
 
-    /** The output stream used for writing the file to the remote device. */
-    private DataOutputStream mOutStream;
+    /** Streams the requested objects out of the content store. */
+    private ObjectSender mSender;
 
-    /** The directory containing the published files. */
-    private String mSharedFolder;
+    /** Serves the accepted connections. */
+    private ConnectionPool mPool;
+
+    /** Knows the content types of the stored objects. */
+    private LocalPresenceIndex mPresenceIndex;
 
     /**
      * Creates a new BluetoothServer that waits for incoming
@@ -103,9 +147,11 @@ public class BluetoothServer extends Thread {
      */
     public BluetoothServer() throws IOException {
 
-        String relativeFolderPath = UProperties.INSTANCE.getPropertyWithName("sharing.folder");
-        mSharedFolder = Environment.getExternalStorageDirectory() + relativeFolderPath;
-        createSharedFolder();
+        mStore = MainNetInfApplication.getInjector().getInstance(ContentStore.class);
+        mSender = new ObjectSender(mStore, SEND_BUFFER_SIZE, SEND_MAP_THRESHOLD);
+        mPool = MainNetInfApplication.getInjector().getInstance(ConnectionPool.class);
+        mPresenceIndex =
+                MainNetInfApplication.getInjector().getInstance(LocalPresenceIndex.class);
 
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
         BluetoothServerSocket tmp = null;
@@ -158,10 +204,16 @@ public class BluetoothServer extends Thread {
                 socket = null;
             }
 
+            // Serve the connection on a worker and accept the next one right away
             if (socket != null) {
-                setUpIoStreams(socket);
-                handleIncomingRequest(socket);
-                cleanUp(socket);
+                String device = socket.getRemoteDevice().getAddress();
+                if (!mPool.execute(device, new Connection(socket))) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Closing the refused bluetooth socket failed.");
+                    }
+                }
             }
         }
     }
@@ -186,165 +238,276 @@ public class BluetoothServer extends Thread {
     }
 
     /**
-     * Creates the folder that contains the files to be shared with other phones.
+     * A connection to a remote device requesting a file. Its streams belong to the
+     * connection, so connections can be served at the same time.
      */
-    private void createSharedFolder() {	
-        File folder = new File(mSharedFolder);
+    private class Connection implements Runnable {
 
-        if (!folder.exists()) {
-            Log.d(TAG, "Creating shared folder " + mSharedFolder);
-            boolean created = folder.mkdir();
+        /** The socket used for the communication to the remote device. */
+        private final BluetoothSocket mSocket;
 
-            if (!created) {
-                Log.e(TAG, "Failed creating the shared folder. Set shared folder to DCIM/");
-                mSharedFolder = Environment.getExternalStorageDirectory() + "/DCIM/";
-            }
-        }
-    }
-
-    /**
-     * Cleans up the openend socket and corresponding streams.
-     *
-     * @param socket	The socket used for the communication to the remote device.
-     */
-    private void cleanUp(BluetoothSocket socket) {
-        try {
-            // Clean up open streams and sockets.
-            mOutStream.close();
-            mInStream.close();
-            socket.close();
+        /** The input stream used for reading in the hash. */
+        private DataInputStream mInStream;
 
-        } catch (IOException e) {
-            Log.e(TAG, "Closing the bluetooth socket failed.");
-        }
-    }
+        /** The output stream used for writing the file to the remote device. */
+        private DataOutputStream mOutStream;
 
-    /**
-     * Set up the streams used for reading in and writing to
-     * a socket that connects this device to a remote device.
-     *
-     * @param socket	The socket for reading and writing.
-     */
-    private void setUpIoStreams(BluetoothSocket socket) {
-        Log.d(TAG, "Setting up streams for reading and writing files.");
+        /** Set when the connection is closed for being idle. */
+        private volatile boolean mIdleClosed;
 
-        try {
-            mInStream = new DataInputStream(socket.getInputStream());
-            mOutStream = new DataOutputStream(socket.getOutputStream());
+        /**
+         * Creates a connection.
+         *
+         * @param socket	The socket used for the communication to the remote device.
+         */
+        Connection(BluetoothSocket socket) {
+            mSocket = socket;
+        }
 
-        } catch (IOException e) {
-            Log.e(TAG, "Failed creating the streams for communicating.");
+        @Override
+        public void run() {
+            if (setUpIoStreams(mSocket)) {
+                try {
+                    // A version 1 request is a hash, which never starts like the preamble
+                    int first = mInStream.read();
+                    if (BluetoothProtocol.isPreambleStart(first)) {
+                        serveVersion2();
+                    } else if (first >= 0) {
+                        handleIncomingRequest(first);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Serving the connection failed: " + e.getMessage());
+                }
+            }
+            cleanUp(mSocket);
         }
-    }
 
-    /**
-     * Extracts the hash, searches for the file requested and sends the
-     * corresponding file to the remote device.
-     *
-     * @param socket The bluetooth socket used for communicating with the remote device
-     */
+        /**
+         * Answers the requests of a remote device speaking version 2 of the protocol, until
+         * it closes the connection or leaves it idle.
+         *
+         * @throws IOException	In case the connection failed.
+         */
+        private void serveVersion2() throws IOException {
+            if (!BluetoothProtocol.readPreamble(mInStream, 1)) {
+                Log.e(TAG, "Unknown protocol version requested.");
+                return;
+            }
+            BluetoothProtocol.writePreamble(mOutStream);
 
-    private void handleIncomingRequest(BluetoothSocket socket) {
-        Log.d(TAG, "Handle the incoming file request..");
+            Request request;
+            while ((request = readRequest()) != null) {
+                serve(request);
+            }
+        }
 
-        // Receive the hash
-        String hash = readHash(socket);
+        /**
+         * Waits for the next request, closing the connection if none comes in time.
+         *
+         * @return			The request, or null if the connection was closed.
+         * @throws IOException	In case the request could not be read.
+         */
+        private Request readRequest() throws IOException {
+            ScheduledFuture<?> idle = IDLE_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "Closing idle connection.");
+                    mIdleClosed = true;
+                    try {
+                        mSocket.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Closing the idle bluetooth socket failed.");
+                    }
+                }
+            }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
 
-        // Find the file on the device
-        File file = getFileByHash(hash);
+            try {
+                return Request.readFrom(mInStream);
+            } catch (IOException e) {
+                if (mIdleClosed) {
+                    return null;
+                }
+                throw e;
+            } finally {
+                idle.cancel(false);
+            }
+        }
 
-        // Create a byte array representation of the file
-        byte[] fileData = toByteArray(file);
+        /**
+         * Answers a version 2 request.
+         *
+         * @param request	The request.
+         * @throws IOException	In case the connection failed.
+         */
+        private void serve(Request request) throws IOException {
+            String hash = request.getHash();
+            long offset = request.getOffset();
+            // An offset past the end is refused, a missing object is reported as not found
+            if (hash == null || hash.length() == 0 || offset < 0
+                    || (offset > 0 && mStore.getLength(hash) >= 0
+                            && offset > mStore.getLength(hash))) {
+                new Response(request.getId(), BluetoothProtocol.STATUS_BAD_REQUEST, null, 0, false)
+                        .writeTo(mOutStream);
+                mOutStream.flush();
+                return;
+            }
 
-        // Send the data to the remote device
-        writeFile(fileData);
-    }
+            ResponseFraming framing =
+                    new ResponseFraming(request.getId(), mPresenceIndex.getContentType(hash));
+            try {
+                long sent =
+                        mSender.send(hash, request.isAcceptGzip(), offset, mOutStream, framing);
+                mPool.addBytesServed(sent);
+                Log.d(TAG, "Done writing " + sent + " bytes to remote device.");
+            } catch (IOException e) {
+                // Content that was cut off can not be told apart from the next response
+                if (framing.isWritten()) {
+                    throw e;
+                }
+                Log.e(TAG, "Exception occured while reading the object.", e);
+                new Response(request.getId(), BluetoothProtocol.STATUS_ERROR, null, 0, false)
+                        .writeTo(mOutStream);
+                mOutStream.flush();
+            }
+        }
 
-    /**
-     * Writes the specified buffer to the current stream.
-     *
-     * @param buffer The data to be send.
-     */
+        /**
+         * Cleans up the openend socket and corresponding streams.
+         *
+         * @param socket	The socket used for the communication to the remote device.
+         */
+        private void cleanUp(BluetoothSocket socket) {
+            try {
+                // Clean up open streams and sockets.
+                if (mOutStream != null) {
+                    mOutStream.close();
+                }
+                if (mInStream != null) {
+                    mInStream.close();
+                }
+                socket.close();
 
-    private void writeFile(byte[] buffer) {
-        Log.d(TAG, "Sending file of size: " + buffer.length);
+            } catch (IOException e) {
+                Log.e(TAG, "Closing the bluetooth socket failed.");
+            }
+        }
 
-        try {
-            mOutStream.writeInt(buffer.length);
-            mOutStream.write(buffer, 0, buffer.length);
-            mOutStream.flush();
+        /**
+         * Set up the streams used for reading in and writing to
+         * a socket that connects this device to a remote device.
+         *
+         * @param socket	The socket for reading and writing.
+         * @return			True if the streams could be created.
+         */
+        private boolean setUpIoStreams(BluetoothSocket socket) {
+            Log.d(TAG, "Setting up streams for reading and writing files.");
 
-            Log.d(TAG, "Done writing file to remote device.");
+            try {
+                mInStream = new DataInputStream(socket.getInputStream());
+                mOutStream = new DataOutputStream(socket.getOutputStream());
+                return true;
 
-        } catch (IOException e) {
-            Log.e(TAG, "Exception occured during writing", e);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed creating the streams for communicating.");
+                return false;
+            }
         }
-    }
 
-    /**
-     * Converts a file into a byte array.
-     *
-     * @param file	The file we want to convert.
-     * @return		The byte array that corresponds to the file.
-     */
-    private byte[] toByteArray(File file) {
-        Log.d(TAG, "Converting requested file to a byte array.");
-
-        byte[] fileByteArray = new byte[(int) file.length()];
-        FileInputStream fis;
+        /**
+         * Extracts the hash, searches for the file requested and sends the
+         * corresponding file to the remote device.
+         *
+         * @param first The first byte of the request
+         */
 
-        try {
+        private void handleIncomingRequest(int first) {
+            Log.d(TAG, "Handle the incoming file request..");
 
-            fis = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            bis.read(fileByteArray, 0, fileByteArray.length);
+            // Receive the hash
+            String hash = readHash(first);
 
-            fis.close();
-            bis.close();
-
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "The file " + file.getName() + " could not be found.");
+            // Send the compressed form as is, if the remote device accepts it
+            boolean acceptCompressed = hash.endsWith(ACCEPT_COMPRESSED);
+            if (acceptCompressed) {
+                hash = hash.substring(0, hash.length() - ACCEPT_COMPRESSED.length());
+            }
 
-        } catch (IOException e) {
-            Log.e(TAG, "Exception occured during file to byte array conversion.", e);
+            // Stream the object, whether it has a file of its own or is packed
+            try {
+                long sent = mSender.send(hash, acceptCompressed, mOutStream);
+                mPool.addBytesServed(sent);
+                Log.d(TAG, "Done writing " + sent + " bytes to remote device.");
+            } catch (IOException e) {
+                Log.e(TAG, "Exception occured during writing", e);
+            }
         }
 
-        return fileByteArray;
-    }
+        /**
+         * Reads and returns the hash that is received through the current socket.
+         *
+         * @param first	The first byte of the hash, already read
+         * @return			The hash that is read from the socket.
+         */
+        private String readHash(int first) {
 
-    /**
-     * Returns the file specified by the hash.
-     *
-     * @param hash	The identfier of the file we request.
-     * @return		The file that is identified with the specified hash
-     */
-    private File getFileByHash(String hash) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            buffer[0] = (byte) first;
+            int length;
 
-        String filepath = mSharedFolder + hash;
-        File requestedFile = new File(filepath);
+            String readHash = "";
+            try {
+                length = mInStream.read(buffer, 1, BUFFER_SIZE - 1);
+                readHash = new String(buffer, 0, 1 + Math.max(length, 0));
 
-        return requestedFile;
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't extract streams for Bluetooth transmission.");
+            }
+
+            return readHash;
+        }
     }
+
     /**
-     * Reads and returns the hash that is received through the current socket.
-     *
-     * @param socket	The bluetooth socket used for communicating with the remote device
-     * @return			The hash that is read from the socket.
+     * Writes the response header of a version 2 request in front of the content.
      */
-    private String readHash(BluetoothSocket socket) {
-
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int length;
-
-        String readHash = "";
-        try {
-            length = mInStream.read(buffer);
-            readHash = new String(buffer, 0, length);
+    private static class ResponseFraming implements ObjectSender.Framing {
+
+        /** The id of the request. */
+        private final int mId;
+
+        /** The content type of the object, may be null. */
+        private final String mContentType;
+
+        /** Set once the header is written. */
+        private boolean mWritten;
+
+        /**
+         * Creates the framing of a response.
+         *
+         * @param id			The id of the request.
+         * @param contentType	The content type of the object, may be null.
+         */
+        ResponseFraming(int id, String contentType) {
+            mId = id;
+            mContentType = contentType;
+        }
 
-        } catch (IOException e) {
-            Log.e(TAG, "Couldn't extract streams for Bluetooth transmission.");
+        @Override
+        public void writeHeader(OutputStream out, boolean found, long offset, long length,
+                boolean compressed) throws IOException {
+            int status = found ? BluetoothProtocol.STATUS_OK : BluetoothProtocol.STATUS_NOT_FOUND;
+            new Response(mId, status, found ? mContentType : null, length, compressed, offset)
+                    .writeTo(out);
+            mWritten = true;
         }
 
-        return readHash;
+        /**
+         * Checks if the header is written.
+         *
+         * @return			True if the header is written.
+         */
+        boolean isWritten() {
+            return mWritten;
+        }
     }
 }
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.server.bluetooth;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Serves the connections accepted by the {@link BluetoothServer} on a bounded number of
+ * worker threads.
+ * <p>
+ * Connections beyond the workers wait in a queue of bounded length. Admission is fair
+ * between remote devices: a device may only hold a limited number of connections, and a
+ * connection waits behind those of devices holding fewer connections. A connection that is
+ * not admitted is refused right away, so the remote device can turn to another locator
+ * instead of timing out.
+ */
+public class ConnectionPool {
+    /** Debug tag. */
+    private static final String TAG = "ConnectionPool";
+
+    /** Number of connections served at once. */
+    private final int mWorkers;
+
+    /** Number of connections waiting for a worker at most. */
+    private final int mQueueLength;
+
+    /** Number of connections a single remote device may hold, waiting or served. */
+    private final int mPerDevice;
+
+    /** Serves the connections, ordered by their share. */
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Connections held per remote device. */
+    private final Map<String, Integer> mHeld = new HashMap<String, Integer>();
+
+    /** Connections held, waiting or served. */
+    private int mAdmitted;
+
+    /** Orders connections with the same share by arrival. */
+    private long mSequence;
+
+    /** Connections being served. */
+    private final AtomicLong mActive = new AtomicLong();
+
+    /** Connections served. */
+    private final AtomicLong mServed = new AtomicLong();
+
+    /** Connections refused. */
+    private final AtomicLong mRefused = new AtomicLong();
+
+    /** Time connections waited for a worker in total, in ms. */
+    private final AtomicLong mQueueWait = new AtomicLong();
+
+    /** Longest time a connection waited for a worker, in ms. */
+    private final AtomicLong mMaxQueueWait = new AtomicLong();
+
+    /** Content bytes sent. */
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    /**
+     * Creates the pool.
+     *
+     * @param workers
+     *      Number of connections served at once
+     * @param queueLength
+     *      Number of connections waiting for a worker at most
+     * @param perDevice
+     *      Number of connections a single remote device may hold
+     */
+    @Inject
+    public ConnectionPool(@Named("bluetooth.server.workers") int workers,
+            @Named("bluetooth.server.queue") int queueLength,
+            @Named("bluetooth.server.per_device") int perDevice) {
+        mWorkers = workers;
+        mQueueLength = queueLength;
+        mPerDevice = perDevice;
+        mExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Admits a connection to be served by a worker.
+     *
+     * @param device
+     *      The address of the remote device
+     * @param connection
+     *      Serves the connection
+     * @return
+     *      True if the connection was admitted, false if it was refused and must be closed
+     */
+    public boolean execute(String device, Runnable connection) {
+        Task task;
+        synchronized (this) {
+            Integer held = mHeld.get(device);
+            int share = held == null ? 0 : held;
+            if (mAdmitted >= mWorkers + mQueueLength || share >= mPerDevice) {
+                mRefused.incrementAndGet();
+                Log.w(TAG, "Refused connection from " + device + ", holding " + share
+                        + " of " + mAdmitted + " connections");
+                return false;
+            }
+            mHeld.put(device, share + 1);
+            mAdmitted++;
+            task = new Task(device, share, mSequence++, connection);
+        }
+        mExecutor.execute(task);
+        return true;
+    }
+
+    /**
+     * Counts content bytes sent over a connection.
+     *
+     * @param bytes
+     *      The number of bytes
+     */
+    public void addBytesServed(long bytes) {
+        mBytesServed.addAndGet(bytes);
+    }
+
+    /**
+     * Gets the counters of the pool.
+     *
+     * @return
+     *      The counters by name
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        long active = mActive.get();
+        long admitted;
+        synchronized (this) {
+            admitted = mAdmitted;
+        }
+        long served = mServed.get();
+        statistics.put("workers", (long) mWorkers);
+        statistics.put("active", active);
+        statistics.put("queued", Math.max(0, admitted - active));
+        statistics.put("served", served);
+        statistics.put("refused", mRefused.get());
+        statistics.put("queue_wait_avg", served == 0 ? 0 : mQueueWait.get() / served);
+        statistics.put("queue_wait_max", mMaxQueueWait.get());
+        statistics.put("bytes_served", mBytesServed.get());
+        return statistics;
+    }
+
+    /**
+     * Releases the place of a connection that has been served.
+     *
+     * @param device
+     *      The address of the remote device
+     */
+    private synchronized void release(String device) {
+        int held = mHeld.get(device) - 1;
+        if (held == 0) {
+            mHeld.remove(device);
+        } else {
+            mHeld.put(device, held);
+        }
+        mAdmitted--;
+    }
+
+    /**
+     * An admitted connection. Connections of devices holding fewer connections come first.
+     */
+    private class Task implements Runnable, Comparable<Task> {
+        /** The address of the remote device. */
+        private final String mDevice;
+
+        /** Number of connections the device held when this one was admitted. */
+        private final int mShare;
+
+        /** Arrival order. */
+        private final long mSequence;
+
+        /** Serves the connection. */
+        private final Runnable mConnection;
+
+        /** When the connection was admitted, in ms. */
+        private final long mAdmittedAt = System.currentTimeMillis();
+
+        /**
+         * Creates an admitted connection.
+         *
+         * @param device
+         *      The address of the remote device
+         * @param share
+         *      Number of connections the device held when this one was admitted
+         * @param sequence
+         *      Arrival order
+         * @param connection
+         *      Serves the connection
+         */
+        Task(String device, int share, long sequence, Runnable connection) {
+            mDevice = device;
+            mShare = share;
+            mSequence = sequence;
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            long wait = System.currentTimeMillis() - mAdmittedAt;
+            mQueueWait.addAndGet(wait);
+            long max = mMaxQueueWait.get();
+            while (wait > max && !mMaxQueueWait.compareAndSet(max, wait)) {
+                max = mMaxQueueWait.get();
+            }
+
+            mActive.incrementAndGet();
+            try {
+                mConnection.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Serving " + mDevice + " failed", e);
+            } finally {
+                mActive.decrementAndGet();
+                mServed.incrementAndGet();
+                release(mDevice);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mShare != other.mShare) {
+                return mShare < other.mShare ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
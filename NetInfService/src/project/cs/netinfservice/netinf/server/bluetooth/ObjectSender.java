@@ -0,0 +1,446 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.netinf.server.bluetooth;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import android.util.Log;
+
+/**
+ * Sends stored objects to remote devices. The header in front of the content is written by
+ * a {@link Framing}, {@link #V1} writes the length, negated for gzip compressed content.
+ * <p>
+ * Files are streamed from their {@link FileChannel} and never read into the heap as a
+ * whole. Large files are memory mapped window by window. Smaller files are read through
+ * two reused direct buffers, the next one is filled from the disk while the current one is
+ * written to the remote device.
+ */
+public class ObjectSender {
+
+    /** Debug Tag. */
+    private static final String TAG = "ObjectSender";
+
+    /** Size of the windows large files are mapped in. */
+    private static final long MAP_WINDOW = 8 * 1024 * 1024;
+
+    /**
+     * Writes the header in front of the content of an object.
+     */
+    public interface Framing {
+        /**
+         * Writes the header.
+         *
+         * @param out
+         *      The stream to the remote device
+         * @param found
+         *      False if the object is not stored, no content follows
+         * @param offset
+         *      The byte of the content the following bytes start at
+         * @param length
+         *      Number of content bytes that follow
+         * @param compressed
+         *      True if the content is gzip compressed
+         * @throws IOException
+         *      In case the header could not be written
+         */
+        void writeHeader(OutputStream out, boolean found, long offset, long length,
+                boolean compressed) throws IOException;
+    }
+
+    /** The framing of the version 1 protocol, a missing object is sent as empty. */
+    public static final Framing V1 = new Framing() {
+        @Override
+        public void writeHeader(OutputStream out, boolean found, long offset, long length,
+                boolean compressed) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Object of " + length + " bytes is too large to send");
+            }
+            new DataOutputStream(out).writeInt(compressed ? (int) -length : (int) length);
+        }
+    };
+
+    /** The files of the objects stored on this node. */
+    private final ContentStore mStore;
+
+    /** Size of the buffers files are read through. */
+    private final int mBufferSize;
+
+    /** Files at least this large are memory mapped. */
+    private final long mMapThreshold;
+
+    /** Direct buffers not in use by a transfer. */
+    private final Queue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** Reads the next buffer while the current one is written. */
+    private final ExecutorService mReader;
+
+    /**
+     * Creates a new sender.
+     *
+     * @param store
+     *      The files of the objects stored on this node
+     * @param bufferSize
+     *      Size of the buffers files are read through
+     * @param mapThreshold
+     *      Files at least this large are memory mapped
+     */
+    public ObjectSender(ContentStore store, int bufferSize, long mapThreshold) {
+        mStore = store;
+        mBufferSize = bufferSize;
+        mMapThreshold = mapThreshold;
+        mReader = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends a stored object in the version 1 framing. An object that is not stored is sent
+     * as empty.
+     *
+     * @param hash
+     *      The content hash
+     * @param acceptCompressed
+     *      True if the remote device accepts gzip compressed content
+     * @param out
+     *      The stream to the remote device, it is flushed but not closed
+     * @return
+     *      The number of content bytes sent
+     * @throws IOException
+     *      In case the object could not be read or sent
+     */
+    public long send(String hash, boolean acceptCompressed, OutputStream out)
+            throws IOException {
+        return send(hash, acceptCompressed, out, V1);
+    }
+
+    /**
+     * Sends a stored object.
+     *
+     * @param hash
+     *      The content hash
+     * @param acceptCompressed
+     *      True if the remote device accepts gzip compressed content
+     * @param out
+     *      The stream to the remote device, it is flushed but not closed
+     * @param framing
+     *      Writes the header in front of the content
+     * @return
+     *      The number of content bytes sent
+     * @throws IOException
+     *      In case the object could not be read or sent
+     */
+    public long send(String hash, boolean acceptCompressed, OutputStream out, Framing framing)
+            throws IOException {
+        return send(hash, acceptCompressed, 0, out, framing);
+    }
+
+    /**
+     * Sends a stored object from an offset on, to continue a download that broke off.
+     * Content after the start is never sent compressed.
+     *
+     * @param hash
+     *      The content hash
+     * @param acceptCompressed
+     *      True if the remote device accepts gzip compressed content
+     * @param offset
+     *      The byte of the content to start at, at most the length of the content
+     * @param out
+     *      The stream to the remote device, it is flushed but not closed
+     * @param framing
+     *      Writes the header in front of the content
+     * @return
+     *      The number of content bytes sent
+     * @throws IOException
+     *      In case the object could not be read or sent
+     */
+    public long send(String hash, boolean acceptCompressed, long offset, OutputStream out,
+            Framing framing) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        long sent;
+        if (offset > 0) {
+            acceptCompressed = false;
+        }
+
+        File file = mStore.find(hash);
+        if (file == null) {
+            // Packed objects are small and read in one go
+            ByteBuffer buffer = mStore.getBuffer(hash);
+            if (buffer == null) {
+                Log.e(TAG, "The object " + hash + " could not be found.");
+                framing.writeHeader(out, false, 0, 0, false);
+                out.flush();
+                return 0;
+            }
+            checkOffset(offset, buffer.remaining());
+            buffer.position(buffer.position() + (int) offset);
+            sent = buffer.remaining();
+            framing.writeHeader(out, true, offset, sent, false);
+            writeFully(channel, buffer);
+        } else if (ContentStore.isCompressed(file) && !acceptCompressed) {
+            long length = mStore.getLength(hash);
+            checkOffset(offset, length);
+            sent = length - offset;
+            framing.writeHeader(out, true, offset, sent, false);
+            sendDecompressed(hash, offset, channel);
+        } else {
+            boolean compressed = ContentStore.isCompressed(file);
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel source = in.getChannel();
+                checkOffset(offset, source.size());
+                sent = source.size() - offset;
+                framing.writeHeader(out, true, offset, sent, compressed);
+                if (sent >= mMapThreshold) {
+                    sendMapped(source, offset, channel);
+                } else {
+                    source.position(offset);
+                    sendBuffered(source, channel);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        out.flush();
+        return sent;
+    }
+
+    /**
+     * Checks that an offset lies within the content.
+     *
+     * @param offset
+     *      The offset
+     * @param length
+     *      The length of the content
+     * @throws IOException
+     *      In case the offset lies past the end of the content
+     */
+    private static void checkOffset(long offset, long length) throws IOException {
+        if (offset < 0 || offset > length) {
+            throw new IOException("Offset " + offset + " is past the end at " + length);
+        }
+    }
+
+    /**
+     * Sends a file by mapping it window by window.
+     *
+     * @param source
+     *      The file
+     * @param offset
+     *      The byte of the file to start at
+     * @param channel
+     *      The channel to the remote device
+     * @throws IOException
+     *      In case the file could not be read or sent
+     */
+    private static void sendMapped(FileChannel source, long offset, WritableByteChannel channel)
+            throws IOException {
+        long size = source.size();
+        for (long position = offset; position < size; position += MAP_WINDOW) {
+            writeFully(channel, source.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAP_WINDOW, size - position)));
+        }
+    }
+
+    /**
+     * Sends a file through two buffers, reading into one while writing the other.
+     *
+     * @param source
+     *      The file
+     * @param channel
+     *      The channel to the remote device
+     * @throws IOException
+     *      In case the file could not be read or sent
+     */
+    private void sendBuffered(final FileChannel source, WritableByteChannel channel)
+            throws IOException {
+        ByteBuffer current = acquire();
+        ByteBuffer next = acquire();
+        Future<Integer> pending = null;
+        try {
+            int read = source.read(current);
+            while (read > 0) {
+                // Start reading ahead before writing
+                final ByteBuffer ahead = next;
+                pending = mReader.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return source.read(ahead);
+                    }
+                });
+
+                current.flip();
+                writeFully(channel, current);
+                current.clear();
+
+                read = await(pending);
+                pending = null;
+                next = current;
+                current = ahead;
+            }
+        } finally {
+            if (pending != null) {
+                // The read ahead must be done before its buffer is reused
+                try {
+                    await(pending);
+                } catch (IOException e) {
+                    Log.d(TAG, "Abandoned read ahead failed: " + e.getMessage());
+                }
+            }
+            release(current);
+            release(next);
+        }
+    }
+
+    /**
+     * Sends the decompressed content of an object stored compressed.
+     *
+     * @param hash
+     *      The content hash
+     * @param offset
+     *      The byte of the content to start at
+     * @param channel
+     *      The channel to the remote device
+     * @throws IOException
+     *      In case the object could not be read or sent
+     */
+    private void sendDecompressed(String hash, long offset, WritableByteChannel channel)
+            throws IOException {
+        InputStream in = mStore.openStream(hash);
+        if (in == null) {
+            throw new IOException("The object " + hash + " is gone");
+        }
+        try {
+            // The content before the offset has to be decompressed all the same
+            long skipped = 0;
+            while (skipped < offset) {
+                long step = in.skip(offset - skipped);
+                if (step <= 0) {
+                    throw new IOException("The object " + hash + " ends before " + offset);
+                }
+                skipped += step;
+            }
+
+            byte[] buffer = new byte[mBufferSize];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Waits for a read ahead.
+     *
+     * @param pending
+     *      The read ahead
+     * @return
+     *      The number of bytes read, -1 at the end of the file
+     * @throws IOException
+     *      In case the read failed
+     */
+    private static int await(Future<Integer> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Reading failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Takes a free direct buffer, allocating one if all are in use.
+     *
+     * @return
+     *      The cleared buffer
+     */
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a direct buffer for the next transfer.
+     *
+     * @param buffer
+     *      The buffer
+     */
+    private void release(ByteBuffer buffer) {
+        mBuffers.offer(buffer);
+    }
+
+    /**
+     * Writes the whole buffer.
+     *
+     * @param channel
+     *      The channel to write to
+     * @param buffer
+     *      The buffer
+     * @throws IOException
+     *      In case the buffer could not be written
+     */
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -55,7 +55,13 @@
  */
 package project.cs.netinfservice.netinf.transferdispatcher;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -63,9 +69,14 @@ import netinf.common.datamodel.DefinedAttributePurpose;
 import netinf.common.datamodel.InformationObject;
 import netinf.common.datamodel.attribute.Attribute;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
-import project.cs.netinfservice.netinf.provider.ByteArrayProvider;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.PartialDownload;
+import project.cs.netinfservice.netinf.provider.RangeNotSupportedException;
+import project.cs.netinfservice.netinf.provider.StreamProvider;
+import project.cs.netinfservice.netinf.provider.TransferListener;
 import project.cs.netinfservice.netinf.provider.bluetooth.BluetoothDiscovery;
 import project.cs.netinfservice.netinf.provider.bluetooth.BluetoothProvider;
+import project.cs.netinfservice.util.NiHash;
 import android.util.Log;
 
 /**
@@ -88,9 +99,12 @@ public enum TransferDispatcher {
 
     /** The prefix for identifying bluetooth locator nodes. */
     private static final String BLUETOOTH_PREFIX = "nimacbt://";
+
+    /** Size of the buffer used to verify a received file. */
+    private static final int VERIFY_BUFFER_SIZE = 64 * 1024;
     
-    /** The list of available byte array providers. */
-    private List<ByteArrayProvider> mByteArrayProviders;
+    /** The list of available providers. */
+    private List<StreamProvider> mByteArrayProviders;
 
     /**
      * Initializes the Transfer Dispatcher with
@@ -102,19 +116,224 @@ public enum TransferDispatcher {
 
     /** Adds available ByteArrayProviders to the TransferDispatcher. */   
     private void addByteArrayProviders() {
-        mByteArrayProviders = new ArrayList<ByteArrayProvider>();
+        mByteArrayProviders = new ArrayList<StreamProvider>();
         mByteArrayProviders.add(new BluetoothProvider());
     }
 
     /**
-     * Provides the stream by a given DO.
+     * Provides the BO of a given DO in memory. Prefer
+     * {@link #transfer(InformationObject, ContentStore, TransferListener)}, which does not
+     * need a heap of the size of the object.
      * 
      * @param io The information object
-     * @return Stream to the underlying BO.
+     * @return The content of the underlying BO.
      * @throws IOException	Thrown if no locator could be found
      */
     public byte[] getByteArray(InformationObject io) throws IOException {
+        String hash = getLabel(io, SailDefinedLabelName.HASH_CONTENT);
+
+        // Tries to retrieve the BO from the first possible locator. 
+        for (String currentLocator : getAvailableLocators(io)) {
+            byte[] resultArray = getByteArray(currentLocator, hash);
+            if (resultArray != null) {
+            	Log.d(TAG, "Received data from the following locator " + currentLocator);
+            	return resultArray;
+            }
+        }
+
+        throw new IOException("No suitable locator could be found.");
+    }
+
+    /**
+     * Streams the BO of a given DO into the content store. The content passes through the
+     * bounded buffer of the provider into a partial download of the store, is checked
+     * against the hash of the DO and only then moved into place. A BO whose hash algorithm
+     * is not supported is refused, it could not be verified.
+     * <p>
+     * A transfer that breaks off keeps what it received. The next locator, or the next
+     * transfer of the same BO, continues from there. Only one transfer of a BO may run at
+     * a time, the caller makes sure of that.
+     * 
+     * @param io
+     *      The information object
+     * @param store
+     *      The content store to write to
+     * @param listener
+     *      Gets told how far the transfer has come, may be null
+     * @return
+     *      The stored file
+     * @throws IOException
+     *      Thrown if the BO can not be verified or no locator could deliver it
+     */
+    public File transfer(InformationObject io, ContentStore store, TransferListener listener)
+            throws IOException {
+        String hash = getLabel(io, SailDefinedLabelName.HASH_CONTENT);
+        String hashAlg = getLabel(io, SailDefinedLabelName.HASH_ALG);
+        String contentType = getLabel(io, SailDefinedLabelName.CONTENT_TYPE);
+
+        // Unverified content must neither be stored nor served to peers
+        PartialDownload partial = store.openPartial(hash);
+        MessageDigest digest = NiHash.createDigest(hashAlg);
+        if (digest == null) {
+            partial.reset();
+            throw new IOException("Unsupported hash algorithm " + hashAlg
+                    + ", content can not be verified");
+        }
+
+        // Tries to retrieve the BO from the first possible locator. 
+        for (String currentLocator : getAvailableLocators(io)) {
+            File file = transfer(currentLocator, hashAlg, hash, contentType, store, partial,
+                    digest, listener);
+            if (file != null) {
+                Log.d(TAG, "Received data from the following locator " + currentLocator);
+                return file;
+            }
+        }
+
+        throw new IOException("No suitable locator could be found.");
+    }
+
+    /**
+     * Streams a BO from one locator into the content store, continuing a partial download.
+     * 
+     * @param locator
+     *      The locator from where the file should be fetched
+     * @param hashAlg
+     *      The hash algorithm of the file
+     * @param hash
+     *      The hash of the file
+     * @param contentType
+     *      The content type of the file, decides if it is stored compressed
+     * @param store
+     *      The content store to write to
+     * @param partial
+     *      What earlier attempts received
+     * @param digest
+     *      Verifies the received content
+     * @param listener
+     *      Gets told how far the transfer has come, may be null
+     * @return
+     *      The stored file, or null if the locator could not deliver the file
+     */
+    private File transfer(String locator, String hashAlg, String hash, String contentType,
+            ContentStore store, PartialDownload partial, MessageDigest digest,
+            TransferListener listener) {
+        Log.d(TAG, "Connecting to the following locator: " + locator);
+
+        StreamProvider provider = getByteArrayProvider(locator);
+        if (provider == null) {
+            Log.e(TAG, "No provider could be found.");
+            return null;
+        }
+
+        try {
+            long offset = partial.getReceived();
+            try {
+                receive(provider, locator, hash, offset, partial, listener);
+            } catch (RangeNotSupportedException e) {
+                // The locator only sends whole objects, start over
+                Log.d(TAG, "Restarting the transfer from " + offset + ": " + e.getMessage());
+                partial.reset();
+                receive(provider, locator, hash, 0, partial, listener);
+            }
+
+            // Only keep the object if it is the one that was asked for, the content came
+            // in over several attempts so it is hashed from the storage
+            if (!NiHash.matches(hashAlg, hash, digest(partial.getFile(), digest))) {
+                Log.e(TAG, "Content from " + locator + " does not match " + hashAlg + ";" + hash);
+                partial.reset();
+                return null;
+            }
+
+            File file = store.commit(partial.getFile(), hash, contentType);
+            partial.delete();
+            return file;
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, locator + " does not have " + hash);
+            return null;
+        } catch (IOException e) {
+            // What was received is kept for the next locator
+            Log.e(TAG, "Transfer from " + locator + " failed at " + partial.getReceived()
+                    + " bytes: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Streams the rest of a BO from an offset on into a partial download.
+     * 
+     * @param provider
+     *      The provider of the locator
+     * @param locator
+     *      The locator from where the file should be fetched
+     * @param hash
+     *      The hash of the file
+     * @param offset
+     *      The byte of the content to start at
+     * @param partial
+     *      Where the content is written
+     * @param listener
+     *      Gets told how far the transfer has come, may be null
+     * @throws IOException
+     *      In case the transfer failed
+     */
+    private void receive(StreamProvider provider, String locator, String hash,
+            final long offset, PartialDownload partial, final TransferListener listener)
+            throws IOException {
+        // Progress is told from the start of the content
+        TransferListener shifted = null;
+        if (listener != null) {
+            shifted = new TransferListener() {
+                @Override
+                public void onProgress(long transferred, long total) {
+                    listener.onProgress(offset + transferred, total < 0 ? total : offset + total);
+                }
+            };
+        }
+
+        OutputStream out = partial.openOutput(offset);
+        try {
+            provider.transfer(extractLocatorAddress(locator), hash, offset, out, shifted);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Hashes the content of a file.
+     * 
+     * @param file
+     *      The file
+     * @param digest
+     *      The digest to update
+     * @return
+     *      The digest of the content
+     * @throws IOException
+     *      In case the file could not be read
+     */
+    private static byte[] digest(File file, MessageDigest digest) throws IOException {
+        // A verification that failed half way may have left the digest updated
+        digest.reset();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[VERIFY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
 
+    /**
+     * Returns the locators of a DO that are right now available via bluetooth.
+     * 
+     * @param io    The information object
+     * @return      The available locators
+     */
+    private List<String> getAvailableLocators(InformationObject io) {
         List<Attribute> locators = extractLocators(io);
 
         /* Try to discover available devices and only keep those
@@ -128,23 +347,22 @@ public enum TransferDispatcher {
 //        	Log.d(TAG, "The device was not in the previous discovery. Discovering again.");
 //        	availableFilteredBluetoothLocators = filterBluetoothLocators(locators, true);
 //        }
-        
-        byte[] resultArray;
-        String hash = io.getIdentifier().getIdentifierLabel(
-        		SailDefinedLabelName.HASH_CONTENT.getLabelName()).getLabelValue();
 
-        // Tries to retrieve the BO from the first possible locator. 
-        for (String currentLocator : availableFilteredBluetoothLocators) {
+        return availableFilteredBluetoothLocators;
+    }
 
-        	resultArray = getByteArray(currentLocator, hash);         
-            if (resultArray != null) {
-            	Log.d(TAG, "Received data from the following locator " + currentLocator);
-            	
-            	return resultArray;
-            }
+    /**
+     * Returns the value of an identifier label of a DO.
+     * 
+     * @param io    The information object
+     * @param label The label
+     * @return      The label value, or null if the identifier has no such label
+     */
+    private String getLabel(InformationObject io, SailDefinedLabelName label) {
+        if (io.getIdentifier().getIdentifierLabel(label.getLabelName()) == null) {
+            return null;
         }
-
-        throw new IOException("No suitable locator could be found.");
+        return io.getIdentifier().getIdentifierLabel(label.getLabelName()).getLabelValue();
     }
 
     /**
@@ -223,7 +441,7 @@ public enum TransferDispatcher {
 
         Log.d(TAG, "Connecting to the following locator: " + locator);
         
-        ByteArrayProvider provider = getByteArrayProvider(locator);
+        StreamProvider provider = getByteArrayProvider(locator);
         if (provider != null) {
         	String locatorMacAddress = extractLocatorAddress(locator);
         	return provider.getByteArray(locatorMacAddress, hash);
@@ -235,13 +453,13 @@ public enum TransferDispatcher {
     }   
 
 	/**
-     * Provides the appropriate ByteArrayProvider.
+     * Provides the appropriate provider.
      * 
      * @param locator	The locator from where the file will be fetched
-     * @return The specific ByteArrayProvider.
+     * @return The specific provider.
      */
-    private ByteArrayProvider getByteArrayProvider(String locator) {
-        for (ByteArrayProvider provider : mByteArrayProviders) {
+    private StreamProvider getByteArrayProvider(String locator) {
+        for (StreamProvider provider : mByteArrayProviders) {
             if (provider.canHandle(locator)) {
                 Log.d(TAG, "Choosing the following provider: " + provider.describe());
                 return provider;
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.util;
+
+import project.cs.netinfutilities.Fingerprint;
+
+/**
+ * A Bloom filter over strings. It answers whether a string might have been added, with no
+ * false negatives and a bounded rate of false positives. Strings can not be removed.
+ * <p>
+ * The filter is not thread safe.
+ */
+public class BloomFilter {
+    /** The bits of the filter. */
+    private final long[] mBits;
+
+    /** Number of bits in the filter. */
+    private final int mNumBits;
+
+    /** Number of bits set per string. */
+    private final int mNumHashes;
+
+    /** Number of strings the filter was sized for. */
+    private final int mExpectedInsertions;
+
+    /** Number of strings added. */
+    private int mCount;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param expectedInsertions
+     *      Number of strings that will be added
+     * @param falsePositiveRate
+     *      Wanted rate of false positives once all strings are added, between 0 and 1
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException("Expected insertions must be positive");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+
+        // Optimal number of bits and hashes for the wanted rate
+        double ln2 = Math.log(2);
+        long numBits = (long) Math.ceil(
+                -expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+        numBits = Math.max(64, Math.min(numBits, Integer.MAX_VALUE - 63));
+
+        mNumBits = (int) numBits;
+        mNumHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * ln2));
+        mBits = new long[(mNumBits + 63) / 64];
+        mExpectedInsertions = expectedInsertions;
+    }
+
+    /**
+     * Adds a string.
+     *
+     * @param value
+     *      The string
+     */
+    public void add(String value) {
+        long hash = Fingerprint.of(value);
+        for (int i = 0; i < mNumHashes; i++) {
+            int bit = bitFor(hash, i);
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+        mCount++;
+    }
+
+    /**
+     * Checks if a string might have been added.
+     *
+     * @param value
+     *      The string
+     * @return
+     *      False if the string was definitely not added, true if it probably was
+     */
+    public boolean mightContain(String value) {
+        long hash = Fingerprint.of(value);
+        for (int i = 0; i < mNumHashes; i++) {
+            int bit = bitFor(hash, i);
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of strings added.
+     *
+     * @return
+     *      The number of strings added, counting strings added twice twice
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets the number of strings the filter was sized for.
+     *
+     * @return
+     *      The expected number of insertions
+     */
+    public int getExpectedInsertions() {
+        return mExpectedInsertions;
+    }
+
+    /**
+     * Derives the i:th bit of a string from its fingerprint, by double hashing.
+     *
+     * @param hash
+     *      The fingerprint of the string
+     * @param i
+     *      Which of the bits
+     * @return
+     *      The bit index
+     */
+    private int bitFor(long hash, int i) {
+        int low = (int) hash;
+        int high = (int) (hash >>> 32);
+        int combined = low + i * high;
+        return (combined & Integer.MAX_VALUE) % mNumBits;
+    }
+}
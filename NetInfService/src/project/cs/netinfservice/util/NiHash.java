@@ -0,0 +1,184 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.util.Base64;
+
+/**
+ * Computes and checks the hashes used in ni names.
+ * <p>
+ * The hash part of a name is the SHA-256 digest, possibly truncated as in sha-256-128.
+ * Nodes encode it as base64 without padding, some with the URL safe alphabet, so both
+ * are accepted, as well as hex.
+ */
+public final class NiHash {
+    /** The prefix of every supported hash algorithm. */
+    private static final String SHA_256 = "sha-256";
+
+    /**
+     * Not to be instantiated.
+     */
+    private NiHash() {
+    }
+
+    /**
+     * Creates a digest for a hash algorithm.
+     *
+     * @param hashAlg
+     *      The hash algorithm of a ni name, for example sha-256
+     * @return
+     *      The digest, or null if the hash algorithm is not supported
+     */
+    public static MessageDigest createDigest(String hashAlg) {
+        if (getDigestLength(hashAlg) < 0) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if a digest matches the hash of a ni name.
+     *
+     * @param hashAlg
+     *      The hash algorithm of the ni name
+     * @param hash
+     *      The hash of the ni name
+     * @param digest
+     *      The full digest computed from the content
+     * @return
+     *      True if the digest matches the hash
+     */
+    public static boolean matches(String hashAlg, String hash, byte[] digest) {
+        int length = getDigestLength(hashAlg);
+        if (length < 0 || hash == null || length > digest.length) {
+            return false;
+        }
+        byte[] truncated = Arrays.copyOf(digest, length);
+
+        // Padding is optional
+        String expected = hash.trim();
+        while (expected.endsWith("=")) {
+            expected = expected.substring(0, expected.length() - 1);
+        }
+
+        int flags = Base64.NO_WRAP | Base64.NO_PADDING;
+        return expected.equals(toBase64(truncated))
+                || expected.equals(Base64.encodeToString(truncated, flags | Base64.URL_SAFE))
+                || expected.toLowerCase(Locale.US).equals(toHex(truncated));
+    }
+
+    /**
+     * Encodes a digest the way this node names its objects, as base64 without padding.
+     *
+     * @param digest
+     *      The digest
+     * @return
+     *      The hash
+     */
+    public static String toBase64(byte[] digest) {
+        return Base64.encodeToString(digest, Base64.NO_WRAP | Base64.NO_PADDING);
+    }
+
+    /**
+     * Decodes a hash that is a full SHA-256 digest in base64 without padding.
+     *
+     * @param hash
+     *      The hash
+     * @return
+     *      The 32 digest bytes, or null if the hash is in any other form
+     */
+    public static byte[] toBytes(String hash) {
+        if (hash == null || hash.length() != 43) {
+            return null;
+        }
+        try {
+            byte[] digest = Base64.decode(hash, Base64.NO_WRAP | Base64.NO_PADDING);
+            // Only accept hashes that encode back to exactly the same string
+            if (digest.length == 32 && toBase64(digest).equals(hash)) {
+                return digest;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of digest bytes used by a hash algorithm.
+     *
+     * @param hashAlg
+     *      The hash algorithm, sha-256 or a truncated variant like sha-256-128
+     * @return
+     *      The number of bytes, or -1 if the hash algorithm is not supported
+     */
+    private static int getDigestLength(String hashAlg) {
+        if (hashAlg == null) {
+            return -1;
+        }
+        String algorithm = hashAlg.trim().toLowerCase(Locale.US);
+        if (algorithm.equals(SHA_256)) {
+            return 32;
+        }
+        if (algorithm.startsWith(SHA_256 + "-")) {
+            try {
+                int bits = Integer.parseInt(algorithm.substring(SHA_256.length() + 1));
+                if (bits > 0 && bits <= 256 && bits % 8 == 0) {
+                    return bits / 8;
+                }
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes bytes as lower case hex.
+     *
+     * @param bytes
+     *      The bytes
+     * @return
+     *      The hex string
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
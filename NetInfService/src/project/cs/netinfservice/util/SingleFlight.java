@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfservice.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key into a single call.
+ * <p>
+ * The first caller for a key runs the call, every caller arriving while it is in flight
+ * waits for it and receives the same result, or the same exception. Once the call is done
+ * the key is forgotten, so a later caller runs the call again.
+ *
+ * @param <K>
+ *      The key type
+ * @param <V>
+ *      The result type
+ */
+public class SingleFlight<K, V> {
+    /** The calls in flight. */
+    private final ConcurrentMap<K, FutureTask<V>> mInFlight =
+            new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Runs the call, unless a call for the same key is already in flight. In that case
+     * waits for the call in flight and returns its result.
+     *
+     * @param key
+     *      The key identifying the call
+     * @param call
+     *      The call
+     * @return
+     *      The result of the call
+     * @throws Exception
+     *      The exception thrown by the call
+     */
+    public V execute(K key, Callable<V> call) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> inFlight = mInFlight.putIfAbsent(key, task);
+
+        // Nobody else is running it, so run it on this thread
+        if (inFlight == null) {
+            try {
+                task.run();
+            } finally {
+                mInFlight.remove(key, task);
+            }
+            inFlight = task;
+        }
+
+        // Hand out the shared outcome
+        try {
+            return inFlight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of calls in flight.
+     *
+     * @return
+     *      The number of keys currently running a call
+     */
+    public int size() {
+        return mInFlight.size();
+    }
+}
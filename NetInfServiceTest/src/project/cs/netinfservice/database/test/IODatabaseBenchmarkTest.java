@@ -0,0 +1,247 @@
+package project.cs.netinfservice.database.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.netinf.node.search.SearchResult;
+import project.cs.netinfservice.util.IOBuilder;
+import project.cs.netinfutilities.UProperties;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares the number of commits, and the time, needed to store the resources of a
+ * published page with one commit per row against the batched addIOs. Also measures
+ * searches by url as the url table grows.
+ */
+public class IODatabaseBenchmarkTest extends AndroidTestCase {
+	
+	/** Debug tag. */
+	private static final String TAG = "IODatabaseBenchmarkTest";
+	
+	/** Prefix for test: Database */
+	private static final String TEST_FILE_PREFIX = "benchmark_";
+	
+	/** Number of resources on the published page. */
+	private static final int RESOURCES = 40;
+	
+	/** Number of urls per resource. */
+	private static final int URLS = 2;
+	
+	/** Number of urls per object in the search benchmark. */
+	private static final int URLS_PER_IO = 10;
+	
+	/** Number of objects stored per transaction in the search benchmark. */
+	private static final int SEARCH_BATCH = 1000;
+	
+	/** Number of searches timed. */
+	private static final int SEARCHES = 1000;
+	
+	/** The context the databases are created in. */
+	private Context mContext;
+	
+	/** The database under test. */
+	private IODatabase mIoDatabase;
+	
+	/** The Datamodel factory */
+	private DatamodelFactory mDatamodelFactory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), TEST_FILE_PREFIX);
+		mContext.deleteDatabase("IODatabase");
+		mContext.deleteDatabase("IODatabaseLegacy");
+		
+		mDatamodelFactory = new DatamodelFactoryImpl();
+		mIoDatabase = new IODatabase(mDatamodelFactory, mContext);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		mIoDatabase.close();
+		super.tearDown();
+	}
+	
+	/**
+	 * Stores a page the way addIO did before: every row in its own implicit transaction.
+	 * Then stores the same page with addIOs.
+	 */
+	public void testCommitsPerPublishedIO() throws Exception {
+		// One commit per IO row and per url row
+		SQLiteDatabase legacy = mContext.openOrCreateDatabase("IODatabaseLegacy", 
+				Context.MODE_PRIVATE, null);
+		legacy.execSQL("CREATE TABLE IO (hash TEXT PRIMARY KEY, hash_algorithm TEXT NOT NULL, "
+				+ "content_type TEXT NOT NULL, filepath TEXT NOT NULL, file_size REAL NOT NULL)");
+		legacy.execSQL("CREATE TABLE IO_url (hash TEXT NOT NULL, url TEXT NOT NULL, "
+				+ "PRIMARY KEY (hash, url))");
+		
+		int legacyCommits = 0;
+		long start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < RESOURCES; i++) {
+			ContentValues io = new ContentValues();
+			io.put("hash", "hash" + i);
+			io.put("hash_algorithm", "sha-256");
+			io.put("content_type", "text/plain");
+			io.put("filepath", "/sdcard/" + i);
+			io.put("file_size", "11");
+			legacy.insert("IO", null, io);
+			legacyCommits++;
+			
+			for (int j = 0; j < URLS; j++) {
+				ContentValues url = new ContentValues();
+				url.put("hash", "hash" + i);
+				url.put("url", "http://example.com/" + i + "/" + j);
+				legacy.insert("IO_url", null, url);
+				legacyCommits++;
+			}
+		}
+		long legacyTime = SystemClock.elapsedRealtime() - start;
+		legacy.close();
+		
+		// One commit for the whole page
+		List<InformationObject> ios = createPage();
+		long commits = mIoDatabase.getCommitCount();
+		start = SystemClock.elapsedRealtime();
+		mIoDatabase.addIOs(ios);
+		long batchTime = SystemClock.elapsedRealtime() - start;
+		long batchCommits = mIoDatabase.getCommitCount() - commits;
+		
+		Log.i(TAG, "Per row: " + ((double) legacyCommits / RESOURCES) + " commits per IO, "
+				+ legacyTime + " ms");
+		Log.i(TAG, "Batched: " + ((double) batchCommits / RESOURCES) + " commits per IO, "
+				+ batchTime + " ms");
+		
+		assertEquals(RESOURCES * (1 + URLS), legacyCommits);
+		assertEquals(1, batchCommits);
+		assertEquals(URLS, mIoDatabase.getURLs("hash0").size());
+	}
+	
+	/**
+	 * Stores the page one IO at a time, which costs one commit per IO.
+	 */
+	public void testCommitsPerSingleIO() throws Exception {
+		long commits = mIoDatabase.getCommitCount();
+		for (InformationObject io : createPage()) {
+			mIoDatabase.addIO(io);
+		}
+		assertEquals(RESOURCES, mIoDatabase.getCommitCount() - commits);
+		
+		// Storing the same page again keeps the rows
+		mIoDatabase.addIOs(createPage());
+		assertEquals(URLS, mIoDatabase.getURLs("hash" + (RESOURCES - 1)).size());
+	}
+	
+	/** Searches the url table with 10 000 urls. */
+	public void testSearch10k() throws Exception {
+		benchmarkSearch(10000);
+	}
+	
+	/** Searches the url table with 100 000 urls. */
+	public void testSearch100k() throws Exception {
+		benchmarkSearch(100000);
+	}
+	
+	/** Searches the url table with 1 000 000 urls. */
+	@LargeTest
+	public void testSearch1M() throws Exception {
+		benchmarkSearch(1000000);
+	}
+	
+	/**
+	 * Fills the database with the given number of urls and measures searchIO.
+	 * 
+	 * @param urls
+	 *      The number of urls to store
+	 */
+	private void benchmarkSearch(int urls) throws Exception {
+		int ios = urls / URLS_PER_IO;
+		
+		// Fill the database in large batches
+		List<InformationObject> batch = new ArrayList<InformationObject>();
+		for (int i = 0; i < ios; i++) {
+			batch.add(createIO("search" + i, URLS_PER_IO));
+			if (batch.size() == SEARCH_BATCH) {
+				mIoDatabase.addIOs(batch);
+				batch.clear();
+			}
+		}
+		mIoDatabase.addIOs(batch);
+		
+		// Look up urls spread over the whole table
+		Random random = new Random(urls);
+		long start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < SEARCHES; i++) {
+			int io = random.nextInt(ios);
+			SearchResult result = mIoDatabase.searchIO(createUrl("search" + io, 
+					random.nextInt(URLS_PER_IO)));
+			assertEquals("search" + io, result.getHash());
+		}
+		long time = SystemClock.elapsedRealtime() - start;
+		
+		Log.i(TAG, urls + " urls: " + ((double) time / SEARCHES) + " ms per search");
+	}
+	
+	/**
+	 * Creates an information object.
+	 * 
+	 * @param hash
+	 *      The hash
+	 * @param urls
+	 *      The number of urls
+	 * @return
+	 *      The information object
+	 */
+	private InformationObject createIO(String hash, int urls) {
+		UProperties instance = UProperties.INSTANCE;
+		IOBuilder builder = new IOBuilder(mDatamodelFactory);
+		builder.setHash(hash)
+			.setHashAlgorithm("sha-256")
+			.setContentType("text/plain")
+			.addMetaData(instance.getPropertyWithName("metadata.filepath"), "/sdcard/" + hash)
+			.addMetaData(instance.getPropertyWithName("metadata.filesize"), "11");
+		for (int j = 0; j < urls; j++) {
+			builder.addMetaData(instance.getPropertyWithName("metadata.url"), createUrl(hash, j));
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * Creates a url of an information object.
+	 * 
+	 * @param hash
+	 *      The hash of the object
+	 * @param index
+	 *      The index of the url
+	 * @return
+	 *      The url
+	 */
+	private String createUrl(String hash, int index) {
+		return "http://www.example.com/resources/" + hash + "/image" + index + ".png";
+	}
+	
+	/**
+	 * Creates the information objects of a page.
+	 * 
+	 * @return
+	 *      The information objects
+	 */
+	private List<InformationObject> createPage() {
+		List<InformationObject> ios = new ArrayList<InformationObject>();
+		for (int i = 0; i < RESOURCES; i++) {
+			ios.add(createIO("hash" + i, URLS));
+		}
+		return ios;
+	}
+}
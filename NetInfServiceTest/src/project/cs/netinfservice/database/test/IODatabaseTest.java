@@ -20,10 +20,13 @@ import project.cs.netinfservice.database.DatabaseException;
 import project.cs.netinfservice.database.IODatabase;
 import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
 import project.cs.netinfservice.netinf.node.search.SearchResult;
+import project.cs.netinfservice.netinf.node.store.StoredObject;
 import project.cs.netinfservice.util.IOBuilder;
 import project.cs.netinfutilities.UProperties;
 import project.cs.netinfutilities.metadata.Metadata;
 import project.cs.netinfutilities.metadata.MetadataParser;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 import android.test.RenamingDelegatingContext;
 
@@ -228,6 +231,31 @@ public class IODatabaseTest extends AndroidTestCase {
         
 	}
 	
+	/**
+	 * Tests that reads served from memory are added to the stored objects.
+	 */
+	public void testAddAccesses() throws DatabaseException {
+		mIoDatabase.addIO(mIo);
+		
+		List<StoredObject> objects = mIoDatabase.getStoredObjects();
+		assertEquals(1, objects.size());
+		StoredObject object = objects.get(0);
+		assertEquals(HASH, object.getHash());
+		assertEquals(HASH_ALG, object.getHashAlg());
+		assertEquals(FILE_PATH, object.getFilePath());
+		assertEquals(0, object.getHits());
+		
+		Map<String, long[]> accesses = new HashMap<String, long[]>();
+		accesses.put(HASH, new long[] {object.getLastAccess() + 1000, 3});
+		mIoDatabase.addAccesses(accesses);
+		
+		object = mIoDatabase.getStoredObjects().get(0);
+		assertEquals(3, object.getHits());
+		assertEquals(accesses.get(HASH)[0], object.getLastAccess());
+		
+		mIoDatabase.deleteIO(mIo);
+	}
+	
 	/** 
 	 * Tests searching for entries using a url.
 	 */
@@ -275,6 +303,51 @@ public class IODatabaseTest extends AndroidTestCase {
 
 	}
 	
+	/**
+	 * Creates a database with the version 3 schema and checks that its information
+	 * objects survive the upgrade to the compact schema.
+	 */
+	public void testUpgradeFromVersion3() throws Exception {
+		RenamingDelegatingContext context 
+				= new RenamingDelegatingContext(getContext(), TEST_FILE_PREFIX + "upgrade_");
+		context.deleteDatabase("IODatabase");
+		
+		// The tables as they were before version 4
+		SQLiteDatabase db = context.openOrCreateDatabase("IODatabase", Context.MODE_PRIVATE, null);
+		db.execSQL("CREATE TABLE IO(hash TEXT PRIMARY KEY, hash_algorithm TEXT NOT NULL, "
+				+ "content_type TEXT NOT NULL, filepath TEXT NOT NULL, "
+				+ "file_size REAL NOT NULL CHECK(file_size > 0.0))");
+		db.execSQL("CREATE TABLE IO_url(hash TEXT NOT NULL, url TEXT NOT NULL, "
+				+ "PRIMARY KEY (hash, url))");
+		db.execSQL("CREATE TABLE NRS_resolution(resolution TEXT PRIMARY KEY, content_type TEXT, "
+				+ "metadata TEXT, locators TEXT NOT NULL, filepath TEXT, expires INTEGER NOT NULL)");
+		db.execSQL("CREATE TABLE NRS_outbox(_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ "hash_algorithm TEXT NOT NULL, hash TEXT NOT NULL, content_type TEXT, "
+				+ "metadata TEXT, locator TEXT NOT NULL, filepath TEXT, created INTEGER NOT NULL, "
+				+ "attempts INTEGER NOT NULL, next_attempt INTEGER NOT NULL, "
+				+ "UNIQUE (hash_algorithm, hash, locator))");
+		db.execSQL("INSERT INTO IO VALUES ('" + HASH + "', '" + HASH_ALG + "', '" 
+				+ CONTENT_TYPE + "', '" + FILE_PATH + "', " + FILE_SIZE + ")");
+		db.execSQL("INSERT INTO IO_url VALUES ('" + HASH + "', '" + URL_1 + "')");
+		db.execSQL("INSERT INTO IO_url VALUES ('" + HASH + "', '" + URL_2 + "')");
+		db.setVersion(3);
+		db.close();
+		
+		// Opening the database upgrades it
+		IODatabase upgraded = new IODatabase(mDatamodelFactory, context);
+		try {
+			List<String> urls = upgraded.getURLs(HASH);
+			assertEquals(2, urls.size());
+			assertTrue(urls.containsAll(Arrays.asList(URL_1, URL_2)));
+			
+			SearchResult result = upgraded.searchIO(URL_2);
+			assertEquals(HASH, result.getHash());
+			assertEquals(HASH_ALG, result.getHashAlgorithm());
+		} finally {
+			upgraded.close();
+		}
+	}
+	
 	private InformationObject createIO() {
         IOBuilder builder = new IOBuilder(mDatamodelFactory);
         return builder.setHash(HASH)
@@ -0,0 +1,475 @@
+package project.cs.netinfservice.netinf.node.nrs.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import netinf.common.datamodel.Identifier;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import project.cs.netinfservice.netinf.node.exceptions.NrsUnavailableException;
+import project.cs.netinfservice.netinf.node.nrs.NrsCircuitBreaker;
+import project.cs.netinfservice.netinf.node.nrs.NrsEndpoint;
+import project.cs.netinfservice.netinf.node.nrs.NrsEndpoints;
+import project.cs.netinfservice.netinf.node.nrs.NrsHttpClient;
+import project.cs.netinfservice.netinf.node.nrs.NrsRequest;
+import project.cs.netinfservice.netinf.node.nrs.NrsResolutionCache;
+import project.cs.netinfservice.netinf.node.resolution.NameResolutionService;
+import project.cs.netinfservice.util.IOBuilder;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the NRS client against NRS faked on the loopback interface.
+ */
+public class NrsHttpClientTest extends AndroidTestCase {
+
+	/** Connection and socket timeout in ms. */
+	private static final int TIMEOUT = 500;
+
+	/** Number of failed requests in a row that opens the breaker. */
+	private static final int FAILURES = 3;
+
+	/** Time in ms between two probes, longer than any test. */
+	private static final long PROBE_INTERVAL = 60000;
+
+	/** Time in ms answers of the NRS are cached, longer than any test. */
+	private static final long CACHE_TTL = 60000;
+
+	/** Number of times a request is repeated. */
+	private static final int REPEATS = 3;
+
+	/** Time in ms after which a request is hedged. */
+	private static final int HEDGE_DELAY = 100;
+
+	/** Header naming the NRS that answered. */
+	private static final String SERVED_BY = "X-Served-By";
+
+	/** The first NRS. */
+	private FakeNrs mPrimary;
+
+	/** The fallback NRS. */
+	private FakeNrs mFallback;
+
+	/** The client under test. */
+	private NrsHttpClient mClient;
+
+	/** The breaker of the client under test. */
+	private NrsCircuitBreaker mBreaker;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPrimary = new FakeNrs("primary");
+		mFallback = new FakeNrs("fallback");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mClient != null) {
+			mClient.shutdown();
+		}
+		mPrimary.close();
+		mFallback.close();
+		super.tearDown();
+	}
+
+	/** Tests that a NRS that never answers opens the breaker. */
+	public void testTimeoutsOpenBreaker() throws IOException {
+		mPrimary.mSilent = true;
+		createClient(false, 0, 0);
+
+		for (int i = 0; i < FAILURES; i++) {
+			assertEquals(NrsCircuitBreaker.State.CLOSED, mBreaker.getState());
+			try {
+				mClient.execute(new FakeRequest());
+				fail("Should have timed out.");
+			} catch (NrsUnavailableException e) {
+				fail("Breaker opened too early.");
+			} catch (IOException e) {
+				// Success
+			}
+		}
+		assertEquals(NrsCircuitBreaker.State.OPEN, mBreaker.getState());
+
+		try {
+			mClient.execute(new FakeRequest());
+			fail("Should have failed right away.");
+		} catch (NrsUnavailableException e) {
+			// Success
+		}
+		assertEquals(FAILURES, mPrimary.mRequests.get());
+	}
+
+	/** Tests that a NRS answering with server errors only opens the breaker. */
+	public void testServerErrorsOpenBreaker() throws IOException {
+		mPrimary.mStatus = HttpStatus.SC_INTERNAL_SERVER_ERROR;
+		createClient(false, 0, 0);
+
+		for (int i = 0; i < FAILURES; i++) {
+			HttpResponse response = mClient.execute(new FakeRequest());
+			assertEquals(HttpStatus.SC_INTERNAL_SERVER_ERROR,
+					response.getStatusLine().getStatusCode());
+			mClient.release(response);
+		}
+		assertEquals(NrsCircuitBreaker.State.OPEN, mBreaker.getState());
+	}
+
+	/** Tests that an answer that is not valid, but no server error, leaves the breaker. */
+	public void testNotFoundKeepsBreakerClosed() throws IOException {
+		mPrimary.mStatus = HttpStatus.SC_NOT_FOUND;
+		createClient(false, 0, 0);
+
+		for (int i = 0; i < FAILURES; i++) {
+			mClient.release(mClient.execute(new FakeRequest()));
+		}
+		assertEquals(NrsCircuitBreaker.State.CLOSED, mBreaker.getState());
+	}
+
+	/** Tests that a failed NRS is failed over and moves behind the one that answered. */
+	public void testFailoverOrder() throws IOException {
+		mPrimary.mStatus = HttpStatus.SC_SERVICE_UNAVAILABLE;
+		createClient(true, 0, 0);
+
+		HttpResponse response = mClient.executeWithFailover(new FakeRequest());
+		assertEquals("fallback", getServedBy(response));
+		mClient.release(response);
+		assertEquals(1, mPrimary.mRequests.get());
+		assertEquals(1, mFallback.mRequests.get());
+
+		// The fallback is asked first from now on
+		response = mClient.executeWithFailover(new FakeRequest());
+		assertEquals("fallback", getServedBy(response));
+		mClient.release(response);
+		assertEquals(1, mPrimary.mRequests.get());
+		assertEquals(2, mFallback.mRequests.get());
+		assertEquals(NrsCircuitBreaker.State.CLOSED, mBreaker.getState());
+	}
+
+	/** Tests that a slow request is hedged after the delay and the loser is aborted. */
+	public void testHedge() throws Exception {
+		mPrimary.mDelay = 4 * TIMEOUT / 5;
+		createClient(true, HEDGE_DELAY, 0);
+
+		long start = System.currentTimeMillis();
+		HttpResponse response = mClient.execute(new FakeRequest());
+		long elapsed = System.currentTimeMillis() - start;
+		assertEquals("fallback", getServedBy(response));
+		mClient.release(response);
+		assertTrue("Hedged after " + elapsed + " ms", elapsed >= HEDGE_DELAY);
+		assertTrue("Hedged after " + elapsed + " ms", elapsed < mPrimary.mDelay);
+
+		// The primary sees its connection dropped before it answers
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mPrimary.mAborted.get() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, mPrimary.mAborted.get());
+	}
+
+	/** Tests that a request is not hedged without a second NRS or when it is fast. */
+	public void testNoHedge() throws IOException {
+		mPrimary.mDelay = HEDGE_DELAY / 4;
+		createClient(true, HEDGE_DELAY, 0);
+
+		HttpResponse response = mClient.execute(new FakeRequest());
+		assertEquals("primary", getServedBy(response));
+		mClient.release(response);
+		assertEquals(0, mFallback.mRequests.get());
+	}
+
+	/** Tests that invalid responses that lose are handed back to the pool. */
+	public void testInvalidResponsesReleased() throws IOException {
+		mPrimary.mStatus = HttpStatus.SC_NOT_FOUND;
+		mFallback.mStatus = HttpStatus.SC_NOT_FOUND;
+		createClient(true, 0, 1);
+
+		// With one connection per NRS a response kept back would starve the next request
+		for (int i = 0; i < REPEATS; i++) {
+			HttpResponse response = mClient.executeWithFailover(new FakeRequest());
+			assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusLine().getStatusCode());
+			mClient.release(response);
+		}
+		assertEquals(REPEATS, mPrimary.mRequests.get());
+		assertEquals(REPEATS, mFallback.mRequests.get());
+	}
+
+	/** Tests that an object the NRS does not know is not asked for again for a while. */
+	public void testNotFoundCachedNegative() {
+		mPrimary.mStatus = HttpStatus.SC_NOT_FOUND;
+		createClient(false, 0, 0);
+		NrsResolutionCache cache = new NrsResolutionCache(16, CACHE_TTL, CACHE_TTL, false, null);
+		NameResolutionService service = createService(cache);
+
+		assertNull(service.get(createIdentifier()));
+		assertTrue(cache.get("sha-256", "111").isNegative());
+		assertNull(service.get(createIdentifier()));
+		assertEquals(1, mPrimary.mRequests.get());
+	}
+
+	/** Tests that a server error does not make the object unresolvable. */
+	public void testServerErrorNotCached() {
+		mPrimary.mStatus = HttpStatus.SC_INTERNAL_SERVER_ERROR;
+		createClient(false, 0, 0);
+		NrsResolutionCache cache = new NrsResolutionCache(16, CACHE_TTL, CACHE_TTL, false, null);
+		NameResolutionService service = createService(cache);
+
+		assertNull(service.get(createIdentifier()));
+		assertNull(cache.get("sha-256", "111"));
+		assertNull(service.get(createIdentifier()));
+		assertEquals(2, mPrimary.mRequests.get());
+	}
+
+	/**
+	 * Creates a name resolution service on the client under test. It only resolves, it
+	 * neither publishes nor stores content.
+	 *
+	 * @param cache
+	 *      Remembers the answers of the NRS
+	 * @return
+	 *      The name resolution service
+	 */
+	private NameResolutionService createService(NrsResolutionCache cache) {
+		return new NameResolutionService(new DatamodelFactoryImpl(), mClient, cache, null,
+				null, null);
+	}
+
+	/**
+	 * Creates the identifier of the object that is resolved.
+	 *
+	 * @return
+	 *      The identifier
+	 */
+	private static Identifier createIdentifier() {
+		return new IOBuilder(new DatamodelFactoryImpl())
+				.setHash("111")
+				.setHashAlgorithm("sha-256")
+				.setContentType("text/html")
+				.build()
+				.getIdentifier();
+	}
+
+	/**
+	 * Creates the client under test.
+	 *
+	 * @param fallback
+	 *      True if the fallback NRS is known as well
+	 * @param hedgeDelay
+	 *      Time in ms after which a request is hedged, 0 for the timeout
+	 * @param maxPerRoute
+	 *      Maximum number of pooled connections to a NRS, 0 for no limit worth mentioning
+	 */
+	private void createClient(boolean fallback, long hedgeDelay, int maxPerRoute) {
+		long delay = hedgeDelay > 0 ? hedgeDelay : TIMEOUT;
+		NrsEndpoints endpoints = new NrsEndpoints(FakeNrs.HOST, mPrimary.getPort(),
+				fallback ? FakeNrs.HOST + ":" + mFallback.getPort() : "", TIMEOUT, delay,
+				delay);
+		mBreaker = new NrsCircuitBreaker(FAILURES, PROBE_INTERVAL, TIMEOUT, endpoints);
+		int perRoute = maxPerRoute > 0 ? maxPerRoute : 8;
+		mClient = new NrsHttpClient(TIMEOUT, 2 * perRoute, perRoute, 60000, 60000, 0,
+				endpoints, mBreaker);
+	}
+
+	/**
+	 * Gets the NRS that answered.
+	 *
+	 * @param response
+	 *      The response
+	 * @return
+	 *      The name of the NRS
+	 */
+	private static String getServedBy(HttpResponse response) {
+		return response.getFirstHeader(SERVED_BY).getValue();
+	}
+
+	/**
+	 * A request that is answered by a 200.
+	 */
+	private static class FakeRequest implements NrsRequest {
+		@Override
+		public HttpUriRequest create(NrsEndpoint endpoint) {
+			return new HttpGet(endpoint.getUri("/netinfproto/get"));
+		}
+
+		@Override
+		public boolean isValid(HttpResponse response) {
+			return response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+		}
+	}
+
+	/**
+	 * A NRS on the loopback interface that answers every request the same way, keeping
+	 * connections alive.
+	 */
+	private static class FakeNrs implements Runnable {
+		/** The loopback address. */
+		static final String HOST = "127.0.0.1";
+
+		/** The name sent with each response. */
+		private final String mName;
+
+		/** Accepts the connections. */
+		private final ServerSocket mServer;
+
+		/** Number of requests received. */
+		final AtomicInteger mRequests = new AtomicInteger();
+
+		/** Number of requests the client gave up on before the response. */
+		final AtomicInteger mAborted = new AtomicInteger();
+
+		/** The status of the responses. */
+		volatile int mStatus = HttpStatus.SC_OK;
+
+		/** Time in ms before a response is sent. */
+		volatile int mDelay;
+
+		/** True if requests are never answered. */
+		volatile boolean mSilent;
+
+		/**
+		 * Starts the NRS.
+		 *
+		 * @param name
+		 *      The name sent with each response
+		 * @throws IOException
+		 *      In case the socket could not be opened
+		 */
+		FakeNrs(String name) throws IOException {
+			mName = name;
+			mServer = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+			Thread thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Gets the port the NRS listens on.
+		 *
+		 * @return
+		 *      The port
+		 */
+		int getPort() {
+			return mServer.getLocalPort();
+		}
+
+		/**
+		 * Stops accepting connections.
+		 *
+		 * @throws IOException
+		 *      In case the socket could not be closed
+		 */
+		void close() throws IOException {
+			mServer.close();
+		}
+
+		@Override
+		public void run() {
+			while (!mServer.isClosed()) {
+				try {
+					final Socket socket = mServer.accept();
+					Thread connection = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					}, mName + "-connection");
+					connection.setDaemon(true);
+					connection.start();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Answers the requests of one connection.
+		 *
+		 * @param socket
+		 *      The connection
+		 */
+		private void serve(Socket socket) {
+			try {
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+				while (readRequest(in)) {
+					mRequests.incrementAndGet();
+					if (mSilent || mDelay > 0) {
+						// The client closes the connection when it gives up
+						socket.setSoTimeout(mSilent ? 0 : mDelay);
+						try {
+							if (in.read() == -1) {
+								mAborted.incrementAndGet();
+								return;
+							}
+						} catch (SocketTimeoutException e) {
+							// Answer now
+						} catch (IOException e) {
+							mAborted.incrementAndGet();
+							return;
+						}
+						socket.setSoTimeout(0);
+					}
+					byte[] body = mName.getBytes("US-ASCII");
+					String header = "HTTP/1.1 " + mStatus + " Fake\r\n"
+							+ SERVED_BY + ": " + mName + "\r\n"
+							+ "Content-Length: " + body.length + "\r\n"
+							+ "Connection: keep-alive\r\n\r\n";
+					out.write(header.getBytes("US-ASCII"));
+					out.write(body);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// The client dropped the connection
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+
+		/**
+		 * Reads a request, skipping its body.
+		 *
+		 * @param in
+		 *      The connection
+		 * @return
+		 *      False if the connection was closed
+		 * @throws IOException
+		 *      In case the connection failed
+		 */
+		private static boolean readRequest(InputStream in) throws IOException {
+			StringBuilder head = new StringBuilder();
+			int matched = 0;
+			int b;
+			while (matched < 4) {
+				if ((b = in.read()) == -1) {
+					return false;
+				}
+				head.append((char) b);
+				matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1
+						: (b == '\r' ? 1 : 0);
+			}
+
+			for (String line : head.toString().split("\r\n")) {
+				if (line.toLowerCase().startsWith("content-length:")) {
+					long length = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+					while (length > 0 && in.read() != -1) {
+						length--;
+					}
+				}
+			}
+			return true;
+		}
+	}
+}
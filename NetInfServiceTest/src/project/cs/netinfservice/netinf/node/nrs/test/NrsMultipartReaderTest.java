@@ -0,0 +1,190 @@
+package project.cs.netinfservice.netinf.node.nrs.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+import project.cs.netinfservice.netinf.node.exceptions.InvalidResponseException;
+import project.cs.netinfservice.netinf.node.nrs.NrsMultipartReader;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that multipart NRS responses are streamed into the store and verified.
+ */
+public class NrsMultipartReaderTest extends AndroidTestCase {
+
+	/** The hash algorithm of the object. */
+	private static final String HASH_ALG = "sha-256";
+
+	/** SHA-256 of "abc" in URL safe base64. */
+	private static final String HASH = "ungWv48Bz-pBQUDeXa4iI7ADYaOWF3qctBD_YfIAFa0";
+
+	/** The content of the object. */
+	private static final String CONTENT = "abc";
+
+	/** The resolution part. */
+	private static final String JSON = "{\"ni\":\"ni:///sha-256;" + HASH + "\"}";
+
+	/** The multipart boundary. */
+	private static final String BOUNDARY = "NrsBoundary";
+
+	/** The root of the store. */
+	private File mRoot;
+
+	/** The store the object is written to. */
+	private ContentStore mStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mRoot = File.createTempFile("store", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mStore = new ContentStore(mRoot, 0, 64 * 1024, "", 64);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStore.getPacks().close();
+		FileUtils.deleteDirectory(mRoot);
+		super.tearDown();
+	}
+
+	/** Tests that the resolution followed by the octets is read and stored. */
+	public void testJsonFirst() throws Exception {
+		NrsMultipartReader reader = read(HASH_ALG, jsonPart() + octetsPart(CONTENT) + end());
+
+		assertEquals(JSON, reader.getJson());
+		assertEquals(CONTENT.length(), reader.getFileSize());
+		assertEquals(mStore.find(HASH), reader.getFile());
+		assertEquals(CONTENT, FileUtils.readFileToString(reader.getFile()));
+	}
+
+	/** Tests that the octets followed by the resolution are read and stored. */
+	public void testOctetsFirst() throws Exception {
+		NrsMultipartReader reader = read(HASH_ALG, octetsPart(CONTENT) + jsonPart() + end());
+
+		assertEquals(JSON, reader.getJson());
+		assertEquals(CONTENT, FileUtils.readFileToString(reader.getFile()));
+		assertNoTemporaryFiles();
+	}
+
+	/** Tests that octets that do not match the hash never reach the store. */
+	public void testDigestMismatch() throws Exception {
+		try {
+			read(HASH_ALG, jsonPart() + octetsPart("abd") + end());
+			fail("Should have refused the octets.");
+		} catch (InvalidResponseException e) {
+			// Success
+		}
+		assertNull(mStore.find(HASH));
+		assertNoTemporaryFiles();
+	}
+
+	/** Tests that octets under an unsupported hash algorithm never reach the store. */
+	public void testUnsupportedHashAlg() throws Exception {
+		try {
+			read("md5", jsonPart() + octetsPart(CONTENT) + end());
+			fail("Should have refused the octets.");
+		} catch (InvalidResponseException e) {
+			// Success
+		}
+		assertNull(mStore.find(HASH));
+		assertNoTemporaryFiles();
+	}
+
+	/** Tests that a body cut off in the octets fails without leaving a file behind. */
+	public void testTruncated() throws Exception {
+		String body = jsonPart() + octetsPart(CONTENT) + end();
+		try {
+			read(HASH_ALG, body.substring(0, body.lastIndexOf(CONTENT) + 1));
+			fail("Should have failed on the truncated body.");
+		} catch (IOException e) {
+			// Success
+		}
+		assertNull(mStore.find(HASH));
+		assertNoTemporaryFiles();
+	}
+
+	/** Tests that a body without octets is refused. */
+	public void testMissingOctets() throws Exception {
+		try {
+			read(HASH_ALG, jsonPart() + end());
+			fail("Should have refused the body.");
+		} catch (InvalidResponseException e) {
+			// Success
+		}
+	}
+
+	/**
+	 * Reads a multipart body.
+	 *
+	 * @param hashAlg
+	 *      The hash algorithm of the object
+	 * @param body
+	 *      The body
+	 * @return
+	 *      The reader that read the body
+	 * @throws IOException
+	 *      In case the body could not be read
+	 * @throws InvalidResponseException
+	 *      In case the body was refused
+	 */
+	private NrsMultipartReader read(String hashAlg, String body)
+			throws IOException, InvalidResponseException {
+		NrsMultipartReader reader = new NrsMultipartReader(hashAlg, HASH, mStore);
+		reader.read(new ByteArrayInputStream(body.getBytes("UTF-8")),
+				BOUNDARY.getBytes("US-ASCII"));
+		return reader;
+	}
+
+	/**
+	 * Checks that no temporary file was left in the store.
+	 */
+	private void assertNoTemporaryFiles() {
+		for (File file : mRoot.listFiles()) {
+			assertFalse(file.getName(), mStore.isTemporary(file));
+		}
+	}
+
+	/**
+	 * Creates the resolution part.
+	 *
+	 * @return
+	 *      The part, starting with its boundary
+	 */
+	private static String jsonPart() {
+		return "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"json\"\r\n"
+				+ "Content-Type: application/json\r\n\r\n"
+				+ JSON + "\r\n";
+	}
+
+	/**
+	 * Creates the octets part.
+	 *
+	 * @param content
+	 *      The content of the object
+	 * @return
+	 *      The part, starting with its boundary
+	 */
+	private static String octetsPart(String content) {
+		return "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"octets\"; filename=\"object\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n"
+				+ content + "\r\n";
+	}
+
+	/**
+	 * Creates the closing boundary.
+	 *
+	 * @return
+	 *      The closing boundary
+	 */
+	private static String end() {
+		return "--" + BOUNDARY + "--\r\n";
+	}
+}
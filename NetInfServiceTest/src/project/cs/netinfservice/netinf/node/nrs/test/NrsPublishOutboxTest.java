@@ -0,0 +1,245 @@
+package project.cs.netinfservice.netinf.node.nrs.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.node.nrs.NrsPublishOutbox;
+import project.cs.netinfservice.netinf.node.nrs.PendingPublish;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Tests that the NRS publish outbox queues, retries and drops publishes.
+ */
+public class NrsPublishOutboxTest extends AndroidTestCase {
+
+	/** Prefix of the test database. */
+	private static final String TEST_FILE_PREFIX = "outbox_test_";
+
+	/** The hashes of the queued publishes. */
+	private static final String[] HASHES = {"111", "222", "333"};
+
+	/** Delay in ms after the first failure. */
+	private static final long BACKOFF = 100;
+
+	/** Longest delay in ms between two attempts. */
+	private static final long MAX_BACKOFF = 400;
+
+	/** Number of rejections after which a publish is dropped. */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** Time in ms between the outbox reading the clock and calling the sender. */
+	private static final long SLACK = 20;
+
+	/** Longest time in ms to wait for the sender. */
+	private static final long TIMEOUT = 5000;
+
+	/** The database the queue is stored in. */
+	private IODatabase mDatabase;
+
+	/** The sender answering in place of the NRS. */
+	private FakeSender mSender;
+
+	/** The outbox under test. */
+	private NrsPublishOutbox mOutbox;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Context context = new RenamingDelegatingContext(getContext(), TEST_FILE_PREFIX);
+		mDatabase = new IODatabase(new DatamodelFactoryImpl(), context);
+		clearOutbox();
+
+		IODatabaseFactory databaseFactory = new IODatabaseFactory() {
+			@Override
+			public IODatabase create(Context context) {
+				return mDatabase;
+			}
+		};
+		mSender = new FakeSender();
+		mOutbox = new NrsPublishOutbox(10, BACKOFF, MAX_BACKOFF, MAX_ATTEMPTS, databaseFactory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		// The outbox keeps running, keep it from retrying what is left
+		mSender.setAnswer(Answer.ACCEPT);
+		clearOutbox();
+		mDatabase.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that the same hash and locator is only queued once.
+	 */
+	public void testEnqueueDeduplicates() {
+		mOutbox.enqueue(createPublish(HASHES[0], "nrs://a"));
+		mOutbox.enqueue(createPublish(HASHES[0], "nrs://a"));
+
+		assertEquals(Long.valueOf(1), mOutbox.getStatistics().get("depth"));
+		assertEquals(Long.valueOf(1), mOutbox.getStatistics().get("duplicates"));
+
+		// Another locator of the same object is a publish of its own
+		mOutbox.enqueue(createPublish(HASHES[0], "nrs://b"));
+		assertEquals(Long.valueOf(2), mOutbox.getStatistics().get("depth"));
+		assertEquals(Long.valueOf(1), mOutbox.getStatistics().get("duplicates"));
+	}
+
+	/**
+	 * Tests that a rejected publish is retried with a growing delay.
+	 */
+	public void testRejectBacksOff() throws Exception {
+		mSender.setAnswer(Answer.REJECT);
+		mOutbox.start(mSender);
+		mOutbox.enqueue(createPublish(HASHES[0], null));
+
+		waitFor(MAX_ATTEMPTS, -1);
+		List<Long> attempts = mSender.getAttempts();
+		assertEquals(MAX_ATTEMPTS, attempts.size());
+		assertTrue(attempts.get(1) - attempts.get(0) >= BACKOFF - SLACK);
+		assertTrue(attempts.get(2) - attempts.get(1) >= 2 * BACKOFF - SLACK);
+	}
+
+	/**
+	 * Tests that a publish is dropped once the NRS rejected it too often.
+	 */
+	public void testRejectedPublishDropped() throws Exception {
+		mSender.setAnswer(Answer.REJECT);
+		mOutbox.start(mSender);
+		mOutbox.enqueue(createPublish(HASHES[0], null));
+
+		waitFor(MAX_ATTEMPTS, 0);
+		assertEquals(Long.valueOf(0), mOutbox.getStatistics().get("depth"));
+		assertEquals(Long.valueOf(MAX_ATTEMPTS), mOutbox.getStatistics().get("rejected"));
+		assertEquals(Long.valueOf(1), mOutbox.getStatistics().get("dropped"));
+		assertEquals(Long.valueOf(0), mOutbox.getStatistics().get("sent"));
+
+		// Nothing left to retry
+		Thread.sleep(2 * MAX_BACKOFF);
+		assertEquals(MAX_ATTEMPTS, mSender.getAttempts().size());
+	}
+
+	/**
+	 * Tests that an unreachable NRS backs off the whole queue without charging the publishes,
+	 * and that the queue drains once the NRS is back.
+	 */
+	public void testUnreachableBacksOffAndDrains() throws Exception {
+		mSender.setAnswer(Answer.UNREACHABLE);
+		mOutbox.start(mSender);
+		mOutbox.enqueue(createPublish(HASHES[0], null));
+
+		waitFor(2, -1);
+		List<Long> attempts = mSender.getAttempts();
+		assertTrue(attempts.get(1) - attempts.get(0) >= BACKOFF);
+
+		// Publishes made meanwhile wait for the queue
+		mOutbox.enqueue(createPublish(HASHES[1], null));
+		mOutbox.enqueue(createPublish(HASHES[2], null));
+		assertEquals(Long.valueOf(3), mOutbox.getStatistics().get("depth"));
+
+		// Well beyond the number of attempts a rejected publish gets
+		waitFor(MAX_ATTEMPTS + 1, -1);
+		assertEquals(Long.valueOf(0), mOutbox.getStatistics().get("rejected"));
+		assertEquals(Long.valueOf(0), mOutbox.getStatistics().get("dropped"));
+		assertEquals(Long.valueOf(3), mOutbox.getStatistics().get("depth"));
+
+		mSender.setAnswer(Answer.ACCEPT);
+		waitFor(0, 0);
+		assertEquals(Long.valueOf(0), mOutbox.getStatistics().get("depth"));
+		assertEquals(Long.valueOf(3), mOutbox.getStatistics().get("sent"));
+		assertEquals(Long.valueOf(0), mOutbox.getStatistics().get("dropped"));
+	}
+
+	/**
+	 * Waits until the sender was called often enough and the queue has the expected depth.
+	 *
+	 * @param attempts
+	 *      The least number of calls to the sender
+	 * @param depth
+	 *      The expected depth, -1 for any
+	 */
+	private void waitFor(int attempts, long depth) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			if (mSender.getAttempts().size() >= attempts
+					&& (depth < 0 || mOutbox.getStatistics().get("depth") == depth)) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		fail("Outbox did not get to " + attempts + " attempts and depth " + depth);
+	}
+
+	/**
+	 * Removes every publish from the queue.
+	 */
+	private void clearOutbox() {
+		for (PendingPublish publish : mDatabase.getDuePublishes(Long.MAX_VALUE,
+				Integer.MAX_VALUE)) {
+			mDatabase.deletePendingPublish(publish.getId());
+		}
+	}
+
+	/**
+	 * Creates a publish that has not been queued yet.
+	 *
+	 * @param hash
+	 *      The hash
+	 * @param locator
+	 *      The locator, may be null
+	 * @return
+	 *      The publish
+	 */
+	private PendingPublish createPublish(String hash, String locator) {
+		return new PendingPublish("sha-256", hash, "text/plain", null, locator, null);
+	}
+
+	/**
+	 * How the fake NRS answers.
+	 */
+	private enum Answer {
+		ACCEPT, REJECT, UNREACHABLE
+	}
+
+	/**
+	 * Sender recording when it was called and answering as told.
+	 */
+	private static class FakeSender implements NrsPublishOutbox.Sender {
+
+		/** Points in time (ms since epoch) the sender was called. */
+		private final List<Long> mAttempts = new ArrayList<Long>();
+
+		/** The answer to give. */
+		private volatile Answer mAnswer = Answer.ACCEPT;
+
+		@Override
+		public boolean send(PendingPublish publish) throws IOException {
+			synchronized (mAttempts) {
+				mAttempts.add(System.currentTimeMillis());
+			}
+			switch (mAnswer) {
+			case REJECT:
+				return false;
+			case UNREACHABLE:
+				throw new IOException("NRS unreachable");
+			default:
+				return true;
+			}
+		}
+
+		public void setAnswer(Answer answer) {
+			mAnswer = answer;
+		}
+
+		public List<Long> getAttempts() {
+			synchronized (mAttempts) {
+				return new ArrayList<Long>(mAttempts);
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package project.cs.netinfservice.netinf.node.nrs.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import project.cs.netinfservice.netinf.node.nrs.CachedResolution;
+import project.cs.netinfservice.netinf.node.nrs.NrsResolutionCache;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the in-memory part of the NRS resolution cache.
+ */
+public class NrsResolutionCacheTest extends AndroidTestCase {
+
+	/** The hash algorithm. */
+	private static final String HASH_ALG = "sha-256";
+
+	/** A hash. */
+	private static final String HASH = "ungWv48Bz-pBQUDeXa4iI7ADYaOWF3qctBD_YfIAFa0";
+
+	/** Maximum number of resolutions kept. */
+	private static final int SIZE = 16;
+
+	/** Time in ms a positive resolution is valid. */
+	private static final long TTL = 60000;
+
+	/** Time in ms a negative resolution is valid. */
+	private static final long NEGATIVE_TTL = 30000;
+
+	/** Time in ms a resolution is valid in the expiry test. */
+	private static final long SHORT_TTL = 50;
+
+	/** The locators returned by the NRS. */
+	private static final List<String> LOCATORS = Arrays.asList("nimacbt://00:11:22:33:44:55");
+
+	/** Tests that a resolution is returned until it is replaced. */
+	public void testPositiveHit() {
+		NrsResolutionCache cache = createCache(TTL, NEGATIVE_TTL);
+		assertNull(cache.get(HASH_ALG, HASH));
+
+		cache.put(HASH_ALG, HASH, "text/html", "{}", LOCATORS, null);
+		CachedResolution entry = cache.get(HASH_ALG, HASH);
+		assertNotNull(entry);
+		assertFalse(entry.isNegative());
+		assertEquals("text/html", entry.getContentType());
+		assertEquals(LOCATORS, entry.getLocators());
+		assertNull(cache.get("sha-256-32", HASH));
+
+		assertEquals(Long.valueOf(1), cache.getStatistics().get("hits"));
+		assertEquals(Long.valueOf(2), cache.getStatistics().get("misses"));
+	}
+
+	/** Tests that an object the NRS did not know is remembered as such. */
+	public void testNegativeHit() {
+		NrsResolutionCache cache = createCache(TTL, NEGATIVE_TTL);
+		cache.putNegative(HASH_ALG, HASH);
+
+		CachedResolution entry = cache.get(HASH_ALG, HASH);
+		assertNotNull(entry);
+		assertTrue(entry.isNegative());
+		assertTrue(entry.getExpires() <= System.currentTimeMillis() + NEGATIVE_TTL);
+		assertEquals(Long.valueOf(1), cache.getStatistics().get("negative_hits"));
+
+		// A later resolution replaces the negative one
+		cache.put(HASH_ALG, HASH, null, null, LOCATORS, null);
+		assertFalse(cache.get(HASH_ALG, HASH).isNegative());
+	}
+
+	/** Tests that positive and negative resolutions are dropped once they expire. */
+	public void testExpiry() throws InterruptedException {
+		NrsResolutionCache cache = createCache(SHORT_TTL, SHORT_TTL);
+		cache.put(HASH_ALG, HASH, null, null, LOCATORS, null);
+		cache.putNegative(HASH_ALG, "111");
+		assertNotNull(cache.get(HASH_ALG, HASH));
+		assertNotNull(cache.get(HASH_ALG, "111"));
+
+		Thread.sleep(2 * SHORT_TTL);
+		assertNull(cache.get(HASH_ALG, HASH));
+		assertNull(cache.get(HASH_ALG, "111"));
+		assertEquals(Long.valueOf(2), cache.getStatistics().get("expirations"));
+		assertEquals(Long.valueOf(0), cache.getStatistics().get("size"));
+	}
+
+	/** Tests that publishing an object forgets what the NRS said about it before. */
+	public void testInvalidate() {
+		NrsResolutionCache cache = createCache(TTL, NEGATIVE_TTL);
+		cache.putNegative(HASH_ALG, HASH);
+		cache.put(HASH_ALG, "111", null, null, LOCATORS, null);
+
+		cache.invalidate(HASH_ALG, HASH);
+		assertNull(cache.get(HASH_ALG, HASH));
+		assertNotNull(cache.get(HASH_ALG, "111"));
+	}
+
+	/**
+	 * Creates a cache that keeps the resolutions in memory only.
+	 *
+	 * @param ttl
+	 *      Time in ms a positive resolution is valid
+	 * @param negativeTtl
+	 *      Time in ms a negative resolution is valid
+	 * @return
+	 *      The cache
+	 */
+	private static NrsResolutionCache createCache(long ttl, long negativeTtl) {
+		return new NrsResolutionCache(SIZE, ttl, negativeTtl, false, null);
+	}
+}
@@ -0,0 +1,155 @@
+package project.cs.netinfservice.netinf.node.resolution.test;
+
+import java.util.List;
+import java.util.Map;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.identity.ResolutionServiceIdentityObject;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+import project.cs.netinfservice.netinf.node.resolution.AdaptiveResolutionServiceSelector.Operation;
+import project.cs.netinfservice.netinf.node.resolution.AdaptiveResolutionServiceSelector;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the AdaptiveResolutionServiceSelector.
+ */
+public class AdaptiveResolutionServiceSelectorTest extends AndroidTestCase {
+
+	/** Latency in ms assumed before a service has been observed. */
+	private static final long INITIAL_LATENCY = 100;
+
+	/** Longest expected time in ms of a service that is not skipped. */
+	private static final long MAX_EXPECTED_TIME = 1000;
+
+	/** Time in ms after which a skipped service is tried again. */
+	private static final long PROBE_INTERVAL = 200;
+
+	/** Number of requests recorded to move the averages. */
+	private static final int REQUESTS = 20;
+
+	/** The selector tested. */
+	private AdaptiveResolutionServiceSelector mSelector;
+
+	/** The local resolution service. */
+	private ResolutionServiceIdentityObject mLocal;
+
+	/** The name resolution service. */
+	private ResolutionServiceIdentityObject mNrs;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		DatamodelFactory factory = new DatamodelFactoryImpl();
+		mNrs = createIdentity(factory, "nrs", 42);
+		mLocal = createIdentity(factory, "local", 77);
+
+		mSelector = new AdaptiveResolutionServiceSelector(INITIAL_LATENCY, MAX_EXPECTED_TIME,
+				PROBE_INTERVAL);
+		mSelector.addResolutionService(mNrs);
+		mSelector.addResolutionService(mLocal);
+	}
+
+	/** Tests that the priorities decide before anything has been observed. */
+	public void testPriorityOrder() {
+		assertOrder(mSelector.getRSForGet(), mLocal, mNrs);
+		assertOrder(mSelector.getRSForPut(), mLocal, mNrs);
+		assertOrder(mSelector.getRSForDelete(), mLocal, mNrs);
+	}
+
+	/** Tests that a service answering sooner moves to the front, per kind of request. */
+	public void testFasterServiceFirst() {
+		for (int i = 0; i < REQUESTS; i++) {
+			mSelector.record(mLocal, Operation.GET, 50, false);
+			mSelector.record(mNrs, Operation.GET, 20, true);
+		}
+
+		assertOrder(mSelector.getRSForGet(), mNrs, mLocal);
+		assertOrder(mSelector.getRSForPut(), mLocal, mNrs);
+	}
+
+	/** Tests that a cancelled request raises the latency of the service. */
+	public void testAbortedRaisesLatency() {
+		mSelector.record(mNrs, Operation.GET, 10, true);
+		for (int i = 0; i < REQUESTS; i++) {
+			mSelector.recordAborted(mNrs, Operation.GET, 500);
+		}
+
+		assertOrder(mSelector.getRSForGet(), mLocal, mNrs);
+		Map<String, Long> statistics = mSelector.getStatistics().get("nrs.get");
+		assertEquals(REQUESTS, statistics.get("aborted").longValue());
+		assertTrue(statistics.get("latency") > 400);
+	}
+
+	/** Tests that a service expected to take too long is skipped and probed again later. */
+	public void testSlowServiceSkipped() throws Exception {
+		for (int i = 0; i < REQUESTS; i++) {
+			mSelector.record(mNrs, Operation.GET, 900, false);
+		}
+
+		// Skipped for gets, still used for puts
+		assertOrder(mSelector.getRSForGet(), mLocal);
+		assertOrder(mSelector.getRSForPut(), mLocal, mNrs);
+
+		// One request is let through once the probe interval is over
+		Thread.sleep(PROBE_INTERVAL + 50);
+		assertOrder(mSelector.getRSForGet(), mLocal, mNrs);
+		assertOrder(mSelector.getRSForGet(), mLocal);
+	}
+
+	/** Tests that the best service is never skipped. */
+	public void testBestNeverSkipped() {
+		for (int i = 0; i < REQUESTS; i++) {
+			mSelector.record(mLocal, Operation.GET, 900, false);
+			mSelector.record(mNrs, Operation.GET, 950, false);
+		}
+
+		assertOrder(mSelector.getRSForGet(), mLocal);
+	}
+
+	/** Tests that a removed service is no longer selected. */
+	public void testRemove() {
+		mSelector.removeResolutionService(mLocal);
+		mSelector.record(mLocal, Operation.GET, 10, true);
+
+		assertOrder(mSelector.getRSForGet(), mNrs);
+		assertNull(mSelector.getStatistics().get("local.get"));
+	}
+
+	/**
+	 * Checks the order of the selected services.
+	 *
+	 * @param selected
+	 *      The selected services
+	 * @param expected
+	 *      The expected services in order
+	 */
+	private void assertOrder(List<ResolutionServiceIdentityObject> selected,
+			ResolutionServiceIdentityObject... expected) {
+		assertEquals(expected.length, selected.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertSame(expected[i], selected.get(i));
+		}
+	}
+
+	/**
+	 * Creates the identity of a resolution service.
+	 *
+	 * @param factory
+	 *      Creates the identity
+	 * @param name
+	 *      The name
+	 * @param priority
+	 *      The priority
+	 * @return
+	 *      The identity
+	 */
+	private ResolutionServiceIdentityObject createIdentity(DatamodelFactory factory,
+			String name, int priority) {
+		ResolutionServiceIdentityObject identity =
+				factory.createDatamodelObject(ResolutionServiceIdentityObject.class);
+		identity.setName(name);
+		identity.setDefaultPriority(priority);
+		identity.setDescription(name);
+		return identity;
+	}
+}
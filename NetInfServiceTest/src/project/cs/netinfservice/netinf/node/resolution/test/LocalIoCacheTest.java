@@ -0,0 +1,131 @@
+package project.cs.netinfservice.netinf.node.resolution.test;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+import project.cs.netinfservice.netinf.node.resolution.LocalIoCache;
+import project.cs.netinfservice.util.IOBuilder;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the byte bounded cache of local information objects.
+ */
+public class LocalIoCacheTest extends AndroidTestCase {
+
+	/** Large enough for any object of the tests. */
+	private static final int LARGE = 1024 * 1024;
+
+	/** Creates the information objects. */
+	private DatamodelFactory mFactory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFactory = new DatamodelFactoryImpl();
+	}
+
+	/** Tests that the estimate grows with the locators of an object. */
+	public void testSizeEstimate() {
+		long small = sizeOf(createIo("111", 1));
+		long large = sizeOf(createIo("111", 10));
+
+		assertTrue(small > 0);
+		assertTrue("Expected " + large + " > " + small, large > small);
+	}
+
+	/** Tests that the least recently used objects are evicted past the byte limit. */
+	public void testEvictionPastByteLimit() {
+		long size = sizeOf(createIo("111", 1));
+		LocalIoCache cache = new LocalIoCache((int) (2.5 * size));
+
+		cache.put("111", createIo("111", 1));
+		cache.put("222", createIo("222", 1));
+		assertNotNull(cache.get("111"));
+		cache.put("333", createIo("333", 1));
+
+		// 222 was used least recently
+		assertNull(cache.get("222"));
+		assertNotNull(cache.get("111"));
+		assertNotNull(cache.get("333"));
+		assertEquals(Long.valueOf(1), cache.getStatistics().get("evictions"));
+		assertEquals(Long.valueOf(2 * size), cache.getStatistics().get("size_bytes"));
+
+		// An object larger than the whole cache is not kept
+		cache.put("444", createIo("444", 100));
+		assertNull(cache.get("444"));
+		assertTrue(cache.getStatistics().get("size_bytes") <= 2.5 * size);
+	}
+
+	/** Tests that neither the stored nor a returned object changes the cached one. */
+	public void testIsolation() {
+		LocalIoCache cache = new LocalIoCache(LARGE);
+		InformationObject io = createIo("111", 1);
+		cache.put("111", io);
+
+		// Change the stored object
+		io.getIdentifier().getIdentifierLabel(IOBuilder.HASH_LABEL).setLabelValue("999");
+		assertEquals("111", getHash(cache.get("111")));
+
+		// Change a returned object
+		InformationObject returned = cache.get("111");
+		returned.getIdentifier().getIdentifierLabel(IOBuilder.HASH_LABEL).setLabelValue("999");
+		returned.removeAttribute(returned.getAttributes().get(0));
+		InformationObject again = cache.get("111");
+		assertEquals("111", getHash(again));
+		assertEquals(1, again.getAttributes().size());
+	}
+
+	/** Tests that a removed object has to be read again. */
+	public void testRemove() {
+		LocalIoCache cache = new LocalIoCache(LARGE);
+		cache.put("111", createIo("111", 1));
+		cache.remove("111");
+
+		assertNull(cache.get("111"));
+		assertEquals(Long.valueOf(0), cache.getStatistics().get("size_bytes"));
+	}
+
+	/**
+	 * Gets the estimated size of an object by caching it alone.
+	 *
+	 * @param io
+	 *      The information object
+	 * @return
+	 *      The estimated size in bytes
+	 */
+	private static long sizeOf(InformationObject io) {
+		LocalIoCache cache = new LocalIoCache(LARGE);
+		cache.put("111", io);
+		return cache.getStatistics().get("size_bytes");
+	}
+
+	/**
+	 * Gets the hash of an object.
+	 *
+	 * @param io
+	 *      The information object
+	 * @return
+	 *      The hash
+	 */
+	private static String getHash(InformationObject io) {
+		return io.getIdentifier().getIdentifierLabel(IOBuilder.HASH_LABEL).getLabelValue();
+	}
+
+	/**
+	 * Creates an information object with Bluetooth locators.
+	 *
+	 * @param hash
+	 *      The hash
+	 * @param locators
+	 *      The number of locators
+	 * @return
+	 *      The information object
+	 */
+	private InformationObject createIo(String hash, int locators) {
+		IOBuilder builder = new IOBuilder(mFactory).setHash(hash).setHashAlgorithm("sha-256");
+		for (int i = 0; i < locators; i++) {
+			builder.addBluetoothLocator(String.format("00:11:22:33:44:%02d", i));
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,215 @@
+package project.cs.netinfservice.netinf.node.resolution.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+
+import org.apache.commons.io.FileUtils;
+
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.util.IOBuilder;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Tests that the local presence index knows which objects are stored.
+ */
+public class LocalPresenceIndexTest extends AndroidTestCase {
+
+	/** Prefix of the test database. */
+	private static final String TEST_FILE_PREFIX = "index_test_";
+
+	/** Hash of the object stored in the database. */
+	private static final String DATABASE_HASH = "111";
+
+	/** Hash of the object stored as a file. */
+	private static final String FILE_HASH = "222";
+
+	/** Content type of the object stored in the database. */
+	private static final String CONTENT_TYPE = "text/plain";
+
+	/** Number of hashes the Bloom filter is sized for, small so that it fills up. */
+	private static final int EXPECTED_SIZE = 16;
+
+	/** Longest time in ms to wait for the index to be built. */
+	private static final long TIMEOUT = 5000;
+
+	/** The root of the store. */
+	private File mRoot;
+
+	/** The store holding the files. */
+	private ContentStore mStore;
+
+	/** The database holding the objects. */
+	private IODatabase mDatabase;
+
+	/** Creates the database. */
+	private IODatabaseFactory mDatabaseFactory;
+
+	/** Creates the objects. */
+	private DatamodelFactory mDatamodelFactory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Context context = new RenamingDelegatingContext(getContext(), TEST_FILE_PREFIX);
+		mDatamodelFactory = new DatamodelFactoryImpl();
+		mDatabase = new IODatabase(mDatamodelFactory, context);
+		mDatabase.deleteIO(DATABASE_HASH);
+		mDatabaseFactory = new IODatabaseFactory() {
+			@Override
+			public IODatabase create(Context context) {
+				return mDatabase;
+			}
+		};
+
+		mRoot = File.createTempFile("index", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mStore = new ContentStore(mRoot, 0, 64 * 1024, "", 64);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDatabase.deleteIO(DATABASE_HASH);
+		mDatabase.close();
+		mStore.getPacks().close();
+		FileUtils.deleteDirectory(mRoot);
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that added objects are found with their content type and removed ones are not.
+	 */
+	public void testAddRemove() throws Exception {
+		LocalPresenceIndex index = createIndex();
+
+		assertFalse(index.mightContain(DATABASE_HASH));
+		assertNull(index.getContentType(DATABASE_HASH));
+
+		index.add(DATABASE_HASH, CONTENT_TYPE);
+		assertTrue(index.mightContain(DATABASE_HASH));
+		assertEquals(CONTENT_TYPE, index.getContentType(DATABASE_HASH));
+
+		// Adding it again without a content type keeps the known one
+		index.add(DATABASE_HASH, null);
+		assertEquals(CONTENT_TYPE, index.getContentType(DATABASE_HASH));
+
+		// Stored, but with an unknown content type
+		index.add(FILE_HASH, null);
+		assertTrue(index.mightContain(FILE_HASH));
+		assertNull(index.getContentType(FILE_HASH));
+
+		index.remove(DATABASE_HASH);
+		assertFalse(index.mightContain(DATABASE_HASH));
+		assertNull(index.getContentType(DATABASE_HASH));
+		assertTrue(index.mightContain(FILE_HASH));
+	}
+
+	/**
+	 * Tests that the index is built from the database and the shared folder, and that
+	 * building it again forgets the objects that are gone.
+	 */
+	public void testReload() throws Exception {
+		mDatabase.addIO(new IOBuilder(mDatamodelFactory)
+				.setHash(DATABASE_HASH)
+				.setHashAlgorithm("sha-256")
+				.setContentType(CONTENT_TYPE)
+				.build());
+		mStore.write(FILE_HASH, new byte[100]);
+
+		LocalPresenceIndex index = createIndex();
+		assertTrue(index.mightContain(DATABASE_HASH));
+		assertEquals(CONTENT_TYPE, index.getContentType(DATABASE_HASH));
+		assertTrue(index.mightContain(FILE_HASH));
+		assertNull(index.getContentType(FILE_HASH));
+
+		// Cleared behind the back of the index
+		mDatabase.deleteIO(DATABASE_HASH);
+		mStore.remove(FILE_HASH);
+		assertTrue(index.mightContain(DATABASE_HASH));
+
+		index.reload();
+		waitForLoaded(index);
+		assertFalse(index.mightContain(DATABASE_HASH));
+		assertNull(index.getContentType(DATABASE_HASH));
+		assertFalse(index.mightContain(FILE_HASH));
+		assertEquals(Long.valueOf(0), index.getStatistics().get("size"));
+	}
+
+	/**
+	 * Tests that every object still stored is found after others were evicted, also when
+	 * the Bloom filter has been rebuilt meanwhile.
+	 */
+	public void testNoFalseNegativesAfterEviction() throws Exception {
+		LocalPresenceIndex index = createIndex();
+
+		List<String> hashes = new ArrayList<String>();
+		for (int i = 0; i < 10 * EXPECTED_SIZE; i++) {
+			String hash = "hash" + i;
+			hashes.add(hash);
+			index.add(hash, CONTENT_TYPE);
+		}
+		assertTrue(index.getStatistics().get("filter_capacity") > EXPECTED_SIZE);
+
+		// Evict every other object
+		List<String> kept = new ArrayList<String>();
+		for (int i = 0; i < hashes.size(); i++) {
+			if (i % 2 == 0) {
+				index.remove(hashes.get(i));
+			} else {
+				kept.add(hashes.get(i));
+			}
+		}
+
+		// Fill the filter up again so that it is rebuilt without the evicted objects
+		for (int i = 0; i < 10 * EXPECTED_SIZE; i++) {
+			String hash = "more" + i;
+			kept.add(hash);
+			index.add(hash, CONTENT_TYPE);
+		}
+
+		for (String hash : kept) {
+			assertTrue(hash, index.mightContain(hash));
+			assertEquals(hash, CONTENT_TYPE, index.getContentType(hash));
+		}
+		for (int i = 0; i < hashes.size(); i += 2) {
+			assertFalse(hashes.get(i), index.mightContain(hashes.get(i)));
+		}
+	}
+
+	/**
+	 * Creates the index and waits until it has been built.
+	 *
+	 * @return
+	 *      The index
+	 */
+	private LocalPresenceIndex createIndex() throws InterruptedException {
+		LocalPresenceIndex index = new LocalPresenceIndex(EXPECTED_SIZE, 0.01, mStore,
+				mDatabaseFactory);
+		waitForLoaded(index);
+		return index;
+	}
+
+	/**
+	 * Waits until the index has been built.
+	 *
+	 * @param index
+	 *      The index
+	 */
+	private void waitForLoaded(LocalPresenceIndex index) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (index.getStatistics().get("loaded") == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(Long.valueOf(1), index.getStatistics().get("loaded"));
+	}
+}
@@ -0,0 +1,264 @@
+package project.cs.netinfservice.netinf.node.resolution.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.attribute.Attribute;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.common.datamodel.SailDefinedAttributeIdentification;
+import project.cs.netinfservice.netinf.common.datamodel.SailDefinedLabelName;
+import project.cs.netinfservice.netinf.node.resolution.LocalResolutionService;
+import project.cs.netinfservice.netinf.node.resolution.LocalWriteThrough;
+import project.cs.netinfservice.util.IOBuilder;
+import project.cs.netinfutilities.UProperties;
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that objects resolved elsewhere are recorded in the local resolution service.
+ */
+public class LocalWriteThroughTest extends AndroidTestCase {
+
+	/** Hash of the resolved object. */
+	private static final String HASH = "111";
+
+	/** Path of the stored file. */
+	private static final String FILE_PATH = "/sdcard/shared/111";
+
+	/** Size of the stored file. */
+	private static final long FILE_SIZE = 1234;
+
+	/** Longest time in ms to wait for the writer. */
+	private static final long TIMEOUT = 5000;
+
+	/** Meta-data label for the file path. */
+	private static final String FILEPATH_LABEL =
+			UProperties.INSTANCE.getPropertyWithName("metadata.filepath");
+
+	/** Meta-data label for the file size. */
+	private static final String FILESIZE_LABEL =
+			UProperties.INSTANCE.getPropertyWithName("metadata.filesize");
+
+	/** Creates the information objects. */
+	private DatamodelFactory mDatamodelFactory;
+
+	/** Records what is put instead of writing the database. */
+	private RecordingResolutionService mResolutionService;
+
+	/** The write-through stage under test. */
+	private LocalWriteThrough mWriteThrough;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDatamodelFactory = new DatamodelFactoryImpl();
+		mResolutionService = new RecordingResolutionService();
+		mWriteThrough = new LocalWriteThrough(mResolutionService, mDatamodelFactory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mResolutionService.mRelease.countDown();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that the recorded object keeps the resolved labels, points to the stored file
+	 * and leaves the resolved object alone.
+	 */
+	public void testRecordsStoredObject() throws Exception {
+		mResolutionService.mRelease.countDown();
+		InformationObject resolved = createResolvedIo(HASH);
+		String resolvedMetadata = getMetadata(resolved);
+
+		mWriteThrough.record(resolved, FILE_PATH, FILE_SIZE);
+		waitFor("recorded", 1);
+
+		assertEquals(1, mResolutionService.mPut.size());
+		InformationObject recorded = mResolutionService.mPut.get(0);
+		assertEquals(HASH, getLabel(recorded, SailDefinedLabelName.HASH_CONTENT));
+		assertEquals("sha-256", getLabel(recorded, SailDefinedLabelName.HASH_ALG));
+		assertEquals("text/html", getLabel(recorded, SailDefinedLabelName.CONTENT_TYPE));
+
+		JSONObject meta = (JSONObject) ((JSONObject) JSONValue.parse(
+				getMetadata(recorded))).get("meta");
+		assertEquals(FILE_PATH, meta.get(FILEPATH_LABEL));
+		assertEquals(String.valueOf(FILE_SIZE), meta.get(FILESIZE_LABEL));
+		assertNotNull(meta.get(UProperties.INSTANCE.getPropertyWithName("metadata.url")));
+
+		Attribute locator = recorded.getSingleAttribute(
+				SailDefinedAttributeIdentification.FILE_PATH.getURI());
+		assertNotNull(locator);
+		assertEquals(FILE_PATH, locator.getValue(String.class));
+
+		// The resolved object is still handed to the requester as it was
+		assertEquals(resolvedMetadata, getMetadata(resolved));
+		assertNull(resolved.getSingleAttribute(
+				SailDefinedAttributeIdentification.FILE_PATH.getURI()));
+	}
+
+	/**
+	 * Tests that an object already waiting to be recorded is not queued again, and is
+	 * recorded again once the first write is done.
+	 */
+	public void testCoalescesPendingHashes() throws Exception {
+		mWriteThrough.record(createResolvedIo(HASH), FILE_PATH, FILE_SIZE);
+		assertTrue(mResolutionService.mEntered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		mWriteThrough.record(createResolvedIo(HASH), FILE_PATH, FILE_SIZE);
+		mWriteThrough.record(createResolvedIo(HASH), FILE_PATH, FILE_SIZE);
+		mWriteThrough.record(createResolvedIo("222"), FILE_PATH, FILE_SIZE);
+
+		assertEquals(Long.valueOf(2), mWriteThrough.getStatistics().get("coalesced"));
+		assertEquals(Long.valueOf(2), mWriteThrough.getStatistics().get("pending"));
+
+		mResolutionService.mRelease.countDown();
+		waitFor("recorded", 2);
+		assertEquals(Long.valueOf(0), mWriteThrough.getStatistics().get("pending"));
+
+		mWriteThrough.record(createResolvedIo(HASH), FILE_PATH, FILE_SIZE);
+		waitFor("recorded", 3);
+		assertEquals(Long.valueOf(2), mWriteThrough.getStatistics().get("coalesced"));
+		assertEquals(3, mResolutionService.mPut.size());
+	}
+
+	/** Tests that a failed write is counted and does not keep the hash pending. */
+	public void testFailedRecord() throws Exception {
+		mResolutionService.mRelease.countDown();
+		mResolutionService.mFail = true;
+		mWriteThrough.record(createResolvedIo(HASH), FILE_PATH, FILE_SIZE);
+		waitFor("failed", 1);
+		assertEquals(Long.valueOf(0), mWriteThrough.getStatistics().get("pending"));
+
+		mResolutionService.mFail = false;
+		mWriteThrough.record(createResolvedIo(HASH), FILE_PATH, FILE_SIZE);
+		waitFor("recorded", 1);
+	}
+
+	/** Tests that objects without a hash are not recorded. */
+	public void testWithoutHash() throws Exception {
+		mResolutionService.mRelease.countDown();
+		InformationObject io = new IOBuilder(mDatamodelFactory)
+				.setHashAlgorithm("sha-256")
+				.build();
+		mWriteThrough.record(io, FILE_PATH, FILE_SIZE);
+
+		assertEquals(Long.valueOf(1), mWriteThrough.getStatistics().get("coalesced"));
+		assertEquals(Long.valueOf(0), mWriteThrough.getStatistics().get("pending"));
+		assertTrue(mResolutionService.mPut.isEmpty());
+	}
+
+	/**
+	 * Waits until a counter of the write-through stage reaches a value and nothing is
+	 * pending anymore.
+	 *
+	 * @param name
+	 *      The counter
+	 * @param value
+	 *      The value
+	 */
+	private void waitFor(String name, long value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while ((mWriteThrough.getStatistics().get(name) < value
+				|| mWriteThrough.getStatistics().get("pending") > 0)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(Long.valueOf(value), mWriteThrough.getStatistics().get(name));
+	}
+
+	/**
+	 * Creates an object as resolved by the NRS.
+	 *
+	 * @param hash
+	 *      The content hash
+	 * @return
+	 *      The information object
+	 */
+	private InformationObject createResolvedIo(String hash) {
+		return new IOBuilder(mDatamodelFactory)
+				.setHash(hash)
+				.setHashAlgorithm("sha-256")
+				.setContentType("text/html")
+				.addMetaData(UProperties.INSTANCE.getPropertyWithName("metadata.url"),
+						"http://www.example.com/")
+				.build();
+	}
+
+	/**
+	 * Gets the meta-data label of an object.
+	 *
+	 * @param io
+	 *      The information object
+	 * @return
+	 *      The meta-data as JSON
+	 */
+	private String getMetadata(InformationObject io) {
+		return getLabel(io, SailDefinedLabelName.META_DATA);
+	}
+
+	/**
+	 * Gets the value of a label of an object.
+	 *
+	 * @param io
+	 *      The information object
+	 * @param labelName
+	 *      The label
+	 * @return
+	 *      The value
+	 */
+	private String getLabel(InformationObject io, SailDefinedLabelName labelName) {
+		return io.getIdentifier().getIdentifierLabel(labelName.getLabelName()).getLabelValue();
+	}
+
+	/**
+	 * A local resolution service without a database, it remembers what is put.
+	 */
+	private static class RecordingResolutionService extends LocalResolutionService {
+		/** The objects put, in order. */
+		private final List<InformationObject> mPut =
+				new CopyOnWriteArrayList<InformationObject>();
+
+		/** Counted down once the first put started. */
+		private final CountDownLatch mEntered = new CountDownLatch(1);
+
+		/** Puts wait until this is counted down. */
+		private final CountDownLatch mRelease = new CountDownLatch(1);
+
+		/** True if puts fail. */
+		private volatile boolean mFail;
+
+		/** Creates the service. */
+		RecordingResolutionService() {
+			super(new IODatabaseFactory() {
+				@Override
+				public IODatabase create(Context context) {
+					return null;
+				}
+			}, new DatamodelFactoryImpl(), null, null, null);
+		}
+
+		@Override
+		public void put(InformationObject io) {
+			mEntered.countDown();
+			try {
+				mRelease.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (mFail) {
+				throw new IllegalStateException("Database not available");
+			}
+			mPut.add(io);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package project.cs.netinfservice.netinf.node.resolution.test;
+
+import java.util.List;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.Identifier;
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.identity.ResolutionServiceIdentityObject;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+import project.cs.netinfservice.netinf.node.resolution.AbstractResolutionServiceWithoutId;
+import project.cs.netinfservice.netinf.node.resolution.AdaptiveResolutionServiceSelector;
+import project.cs.netinfservice.netinf.node.resolution.RacingResolutionController;
+import project.cs.netinfservice.util.IOBuilder;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the RacingResolutionController.
+ */
+public class RacingResolutionControllerTest extends AndroidTestCase {
+
+	/** Priority of the local resolution service. */
+	private static final int LOCAL_PRIORITY = 77;
+
+	/** Priority of the name resolution service. */
+	private static final int NRS_PRIORITY = 42;
+
+	/** Head start of the local resolution service in ms. */
+	private static final long HEAD_START = 200;
+
+	/** Delay of a slow resolution service in ms. */
+	private static final long SLOW = 2000;
+
+	/** Latency in ms assumed before a service has been observed. */
+	private static final long INITIAL_LATENCY = 100;
+
+	/** Longest expected time in ms of a service that is not skipped. */
+	private static final long MAX_EXPECTED_TIME = 10000;
+
+	/** Time in ms after which a skipped service is tried again. */
+	private static final long PROBE_INTERVAL = 30000;
+
+	/** Creates the information objects. */
+	private DatamodelFactory mFactory;
+
+	/** The identifier resolved. */
+	private Identifier mIdentifier;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFactory = new DatamodelFactoryImpl();
+		mIdentifier = mFactory.createIdentifier();
+	}
+
+	/** Tests that a local object with a file is returned before the NRS is asked. */
+	public void testLocalFileWinsWithoutNrs() {
+		FakeService local = new FakeService("local", LOCAL_PRIORITY, 0, createIo(true));
+		FakeService nrs = new FakeService("nrs", NRS_PRIORITY, SLOW, createIo(true));
+		RacingResolutionController controller = createController(true, local, nrs);
+
+		long start = System.currentTimeMillis();
+		assertSame(local.mResult, controller.get(mIdentifier));
+		assertTrue(System.currentTimeMillis() - start < SLOW / 2);
+		assertFalse(nrs.mStarted);
+	}
+
+	/** Tests that an object with a file beats an earlier one with bluetooth locators only. */
+	public void testFileLocatorBeatsBluetooth() throws Exception {
+		FakeService local = new FakeService("local", LOCAL_PRIORITY, 0, createIo(false));
+		FakeService nrs = new FakeService("nrs", NRS_PRIORITY, 100, createIo(true));
+		RacingResolutionController controller = createController(true, local, nrs);
+
+		assertSame(nrs.mResult, controller.get(mIdentifier));
+	}
+
+	/** Tests that a slow local service does not hold up the NRS and is cancelled. */
+	public void testSlowLocalIsCancelled() throws Exception {
+		FakeService local = new FakeService("local", LOCAL_PRIORITY, SLOW, createIo(true));
+		FakeService nrs = new FakeService("nrs", NRS_PRIORITY, 0, createIo(true));
+		RacingResolutionController controller = createController(true, local, nrs);
+
+		long start = System.currentTimeMillis();
+		assertSame(nrs.mResult, controller.get(mIdentifier));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed >= HEAD_START);
+		assertTrue(elapsed < SLOW / 2);
+
+		// The local query is interrupted
+		Thread.sleep(100);
+		assertTrue(local.mInterrupted);
+	}
+
+	/** Tests that an object with bluetooth locators only is returned if nothing better is found. */
+	public void testBluetoothOnly() {
+		FakeService local = new FakeService("local", LOCAL_PRIORITY, 0, null);
+		FakeService nrs = new FakeService("nrs", NRS_PRIORITY, 100, createIo(false));
+		RacingResolutionController controller = createController(true, local, nrs);
+
+		assertSame(nrs.mResult, controller.get(mIdentifier));
+	}
+
+	/** Tests that nothing is returned if no service finds the object. */
+	public void testNotFound() {
+		FakeService local = new FakeService("local", LOCAL_PRIORITY, 0, null);
+		FakeService nrs = new FakeService("nrs", NRS_PRIORITY, 0, null);
+		RacingResolutionController controller = createController(true, local, nrs);
+
+		assertNull(controller.get(mIdentifier));
+		assertTrue(nrs.mStarted);
+	}
+
+	/** Tests that the services are asked in priority order if racing is turned off. */
+	public void testSequential() {
+		FakeService local = new FakeService("local", LOCAL_PRIORITY, 0, createIo(false));
+		FakeService nrs = new FakeService("nrs", NRS_PRIORITY, 0, createIo(true));
+		RacingResolutionController controller = createController(false, local, nrs);
+
+		assertSame(local.mResult, controller.get(mIdentifier));
+		assertFalse(nrs.mStarted);
+	}
+
+	/**
+	 * Creates a controller with resolution services.
+	 *
+	 * @param race
+	 *      True if the services are queried concurrently
+	 * @param services
+	 *      The resolution services
+	 * @return
+	 *      The controller
+	 */
+	private RacingResolutionController createController(boolean race,
+			FakeService... services) {
+		RacingResolutionController controller = new RacingResolutionController(
+				new AdaptiveResolutionServiceSelector(INITIAL_LATENCY, MAX_EXPECTED_TIME,
+						PROBE_INTERVAL), race, HEAD_START);
+		for (FakeService service : services) {
+			controller.addResolutionService(service);
+		}
+		return controller;
+	}
+
+	/**
+	 * Creates an information object.
+	 *
+	 * @param withFile
+	 *      True if the object has a file locator, otherwise a bluetooth locator
+	 * @return
+	 *      The information object
+	 */
+	private InformationObject createIo(boolean withFile) {
+		IOBuilder builder = new IOBuilder(mFactory).setHash("111").setHashAlgorithm("sha-256");
+		if (withFile) {
+			builder.addFilePathLocator("/sdcard/DCIM/Shared/111");
+		} else {
+			builder.addBluetoothLocator("00:11:22:33:44:55");
+		}
+		return builder.build();
+	}
+
+	/**
+	 * A resolution service answering after a delay.
+	 */
+	private class FakeService extends AbstractResolutionServiceWithoutId {
+
+		/** The name. */
+		private final String mName;
+
+		/** The priority. */
+		private final int mPriority;
+
+		/** Time in ms until the result is returned. */
+		private final long mDelay;
+
+		/** The result. */
+		private final InformationObject mResult;
+
+		/** True once the service was queried. */
+		private volatile boolean mStarted;
+
+		/** True if the query was interrupted. */
+		private volatile boolean mInterrupted;
+
+		/**
+		 * Creates a new fake service.
+		 *
+		 * @param name
+		 *      The name
+		 * @param priority
+		 *      The priority
+		 * @param delay
+		 *      Time in ms until the result is returned
+		 * @param result
+		 *      The result
+		 */
+		public FakeService(String name, int priority, long delay, InformationObject result) {
+			mName = name;
+			mPriority = priority;
+			mDelay = delay;
+			mResult = result;
+		}
+
+		@Override
+		public InformationObject get(Identifier identifier) {
+			mStarted = true;
+			try {
+				Thread.sleep(mDelay);
+			} catch (InterruptedException e) {
+				mInterrupted = true;
+				return null;
+			}
+			return mResult;
+		}
+
+		@Override
+		public List<Identifier> getAllVersions(Identifier identifier) {
+			return null;
+		}
+
+		@Override
+		public void put(InformationObject io) {
+		}
+
+		@Override
+		public void delete(Identifier identifier) {
+		}
+
+		@Override
+		public String describe() {
+			return mName;
+		}
+
+		@Override
+		protected ResolutionServiceIdentityObject createIdentityObject() {
+			ResolutionServiceIdentityObject identity =
+					mFactory.createDatamodelObject(ResolutionServiceIdentityObject.class);
+			identity.setName(mName);
+			identity.setDefaultPriority(mPriority);
+			identity.setDescription(mName);
+			return identity;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package project.cs.netinfservice.netinf.node.store.test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import netinf.common.datamodel.DatamodelFactory;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+
+import org.apache.commons.io.FileUtils;
+
+import project.cs.netinfservice.database.IODatabase;
+import project.cs.netinfservice.database.IODatabaseFactory;
+import project.cs.netinfservice.netinf.node.nrs.NrsResolutionCache;
+import project.cs.netinfservice.netinf.node.resolution.LocalIoCache;
+import project.cs.netinfservice.netinf.node.resolution.LocalPresenceIndex;
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.ContentStoreManager;
+import project.cs.netinfservice.netinf.node.store.LruEvictionPolicy;
+import project.cs.netinfservice.netinf.node.store.StoredObject;
+import project.cs.netinfservice.util.IOBuilder;
+import project.cs.netinfutilities.UProperties;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Tests that the content store manager keeps the shared folder within its quota.
+ */
+public class ContentStoreManagerTest extends AndroidTestCase {
+
+	/** Prefix of the test database. */
+	private static final String TEST_FILE_PREFIX = "store_test_";
+
+	/** Size of each stored object in bytes. */
+	private static final int OBJECT_SIZE = 1000;
+
+	/** Quota in bytes, one object less than stored. */
+	private static final long QUOTA = 3 * OBJECT_SIZE;
+
+	/** The stored objects, oldest first. */
+	private static final String[] HASHES = {"111", "222", "333", "444"};
+
+	/** Longest time in ms to wait for the background check. */
+	private static final long TIMEOUT = 5000;
+
+	/** The root of the store. */
+	private File mRoot;
+
+	/** The store whose quota is enforced. */
+	private ContentStore mStore;
+
+	/** The database the objects are stored in. */
+	private IODatabase mDatabase;
+
+	/** The manager under test. */
+	private ContentStoreManager mManager;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Context context = new RenamingDelegatingContext(getContext(), TEST_FILE_PREFIX);
+		DatamodelFactory datamodelFactory = new DatamodelFactoryImpl();
+		mDatabase = new IODatabase(datamodelFactory, context);
+		IODatabaseFactory databaseFactory = new IODatabaseFactory() {
+			@Override
+			public IODatabase create(Context context) {
+				return mDatabase;
+			}
+		};
+
+		mRoot = File.createTempFile("store", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mStore = new ContentStore(mRoot, 0, 64 * 1024, "", 64);
+
+		// Never reconciles on its own, only checks the quota when told about a new object
+		mManager = new ContentStoreManager(QUOTA, Long.MAX_VALUE, Long.MAX_VALUE,
+				Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 0,
+				mStore, new LruEvictionPolicy(), databaseFactory,
+				new LocalIoCache(64 * 1024),
+				new LocalPresenceIndex(100, 0.01, mStore, databaseFactory),
+				new NrsResolutionCache(16, 60000, 60000, false, null));
+
+		// Objects stored one after the other, with files in the store and rows in the database
+		String filepath = UProperties.INSTANCE.getPropertyWithName("metadata.filepath");
+		String filesize = UProperties.INSTANCE.getPropertyWithName("metadata.filesize");
+		for (String hash : HASHES) {
+			File file = mStore.write(hash, new byte[OBJECT_SIZE]);
+			mDatabase.addIO(new IOBuilder(datamodelFactory)
+					.setHash(hash)
+					.setHashAlgorithm("sha-256")
+					.setContentType("application/octet-stream")
+					.addMetaData(filepath, file.getAbsolutePath())
+					.addMetaData(filesize, Integer.toString(OBJECT_SIZE))
+					.build());
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (String hash : HASHES) {
+			mDatabase.deleteIO(hash);
+		}
+		mDatabase.close();
+		mStore.getPacks().close();
+		FileUtils.deleteDirectory(mRoot);
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that exceeding the quota evicts the least recently read objects down to the
+	 * low watermark, files and rows alike.
+	 */
+	public void testEnforceQuota() throws Exception {
+		// The newer objects are read, so the older ones are worth the least
+		Thread.sleep(10);
+		mManager.onRead(HASHES[2]);
+		mManager.onRead(HASHES[3]);
+		mManager.onStored(HASHES[3]);
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mManager.getStatistics().get("evictions") < 2
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		// One eviction would be within the quota, but not below 90% of it
+		assertEquals(Long.valueOf(2), mManager.getStatistics().get("evictions"));
+		assertEquals(Long.valueOf(2 * OBJECT_SIZE),
+				mManager.getStatistics().get("evicted_bytes"));
+		assertEquals(Long.valueOf(2 * OBJECT_SIZE), mManager.getStatistics().get("used_bytes"));
+
+		assertNull(mStore.find(HASHES[0]));
+		assertNull(mStore.find(HASHES[1]));
+		assertNotNull(mStore.find(HASHES[2]));
+		assertNotNull(mStore.find(HASHES[3]));
+
+		Set<String> rows = new HashSet<String>();
+		for (StoredObject object : mDatabase.getStoredObjects()) {
+			rows.add(object.getHash());
+		}
+		assertFalse(rows.contains(HASHES[0]));
+		assertFalse(rows.contains(HASHES[1]));
+		assertTrue(rows.contains(HASHES[2]));
+		assertTrue(rows.contains(HASHES[3]));
+	}
+
+	/** Tests that nothing is evicted while the store is within its quota. */
+	public void testWithinQuota() throws Exception {
+		mStore.remove(HASHES[0]);
+		mManager.onStored(HASHES[3]);
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mManager.getStatistics().get("used_bytes") == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(Long.valueOf(0), mManager.getStatistics().get("evictions"));
+		assertEquals(Long.valueOf(QUOTA), mManager.getStatistics().get("used_bytes"));
+		for (int i = 1; i < HASHES.length; i++) {
+			assertNotNull(mStore.find(HASHES[i]));
+		}
+	}
+}
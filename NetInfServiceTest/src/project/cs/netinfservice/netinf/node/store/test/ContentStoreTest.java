@@ -0,0 +1,213 @@
+package project.cs.netinfservice.netinf.node.store.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.util.NiHash;
+import project.cs.netinfutilities.store.StoreLayout;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the layout of the content store.
+ */
+public class ContentStoreTest extends AndroidTestCase {
+
+	/** A canonical hash starting with the bytes 0xab 0xcd and containing a slash. */
+	private static final String HASH = "q80/AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	/** Objects smaller than this are packed. */
+	private static final int PACK_THRESHOLD = 1024;
+
+	/** Size at which a pack is full. */
+	private static final long MAX_PACK_SIZE = 64 * 1024;
+
+	/** Content types stored compressed. */
+	private static final String COMPRESSED_TYPES = "text/, application/json";
+
+	/** Objects smaller than this are not compressed. */
+	private static final int MIN_COMPRESSED_SIZE = 64;
+
+	/** The content of the stored file. */
+	private static final byte[] DATA = "content".getBytes();
+
+	/** The root of the store. */
+	private File mRoot;
+
+	/** The store under test. */
+	private ContentStore mStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mRoot = File.createTempFile("store", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mStore = new ContentStore(mRoot, PACK_THRESHOLD, MAX_PACK_SIZE, COMPRESSED_TYPES,
+				MIN_COMPRESSED_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStore.getPacks().close();
+		FileUtils.deleteDirectory(mRoot);
+		super.tearDown();
+	}
+
+	/** Tests that files are sharded by the first bytes of the digest. */
+	public void testRelativePath() {
+		assertEquals(new File(mRoot, "ab/cd/q80_AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"),
+				mStore.getFile(HASH));
+		String path = mStore.getFile("111").getPath().substring(mRoot.getPath().length() + 1);
+		assertTrue(path.matches("[0-9a-f]{2}/[0-9a-f]{2}/111"));
+		assertEquals(path, StoreLayout.getRelativePath("111"));
+	}
+
+	/** Tests that the shared layout shards digests by the bytes the service decodes. */
+	public void testLayoutMatchesDigest() {
+		Random random = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			byte[] digest = new byte[32];
+			random.nextBytes(digest);
+			String hash = NiHash.toBase64(digest);
+			assertEquals(String.format("%02x/%02x/%s", digest[0] & 0xff, digest[1] & 0xff,
+					hash.replace('/', '_')), StoreLayout.getRelativePath(hash));
+		}
+
+		// Not a canonical encoding, so no digest
+		String hash = HASH.substring(0, 42) + "B";
+		assertNull(NiHash.toBytes(hash));
+		assertFalse(StoreLayout.getRelativePath(hash).startsWith("ab/cd/"));
+	}
+
+	/** Tests that a written file is found and listed, without temporary files left. */
+	public void testWrite() throws IOException {
+		File file = mStore.write(HASH, DATA);
+
+		assertEquals(file, mStore.find(HASH));
+		assertTrue(FileUtils.contentEquals(file, mStore.getFile(HASH)));
+		assertEquals(file, mStore.listFiles().get(HASH));
+		assertEquals(1, mRoot.listFiles().length);
+	}
+
+	/** Tests that files stored by earlier versions are found and moved into place. */
+	public void testMigrate() throws IOException {
+		File legacy = new File(mRoot, "111");
+		FileUtils.writeByteArrayToFile(legacy, DATA);
+
+		assertEquals(legacy, mStore.find("111"));
+		mStore.migrate();
+
+		assertFalse(legacy.exists());
+		assertEquals(mStore.getFile("111"), mStore.find("111"));
+		Map<String, File> files = mStore.listFiles();
+		assertEquals(1, files.size());
+		assertEquals(mStore.getFile("111"), files.get("111"));
+	}
+
+	/** Tests that a packed object is read from the pack and materialized on request. */
+	public void testPack() throws IOException {
+		mStore.write(HASH, DATA);
+
+		assertTrue(mStore.pack(HASH));
+		assertNull(mStore.find(HASH));
+		assertTrue(mStore.contains(HASH));
+		assertEquals(DATA.length, mStore.getLength(HASH));
+		assertTrue(mStore.listFiles().isEmpty());
+		assertEquals(Long.valueOf(DATA.length), mStore.listPacked().get(HASH));
+
+		ByteBuffer buffer = mStore.getBuffer(HASH);
+		byte[] read = new byte[buffer.remaining()];
+		buffer.get(read);
+		assertTrue(Arrays.equals(DATA, read));
+
+		File file = mStore.materialize(HASH);
+		assertEquals(mStore.getFile(HASH), file);
+		assertTrue(Arrays.equals(DATA, FileUtils.readFileToByteArray(file)));
+
+		assertTrue(mStore.remove(HASH));
+		assertFalse(mStore.contains(HASH));
+	}
+
+	/** Tests that text is stored compressed and read back uncompressed. */
+	public void testCompressed() throws IOException {
+		byte[] html = new byte[PACK_THRESHOLD - 24];
+		Arrays.fill(html, (byte) 'a');
+
+		File file = mStore.write(HASH, html, "text/html; charset=UTF-8");
+		assertEquals(mStore.getCompressedFile(HASH), file);
+		assertTrue(ContentStore.isCompressed(file));
+		assertTrue(file.length() < html.length);
+
+		assertEquals(file, mStore.find(HASH));
+		assertEquals(file, mStore.listFiles().get(HASH));
+		assertEquals(html.length, mStore.getLength(HASH));
+		InputStream in = mStore.openStream(HASH);
+		assertTrue(Arrays.equals(html, IOUtils.toByteArray(in)));
+		in.close();
+		assertNotNull(mStore.getCompressedBuffer(HASH));
+
+		// Packing stores the content uncompressed
+		assertTrue(mStore.pack(HASH));
+		assertNull(mStore.getCompressedBuffer(HASH));
+		ByteBuffer buffer = mStore.getBuffer(HASH);
+		assertEquals(html.length, buffer.remaining());
+	}
+
+	/** Tests that other content types, small and incompressible objects stay as they are. */
+	public void testNotCompressed() throws IOException {
+		byte[] image = new byte[4096];
+		Arrays.fill(image, (byte) 'a');
+
+		assertFalse(ContentStore.isCompressed(mStore.write(HASH, image, "image/png")));
+		assertFalse(mStore.isCompressible("application/json", MIN_COMPRESSED_SIZE - 1));
+		assertFalse(mStore.isCompressible(null, image.length));
+
+		byte[] random = new byte[4096];
+		new Random(1).nextBytes(random);
+		assertFalse(ContentStore.isCompressed(mStore.write("111", random, "text/plain")));
+	}
+
+	/** Tests that a streamed temporary file is compressed when it is committed. */
+	public void testCommitStreamed() throws IOException {
+		byte[] text = new byte[4096];
+		Arrays.fill(text, (byte) 'a');
+
+		File temp = mStore.createTempFile();
+		FileUtils.writeByteArrayToFile(temp, text);
+		File file = mStore.commit(temp, HASH, "text/plain");
+		assertFalse(temp.exists());
+		assertEquals(mStore.getCompressedFile(HASH), file);
+		assertEquals(text.length, mStore.getLength(HASH));
+
+		// A second copy of the same object is dropped
+		temp = mStore.createTempFile();
+		FileUtils.writeByteArrayToFile(temp, text);
+		assertEquals(file, mStore.commit(temp, HASH, "text/plain"));
+		assertFalse(temp.exists());
+
+		temp = mStore.createTempFile();
+		FileUtils.writeByteArrayToFile(temp, text);
+		assertEquals(mStore.getFile("111"), mStore.commit(temp, "111", "image/png"));
+	}
+
+	/** Tests that large objects and hashes that are not digests keep their files. */
+	public void testPackSkipped() throws IOException {
+		String large = "q80AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+		mStore.write(large, new byte[PACK_THRESHOLD]);
+		mStore.write("111", DATA);
+
+		assertFalse(mStore.pack(large));
+		assertFalse(mStore.pack("111"));
+		assertNotNull(mStore.find(large));
+		assertNotNull(mStore.find("111"));
+	}
+}
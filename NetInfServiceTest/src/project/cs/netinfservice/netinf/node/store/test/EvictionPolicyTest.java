@@ -0,0 +1,57 @@
+package project.cs.netinfservice.netinf.node.store.test;
+
+import project.cs.netinfservice.netinf.node.store.EvictionPolicy;
+import project.cs.netinfservice.netinf.node.store.FrequencyEvictionPolicy;
+import project.cs.netinfservice.netinf.node.store.LruEvictionPolicy;
+import project.cs.netinfservice.netinf.node.store.StoredObject;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the eviction policies.
+ */
+public class EvictionPolicyTest extends AndroidTestCase {
+
+	/** One hour in ms. */
+	private static final long HOUR = 60 * 60 * 1000;
+
+	/** The current time. */
+	private static final long NOW = 100 * HOUR;
+
+	/** Tests that LRU values recently read objects higher. */
+	public void testLru() {
+		EvictionPolicy policy = new LruEvictionPolicy();
+		StoredObject old = new StoredObject("a", "sha-256", "/a", 10, NOW - 2 * HOUR, 50);
+		StoredObject recent = new StoredObject("b", "sha-256", "/b", 10, NOW - HOUR, 0);
+
+		assertTrue(policy.getValue(old, NOW) < policy.getValue(recent, NOW));
+	}
+
+	/** Tests that the frequency policy values often read objects higher. */
+	public void testFrequency() {
+		EvictionPolicy policy = new FrequencyEvictionPolicy(24 * HOUR);
+		StoredObject popular = new StoredObject("a", "sha-256", "/a", 10, NOW - 2 * HOUR, 50);
+		StoredObject recent = new StoredObject("b", "sha-256", "/b", 10, NOW - HOUR, 0);
+
+		assertTrue(policy.getValue(recent, NOW) < policy.getValue(popular, NOW));
+	}
+
+	/** Tests that reads count less as they get older. */
+	public void testFrequencyDecays() {
+		EvictionPolicy policy = new FrequencyEvictionPolicy(HOUR);
+		StoredObject once = new StoredObject("a", "sha-256", "/a", 10, NOW, 0);
+		StoredObject stale = new StoredObject("b", "sha-256", "/b", 10, NOW - 10 * HOUR, 100);
+
+		assertEquals(1.0, policy.getValue(once, NOW), 1e-9);
+		assertTrue(policy.getValue(stale, NOW) < policy.getValue(once, NOW));
+	}
+
+	/** Tests that reads not yet in the database are counted. */
+	public void testWithAccesses() {
+		StoredObject object = new StoredObject("a", null, "/a", 10, NOW - HOUR, 2);
+		StoredObject updated = object.withAccesses(NOW, 3);
+
+		assertEquals(NOW, updated.getLastAccess());
+		assertEquals(5, updated.getHits());
+		assertFalse(updated.isInDatabase());
+	}
+}
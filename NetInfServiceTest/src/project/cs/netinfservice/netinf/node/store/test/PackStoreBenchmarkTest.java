@@ -0,0 +1,173 @@
+package project.cs.netinfservice.netinf.node.store.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.PackStore;
+import project.cs.netinfservice.util.NiHash;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares storing and reading small web objects with one file per object against the
+ * pack store, in time and in space taken up on the storage.
+ */
+@LargeTest
+public class PackStoreBenchmarkTest extends AndroidTestCase {
+
+	/** Debug tag. */
+	private static final String TAG = "PackStoreBenchmarkTest";
+
+	/** Number of objects. */
+	private static final int OBJECTS = 10000;
+
+	/** Smallest object size in bytes. */
+	private static final int MIN_SIZE = 512;
+
+	/** Largest object size in bytes. */
+	private static final int MAX_SIZE = 8192;
+
+	/** Block size of the file system, assumed for the space taken up. */
+	private static final int BLOCK_SIZE = 4096;
+
+	/** The stored objects. */
+	private byte[][] mContents;
+
+	/** The hashes of the stored objects. */
+	private String[] mHashes;
+
+	/** The folder of the file per object store. */
+	private File mFilesRoot;
+
+	/** The folder of the pack store. */
+	private File mPacksRoot;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(42);
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		mContents = new byte[OBJECTS][];
+		mHashes = new String[OBJECTS];
+		for (int i = 0; i < OBJECTS; i++) {
+			mContents[i] = new byte[MIN_SIZE + random.nextInt(MAX_SIZE - MIN_SIZE)];
+			random.nextBytes(mContents[i]);
+			mHashes[i] = NiHash.toBase64(digest.digest(mContents[i]));
+		}
+
+		mFilesRoot = createDirectory("files");
+		mPacksRoot = createDirectory("packs");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(mFilesRoot);
+		FileUtils.deleteDirectory(mPacksRoot);
+		super.tearDown();
+	}
+
+	/**
+	 * Stores and reads all objects once as files of their own and once packed.
+	 */
+	public void testPackVersusFilePerObject() throws IOException {
+		// One file per object, in the sharded layout
+		ContentStore files = new ContentStore(mFilesRoot, 0, 0, "", 0);
+		long start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < OBJECTS; i++) {
+			files.write(mHashes[i], mContents[i]);
+		}
+		long fileWrite = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		long fileBytes = 0;
+		for (int i = 0; i < OBJECTS; i++) {
+			InputStream in = files.openStream(mHashes[i]);
+			try {
+				fileBytes += IOUtils.toByteArray(in).length;
+			} finally {
+				in.close();
+			}
+		}
+		long fileRead = SystemClock.elapsedRealtime() - start;
+		long fileSpace = getSpace(mFilesRoot);
+
+		// Packed
+		PackStore packs = new PackStore(mPacksRoot, 4 * 1024 * 1024);
+		start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < OBJECTS; i++) {
+			packs.append(mHashes[i], mContents[i]);
+		}
+		packs.flush();
+		long packWrite = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		long packBytes = 0;
+		for (int i = 0; i < OBJECTS; i++) {
+			ByteBuffer buffer = packs.getBuffer(mHashes[i]);
+			packBytes += buffer.remaining();
+		}
+		long packRead = SystemClock.elapsedRealtime() - start;
+		Map<String, Long> statistics = packs.getStatistics();
+		packs.close();
+		long packSpace = getSpace(mPacksRoot);
+
+		Log.i(TAG, "File per object: " + fileWrite + " ms writing, " + fileRead
+				+ " ms reading, " + fileSpace + " bytes on the storage");
+		Log.i(TAG, "Packed: " + packWrite + " ms writing, " + packRead
+				+ " ms reading, " + packSpace + " bytes on the storage in "
+				+ statistics.get("packs") + " packs");
+
+		assertEquals(fileBytes, packBytes);
+		assertEquals(OBJECTS, statistics.get("packed_objects").longValue());
+		assertTrue(packSpace < fileSpace);
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 *
+	 * @param name
+	 *      Prefix of the directory name
+	 * @return
+	 *      The directory
+	 */
+	private static File createDirectory(String name) throws IOException {
+		File directory = File.createTempFile(name, "");
+		directory.delete();
+		directory.mkdirs();
+		return directory;
+	}
+
+	/**
+	 * Gets the space the files below a directory take up, counting whole blocks.
+	 *
+	 * @param directory
+	 *      The directory
+	 * @return
+	 *      The number of bytes
+	 */
+	private static long getSpace(File directory) {
+		long space = 0;
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()) {
+					space += BLOCK_SIZE + getSpace(child);
+				} else {
+					space += (child.length() + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+				}
+			}
+		}
+		return space;
+	}
+}
@@ -0,0 +1,194 @@
+package project.cs.netinfservice.netinf.node.store.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import project.cs.netinfservice.netinf.node.store.PackStore;
+import project.cs.netinfservice.util.NiHash;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the pack store.
+ */
+public class PackStoreTest extends AndroidTestCase {
+
+	/** Size at which a pack is full. */
+	private static final long MAX_PACK_SIZE = 4096;
+
+	/** The directory of the packs. */
+	private File mDirectory;
+
+	/** The store under test. */
+	private PackStore mStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = File.createTempFile("packs", "");
+		mDirectory.delete();
+		mStore = new PackStore(mDirectory, MAX_PACK_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStore.close();
+		FileUtils.deleteDirectory(mDirectory);
+		super.tearDown();
+	}
+
+	/** Tests that appended objects are read back. */
+	public void testAppend() throws IOException {
+		assertTrue(mStore.append(hash(1), content(1)));
+		assertTrue(mStore.append(hash(2), content(2)));
+
+		assertContent(1);
+		assertContent(2);
+		assertEquals(content(1).length, mStore.getLength(hash(1)));
+		assertFalse(mStore.contains(hash(3)));
+		assertNull(mStore.getBuffer(hash(3)));
+		assertEquals(2, mStore.list().size());
+	}
+
+	/** Tests that hashes that are not full digests are not packed. */
+	public void testNotADigest() throws IOException {
+		assertFalse(mStore.append("111", content(1)));
+		assertFalse(mStore.contains("111"));
+	}
+
+	/** Tests that removed objects are gone, and that the index grows. */
+	public void testManyObjects() throws IOException {
+		for (int i = 0; i < 2000; i++) {
+			mStore.append(hash(i), content(i));
+		}
+		for (int i = 0; i < 2000; i += 2) {
+			assertTrue(mStore.remove(hash(i)));
+		}
+
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(i % 2 == 1, mStore.contains(hash(i)));
+		}
+		assertContent(1999);
+		assertEquals(1000, mStore.list().size());
+	}
+
+	/** Tests that the objects are found again after the store was closed. */
+	public void testReopen() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			mStore.append(hash(i), content(i));
+		}
+		mStore.remove(hash(0));
+		mStore.close();
+
+		mStore = new PackStore(mDirectory, MAX_PACK_SIZE);
+		assertFalse(mStore.contains(hash(0)));
+		assertContent(1);
+		assertContent(99);
+	}
+
+	/** Tests that a lost index is rebuilt from the packs. */
+	public void testRebuildIndex() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			mStore.append(hash(i), content(i));
+		}
+		mStore.close();
+		assertTrue(new File(mDirectory, "index").delete());
+
+		mStore = new PackStore(mDirectory, MAX_PACK_SIZE);
+		assertEquals(100, mStore.list().size());
+		assertContent(42);
+	}
+
+	/** Tests that a partly written record is cut off and later records still fit. */
+	public void testTornRecord() throws IOException {
+		mStore.append(hash(1), content(1));
+		mStore.close();
+
+		// Half a record after the indexed one
+		File pack = new File(mDirectory, "pack-1.dat");
+		RandomAccessFile raf = new RandomAccessFile(pack, "rw");
+		long length = raf.length();
+		raf.seek(length);
+		raf.write(new byte[] {0x4e, 0x49, 0x52});
+		raf.close();
+
+		mStore = new PackStore(mDirectory, MAX_PACK_SIZE);
+		assertContent(1);
+		assertEquals(length, pack.length());
+		mStore.append(hash(2), content(2));
+		assertContent(2);
+	}
+
+	/** Tests that packs that are mostly garbage are compacted. */
+	public void testCompact() throws IOException {
+		for (int i = 0; i < 200; i++) {
+			mStore.append(hash(i), content(i));
+		}
+		for (int i = 0; i < 200; i++) {
+			if (i % 10 != 0) {
+				mStore.remove(hash(i));
+			}
+		}
+		long before = mStore.getStatistics().get("pack_bytes");
+
+		assertTrue(mStore.compact(0.5) > 0);
+		assertTrue(mStore.getStatistics().get("pack_bytes") < before);
+		for (int i = 0; i < 200; i += 10) {
+			assertContent(i);
+		}
+
+		// The moved records are found after reopening
+		mStore.close();
+		mStore = new PackStore(mDirectory, MAX_PACK_SIZE);
+		assertEquals(20, mStore.list().size());
+		assertContent(190);
+	}
+
+	/**
+	 * Checks that an object reads back as written.
+	 *
+	 * @param i
+	 *      The number of the object
+	 */
+	private void assertContent(int i) throws IOException {
+		ByteBuffer buffer = mStore.getBuffer(hash(i));
+		byte[] read = new byte[buffer.remaining()];
+		buffer.get(read);
+		assertTrue(Arrays.equals(content(i), read));
+	}
+
+	/**
+	 * Creates the content of an object.
+	 *
+	 * @param i
+	 *      The number of the object
+	 * @return
+	 *      The content
+	 */
+	private static byte[] content(int i) {
+		byte[] content = new byte[100 + i % 50];
+		Arrays.fill(content, (byte) i);
+		return content;
+	}
+
+	/**
+	 * Creates the hash of an object.
+	 *
+	 * @param i
+	 *      The number of the object
+	 * @return
+	 *      The hash
+	 */
+	private static String hash(int i) throws IOException {
+		try {
+			return NiHash.toBase64(MessageDigest.getInstance("SHA-256").digest(content(i)));
+		} catch (Exception e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package project.cs.netinfservice.netinf.node.store.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.PartialDownload;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that downloads that broke off are continued where they stopped.
+ */
+public class PartialDownloadTest extends AndroidTestCase {
+
+	/** A canonical hash containing a slash. */
+	private static final String HASH = "q80/AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	/** The root of the store. */
+	private File mRoot;
+
+	/** The store holding the downloads. */
+	private ContentStore mStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mRoot = File.createTempFile("store", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mStore = new ContentStore(mRoot, 1024, 64 * 1024, "text/", 64);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStore.getPacks().close();
+		FileUtils.deleteDirectory(mRoot);
+		super.tearDown();
+	}
+
+	/** Tests that a reopened download continues after the bytes written before. */
+	public void testResume() throws IOException {
+		PartialDownload partial = mStore.openPartial(HASH);
+		assertEquals(0, partial.getReceived());
+		write(partial, 0, "first ");
+
+		partial = mStore.openPartial(HASH);
+		assertEquals(6, partial.getReceived());
+		write(partial, partial.getReceived(), "second");
+
+		assertEquals("first second", FileUtils.readFileToString(partial.getFile()));
+		File stored = mStore.commit(partial.getFile(), HASH);
+		partial.delete();
+		assertEquals("first second", FileUtils.readFileToString(stored));
+		assertEquals(0, mStore.openPartial(HASH).getReceived());
+	}
+
+	/** Tests that bytes that were never recorded as received are not trusted. */
+	public void testUnrecordedTail() throws IOException {
+		PartialDownload partial = mStore.openPartial(HASH);
+		write(partial, 0, "kept");
+
+		// Bytes that reached the file but not the record, as after a crash
+		FileUtils.writeStringToFile(partial.getFile(), "kept and lost");
+
+		partial = mStore.openPartial(HASH);
+		assertEquals(4, partial.getReceived());
+		partial.openOutput(partial.getReceived()).close();
+		assertEquals("kept", FileUtils.readFileToString(partial.getFile()));
+	}
+
+	/** Tests that touching ranges are merged and a gap keeps the resume offset. */
+	public void testRanges() throws IOException {
+		PartialDownload partial = mStore.openPartial(HASH);
+		write(partial, 0, "0123");
+		write(partial, 8, "89");
+		assertEquals(4, partial.getReceived());
+		assertEquals(2, partial.getRanges().size());
+
+		write(partial, 4, "4567");
+		List<long[]> ranges = mStore.openPartial(HASH).getRanges();
+		assertEquals(1, ranges.size());
+		assertTrue(Arrays.equals(new long[] {0, 10}, ranges.get(0)));
+		assertEquals(10, mStore.openPartial(HASH).getReceived());
+	}
+
+	/** Tests that a reset download starts from the beginning and old ones are cleaned up. */
+	public void testReset() throws IOException {
+		PartialDownload partial = mStore.openPartial(HASH);
+		write(partial, 0, "wrong");
+		partial.reset();
+
+		assertEquals(0, mStore.openPartial(HASH).getReceived());
+		assertFalse(partial.getFile().exists());
+
+		write(partial, 0, "right");
+		assertEquals(0, mStore.deletePartials(60 * 1000));
+		assertEquals(1, mStore.deletePartials(-1));
+		assertEquals(0, mStore.openPartial(HASH).getReceived());
+	}
+
+	/**
+	 * Writes content into a download.
+	 *
+	 * @param partial
+	 *      The download
+	 * @param offset
+	 *      Where the content goes
+	 * @param content
+	 *      The content
+	 * @throws IOException
+	 *      In case the content could not be written
+	 */
+	private static void write(PartialDownload partial, long offset, String content)
+			throws IOException {
+		OutputStream out = partial.openOutput(offset);
+		try {
+			out.write(content.getBytes());
+		} finally {
+			out.close();
+		}
+	}
+}
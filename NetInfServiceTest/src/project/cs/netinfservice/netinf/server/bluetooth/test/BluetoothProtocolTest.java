@@ -0,0 +1,108 @@
+package project.cs.netinfservice.netinf.server.bluetooth.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol.Request;
+import project.cs.netinfservice.netinf.server.bluetooth.BluetoothProtocol.Response;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the framing of version 2 of the Bluetooth protocol.
+ */
+public class BluetoothProtocolTest extends AndroidTestCase {
+
+	/** A canonical hash. */
+	private static final String HASH = "q80_AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	/** Tests that the preamble tells version 2 apart from a version 1 request. */
+	public void testPreamble() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BluetoothProtocol.writePreamble(out);
+		byte[] preamble = out.toByteArray();
+
+		assertTrue(BluetoothProtocol.isPreambleStart(preamble[0]));
+		assertFalse(BluetoothProtocol.isPreambleStart(HASH.charAt(0)));
+
+		InputStream in = new ByteArrayInputStream(preamble);
+		in.read();
+		assertTrue(BluetoothProtocol.readPreamble(in, 1));
+
+		// A version 1 server answers with an empty file
+		assertFalse(BluetoothProtocol.readPreamble(new ByteArrayInputStream(new byte[4]), 0));
+	}
+
+	/** Tests that pipelined requests are read back in order. */
+	public void testRequests() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Request(1, HASH, true).writeTo(out);
+		new Request(2, HASH, false).writeTo(out);
+
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		Request first = Request.readFrom(in);
+		assertEquals(1, first.getId());
+		assertEquals(HASH, first.getHash());
+		assertTrue(first.isAcceptGzip());
+		Request second = Request.readFrom(in);
+		assertEquals(2, second.getId());
+		assertFalse(second.isAcceptGzip());
+		assertNull(Request.readFrom(in));
+	}
+
+	/** Tests that the content following a response is left in the stream. */
+	public void testResponses() throws IOException {
+		byte[] content = "content".getBytes();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Response(1, BluetoothProtocol.STATUS_OK, "text/plain", content.length, false)
+				.writeTo(out);
+		out.write(content);
+		new Response(2, BluetoothProtocol.STATUS_NOT_FOUND, null, 0, false).writeTo(out);
+
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		Response first = Response.readFrom(in);
+		assertEquals(1, first.getId());
+		assertEquals(BluetoothProtocol.STATUS_OK, first.getStatus());
+		assertEquals("text/plain", first.getContentType());
+		assertEquals(content.length, first.getLength());
+		assertFalse(first.isGzip());
+		byte[] read = new byte[content.length];
+		assertEquals(content.length, in.read(read));
+		assertTrue(Arrays.equals(content, read));
+
+		Response second = Response.readFrom(in);
+		assertEquals(2, second.getId());
+		assertEquals(BluetoothProtocol.STATUS_NOT_FOUND, second.getStatus());
+		assertNull(second.getContentType());
+		assertNull(Response.readFrom(in));
+	}
+
+	/** Tests that the offset of a resumed transfer is carried and disables compression. */
+	public void testOffset() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Request(1, HASH, true, 1000).writeTo(out);
+		new Response(1, BluetoothProtocol.STATUS_OK, null, 24, false, 1000).writeTo(out);
+		new Response(2, BluetoothProtocol.STATUS_OK, null, 24, false).writeTo(out);
+
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		Request request = Request.readFrom(in);
+		assertEquals(1000, request.getOffset());
+		assertFalse(request.isAcceptGzip());
+		assertEquals(1000, Response.readFrom(in).getOffset());
+		assertEquals(0, Response.readFrom(in).getOffset());
+	}
+
+	/** Tests that a message length announced by the remote device is bounded. */
+	public void testMessageTooLarge() {
+		byte[] frame = {(byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f};
+		try {
+			Request.readFrom(new ByteArrayInputStream(frame));
+			fail("Should have refused the message.");
+		} catch (IOException e) {
+			// Success
+		}
+	}
+}
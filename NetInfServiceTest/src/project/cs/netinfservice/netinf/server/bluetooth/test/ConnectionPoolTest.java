@@ -0,0 +1,137 @@
+package project.cs.netinfservice.netinf.server.bluetooth.test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import project.cs.netinfservice.netinf.server.bluetooth.ConnectionPool;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the admission and ordering of connections served by the connection pool.
+ */
+public class ConnectionPoolTest extends AndroidTestCase {
+
+	/** Time to wait for a connection to be served, in seconds. */
+	private static final long TIMEOUT = 5;
+
+	/** Released to let the blocking connections finish. */
+	private CountDownLatch mRelease;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mRelease = new CountDownLatch(1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mRelease.countDown();
+		super.tearDown();
+	}
+
+	/** Tests that connections of different devices are served at the same time. */
+	public void testConcurrent() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(2, 0, 1);
+		CountDownLatch started = new CountDownLatch(2);
+
+		assertTrue(pool.execute("a", new Blocking(started)));
+		assertTrue(pool.execute("b", new Blocking(started)));
+		assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(2, pool.getStatistics().get("active").longValue());
+	}
+
+	/** Tests that connections beyond the workers and the queue are refused. */
+	public void testQueueBound() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(1, 1, 2);
+		CountDownLatch started = new CountDownLatch(1);
+
+		assertTrue(pool.execute("a", new Blocking(started)));
+		assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+		assertTrue(pool.execute("b", new Blocking(null)));
+		assertFalse(pool.execute("c", new Blocking(null)));
+
+		Map<String, Long> statistics = pool.getStatistics();
+		assertEquals(1, statistics.get("active").longValue());
+		assertEquals(1, statistics.get("queued").longValue());
+		assertEquals(1, statistics.get("refused").longValue());
+	}
+
+	/** Tests that a device may not hold more than its share of connections. */
+	public void testPerDevice() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(4, 4, 1);
+		CountDownLatch started = new CountDownLatch(1);
+
+		assertTrue(pool.execute("a", new Blocking(started)));
+		assertFalse(pool.execute("a", new Blocking(null)));
+		assertTrue(pool.execute("b", new Blocking(null)));
+
+		// The place is released once the connection has been served
+		mRelease.countDown();
+		CountDownLatch done = new CountDownLatch(1);
+		while (!pool.execute("a", new Blocking(done))) {
+			Thread.sleep(10);
+		}
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	/** Tests that a device holding fewer connections is served first. */
+	public void testFairShare() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(1, 4, 4);
+		CountDownLatch started = new CountDownLatch(1);
+		final List<String> order = new CopyOnWriteArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(3);
+
+		assertTrue(pool.execute("a", new Blocking(started)));
+		assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+		for (final String device : new String[] {"a", "a", "b"}) {
+			assertTrue(pool.execute(device, new Runnable() {
+				@Override
+				public void run() {
+					order.add(device);
+					done.countDown();
+				}
+			}));
+		}
+
+		mRelease.countDown();
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals("b", order.get(0));
+
+		Map<String, Long> statistics = pool.getStatistics();
+		assertEquals(0, statistics.get("queued").longValue());
+		assertTrue(statistics.get("queue_wait_max") >= 0);
+	}
+
+	/**
+	 * A connection that is served until the test releases it.
+	 */
+	private class Blocking implements Runnable {
+		/** Counted down when the connection is served, may be null. */
+		private final CountDownLatch mStarted;
+
+		/**
+		 * Creates a blocking connection.
+		 *
+		 * @param started
+		 *      Counted down when the connection is served, may be null
+		 */
+		Blocking(CountDownLatch started) {
+			mStarted = started;
+		}
+
+		@Override
+		public void run() {
+			if (mStarted != null) {
+				mStarted.countDown();
+			}
+			try {
+				mRelease.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package project.cs.netinfservice.netinf.server.bluetooth.test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.server.bluetooth.ObjectSender;
+import project.cs.netinfservice.util.NiHash;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares sending stored objects of 1 KB to 100 MB over a loopback socket by streaming
+ * them with the {@link ObjectSender} against reading each one into memory first, in
+ * throughput and in heap taken up while sending.
+ */
+@LargeTest
+public class ObjectSenderBenchmarkTest extends AndroidTestCase {
+
+	/** Debug tag. */
+	private static final String TAG = "ObjectSenderBenchmarkTest";
+
+	/** Object sizes in bytes. */
+	private static final int[] SIZES = {
+		1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024, 100 * 1024 * 1024
+	};
+
+	/** Objects larger than this are not read into memory, the heap may not hold them. */
+	private static final int MAX_IN_MEMORY = 16 * 1024 * 1024;
+
+	/** Size of the buffers the sender reads through. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Files at least this large are memory mapped. */
+	private static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+
+	/** The root of the store. */
+	private File mRoot;
+
+	/** The store the objects are sent from. */
+	private ContentStore mStore;
+
+	/** Receives the objects. */
+	private ExecutorService mReceiver;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mRoot = File.createTempFile("store", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mStore = new ContentStore(mRoot, 0, 0, "", 0);
+		mReceiver = Executors.newSingleThreadExecutor();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mReceiver.shutdownNow();
+		mStore.getPacks().close();
+		FileUtils.deleteDirectory(mRoot);
+		super.tearDown();
+	}
+
+	/**
+	 * Sends every object size once streamed and, if it fits, once read into memory.
+	 */
+	public void testStreamedVersusInMemory() throws Exception {
+		ObjectSender sender = new ObjectSender(mStore, BUFFER_SIZE, MAP_THRESHOLD);
+		for (int size : SIZES) {
+			byte[] digest = new byte[32];
+			String hash = store(size, digest);
+
+			// Warm up the page cache, both senders read the same file
+			sendStreamed(sender, hash, digest);
+
+			long[] streamed = sendStreamed(sender, hash, digest);
+			Log.i(TAG, size + " bytes streamed: " + streamed[0] + " ms, "
+					+ throughput(size, streamed[0]) + " KB/s, heap grew by "
+					+ streamed[1] + " bytes");
+
+			if (size <= MAX_IN_MEMORY) {
+				long[] inMemory = sendInMemory(hash, digest);
+				Log.i(TAG, size + " bytes in memory: " + inMemory[0] + " ms, "
+						+ throughput(size, inMemory[0]) + " KB/s, heap grew by "
+						+ inMemory[1] + " bytes");
+			}
+
+			// Streaming never needs a heap of the size of a large object
+			if (size > MAP_THRESHOLD) {
+				assertTrue(streamed[1] < size);
+			}
+			mStore.remove(hash);
+		}
+	}
+
+	/**
+	 * Sends an object with the sender under test.
+	 *
+	 * @param sender
+	 *      The sender
+	 * @param hash
+	 *      The content hash
+	 * @param digest
+	 *      The SHA-256 digest of the content
+	 * @return
+	 *      The time taken in ms and the growth of the heap in bytes
+	 */
+	private long[] sendStreamed(final ObjectSender sender, final String hash, byte[] digest)
+			throws Exception {
+		return send(new Sender() {
+			@Override
+			public void send(OutputStream out) throws IOException {
+				sender.send(hash, false, out);
+			}
+		}, digest);
+	}
+
+	/**
+	 * Sends an object the way the server used to, reading it into memory first.
+	 *
+	 * @param hash
+	 *      The content hash
+	 * @param digest
+	 *      The SHA-256 digest of the content
+	 * @return
+	 *      The time taken in ms and the growth of the heap in bytes
+	 */
+	private long[] sendInMemory(final String hash, byte[] digest) throws Exception {
+		return send(new Sender() {
+			@Override
+			public void send(OutputStream out) throws IOException {
+				ByteBuffer buffer = mStore.getBuffer(hash);
+				byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				ByteBuffer header = ByteBuffer.allocate(4);
+				header.putInt(data.length);
+				out.write(header.array());
+				out.write(data);
+				out.flush();
+			}
+		}, digest);
+	}
+
+	/**
+	 * Sends an object over a loopback socket and checks what arrives.
+	 *
+	 * @param sender
+	 *      Writes the object
+	 * @param digest
+	 *      The SHA-256 digest of the content
+	 * @return
+	 *      The time taken in ms and the growth of the heap in bytes
+	 */
+	private long[] send(Sender sender, final byte[] digest) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			Future<Boolean> received = mReceiver.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					Socket socket = server.accept();
+					try {
+						return receive(socket, digest);
+					} finally {
+						socket.close();
+					}
+				}
+			});
+
+			Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+			try {
+				HeapSampler sampler = new HeapSampler();
+				sampler.start();
+				long start = SystemClock.elapsedRealtime();
+				sender.send(socket.getOutputStream());
+				assertTrue(received.get());
+				long time = SystemClock.elapsedRealtime() - start;
+				return new long[] {time, sampler.finish()};
+			} finally {
+				socket.close();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Receives an object in the format of the Bluetooth server.
+	 *
+	 * @param socket
+	 *      The socket to read from
+	 * @param digest
+	 *      The expected SHA-256 digest
+	 * @return
+	 *      True if the content matches the digest
+	 */
+	private static boolean receive(Socket socket, byte[] digest) throws Exception {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		int length = in.readInt();
+		MessageDigest actual = MessageDigest.getInstance("SHA-256");
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (read < 0) {
+				return false;
+			}
+			actual.update(buffer, 0, read);
+			remaining -= read;
+		}
+		return Arrays.equals(digest, actual.digest());
+	}
+
+	/**
+	 * Stores an object of random content without holding it in memory.
+	 *
+	 * @param size
+	 *      The size in bytes
+	 * @param digest
+	 *      Receives the SHA-256 digest of the content
+	 * @return
+	 *      The content hash
+	 */
+	private String store(int size, byte[] digest) throws Exception {
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		File temp = mStore.createTempFile();
+		OutputStream out = new DigestOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)), sha);
+		try {
+			Random random = new Random(size);
+			byte[] block = new byte[BUFFER_SIZE];
+			for (int written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(block, 0, Math.min(block.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+		System.arraycopy(sha.digest(), 0, digest, 0, digest.length);
+		String hash = NiHash.toBase64(digest);
+		mStore.commit(temp, hash);
+		return hash;
+	}
+
+	/**
+	 * Computes the throughput.
+	 *
+	 * @param size
+	 *      Bytes sent
+	 * @param time
+	 *      Time taken in ms
+	 * @return
+	 *      KB per second
+	 */
+	private static long throughput(long size, long time) {
+		return size * 1000 / 1024 / Math.max(time, 1);
+	}
+
+	/**
+	 * Writes an object to the remote device.
+	 */
+	private interface Sender {
+		/**
+		 * Writes the object.
+		 *
+		 * @param out
+		 *      The stream to the remote device
+		 */
+		void send(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Samples the heap in use while an object is sent.
+	 */
+	private static class HeapSampler extends Thread {
+		/** The heap in use at the start. */
+		private final long mBaseline;
+
+		/** The largest heap in use seen. */
+		private volatile long mPeak;
+
+		/** Cleared to stop sampling. */
+		private volatile boolean mRunning = true;
+
+		/** Creates a sampler, collecting garbage first. */
+		HeapSampler() {
+			System.gc();
+			mBaseline = used();
+			mPeak = mBaseline;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (mRunning) {
+				mPeak = Math.max(mPeak, used());
+				SystemClock.sleep(1);
+			}
+		}
+
+		/**
+		 * Stops sampling.
+		 *
+		 * @return
+		 *      How much the heap in use grew at most
+		 */
+		long finish() throws InterruptedException {
+			mRunning = false;
+			join();
+			mPeak = Math.max(mPeak, used());
+			return mPeak - mBaseline;
+		}
+
+		/**
+		 * Gets the heap in use.
+		 *
+		 * @return
+		 *      Bytes in use
+		 */
+		private static long used() {
+			Runtime runtime = Runtime.getRuntime();
+			return runtime.totalMemory() - runtime.freeMemory();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package project.cs.netinfservice.netinf.transferdispatcher.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import netinf.common.datamodel.InformationObject;
+import netinf.common.datamodel.impl.DatamodelFactoryImpl;
+
+import org.apache.commons.io.FileUtils;
+
+import project.cs.netinfservice.netinf.node.store.ContentStore;
+import project.cs.netinfservice.netinf.node.store.PartialDownload;
+import project.cs.netinfservice.netinf.transferdispatcher.TransferDispatcher;
+import project.cs.netinfservice.util.IOBuilder;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that the transfer dispatcher only stores content it can verify.
+ */
+public class TransferDispatcherTest extends AndroidTestCase {
+
+	/** Hash of the requested object. */
+	private static final String HASH = "q80_AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	/** The root of the store. */
+	private File mRoot;
+
+	/** The store the content would be written to. */
+	private ContentStore mStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mRoot = File.createTempFile("store", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mStore = new ContentStore(mRoot, 1024, 64 * 1024, "text/", 64);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStore.getPacks().close();
+		FileUtils.deleteDirectory(mRoot);
+		super.tearDown();
+	}
+
+	/** Tests that an object with an unsupported hash algorithm is refused. */
+	public void testUnsupportedHashAlgorithm() throws IOException {
+		assertRefused(new IOBuilder(new DatamodelFactoryImpl())
+				.setHash(HASH)
+				.setHashAlgorithm("md5")
+				.setContentType("text/plain")
+				.addBluetoothLocator("00:11:22:33:44:55")
+				.build());
+	}
+
+	/** Tests that an object without a hash algorithm is refused. */
+	public void testMissingHashAlgorithm() throws IOException {
+		assertRefused(new IOBuilder(new DatamodelFactoryImpl())
+				.setHash(HASH)
+				.setContentType("text/plain")
+				.addBluetoothLocator("00:11:22:33:44:55")
+				.build());
+	}
+
+	/**
+	 * Asserts that the transfer of an object is refused, and that neither the store nor
+	 * the partial download keep anything of it.
+	 *
+	 * @param io
+	 *      The information object
+	 */
+	private void assertRefused(InformationObject io) throws IOException {
+		// An earlier attempt left some content
+		PartialDownload partial = mStore.openPartial(HASH);
+		OutputStream out = partial.openOutput(0);
+		out.write("unverified".getBytes("UTF-8"));
+		out.close();
+
+		try {
+			TransferDispatcher.INSTANCE.transfer(io, mStore, null);
+			fail("Unverifiable content was accepted.");
+		} catch (IOException e) {
+			// Success
+		}
+
+		assertNull(mStore.find(HASH));
+		assertFalse(mStore.contains(HASH));
+		assertEquals(0, mStore.openPartial(HASH).getReceived());
+	}
+}
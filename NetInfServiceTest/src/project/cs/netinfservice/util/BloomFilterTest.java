@@ -0,0 +1,43 @@
+package project.cs.netinfservice.util;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the BloomFilter.
+ */
+public class BloomFilterTest extends AndroidTestCase {
+
+	/** Tests that added strings are always found. */
+	public void testNoFalseNegatives() {
+		BloomFilter filter = new BloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("hash" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("hash" + i));
+		}
+		assertEquals(1000, filter.getCount());
+	}
+
+	/** Tests that the rate of false positives stays near the wanted rate. */
+	public void testFalsePositiveRate() {
+		BloomFilter filter = new BloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("hash" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain("other" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue("False positives: " + falsePositives, falsePositives < 300);
+	}
+
+	/** Tests that an empty filter contains nothing. */
+	public void testEmpty() {
+		BloomFilter filter = new BloomFilter(10, 0.01);
+		assertFalse(filter.mightContain(""));
+		assertFalse(filter.mightContain("hash"));
+	}
+}
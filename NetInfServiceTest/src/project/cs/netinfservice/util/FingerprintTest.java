@@ -0,0 +1,23 @@
+package project.cs.netinfservice.util;
+
+import project.cs.netinfutilities.Fingerprint;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the Fingerprint.
+ */
+public class FingerprintTest extends AndroidTestCase {
+
+	/** Tests the published FNV-1a 64-bit test vectors. */
+	public void testKnownValues() {
+		assertEquals(0xcbf29ce484222325L, Fingerprint.of(""));
+		assertEquals(0xaf63dc4c8601ec8cL, Fingerprint.of("a"));
+		assertEquals(0x85944171f73967e8L, Fingerprint.of("foobar"));
+	}
+
+	/** Tests that similar urls get different fingerprints. */
+	public void testDifferentUrls() {
+		assertFalse(Fingerprint.of("http://www.dn.se/a.png") 
+				== Fingerprint.of("http://www.dn.se/b.png"));
+	}
+}
@@ -0,0 +1,67 @@
+package project.cs.netinfservice.util;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the NiHash.
+ */
+public class NiHashTest extends AndroidTestCase {
+
+	/** SHA-256 of "abc" in base64 without padding. */
+	private static final String BASE64 = "ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0";
+
+	/** SHA-256 of "abc" in URL safe base64. */
+	private static final String BASE64_URL = "ungWv48Bz-pBQUDeXa4iI7ADYaOWF3qctBD_YfIAFa0";
+
+	/** SHA-256 of "abc" in hex. */
+	private static final String HEX =
+			"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	/** Tests that every encoding of the right hash matches. */
+	public void testMatches() throws Exception {
+		byte[] digest = digest("abc");
+		assertTrue(NiHash.matches("sha-256", BASE64, digest));
+		assertTrue(NiHash.matches("sha-256", BASE64 + "=", digest));
+		assertTrue(NiHash.matches("sha-256", BASE64_URL, digest));
+		assertTrue(NiHash.matches("sha-256", HEX, digest));
+		assertTrue(NiHash.matches("sha-256-32", HEX.substring(0, 8), digest));
+	}
+
+	/** Tests that other content does not match. */
+	public void testMismatch() throws Exception {
+		assertFalse(NiHash.matches("sha-256", BASE64, digest("abd")));
+		assertFalse(NiHash.matches("sha-256", "111", digest("abc")));
+	}
+
+	/** Tests that only full base64 digests are decoded to bytes. */
+	public void testToBytes() throws Exception {
+		byte[] digest = digest("abc");
+		assertTrue(Arrays.equals(digest, NiHash.toBytes(BASE64)));
+		assertEquals(BASE64, NiHash.toBase64(digest));
+		assertNull(NiHash.toBytes(BASE64_URL));
+		assertNull(NiHash.toBytes("111"));
+	}
+
+	/** Tests that unknown hash algorithms are not supported. */
+	public void testUnsupported() {
+		assertNull(NiHash.createDigest("md5"));
+		assertNull(NiHash.createDigest("sha-256-12"));
+		assertNotNull(NiHash.createDigest("sha-256"));
+	}
+
+	/**
+	 * Computes the SHA-256 digest of a string.
+	 *
+	 * @param content
+	 *      The string
+	 * @return
+	 *      The digest
+	 */
+	private byte[] digest(String content) throws Exception {
+		MessageDigest digest = NiHash.createDigest("sha-256");
+		return digest.digest(content.getBytes("UTF-8"));
+	}
+}
@@ -0,0 +1,103 @@
+package project.cs.netinfservice.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the SingleFlight.
+ */
+public class SingleFlightTest extends AndroidTestCase {
+
+	/** The key all calls share. */
+	private static final String KEY = "sha-256;111";
+
+	/** Number of concurrent callers. */
+	private static final int CALLERS = 8;
+
+	/** Tests that concurrent callers share one call and its result. */
+	public void testConcurrentCallsAreCoalesced() throws Exception {
+		final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> results = new ArrayList<String>();
+
+		// The call blocks until every caller has joined
+		final Callable<String> call = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				release.await(5, TimeUnit.SECONDS);
+				return "result";
+			}
+		};
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < CALLERS; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						String result = singleFlight.execute(KEY, call);
+						synchronized (results) {
+							results.add(result);
+						}
+					} catch (Exception e) {
+						fail(e.getMessage());
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		// Give the callers time to pile up on the call in flight
+		Thread.sleep(200);
+		assertEquals(1, singleFlight.size());
+		release.countDown();
+
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+
+		assertEquals(1, calls.get());
+		assertEquals(CALLERS, results.size());
+		for (String result : results) {
+			assertEquals("result", result);
+		}
+		assertEquals(0, singleFlight.size());
+	}
+
+	/** Tests that a failure is handed to the caller and the key is forgotten. */
+	public void testFailureIsPropagated() throws Exception {
+		SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+
+		try {
+			singleFlight.execute(KEY, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					throw new IOException("transfer failed");
+				}
+			});
+			fail("Expected the exception of the call");
+		} catch (IOException e) {
+			assertEquals("transfer failed", e.getMessage());
+		}
+		assertEquals(0, singleFlight.size());
+
+		// A later call runs again
+		String result = singleFlight.execute(KEY, new Callable<String>() {
+			@Override
+			public String call() {
+				return "retried";
+			}
+		});
+		assertEquals("retried", result);
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfutilities;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Computes 64-bit FNV-1a fingerprints of strings. Fingerprints are small fixed size keys
+ * for long strings like urls. Different strings can share a fingerprint, so a lookup by
+ * fingerprint still has to compare the strings.
+ */
+public final class Fingerprint {
+    /** FNV-1a 64-bit offset basis. */
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /** FNV-1a 64-bit prime. */
+    private static final long PRIME = 0x100000001b3L;
+
+    /**
+     * Not to be instantiated.
+     */
+    private Fingerprint() {
+    }
+
+    /**
+     * Computes the fingerprint of a string.
+     *
+     * @param value
+     *      The string
+     * @return
+     *      The FNV-1a hash of its UTF-8 bytes
+     */
+    public static long of(String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+
+        long hash = OFFSET_BASIS;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+}
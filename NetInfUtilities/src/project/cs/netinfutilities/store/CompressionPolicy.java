@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfutilities.store;
+
+import java.util.Locale;
+
+/**
+ * Decides which objects are stored gzip compressed in the shared folder. Text content
+ * compresses well, so objects of the configured content types are compressed, unless they
+ * are too small to gain anything or the compressed content is hardly smaller.
+ */
+public class CompressionPolicy {
+    /** Compressed content is only kept if it is at most this share of the content. */
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+
+    /** Prefixes of the content types stored compressed. */
+    private final String[] mCompressedTypes;
+
+    /** Objects smaller than this many bytes are not compressed. */
+    private final long mMinCompressedSize;
+
+    /**
+     * Creates the policy.
+     *
+     * @param compressedTypes
+     *      Comma separated prefixes of the content types stored compressed, empty to store
+     *      all content uncompressed
+     * @param minCompressedSize
+     *      Objects smaller than this many bytes are not compressed
+     */
+    public CompressionPolicy(String compressedTypes, long minCompressedSize) {
+        mCompressedTypes = compressedTypes.trim().length() == 0
+                ? new String[0]
+                : compressedTypes.trim().toLowerCase(Locale.US).split("\\s*,\\s*");
+        mMinCompressedSize = minCompressedSize;
+    }
+
+    /**
+     * Checks if content is stored compressed.
+     *
+     * @param contentType
+     *      The content type, may be null
+     * @param length
+     *      The length of the content in bytes
+     * @return
+     *      True if the content type is compressible and the content is large enough
+     */
+    public boolean isCompressible(String contentType, long length) {
+        if (contentType == null || length < mMinCompressedSize) {
+            return false;
+        }
+
+        String type = contentType.trim().toLowerCase(Locale.US);
+        for (String prefix : mCompressedTypes) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the compressed content is worth keeping instead of the content.
+     *
+     * @param compressedLength
+     *      The length of the compressed content in bytes
+     * @param length
+     *      The length of the content in bytes
+     * @return
+     *      True if the compressed content is small enough
+     */
+    public boolean isWorthKeeping(long compressedLength, long length) {
+        return compressedLength <= length * MAX_COMPRESSED_RATIO;
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2012 Ericsson, Uppsala University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Uppsala University
+ *
+ * Project CS course, Fall 2012
+ *
+ * Projekt DV/Project CS, is a course in which the students develop software for
+ * distributed systems. The aim of the course is to give insights into how a big
+ * project is run (from planning to realization), how to construct a complex
+ * distributed system and to give hands-on experience on modern construction
+ * principles and programming methods.
+ *
+ */
+package project.cs.netinfutilities.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import project.cs.netinfutilities.Fingerprint;
+
+/**
+ * The layout of the files in the shared folder. The NetInf service and the applications
+ * that store objects for it both use it, so each finds the files of the other.
+ * <p>
+ * The files are spread over two levels of directories named after the first two bytes of
+ * the digest in hex, like <code>ab/cd/&lt;hash&gt;</code>. Hashes that are not base64
+ * encoded SHA-256 digests are spread by their {@link Fingerprint}. Slashes in the hash are
+ * replaced in the file name. Compressed content is gzipped into a file with the suffix
+ * {@link #COMPRESSED_SUFFIX}.
+ */
+public final class StoreLayout {
+    /** Suffix of the files stored compressed. */
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    /** Replaces the slashes of a hash in the file name. */
+    public static final char SLASH_REPLACEMENT = '_';
+
+    /** Number of characters of a base64 encoded SHA-256 digest without padding. */
+    private static final int DIGEST_CHARS = 43;
+
+    /** Number of bytes of a SHA-256 digest. */
+    private static final int DIGEST_BYTES = 32;
+
+    /** The base64 alphabet. */
+    private static final String BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /** Size of the buffer used to compress files. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Not to be instantiated.
+     */
+    private StoreLayout() {
+    }
+
+    /**
+     * Gets the path of the file of an object, relative to the shared folder.
+     *
+     * @param hash
+     *      The content hash
+     * @return
+     *      The relative path of the uncompressed file
+     */
+    public static String getRelativePath(String hash) {
+        int first;
+        int second;
+        byte[] digest = decodeDigest(hash);
+        if (digest != null) {
+            first = digest[0] & 0xff;
+            second = digest[1] & 0xff;
+        } else {
+            long fingerprint = Fingerprint.of(hash);
+            first = (int) (fingerprint >>> 56) & 0xff;
+            second = (int) (fingerprint >>> 48) & 0xff;
+        }
+
+        return String.format(Locale.US, "%02x/%02x/%s", first, second,
+                hash.replace('/', SLASH_REPLACEMENT));
+    }
+
+    /**
+     * Checks if a file of the shared folder holds compressed content.
+     *
+     * @param file
+     *      The file
+     * @return
+     *      True if the content must be decompressed
+     */
+    public static boolean isCompressed(File file) {
+        return file.getName().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Opens a file of the shared folder, decompressing it on the fly if it is compressed.
+     *
+     * @param file
+     *      The file
+     * @return
+     *      The stream of the content
+     * @throws IOException
+     *      In case the file could not be opened
+     */
+    public static InputStream openContent(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        if (!isCompressed(file)) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the length of the content of a file of the shared folder. A compressed file
+     * records the length, modulo 2^32, in its last four bytes.
+     *
+     * @param file
+     *      The file
+     * @return
+     *      The length of the uncompressed content in bytes
+     * @throws IOException
+     *      In case the length could not be read
+     */
+    public static long getContentLength(File file) throws IOException {
+        if (!isCompressed(file)) {
+            return file.length();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - 4);
+            byte[] trailer = new byte[4];
+            raf.readFully(trailer);
+            return (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8
+                    | (trailer[2] & 0xffL) << 16 | (trailer[3] & 0xffL) << 24;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Compresses content with gzip.
+     *
+     * @param data
+     *      The content
+     * @return
+     *      The compressed content
+     * @throws IOException
+     *      In case the content could not be compressed
+     */
+    public static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compresses a file with gzip.
+     *
+     * @param source
+     *      The file
+     * @param target
+     *      Where the compressed file is written
+     * @throws IOException
+     *      In case the file could not be compressed
+     */
+    public static void compress(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(target));
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes a hash that is a base64 encoded SHA-256 digest without padding. Only the
+     * canonical encoding of a digest is accepted.
+     *
+     * @param hash
+     *      The hash
+     * @return
+     *      The digest, or null if the hash is no such digest
+     */
+    private static byte[] decodeDigest(String hash) {
+        if (hash == null || hash.length() != DIGEST_CHARS) {
+            return null;
+        }
+
+        byte[] digest = new byte[DIGEST_BYTES];
+        int length = 0;
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < DIGEST_CHARS; i++) {
+            int value = BASE64.indexOf(hash.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            buffer = buffer << 6 | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                digest[length++] = (byte) (buffer >> bits);
+                buffer &= (1 << bits) - 1;
+            }
+        }
+
+        // The two bits left over are zero in the canonical encoding
+        return buffer == 0 ? digest : null;
+    }
+}